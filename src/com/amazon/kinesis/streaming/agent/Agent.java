@@ -314,6 +314,11 @@ public class Agent extends AbstractIdleService implements IHeartbeatProvider {
                 logger.warn("{}: Error while waiting for executor service to stop during shutdown.",
                         serviceName(), e);
             }
+            // Conversions still pending belong to tailers that are stopped by now
+            agentContext.shutdownDataConversionExecutor();
+            agentContext.shutdownReadAheadExecutor();
+            agentContext.shutdownDirectoryWatcher();
+            agentContext.shutdownFlowScheduler();
             // Shutdown heartbeats
             try {
                 heartbeat.awaitTerminated();
@@ -426,6 +431,13 @@ public class Agent extends AbstractIdleService implements IHeartbeatProvider {
         globalMetrics.put("ActiveSendingThreads", sendingExecutor.getActiveCount());
         globalMetrics.put("SendingThreadsAlive", sendingExecutor.getPoolSize());
         globalMetrics.put("MaxSendingThreadsAlive", sendingExecutor.getLargestPoolSize());
+        globalMetrics.put("MaxDataConversionThreads", agentContext.maxDataConversionThreads());
+        globalMetrics.putAll(agentContext.getDirectoryIndex().getMetrics());
+        globalMetrics.putAll(agentContext.getFileHandleManager().getMetrics());
+        globalMetrics.putAll(agentContext.getMemoryBudget().getMetrics());
+        if (agentContext.getFlowScheduler() != null) {
+            globalMetrics.putAll(agentContext.getFlowScheduler().getMetrics());
+        }
         return globalMetrics;
     }
 
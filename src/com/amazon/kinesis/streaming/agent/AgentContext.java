@@ -23,6 +23,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -39,8 +41,13 @@ import com.amazon.kinesis.streaming.agent.config.ConfigurationException;
 import com.amazon.kinesis.streaming.agent.metrics.IMetricsContext;
 import com.amazon.kinesis.streaming.agent.metrics.IMetricsScope;
 import com.amazon.kinesis.streaming.agent.metrics.Metrics;
+import com.amazon.kinesis.streaming.agent.tailing.DirectoryIndex;
+import com.amazon.kinesis.streaming.agent.tailing.DirectoryWatcher;
+import com.amazon.kinesis.streaming.agent.tailing.FileHandleManager;
 import com.amazon.kinesis.streaming.agent.tailing.FileFlow;
 import com.amazon.kinesis.streaming.agent.tailing.FileFlowFactory;
+import com.amazon.kinesis.streaming.agent.tailing.FlowScheduler;
+import com.amazon.kinesis.streaming.agent.tailing.MemoryBudget;
 import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.auth.STSAssumeRoleSessionCredentialsProvider;
@@ -76,6 +83,14 @@ public class AgentContext extends AgentConfiguration implements IMetricsContext
     private AmazonKinesisClient kinesisClient;
     private AmazonCloudWatch cloudwatchClient;
     private IMetricsContext metrics;
+    private ExecutorService dataConversionExecutor;
+    private ExecutorService readAheadExecutor;
+    private DirectoryWatcher directoryWatcher;
+    private boolean directoryWatcherUnavailable = false;
+    private DirectoryIndex directoryIndex;
+    private FileHandleManager fileHandleManager;
+    private FlowScheduler flowScheduler;
+    private MemoryBudget memoryBudget;
     private String instanceTag = null;
     /**
      *
@@ -144,6 +159,129 @@ public class AgentContext extends AgentConfiguration implements IMetricsContext
         return tp;
     }
 
+    /**
+     * @return The executor shared by all flows to convert records in
+     *         parallel, or {@code null} if records should be converted on the
+     *         tailing thread (see {@link #maxDataConversionThreads()}).
+     */
+    public synchronized ExecutorService getDataConversionExecutor() {
+        if (dataConversionExecutor == null && maxDataConversionThreads() > 0) {
+            ThreadFactory threadFactory = new ThreadFactoryBuilder().setNameFormat("converter-%d").setDaemon(true).build();
+            dataConversionExecutor = Executors.newFixedThreadPool(maxDataConversionThreads(), threadFactory);
+        }
+        return dataConversionExecutor;
+    }
+
+    public synchronized void shutdownDataConversionExecutor() {
+        if (dataConversionExecutor != null) {
+            dataConversionExecutor.shutdownNow();
+            dataConversionExecutor = null;
+        }
+    }
+
+    /**
+     * @return The executor shared by all flows to read file chunks ahead of
+     *         their parsers (see {@link FileFlow#getReadAheadDepth()}). Each
+     *         flow has at most as many reads outstanding as its read-ahead
+     *         depth, so the pool grows with the number of flows using it.
+     */
+    public synchronized ExecutorService getReadAheadExecutor() {
+        if (readAheadExecutor == null) {
+            ThreadFactory threadFactory = new ThreadFactoryBuilder().setNameFormat("read-ahead-%d").setDaemon(true).build();
+            readAheadExecutor = Executors.newCachedThreadPool(threadFactory);
+        }
+        return readAheadExecutor;
+    }
+
+    public synchronized void shutdownReadAheadExecutor() {
+        if (readAheadExecutor != null) {
+            readAheadExecutor.shutdownNow();
+            readAheadExecutor = null;
+        }
+    }
+
+    /**
+     * @return The watcher shared by all flows that discover file changes
+     *         through events (see {@link FileFlow.FileDiscovery#WATCH}), or
+     *         {@code null} if the file system doesn't support it, in which
+     *         case flows keep polling.
+     */
+    public synchronized DirectoryWatcher getDirectoryWatcher() {
+        if (directoryWatcher == null && !directoryWatcherUnavailable) {
+            try {
+                directoryWatcher = new DirectoryWatcher();
+            } catch (IOException | UnsupportedOperationException e) {
+                LOGGER.warn("File system events are not available, flows will poll for file changes instead.", e);
+                directoryWatcherUnavailable = true;
+            }
+        }
+        return directoryWatcher;
+    }
+
+    public synchronized void shutdownDirectoryWatcher() {
+        if (directoryWatcher != null) {
+            try {
+                directoryWatcher.close();
+            } catch (IOException e) {
+                LOGGER.debug("Failed to close the directory watcher.", e);
+            }
+            directoryWatcher = null;
+        }
+    }
+
+    /**
+     * @return The index of directory listings and file attributes shared by
+     *         all flows (see {@link #directoryScanIntervalMillis()} and
+     *         {@link #fileAttributesMaxAgeMillis()}).
+     */
+    public synchronized DirectoryIndex getDirectoryIndex() {
+        if (directoryIndex == null) {
+            directoryIndex = new DirectoryIndex(directoryScanIntervalMillis(), fileAttributesMaxAgeMillis());
+        }
+        return directoryIndex;
+    }
+
+    /**
+     * @return The manager of the files opened by all flows, which keeps at
+     *         most {@link #maxOpenFiles()} of them open.
+     */
+    public synchronized FileHandleManager getFileHandleManager() {
+        if (fileHandleManager == null) {
+            fileHandleManager = new FileHandleManager(maxOpenFiles());
+        }
+        return fileHandleManager;
+    }
+
+    /**
+     * @return The scheduler shared by all flows to run their tailers and
+     *         publishers, or {@code null} if each of them runs on a thread of
+     *         its own (see {@link #flowThreads()}).
+     */
+    public synchronized FlowScheduler getFlowScheduler() {
+        if (flowScheduler == null && flowThreads() > 0) {
+            flowScheduler = new FlowScheduler(flowThreads());
+        }
+        return flowScheduler;
+    }
+
+    public synchronized void shutdownFlowScheduler() {
+        if (flowScheduler != null) {
+            flowScheduler.shutdown();
+            flowScheduler = null;
+        }
+    }
+
+    /**
+     * @return The budget of the memory held by the records of all flows (see
+     *         {@link #maxMemoryBytes()}).
+     */
+    public synchronized MemoryBudget getMemoryBudget() {
+        if (memoryBudget == null) {
+            memoryBudget = new MemoryBudget(maxMemoryBytes());
+        }
+        return memoryBudget;
+    }
+
     /**
      * @param config
      * @return the user agent component for this build.
@@ -19,6 +19,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
 import java.nio.channels.IllegalBlockingModeException;
 import java.nio.channels.ReadableByteChannel;
@@ -270,9 +271,45 @@ public final class ByteBuffers {
      *         {@code -1} if the end of the buffer was reached.
      */
     public static int advanceBufferToNextLine(ByteBuffer buffer) {
-        while (buffer.hasRemaining()) {
-            if (buffer.get() == Constants.NEW_LINE) {
-                return buffer.position();
+        int index = indexOf(buffer, buffer.position(), buffer.limit(), (byte) Constants.NEW_LINE);
+        if (index == -1) {
+            buffer.position(buffer.limit());
+            return -1;
+        }
+        buffer.position(index + 1);
+        return index + 1;
+    }
+
+    /**
+     * Finds the first occurrence of a byte value in the buffer between the
+     * given absolute indices, examining eight bytes at a time. Works on both
+     * heap and direct buffers. The buffer's position will not be modified.
+     *
+     * @param buffer
+     * @param from Absolute index to start searching at (inclusive).
+     * @param to Absolute index to stop searching at (exclusive).
+     * @param value The byte to look for.
+     * @return The absolute index of the first occurrence of {@code value},
+     *         or {@code -1} if not found.
+     */
+    public static int indexOf(ByteBuffer buffer, int from, int to, byte value) {
+        final boolean bigEndian = buffer.order() == ByteOrder.BIG_ENDIAN;
+        final long pattern = (value & 0xFFL) * 0x0101010101010101L;
+        int index = from;
+        for (; index <= to - Long.BYTES; index += Long.BYTES) {
+            // Bytes equal to value become zero; high bit of each zero byte is
+            // then set in found. Unlike the (x - 0x01..) & ~x & 0x80.. form,
+            // this has no false positives, so either byte order can be used.
+            long word = buffer.getLong(index) ^ pattern;
+            long found = ~(((word & 0x7F7F7F7F7F7F7F7FL) + 0x7F7F7F7F7F7F7F7FL) | word | 0x7F7F7F7F7F7F7F7FL);
+            if (found != 0) {
+                int bit = bigEndian ? Long.numberOfLeadingZeros(found) : Long.numberOfTrailingZeros(found);
+                return index + (bit >>> 3);
+            }
+        }
+        for (; index < to; ++index) {
+            if (buffer.get(index) == value) {
+                return index;
             }
         }
         return -1;
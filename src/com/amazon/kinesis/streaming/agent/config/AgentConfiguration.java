@@ -24,7 +24,14 @@ public class AgentConfiguration extends Configuration {
     static final long DEFAULT_SENDING_THREADS_KEEPALIVE_MILLIS = 60_000L;
     static final int DEFAULT_SENDING_THREADS_MAX_QUEUE_SIZE = 100;
     static final String DEFAULT_CHECKPOINTS_FILE = "/var/run/aws-kinesis-agent/checkpoints";
+    static final String DEFAULT_SPILL_DIRECTORY = "/var/lib/aws-kinesis-agent/spill";
     static final int DEFAULT_MAX_SENDING_THREADS_PER_CORE = 12;
+    static final int DEFAULT_MAX_DATA_CONVERSION_THREADS = 0;
+    static final long DEFAULT_DIRECTORY_SCAN_INTERVAL_MILLIS = 1_000L;
+    static final long DEFAULT_FILE_ATTRIBUTES_MAX_AGE_MILLIS = 0L;
+    static final int DEFAULT_MAX_OPEN_FILES = 0;
+    static final int DEFAULT_FLOW_THREADS = 0;
+    static final long DEFAULT_MAX_MEMORY_BYTES = 0L;
 
     static final int DEFAULT_CW_QUEUE_SIZE = 10_000;
     static final boolean DEFAULT_CW_EMIT_METRICS = true;
@@ -125,6 +132,64 @@ public class AgentConfiguration extends Configuration {
                 DEFAULT_SENDING_THREADS_MAX_QUEUE_SIZE);
     }
 
+    /**
+     * @return The number of threads shared by all flows to run their data
+     *         conversion options, or {@code 0} to convert records on the
+     *         tailing thread of each flow.
+     */
+    public int maxDataConversionThreads() {
+        return readInteger("maxDataConversionThreads", DEFAULT_MAX_DATA_CONVERSION_THREADS);
+    }
+
+    /**
+     * @return How long the directory listings shared by all flows are reused
+     *         for while the directories don't change, or {@code 0} to list
+     *         them again on every refresh of every flow.
+     */
+    public long directoryScanIntervalMillis() {
+        return readLong("directoryScanIntervalMillis", DEFAULT_DIRECTORY_SCAN_INTERVAL_MILLIS);
+    }
+
+    /**
+     * @return How long the file attributes (size, last modified time) read
+     *         by one flow are reused by the others, or {@code 0} to read
+     *         them again on every refresh of every flow. Reused attributes
+     *         lag behind appends and truncations for up to that long.
+     */
+    public long fileAttributesMaxAgeMillis() {
+        return readLong("fileAttributesMaxAgeMillis", DEFAULT_FILE_ATTRIBUTES_MAX_AGE_MILLIS);
+    }
+
+    /**
+     * @return The number of files all flows can keep open at the same time,
+     *         or {@code 0} for no limit. Beyond that, the least recently
+     *         read files are closed, and opened again when they're read.
+     */
+    public int maxOpenFiles() {
+        return readInteger("maxOpenFiles", DEFAULT_MAX_OPEN_FILES);
+    }
+
+    /**
+     * @return The number of threads shared by all flows to tail their files
+     *         and dispatch their records, e.g. the number of cores, or
+     *         {@code 0} for each flow to have two threads of its own. With
+     *         many flows that are mostly idle, sharing a few threads saves
+     *         the memory and context switches of the dedicated ones.
+     */
+    public int flowThreads() {
+        return readInteger("flowThreads", DEFAULT_FLOW_THREADS);
+    }
+
+    /**
+     * @return The number of bytes the records of all flows can hold in
+     *         memory, or {@code 0} for no limit. Beyond that, the flows
+     *         holding more than their share stop reading until their records
+     *         are sent. Defaults to {@code 0}.
+     */
+    public long maxMemoryBytes() {
+        return readLong("maxMemoryBytes", DEFAULT_MAX_MEMORY_BYTES);
+    }
+
     public int maxSendingThreadsPerCore() {
         return readInteger("maxSendingThreadsPerCore", DEFAULT_MAX_SENDING_THREADS_PER_CORE);
     }
@@ -167,6 +232,17 @@ public class AgentConfiguration extends Configuration {
                 Paths.get(DEFAULT_CHECKPOINTS_FILE));
     }
 
+    /**
+     * @return The directory under which the flows that have
+     *         {@code maxSpillBytes} set keep the buffers that don't fit in
+     *         their publishing queue, each in its own subdirectory. Its
+     *         content is sent when the agent starts again.
+     */
+    public Path spillDirectory() {
+        return this.readPath("spillDirectory",
+                Paths.get(DEFAULT_SPILL_DIRECTORY));
+    }
+
     public int checkpointTimeToLiveDays() {
         return this.readInteger("checkpointTimeToLiveDays",
                 DEFAULT_CHECKPOINT_TTL_DAYS);
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2014-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file.
+ * This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+package com.amazon.kinesis.streaming.agent.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A histogram of non-negative values (e.g. latencies in nanoseconds) that
+ * can be recorded concurrently without locks or allocation, so that it can
+ * sit on the hot path of the agent.
+ * <p>
+ * Values are counted in fixed log-linear buckets: each power of two is split
+ * into {@value #SUB_BUCKETS} equal buckets, and values below
+ * {@value #SUB_BUCKETS} each get their own. Percentiles are therefore
+ * accurate to within 1/{@value #SUB_BUCKETS} of their value, over the whole
+ * range of {@code long}, in a fixed array of {@value #BUCKETS} counters.
+ * <p>
+ * Percentiles are read from a {@link Snapshot}. Since each counter is read
+ * on its own, a snapshot taken while values are being recorded may miss
+ * some of them, which doesn't matter for monitoring.
+ */
+@ThreadSafe
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    static final int BUCKETS = SUB_BUCKETS * (Long.SIZE - SUB_BUCKET_BITS);
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong sum = new AtomicLong();
+
+    /**
+     * @param value The value to record. Negative values (e.g. from clocks
+     *        going backwards) are recorded as {@code 0}.
+     */
+    public void record(long value) {
+        record(value, 1);
+    }
+
+    /**
+     * Records the same value several times at once (e.g. the share of each
+     * item in the time a batch of them took).
+     *
+     * @param value See {@link #record(long)}.
+     * @param count
+     */
+    public void record(long value, int count) {
+        Preconditions.checkArgument(count >= 0, "Count must be non-negative.");
+        if (value < 0)
+            value = 0;
+        counts.addAndGet(bucketOf(value), count);
+        sum.addAndGet(value * count);
+    }
+
+    public Snapshot snapshot() {
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; ++i)
+            snapshot[i] = counts.get(i);
+        return new Snapshot(snapshot, sum.get());
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int shift = Long.SIZE - 1 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return ((shift + 1) << SUB_BUCKET_BITS) + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * @return The largest value counted in the given bucket.
+     */
+    static long highestValueOf(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        int shift = (bucket >>> SUB_BUCKET_BITS) - 1;
+        long lowest = (long) (SUB_BUCKETS + (bucket & (SUB_BUCKETS - 1))) << shift;
+        return lowest + ((1L << shift) - 1);
+    }
+
+    /**
+     * The counts of a {@link LatencyHistogram} at some point in time.
+     */
+    public static class Snapshot {
+        private final long[] counts;
+        private final long sum;
+        private final long count;
+
+        private Snapshot(long[] counts, long sum) {
+            this.counts = counts;
+            this.sum = sum;
+            long count = 0;
+            for (long c : counts)
+                count += c;
+            this.count = count;
+        }
+
+        /**
+         * @return The number of values recorded.
+         */
+        public long count() {
+            return count;
+        }
+
+        /**
+         * @return The sum of the values recorded.
+         */
+        public long sum() {
+            return sum;
+        }
+
+        public double mean() {
+            return count > 0 ? (double) sum / count : 0.0;
+        }
+
+        /**
+         * @param quantile Between {@code 0} and {@code 1}, e.g. {@code 0.99}
+         *        for the 99th percentile.
+         * @return The smallest value that at least the given fraction of the
+         *         recorded values don't exceed (rounded up to the end of its
+         *         bucket), or {@code 0} if nothing was recorded.
+         */
+        public long percentile(double quantile) {
+            Preconditions.checkArgument(quantile >= 0 && quantile <= 1, "Quantile must be between 0 and 1.");
+            if (count == 0)
+                return 0;
+            long rank = Math.max(1, (long) Math.ceil(quantile * count));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; ++i) {
+                seen += counts[i];
+                if (seen >= rank)
+                    return highestValueOf(i);
+            }
+            return highestValueOf(BUCKETS - 1);
+        }
+
+        /**
+         * @param earlier A snapshot of the same histogram taken before this
+         *        one.
+         * @return The values recorded between the two snapshots.
+         */
+        public Snapshot since(Snapshot earlier) {
+            long[] delta = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; ++i)
+                delta[i] = Math.max(0, counts[i] - earlier.counts[i]);
+            return new Snapshot(delta, Math.max(0, sum - earlier.sum));
+        }
+    }
+}
@@ -25,7 +25,8 @@ public interface IDataConverter {
     public static final String NEW_LINE = "\n";
     
     /**
-     * Convert data from source to any other format
+     * Convert data from source to any other format. This can be called from
+     * several threads at once when records are converted in parallel.
      * @param data    Source data
      * @return byte array of processed data
      * @throws DataConversionException
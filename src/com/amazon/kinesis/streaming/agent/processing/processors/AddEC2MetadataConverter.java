@@ -67,10 +67,12 @@ public class AddEC2MetadataConverter implements IDataConverter {
   private static final String TAGS = "tags";
   private ILogParser logParser;
   private IJSONPrinter jsonProducer;
-  private Map<String, Object> metadata;
+  // Records are converted on several threads at once, so the metadata is
+  // built aside and published as a whole
+  private volatile Map<String, Object> metadata;
 
   private List<String> metadataFields;
-  private long metadataTimestamp;
+  private volatile long metadataTimestamp;
 
   private String metadataPrefix = "";
   private long metadataTTL = 1000 * 60 * 60; // Update metadata every hour
@@ -117,6 +119,7 @@ public class AddEC2MetadataConverter implements IDataConverter {
 
     if ((metadataTimestamp + metadataTTL) < System.currentTimeMillis()) refreshEC2Metadata();
     
+    Map<String, Object> metadata = this.metadata;
     if (metadata == null || metadata.isEmpty()) {
       LOGGER.warn("Unable to append metadata, no metadata found");
       return data;
@@ -150,11 +153,17 @@ public class AddEC2MetadataConverter implements IDataConverter {
     return null;
   }
 
-  private void refreshEC2Metadata() {
+  private synchronized void refreshEC2Metadata() {
+    long now = System.currentTimeMillis();
+    if ((metadataTimestamp + metadataTTL) >= now) {
+      // Refreshed by another thread in the meantime
+      return;
+    }
     LOGGER.info("Refreshing EC2 metadata");
 
-    metadataTimestamp = System.currentTimeMillis();
+    metadataTimestamp = now;
     
+    Map<String, Object> metadata = null;
     try {
       EC2MetadataUtils.InstanceInfo info = EC2MetadataUtils.getInstanceInfo();
 
@@ -194,7 +203,7 @@ public class AddEC2MetadataConverter implements IDataConverter {
       if (metadataFields.contains(METADATA_TIMESTAMP)) {
         metadata.put(metadataPrefix + METADATA_TIMESTAMP,
                 new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ")
-                        .format(new Date(metadataTimestamp)));
+                        .format(new Date(now)));
       }
 
       final AmazonEC2 ec2 = AmazonEC2ClientBuilder.defaultClient();
@@ -222,5 +231,8 @@ public class AddEC2MetadataConverter implements IDataConverter {
     } catch (Exception ex) {
       LOGGER.warn("Error while updating EC2 metadata - " + ex.getMessage() + ", ignoring");
     }
+    if (metadata != null) {
+      this.metadata = Collections.unmodifiableMap(metadata);
+    }
   }
 }
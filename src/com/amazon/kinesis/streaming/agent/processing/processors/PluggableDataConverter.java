@@ -3,6 +3,7 @@ package com.amazon.kinesis.streaming.agent.processing.processors;
 import java.lang.reflect.Constructor;
 import java.nio.ByteBuffer;
 
+import com.amazon.kinesis.streaming.agent.config.AgentConfiguration;
 import com.amazon.kinesis.streaming.agent.config.Configuration;
 import com.amazon.kinesis.streaming.agent.config.ConfigurationException;
 import com.amazon.kinesis.streaming.agent.processing.exceptions.DataConversionException;
@@ -59,9 +60,16 @@ public class PluggableDataConverter implements IDataConverter {
     }
   }
 
+  /**
+   * External converters may not expect to be called from several threads at
+   * once (see {@link AgentConfiguration#maxDataConversionThreads()}), so
+   * their calls are serialized.
+   */
   @Override
   public ByteBuffer convert(ByteBuffer data) throws DataConversionException {
-    return plugginConverter.convert(data);
+    synchronized (plugginConverter) {
+      return plugginConverter.convert(data);
+    }
   }
 
 }
\ No newline at end of file
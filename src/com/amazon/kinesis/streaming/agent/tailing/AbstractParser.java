@@ -15,13 +15,24 @@ package com.amazon.kinesis.streaming.agent.tailing;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayDeque;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import lombok.Getter;
@@ -32,9 +43,14 @@ import org.slf4j.LoggerFactory;
 import com.amazon.kinesis.streaming.agent.ByteBuffers;
 import com.amazon.kinesis.streaming.agent.processing.exceptions.DataConversionException;
 import com.amazon.kinesis.streaming.agent.processing.interfaces.IDataConverter;
+import com.amazon.kinesis.streaming.agent.tailing.FileFlow.Compression;
 import com.amazon.kinesis.streaming.agent.tailing.FileFlow.InitialPosition;
+import com.amazon.kinesis.streaming.agent.tailing.FileFlow.ReadMode;
+import com.amazon.kinesis.streaming.agent.tailing.StageLatencies.Stage;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 /**
  * The base record parser implementation which implements all the mechanics of
@@ -44,26 +60,92 @@ import com.google.common.base.Preconditions;
  * constructing a new new record is encapsulated in the
  * {@link #buildRecord(ByteBuffer, long)} method which must be implemented
  * by subclasses.
+ * <p>
+ * When the flow is configured with {@link ReadMode#MEMORY_MAPPED}, chunks of
+ * rotated files are mapped into memory instead of being copied into heap
+ * buffers, and records are built as views into the mapping. The file that's
+ * currently being written to is always read through heap buffers since it
+ * can be truncated (e.g. by {@code copytruncate}) while mapped. Compressed
+ * files (see {@link TrackedFile#isCompressed()}) can only be read
+ * sequentially, so they're neither mapped nor read ahead.
+ * <p>
+ * Heap buffers are leased from a {@link ParserBufferPool}. Every record that
+ * points into one retains it until it's released by the publisher, after
+ * which the buffer can be reused for a later chunk. Records whose data was
+ * converted, aggregated or compressed own a copy of it instead (see
+ * {@link IRecord#ownedBytes()}).
+ * <p>
+ * When the agent has a data conversion executor (see
+ * {@link com.amazon.kinesis.streaming.agent.config.AgentConfiguration#maxDataConversionThreads()})
+ * and the flow has data conversion options, up to
+ * {@link FileFlow#getMaxPendingDataConversions()} records are converted on
+ * the executor ahead of the caller, and {@link #readRecord()} still returns
+ * them in file order, so checkpoints remain correct. Like buffered data,
+ * the records still being converted when parsing is stopped or reset are
+ * dropped, and they're read again from wherever parsing resumes.
+ * <p>
+ * When the flow has a {@link Compression} other than {@code NONE}, each
+ * record is compressed once it's built (i.e. after conversion and
+ * aggregation), so the publisher only ever sees the compressed size.
+ * <p>
+ * When the flow has a {@link FileFlow#getReadAheadDepth()}, heap buffers are
+ * filled through a {@link ReadAheadReader}, which reads the next chunks of
+ * the file in the background while the current one is parsed.
+ * <p>
+ * Flows without data conversion, file footer or compression take a
+ * pass-through path instead: the splitter runs over the current buffer in a
+ * tight loop, recording up to {@link #PASS_THROUGH_BATCH_SIZE} record
+ * boundaries at a time, and {@link #readRecord()} builds each record straight
+ * from those offsets. Anything the batch can't handle (reading more data,
+ * oversized records, etc.) falls back to the regular path. The records of a
+ * batch are counted in the metrics, and their parse latency recorded, once
+ * the batch is done, so the parser's metrics can lag by up to a batch.
+ * <p>
+ * When the flow has a {@link FileFlow#getMultiLineIdleFlushMillis()}, the
+ * splitter holds the last record until the next one starts, and the parser
+ * ends it once it's at the end of the data read so far with a complete
+ * line, and its file either wasn't modified for that long or was rotated
+ * (see {@link #locateIdleLastRecordEnd()}).
  *
  * @see IParser
  */
 public abstract class AbstractParser<R extends IRecord> implements IParser<R> {
+    @VisibleForTesting
+    static final int PASS_THROUGH_BATCH_SIZE = 1024;
+
     protected final Logger logger;
     @Getter protected final FileFlow<R> flow;
     @Getter protected final String name;
     @Getter protected final ISplitter recordSplitter;
     @Getter protected final int bufferSize;
+    @Getter protected final ReadMode readMode;
+    @Getter protected final ParserBufferPool bufferPool;
 
     @Getter protected TrackedFile currentFile;
     @Getter protected final IDataConverter dataConverter;
+    private final ExecutorService dataConversionExecutor;
+    private final RecordCompressor compressor;
+    private final ReadAheadReader readAhead;
+    private final int maxPendingDataConversions;
+    private final ArrayDeque<PendingRecord> pendingRecords = new ArrayDeque<>();
+    private long pendingRecordBytes = 0;
+    private final boolean passThrough;
+    private final long multiLineIdleFlushMillis;
+    // End offsets of records split from the current buffer, starting at its position
+    private final int[] batchRecordEnds;
+    private int batchSize = 0;
+    private int batchIndex = 0;
+    private long batchRecordNanos = 0;
     @VisibleForTesting
     FileChannel currentFileChannel;
     private long currentFileChannelOffset = -1;
     private int headerLinesToSkip;
-    private Pattern fileFooterPattern;
+    private FileFooterMatcher fileFooterMatcher;
+    private boolean fileFooterReached;
 
     @VisibleForTesting
     ByteBuffer currentBuffer;
+    private ParserBufferPool.Chunk currentChunk;
     private long currentBufferStartOffset = -1;
     private TrackedFile currentBufferFile;
     private boolean currentBufferExhausted = false;
@@ -79,6 +161,12 @@ public abstract class AbstractParser<R extends IRecord> implements IParser<R> {
     private final AtomicLong totalRecordsProcessed = new AtomicLong();
     private final AtomicLong totalRecordsSkipped = new AtomicLong();
     private final AtomicLong totalDataProcessingErrors = new AtomicLong();
+    private final AtomicLong totalBytesMapped = new AtomicLong();
+    private final AtomicLong totalBytesCopied = new AtomicLong();
+    private final AtomicInteger pendingConversions = new AtomicInteger();
+    private final AtomicLong totalConversionWaitMillis = new AtomicLong();
+    private final AtomicLong totalRecordsPassedThrough = new AtomicLong();
+    private final AtomicLong totalRecordsFlushedOnIdle = new AtomicLong();
 
     public AbstractParser(FileFlow<R> flow) {
         this(flow, flow.getParserBufferSize());
@@ -89,9 +177,23 @@ public abstract class AbstractParser<R extends IRecord> implements IParser<R> {
                 "The buffer size needs to be larger than the max record size (" + getMaxRecordSize() + ")");
         this.flow = flow;
         this.name = getClass().getSimpleName() + "[" + flow.getId() + "]";
-        this.recordSplitter = this.flow.getRecordSplitter();
+        this.recordSplitter = this.flow.buildRecordSplitter();
         this.dataConverter = this.flow.getDataConverter();
         this.bufferSize = bufferSize;
+        this.readMode = this.flow.getReadMode() == null ? ReadMode.BUFFERED : this.flow.getReadMode();
+        this.bufferPool = new ParserBufferPool(bufferSize, this.flow.getMaxPooledParserBuffers(),
+                this.flow.getAgentContext() != null ? this.flow.getAgentContext().getMemoryBudget().account(this.flow.getId()) : null);
+        this.dataConversionExecutor = this.dataConverter != null && this.flow.getAgentContext() != null ?
+                this.flow.getAgentContext().getDataConversionExecutor() : null;
+        this.maxPendingDataConversions = Math.max(1, this.flow.getMaxPendingDataConversions());
+        this.compressor = this.flow.getCompression() == null || this.flow.getCompression() == Compression.NONE ?
+                null : new RecordCompressor(this.flow.getCompression(), this.flow.getCompressionLevel());
+        this.readAhead = this.flow.getReadAheadDepth() > 0 && this.flow.getAgentContext() != null ?
+                new ReadAheadReader(this.flow.getAgentContext().getReadAheadExecutor(), bufferSize, this.flow.getReadAheadDepth()) : null;
+        this.passThrough = this.dataConverter == null && this.compressor == null
+                && this.flow.getFileFooterPattern() == null;
+        this.batchRecordEnds = this.passThrough ? new int[PASS_THROUGH_BATCH_SIZE] : null;
+        this.multiLineIdleFlushMillis = this.recordSplitter instanceof RegexSplitter ? this.flow.getMultiLineIdleFlushMillis() : 0;
         this.logger = LoggerFactory.getLogger(getClass());
     }
 
@@ -108,7 +210,7 @@ public abstract class AbstractParser<R extends IRecord> implements IParser<R> {
                 return true;
             } catch(IOException e) {
                 logger.error("{}: Failed setting the initial position on file {}", name, file, e);
-                stopParsing("Unhandled error.");
+                stopReading("Unhandled error.");
                 totalUndhandledErrors.incrementAndGet();
                 return false;
             }
@@ -128,18 +230,40 @@ public abstract class AbstractParser<R extends IRecord> implements IParser<R> {
 
     @Override
     public synchronized boolean stopParsing(String reason) {
+        // They'll be read again from wherever parsing resumes
+        discardPendingRecords(reason);
+        return stopReading(reason);
+    }
+
+    /**
+     * Stops reading the current file, but keeps the records that were split
+     * from it already, e.g. when the file footer is reached or reading
+     * fails, so that the caller still gets the records before that point.
+     */
+    private boolean stopReading(String reason) {
+        if (compressor != null) {
+            // Parsers are often dropped once stopped (e.g. catching up on a file)
+            compressor.close();
+        }
         if (currentBuffer != null || currentFile != null) {
             currentFile = null;
             currentFileChannel = null;
             currentFileChannelOffset = -1;
             headerLinesToSkip = 0;
             discardCurrentBuffer(reason);
+            if (readAhead != null)
+                readAhead.reset();
             return true;
         } else {
             return false;
         }
     }
 
+    @Override
+    public synchronized boolean hasReachedFileFooter() {
+        return fileFooterReached;
+    }
+
     @Override
     public synchronized boolean isAtEndOfCurrentFile() {
         try {
@@ -147,7 +271,7 @@ public abstract class AbstractParser<R extends IRecord> implements IParser<R> {
                 currentFileChannelOffset == currentFileChannel.size();
         } catch (IOException e) {
             logger.error("{}: Failed when getting the size of current channel for file {}.", name, currentFile, e);
-            stopParsing("Unhandled error.");
+            stopReading("Unhandled error.");
             totalUndhandledErrors.incrementAndGet();
             return false;
         }
@@ -172,17 +296,23 @@ public abstract class AbstractParser<R extends IRecord> implements IParser<R> {
                     logger.debug("{}: Old offset: {}, new offset: {}", name, currentFileChannelOffset, newOffset);
                 }
                 currentFile = file;
+                fileFooterReached = false;
                 currentFileChannel = currentFile.getChannel();
                 currentFileChannelOffset = currentFileChannel.position();
                 headerLinesToSkip = currentFileChannelOffset == 0 ? flow.getSkipHeaderLines() : 0;
-                fileFooterPattern = flow.getFileFooterPattern();
+                Pattern fileFooterPattern = flow.getFileFooterPattern();
+                if (fileFooterPattern == null) {
+                    fileFooterMatcher = null;
+                } else if (fileFooterMatcher == null || fileFooterMatcher.getPattern() != fileFooterPattern) {
+                    fileFooterMatcher = new FileFooterMatcher(fileFooterPattern);
+                }
                 return true;
             } else {
                 return false;
             }
         } catch(IOException e) {
             logger.error("{}: Failed when setting current file to {} (reset={}).", name, file, resetParsing, e);
-            stopParsing("Unhandled error.");
+            stopReading("Unhandled error.");
             totalUndhandledErrors.incrementAndGet();
             return false;
         }
@@ -232,18 +362,121 @@ public abstract class AbstractParser<R extends IRecord> implements IParser<R> {
         } // else: we're already at beginning of file
     }
 
+    @Override
+    public synchronized boolean hasBufferedDataFromPreviousFile() {
+        if (currentBuffer != null && currentBuffer.hasRemaining() && currentBufferFileEnded)
+            return true;
+        for (PendingRecord record : pendingRecords) {
+            if (record.file.getChannel() != currentFileChannel)
+                return true;
+        }
+        return false;
+    }
+
     @Override
     public synchronized int bufferedBytesRemaining() {
-        return currentBuffer != null ? currentBuffer.remaining() : 0;
+        return (currentBuffer != null ? currentBuffer.remaining() : 0) + (int) pendingRecordBytes;
     }
 
     @Override
     public synchronized R readRecord() {
+        if (passThrough) {
+            R record = readBatchedRecord();
+            if (record != null)
+                return record;
+        }
+        long startNanos = System.nanoTime();
+        R record = nextRecord();
+        if (record != null)
+            flow.getLatencies().recordSince(Stage.PARSE, startNanos);
+        return record;
+    }
+
+    private R nextRecord() {
+        if (dataConversionExecutor == null) {
+            PendingRecord next = readNextRecord();
+            return next != null ? next.build() : null;
+        }
+        // Keep the conversion stage full, then hand out the oldest record
+        PendingRecord next;
+        while (pendingRecords.size() < maxPendingDataConversions && (next = readNextRecord()) != null) {
+            next.startConversion();
+            pendingRecords.add(next);
+            pendingRecordBytes += next.originalLength;
+        }
+        PendingRecord oldest = pendingRecords.poll();
+        if (oldest == null)
+            return null;
+        pendingRecordBytes -= oldest.originalLength;
+        return oldest.build();
+    }
+
+    /**
+     * @return The next record of the current batch, splitting a new batch
+     *         from the current buffer if needed, or {@code null} if the
+     *         current buffer has no complete record left.
+     */
+    private R readBatchedRecord() {
+        if (batchIndex == batchSize && !splitBatch())
+            return null;
+        int offset = currentBuffer.position();
+        int length = batchRecordEnds[batchIndex++] - offset;
+        currentBuffer.position(offset + length);
+        ++recordsFromCurrentBuffer;
+        Preconditions.checkNotNull(currentBufferFile);
+        R record = buildRecord(currentBufferFile, ByteBuffers.getPartialView(currentBuffer, offset, length),
+                toChannelOffset(offset), length);
+        if (currentChunk != null) {
+            record.retainBuffer(currentChunk);
+        }
+        return record;
+    }
+
+    /**
+     * Locates the boundaries of the next records in the current buffer,
+     * leaving its position unchanged so the batch is still accounted for in
+     * {@link #bufferedBytesRemaining()} and discarded along with the buffer.
+     *
+     * @return {@code true} if at least one complete record was found.
+     */
+    private boolean splitBatch() {
+        clearBatch();
+        if (currentBuffer == null || currentBufferExhausted)
+            return false;
+        long startNanos = System.nanoTime();
+        int start = currentBuffer.position();
+        int end;
+        while (batchSize < batchRecordEnds.length && (end = recordSplitter.locateNextRecord(currentBuffer)) != -1) {
+            batchRecordEnds[batchSize++] = end;
+        }
+        currentBuffer.position(start);
+        if (batchSize == 0)
+            return false;
+        batchRecordNanos = (System.nanoTime() - startNanos) / batchSize;
+        return true;
+    }
+
+    /**
+     * Counts the records handed out from the current batch, and drops the
+     * rest of it. The parse latency of each of them is its share of the time
+     * it took to split the batch, so that handing out a record doesn't read
+     * the clock or update the metrics.
+     */
+    private void clearBatch() {
+        if (batchIndex > 0) {
+            totalRecordsParsed.addAndGet(batchIndex);
+            totalRecordsPassedThrough.addAndGet(batchIndex);
+            flow.getLatencies().record(Stage.PARSE, batchRecordNanos, batchIndex);
+        }
+        batchIndex = batchSize = 0;
+    }
+
+    private PendingRecord readNextRecord() {
         try {
             if (currentBuffer == null || currentBufferExhausted) {
                 tryReadMoreRecordsFromChannel();
             }
-            R record = readRecordFromCurrentBuffer();
+            PendingRecord record = readRecordFromCurrentBuffer();
             if (record != null)
                 return record;
             else {
@@ -253,19 +486,19 @@ public abstract class AbstractParser<R extends IRecord> implements IParser<R> {
             }
         } catch(IOException e) {
             logger.error("{}: Failed when parsing record from current file {}", name, currentFile, e);
-            stopParsing("Unhandled error.");
+            stopReading("Unhandled error.");
             totalUndhandledErrors.incrementAndGet();
             return null;
         }
     }
 
-    private R readRecordFromCurrentBuffer() throws IOException {
+    private PendingRecord readRecordFromCurrentBuffer() throws IOException {
         if (currentBuffer == null)
             return null;
         int currentRecordOffset = currentBuffer.position();
         int nextRecordOffset = recordSplitter.locateNextRecord(currentBuffer);
         if (nextRecordOffset != -1) {
-            return buildRecord(currentRecordOffset, nextRecordOffset - currentRecordOffset);
+            return sliceRecord(currentRecordOffset, nextRecordOffset - currentRecordOffset);
         } else {
             // Rewind to where we started...
             currentBuffer.position(currentRecordOffset);
@@ -284,7 +517,7 @@ public abstract class AbstractParser<R extends IRecord> implements IParser<R> {
                 totalRecordsLargerThanBuffer.incrementAndGet();
                 // 1. Use the whole buffer as the current record.
                 currentBuffer.position(currentBuffer.limit());
-                R record = buildRecord(0, currentBuffer.limit());
+                PendingRecord record = sliceRecord(0, currentBuffer.limit());
                 // 2. Discard data from file until we locate the beginning of a new record.
                 while(readNextChunk() > 0) {
                     nextRecordOffset = recordSplitter.locateNextRecord(currentBuffer);
@@ -300,20 +533,64 @@ public abstract class AbstractParser<R extends IRecord> implements IParser<R> {
                 }
                 return record;
             } else {
+                int lastRecordEnd = locateIdleLastRecordEnd();
+                if (lastRecordEnd != -1) {
+                    totalRecordsFlushedOnIdle.incrementAndGet();
+                    currentBuffer.position(lastRecordEnd);
+                    return sliceRecord(currentRecordOffset, lastRecordEnd - currentRecordOffset);
+                }
                 currentBufferExhausted = true;
                 return null;
             }
         }
     }
 
+    /**
+     * With a multi-line idle flush window, ends the last record held by the
+     * splitter if no more lines are coming for it, i.e. it ends with a
+     * complete line at the end of the data in its file, and the file was
+     * rotated, the parser moved on to another file, or the file wasn't
+     * modified for the whole window.
+     *
+     * @return The end of the last record in the current buffer, or
+     *         {@code -1} if it must be held a while longer.
+     * @throws IOException
+     */
+    private int locateIdleLastRecordEnd() throws IOException {
+        if (multiLineIdleFlushMillis <= 0 || !currentBuffer.hasRemaining()
+                || currentBuffer.get(currentBuffer.limit() - 1) != SingleLineSplitter.LINE_DELIMITER)
+            return -1;
+        if (currentBufferFileEnded)
+            return currentBuffer.limit();
+        if (currentFileChannelOffset < currentFileChannel.size())
+            return -1;
+        if (currentBufferFile.isRotated())
+            return currentBuffer.limit();
+        try {
+            long idleMillis = System.currentTimeMillis() - Files.getLastModifiedTime(currentBufferFile.getPath()).toMillis();
+            return idleMillis >= multiLineIdleFlushMillis ? currentBuffer.limit() : -1;
+        } catch (NoSuchFileException e) {
+            // Renamed or deleted since: it won't be written to under that name anymore
+            return currentBuffer.limit();
+        }
+    }
+
     private int readNextChunk() throws IOException {
+        // The current buffer is about to be moved, compacted or replaced
+        clearBatch();
+        if (readMode == ReadMode.MEMORY_MAPPED && currentFile.isRotated() && !currentFile.isCompressed()) {
+            int bytes = mapNextChunk();
+            if (bytes > 0)
+                return bytes;
+        }
         prepareCurrentBufferForWriting();
         long startOffset = currentFileChannel.position();
         Preconditions.checkState(currentFileChannelOffset == -1 || currentFileChannelOffset == startOffset,
                 "%s: Channel expected to be at offset %s but was at offset %s.", name, currentFileChannelOffset, startOffset);
         currentBufferFile = currentFile;
         currentBufferStartOffset = currentFileChannel.position() - currentBuffer.position();
-        int bytes = currentFileChannel.read(currentBuffer);
+        int bytes = readAhead != null && !currentFile.isCompressed() ?
+                readAhead.read(currentFileChannel, currentBuffer) : currentFileChannel.read(currentBuffer);
         currentFileChannelOffset = currentFileChannel.position();
         prepareCurrentBufferForReading();
         if (bytes > 0) {
@@ -333,6 +610,55 @@ public abstract class AbstractParser<R extends IRecord> implements IParser<R> {
         return bytes;
     }
 
+    /**
+     * Replaces the current buffer with a read-only mapping of the next
+     * {@link #bufferSize} bytes of the current file, starting at the first
+     * byte that was not consumed from the current buffer. This gives the same
+     * view of the data as {@link #prepareCurrentBufferForWriting()} followed
+     * by a channel read, without copying any data. Records built from the
+     * previous buffer keep their own view of it, so nothing is overwritten.
+     *
+     * @return The number of new bytes that were consumed from the channel,
+     *         or {@code 0} if the next chunk could not be mapped (e.g. it
+     *         extends beyond the end of the file) and should be read into a
+     *         heap buffer instead.
+     * @throws IOException
+     */
+    private int mapNextChunk() throws IOException {
+        long startOffset = currentFileChannel.position();
+        Preconditions.checkState(currentFileChannelOffset == -1 || currentFileChannelOffset == startOffset,
+                "%s: Channel expected to be at offset %s but was at offset %s.", name, currentFileChannelOffset, startOffset);
+        long windowStart = startOffset;
+        if (currentBuffer != null && !currentBufferFileEnded) {
+            // Unconsumed bytes at the end of the current buffer are at the head of the new window
+            windowStart -= currentBuffer.remaining();
+        }
+        long windowEnd = windowStart + bufferSize;
+        if (windowEnd <= startOffset || windowEnd > currentFileChannel.size())
+            return 0;
+        if (currentBuffer != null && currentBufferFileEnded)
+            discardCurrentBuffer("New file was openeded.");
+        MappedByteBuffer mapped = currentFileChannel.map(MapMode.READ_ONLY, windowStart, bufferSize);
+        if (logger.isTraceEnabled() && currentBuffer != null) {
+            logger.trace("{}: Parsed {} records from current buffer. Mapping bytes {}-{} of {}.",
+                    name, recordsFromCurrentBuffer, windowStart, windowEnd, currentFile.getPath());
+        }
+        releaseCurrentChunk();
+        currentBuffer = mapped.asReadOnlyBuffer();
+        currentBufferFile = currentFile;
+        currentBufferStartOffset = windowStart;
+        currentBufferFileEnded = false;
+        currentBufferExhausted = false;
+        currentBufferSavedReadPosition = -1;
+        recordsFromCurrentBuffer = 0;
+        currentFileChannel.position(windowEnd);
+        currentFileChannelOffset = windowEnd;
+        int bytes = (int) (windowEnd - startOffset);
+        totalBytesConsumed.addAndGet(bytes);
+        totalBytesMapped.addAndGet(bufferSize);
+        return bytes;
+    }
+
     /**
      * @return The number of bytes read from the channel, which can be
      *         {@code 0}, or {@code -1} if the EOF was reached on the
@@ -374,7 +700,24 @@ public abstract class AbstractParser<R extends IRecord> implements IParser<R> {
         }
     }
 
+    /**
+     * Drops the records that were split but not returned yet, cancelling
+     * their conversions and releasing their chunks.
+     */
+    private void discardPendingRecords(String reason) {
+        if (pendingRecords.isEmpty())
+            return;
+        logger.debug("{}: Dropping {} records ({} bytes) waiting for conversion. Reason: {}",
+                name, pendingRecords.size(), pendingRecordBytes, reason);
+        PendingRecord record;
+        while ((record = pendingRecords.poll()) != null)
+            record.discard();
+        pendingRecordBytes = 0;
+    }
+
     private void resetCurrentBuffer() {
+        clearBatch();
+        releaseCurrentChunk();
         currentBuffer = null;
         currentBufferStartOffset = -1;
         currentBufferFile = null;
@@ -411,16 +754,22 @@ public abstract class AbstractParser<R extends IRecord> implements IParser<R> {
             discardCurrentBuffer("New file was openeded.");
             getNewCurrentBuffer();
         } else if(currentBuffer.limit() == currentBuffer.capacity()) {
-            if(recordsFromCurrentBuffer > 0) {
-                // TODO: Add metrics for bytes copied between buffers
+            // Mapped buffers are read-only and can't be compacted
+            if(recordsFromCurrentBuffer > 0 || currentBuffer.isReadOnly()) {
                 if(currentBuffer.hasRemaining()) {
                     ByteBuffer oldBuffer = currentBuffer;
+                    ParserBufferPool.Chunk oldChunk = currentChunk;
                     TrackedFile oldBufferFile = currentBufferFile;
                     long oldBufferStartOffset = currentBufferStartOffset;
                     getNewCurrentBuffer();
                     currentBufferFile = oldBufferFile;
                     currentBufferStartOffset = oldBufferStartOffset + oldBuffer.position();
+                    totalBytesCopied.addAndGet(oldBuffer.remaining());
                     currentBuffer.put(oldBuffer);
+                    // The old chunk can only be released once its data was copied
+                    if(oldChunk != null) {
+                        oldChunk.release();
+                    }
                     // NOTE: Here we have a slight duplication of data in memory:
                     //       the data copied from the old buffer now exists in both
                     //       buffers, though in the first buffer it's not referenced
@@ -429,6 +778,7 @@ public abstract class AbstractParser<R extends IRecord> implements IParser<R> {
                         logger.trace("{}: Copied {} bytes from the current buffer to new one.", name, currentBuffer.position());
                     }
                 } else {
+                    releaseCurrentChunk();
                     getNewCurrentBuffer();
                 }
             } else {
@@ -460,41 +810,144 @@ public abstract class AbstractParser<R extends IRecord> implements IParser<R> {
                     name, recordsFromCurrentBuffer, bufferSize);
         }
         recordsFromCurrentBuffer = 0;
-        currentBuffer = ByteBuffer.allocate(bufferSize);
+        currentChunk = bufferPool.lease();
+        currentBuffer = currentChunk.getBuffer();
         currentBufferFile = null;
         currentBufferStartOffset = -1;
         currentBufferFileEnded = false;
         currentBufferExhausted = true;
     }
 
-    private R buildRecord(int offset, int length) {
+    /**
+     * Drops the parser's own reference to the current chunk. Any records
+     * built from it keep it alive until they are released.
+     */
+    private void releaseCurrentChunk() {
+        if (currentChunk != null) {
+            currentChunk.release();
+            currentChunk = null;
+        }
+    }
+
+    private PendingRecord sliceRecord(int offset, int length) {
         ByteBuffer data = ByteBuffers.getPartialView(currentBuffer, offset, length);
         
-        if (fileFooterPattern != null) {
-            final Matcher fileFooterMatcher = fileFooterPattern.matcher(ByteBuffers.toString(data, StandardCharsets.UTF_8).trim());
-            if(fileFooterMatcher.matches()) {
-                stopParsing("End of file reached, file footer pattern matched");
-                return null;
-            }
+        if (fileFooterMatcher != null && fileFooterMatcher.matches(data)) {
+            fileFooterReached = true;
+            stopReading("End of file reached, file footer pattern matched");
+            return null;
         }
         
         ++recordsFromCurrentBuffer;
         Preconditions.checkNotNull(currentBufferFile);
-        
-        R record = null;
-        try {
-            record = buildRecord(currentBufferFile, convertData(data), toChannelOffset(offset), dataLength(data));
-        } catch (DataConversionException e) {
-            totalDataProcessingErrors.incrementAndGet();
-            logger.warn("Cannot process input data: " + e.getMessage() + ", falling back to raw data.");
-            record = buildRecord(currentBufferFile, data, toChannelOffset(offset), dataLength(data));
-        } finally {
-            totalRecordsParsed.incrementAndGet();
+        return new PendingRecord(currentBufferFile, data, toChannelOffset(offset), currentChunk);
+    }
+    
+    /**
+     * A record that was split from the current buffer but not built yet
+     * because its data still needs to be converted. It retains the buffer
+     * chunk its data points into until the record is built.
+     */
+    private class PendingRecord {
+        private final TrackedFile file;
+        private final ByteBuffer data;
+        private final long offset;
+        private final long originalLength;
+        private ParserBufferPool.Chunk chunk;
+        private Future<ByteBuffer> conversion;
+
+        PendingRecord(TrackedFile file, ByteBuffer data, long offset, ParserBufferPool.Chunk chunk) {
+            this.file = file;
+            this.data = data;
+            this.offset = offset;
+            this.originalLength = dataLength(data);
+            if (chunk != null) {
+                chunk.retain();
+                this.chunk = chunk;
+            }
+        }
+
+        void startConversion() {
+            try {
+                conversion = dataConversionExecutor.submit(new Callable<ByteBuffer>() {
+                    @Override
+                    public ByteBuffer call() throws DataConversionException {
+                        return convertData(data.duplicate());
+                    }
+                });
+                pendingConversions.incrementAndGet();
+            } catch (RejectedExecutionException e) {
+                // The executor is shutting down: convert on this thread instead
+                logger.debug("{}: Data conversion executor rejected record, converting it inline.", name);
+            }
+        }
+
+        private ByteBuffer awaitConversion() throws DataConversionException {
+            if (conversion == null)
+                return convertData(data);
+            long start = System.currentTimeMillis();
+            try {
+                return Uninterruptibles.getUninterruptibly(conversion);
+            } catch (ExecutionException e) {
+                Throwables.throwIfInstanceOf(e.getCause(), DataConversionException.class);
+                Throwables.throwIfUnchecked(e.getCause());
+                throw new RuntimeException(e.getCause());
+            } finally {
+                pendingConversions.decrementAndGet();
+                totalConversionWaitMillis.addAndGet(System.currentTimeMillis() - start);
+            }
+        }
+
+        /**
+         * Drops this record without building it. A conversion that's
+         * already running may still read the data after its chunk was
+         * released, but its result is never used.
+         */
+        void discard() {
+            if (conversion != null) {
+                conversion.cancel(false);
+                conversion = null;
+                pendingConversions.decrementAndGet();
+            }
+            if (chunk != null) {
+                chunk.release();
+                chunk = null;
+            }
+        }
+
+        R build() {
+            R record = null;
+            try {
+                try {
+                    record = buildRecord(file, awaitConversion(), offset, originalLength);
+                } catch (DataConversionException e) {
+                    totalDataProcessingErrors.incrementAndGet();
+                    logger.warn("Cannot process input data: " + e.getMessage() + ", falling back to raw data.");
+                    record = buildRecord(file, data, offset, originalLength);
+                } finally {
+                    totalRecordsParsed.incrementAndGet();
+                }
+                if (compressor != null && !record.shouldSkip()) {
+                    // The compressed data is a copy, so there's no buffer to retain
+                    record.compress(compressor);
+                } else if (chunk != null && pointsInto(record.data(), chunk)) {
+                    // Converted or aggregated data is a copy too, and owned by the record
+                    record.retainBuffer(chunk);
+                }
+                return record;
+            } finally {
+                if (chunk != null) {
+                    chunk.release();
+                    chunk = null;
+                }
+            }
         }
-        
-        return record;
     }
     
+    private static boolean pointsInto(ByteBuffer data, ParserBufferPool.Chunk chunk) {
+        return data != null && data.hasArray() && data.array() == chunk.getBuffer().array();
+    }
+
     private ByteBuffer convertData(ByteBuffer data) throws DataConversionException {
         if (getDataConverter() == null)
             return data;
@@ -535,7 +988,7 @@ public abstract class AbstractParser<R extends IRecord> implements IParser<R> {
     @Override
     public Map<String, Object> getMetrics() {
         final String className = getClass().getSimpleName();
-        return new HashMap<String, Object>() {{
+        Map<String, Object> metrics = new HashMap<String, Object>() {{
             put(className + ".TotalBytesConsumed", totalBytesConsumed);
             put(className + ".TotalRecordsParsed", totalRecordsParsed);
             put(className + ".TotalBytesDiscarded", totalBytesDiscarded);
@@ -544,6 +997,26 @@ public abstract class AbstractParser<R extends IRecord> implements IParser<R> {
             put(className + ".TotalRecordsProcessed", totalRecordsProcessed);
             put(className + ".TotalRecordsSkipped", totalRecordsSkipped);
             put(className + ".TotalDataProcessingErrors", totalDataProcessingErrors);
+            put(className + ".TotalBytesMapped", totalBytesMapped);
+            put(className + ".TotalBytesCopied", totalBytesCopied);
+            put(className + ".BufferPoolHits", bufferPool.getTotalHits());
+            put(className + ".BufferPoolMisses", bufferPool.getTotalMisses());
+            put(className + ".BufferPoolOutstandingChunks", bufferPool.getOutstandingChunks());
+            put(className + ".PendingConversions", pendingConversions);
+            put(className + ".TotalConversionWaitMillis", totalConversionWaitMillis);
+            put(className + ".TotalRecordsPassedThrough", totalRecordsPassedThrough);
+            put(className + ".TotalRecordsFlushedOnIdle", totalRecordsFlushedOnIdle);
         }};
+        if (readAhead != null) {
+            metrics.put(className + ".TotalBytesReadAhead", readAhead.getTotalBytesReadAhead());
+            metrics.put(className + ".TotalReadAheadWaitMillis", readAhead.getTotalReadAheadWaitMillis());
+        }
+        if (compressor != null) {
+            metrics.put(className + ".TotalBytesBeforeCompression", compressor.getTotalBytesIn());
+            metrics.put(className + ".TotalBytesAfterCompression", compressor.getTotalBytesOut());
+            metrics.put(className + ".CompressionRatio", compressor.getCompressionRatio());
+            metrics.put(className + ".TotalCompressionCpuMillis", TimeUnit.NANOSECONDS.toMillis(compressor.getTotalCpuNanos().get()));
+        }
+        return metrics;
     }
 }
@@ -24,11 +24,12 @@ import com.google.common.base.Preconditions;
  */
 public abstract class AbstractRecord  implements IRecord {
     protected boolean shouldSkip = false;
-    protected final ByteBuffer data;
+    protected ByteBuffer data;
     protected final TrackedFile file;
     protected final long startOffset;
     // data length before data processing
     protected final long originalLength;
+    protected ParserBufferPool.Chunk chunk;
 
     public AbstractRecord(TrackedFile file, long offset, ByteBuffer data, long originalLength) {
         Preconditions.checkArgument(offset >= 0,
@@ -89,17 +90,61 @@ public abstract class AbstractRecord  implements IRecord {
     @Override
     public void truncate() {
         if (length() > file.getFlow().getMaxRecordSizeBytes()) {
-            byte[] terminatorBytes = file.getFlow().getRecordTerminatorBytes();
-            int originalPosition = data.position();
-            data.limit(originalPosition + getMaxDataSize());
-            // go to the position where we want to put the terminator
-            data.position(originalPosition + getMaxDataSize() - terminatorBytes.length);
-            // put the terminator
-            // TODO:
-            // We might have to handle the case where the last character of the truncated record contains
-            // multiple bytes. In this case, the terminator itself might not be decoded as intended.
-            data.put(terminatorBytes);
-            data.position(originalPosition);
+            truncateData(getMaxDataSize());
+        }
+    }
+
+    private void truncateData(int maxDataSize) {
+        byte[] terminatorBytes = file.getFlow().getRecordTerminatorBytes();
+        if (data.isReadOnly()) {
+            // e.g. a view into a memory-mapped file
+            data = ByteBuffer.wrap(ByteBuffers.toArray(data));
+        }
+        int originalPosition = data.position();
+        data.limit(originalPosition + maxDataSize);
+        // go to the position where we want to put the terminator
+        data.position(originalPosition + maxDataSize - terminatorBytes.length);
+        // put the terminator
+        // TODO:
+        // We might have to handle the case where the last character of the truncated record contains
+        // multiple bytes. In this case, the terminator itself might not be decoded as intended.
+        data.put(terminatorBytes);
+        data.position(originalPosition);
+    }
+
+    @Override
+    public void compress(RecordCompressor compressor) {
+        if (data == null)
+            return;
+        if (data.remaining() > getMaxDataSize()) {
+            truncateData(getMaxDataSize());
+        }
+        ByteBuffer compressed = compressor.compress(data);
+        if (compressed.remaining() > getMaxDataSize()) {
+            // Incompressible data grows slightly, so leave room for that
+            truncateData(RecordCompressor.maxInputSize(getMaxDataSize()));
+            compressed = compressor.compress(data);
+        }
+        data = compressed;
+    }
+
+    @Override
+    public void retainBuffer(ParserBufferPool.Chunk chunk) {
+        Preconditions.checkState(this.chunk == null, "Record already retains a buffer.");
+        chunk.retain();
+        this.chunk = chunk;
+    }
+
+    @Override
+    public long ownedBytes() {
+        return data == null || chunk != null || data.isDirect() ? 0 : data.remaining();
+    }
+
+    @Override
+    public void release() {
+        if (chunk != null) {
+            chunk.release();
+            chunk = null;
         }
     }
 
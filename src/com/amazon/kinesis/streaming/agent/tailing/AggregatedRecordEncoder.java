@@ -0,0 +1,159 @@
+/*
+ * Copyright 2014-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file.
+ * This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+package com.amazon.kinesis.streaming.agent.tailing;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import com.amazon.kinesis.streaming.agent.ByteBuffers;
+import com.amazon.kinesis.streaming.agent.Constants;
+import com.google.common.hash.Hashing;
+
+/**
+ * Packs the lines of a record into the aggregated record format of the
+ * Kinesis Producer Library, which the Kinesis Client Library de-aggregates
+ * transparently:
+ * <pre>
+ *   magic (F3 89 9A C2) | protobuf AggregatedRecord | MD5 of the protobuf
+ * </pre>
+ * where the protobuf messages are:
+ * <pre>
+ *   message AggregatedRecord {
+ *     repeated string partition_key_table = 1;
+ *     repeated string explicit_hash_key_table = 2;
+ *     repeated Record records = 3;
+ *   }
+ *   message Record {
+ *     required uint64 partition_key_index = 1;
+ *     optional uint64 explicit_hash_key_index = 2;
+ *     required bytes data = 3;
+ *   }
+ * </pre>
+ * Each line, including its newline, becomes one user record, so consumers
+ * see exactly the same records as they would without aggregation. All user
+ * records share the partition key of the aggregated record.
+ */
+public final class AggregatedRecordEncoder {
+    public static final byte[] MAGIC = {(byte) 0xF3, (byte) 0x89, (byte) 0x9A, (byte) 0xC2};
+    public static final int DIGEST_SIZE_BYTES = 16;
+
+    private static final int PARTITION_KEY_TABLE_TAG = (1 << 3) | 2;
+    private static final int RECORDS_TAG = (3 << 3) | 2;
+    private static final int PARTITION_KEY_INDEX_TAG = (1 << 3);
+    private static final int DATA_TAG = (3 << 3) | 2;
+
+    /**
+     * Worst-case ratio of encoded to raw size, reached when every line is
+     * empty: a 1-byte line is encoded as a 6-byte record header followed by
+     * the byte itself.
+     */
+    public static final int MAX_EXPANSION_RATIO = 7;
+
+    /**
+     * @param partitionKey The partition key of the aggregated record.
+     * @param data The lines to pack.
+     * @return The aggregated record, or {@code data} itself if it contains
+     *         fewer than two lines and doesn't need aggregation.
+     */
+    public static ByteBuffer encode(String partitionKey, ByteBuffer data) {
+        final int start = data.position();
+        final int end = data.limit();
+        // First pass: size everything up
+        int lines = 0;
+        int recordsSize = 0;
+        for (int lineStart = start; lineStart < end; ++lines) {
+            int lineEnd = lineEnd(data, lineStart, end);
+            recordsSize += fieldSize(recordSize(lineEnd - lineStart));
+            lineStart = lineEnd;
+        }
+        if (lines < 2)
+            return data;
+        byte[] key = partitionKey.getBytes(StandardCharsets.UTF_8);
+        int messageSize = fieldSize(key.length) + recordsSize;
+
+        byte[] output = new byte[MAGIC.length + messageSize + DIGEST_SIZE_BYTES];
+        int offset = 0;
+        System.arraycopy(MAGIC, 0, output, offset, MAGIC.length);
+        offset += MAGIC.length;
+        offset = writeVarint(output, offset, PARTITION_KEY_TABLE_TAG);
+        offset = writeVarint(output, offset, key.length);
+        System.arraycopy(key, 0, output, offset, key.length);
+        offset += key.length;
+        ByteBuffer source = data.duplicate();
+        for (int lineStart = start; lineStart < end; ) {
+            int lineEnd = lineEnd(data, lineStart, end);
+            int lineLength = lineEnd - lineStart;
+            offset = writeVarint(output, offset, RECORDS_TAG);
+            offset = writeVarint(output, offset, recordSize(lineLength));
+            offset = writeVarint(output, offset, PARTITION_KEY_INDEX_TAG);
+            offset = writeVarint(output, offset, 0);
+            offset = writeVarint(output, offset, DATA_TAG);
+            offset = writeVarint(output, offset, lineLength);
+            source.limit(lineEnd).position(lineStart);
+            source.get(output, offset, lineLength);
+            offset += lineLength;
+            lineStart = lineEnd;
+        }
+        byte[] digest = md5(output, MAGIC.length, messageSize);
+        System.arraycopy(digest, 0, output, offset, DIGEST_SIZE_BYTES);
+        return ByteBuffer.wrap(output);
+    }
+
+    /**
+     * Guava deprecates MD5 because it's not a secure hash, but the aggregated
+     * record format requires it, only as a checksum that the Kinesis Client
+     * Library verifies.
+     */
+    @SuppressWarnings("deprecation")
+    private static byte[] md5(byte[] input, int offset, int length) {
+        return Hashing.md5().hashBytes(input, offset, length).asBytes();
+    }
+
+    private static int lineEnd(ByteBuffer data, int lineStart, int end) {
+        int newLine = ByteBuffers.indexOf(data, lineStart, end, (byte) Constants.NEW_LINE);
+        return newLine == -1 ? end : newLine + 1;
+    }
+
+    /** Size of a Record message holding {@code dataLength} bytes. */
+    private static int recordSize(int dataLength) {
+        return 1 + 1 + 1 + varintSize(dataLength) + dataLength;
+    }
+
+    /** Size of a length-delimited field (tag, length and payload). */
+    private static int fieldSize(int payloadLength) {
+        return 1 + varintSize(payloadLength) + payloadLength;
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            ++size;
+        }
+        return size;
+    }
+
+    private static int writeVarint(byte[] output, int offset, int value) {
+        while ((value & ~0x7F) != 0) {
+            output[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        output[offset++] = (byte) value;
+        return offset;
+    }
+
+    private AggregatedRecordEncoder() {
+        throw new UnsupportedOperationException("Should never be called");
+    }
+}
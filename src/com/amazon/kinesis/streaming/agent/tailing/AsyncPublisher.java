@@ -146,6 +146,14 @@ class AsyncPublisher<R extends IRecord> extends SimplePublisher<R> {
             throttler.backoff();
     }
 
+    /**
+     * @return How long to back off for before sending the next buffer, in
+     *         milliseconds, for publishers that must not block.
+     */
+    public long scheduleBackoff() {
+        return isOpen ? throttler.scheduleBackoff() : 0;
+    }
+
     /**
      * This method should not raise any exceptions.
      * @param buffer
@@ -26,16 +26,19 @@ import com.amazon.kinesis.streaming.agent.tailing.checkpoints.Checkpointer;
 import com.amazon.kinesis.streaming.agent.tailing.checkpoints.FileCheckpointStore;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
-import com.google.common.util.concurrent.AbstractExecutionThreadService;
 
 /**
  * A publisher that buffers records into an {@link PublishingQueue}, and makes
  * the send requests asynchronously.
+ * <p>
+ * Dispatches the buffers either from a thread of its own, which waits for
+ * them in {@link PublishingQueue#waitNotEmpty()}, or as a task of the agent's
+ * {@link FlowScheduler}, which is woken up when a buffer is queued.
  *
  * @param <R> The record type.
  */
 public final class AsyncPublisherService<R extends IRecord>
-  extends AbstractExecutionThreadService
+  extends SchedulableService
   implements IHeartbeatProvider {
     private static final int NO_TIMEOUT = -1;
     private static final long SHUTDOWN_MARGIN_MILLIS = 500;
@@ -59,7 +62,16 @@ public final class AsyncPublisherService<R extends IRecord>
             FileCheckpointStore checkpoints,
             ISender<R> sender,
             ExecutorService sendingExecutor) {
+        super(agentContext.getFlowScheduler());
         this.publisher = new AsyncPublisher<R>(agentContext, flow, checkpoints, sender, sendingExecutor);
+        if (isScheduled()) {
+            this.publisher.queue.setNotEmptyListener(new Runnable() {
+                @Override
+                public void run() {
+                    wakeUp();
+                }
+            });
+        }
     }
 
     public boolean publishRecord(R record) {
@@ -82,6 +94,20 @@ public final class AsyncPublisherService<R extends IRecord>
         }
     }
 
+    @Override
+    protected long runScheduled() {
+        long backoff = publisher.scheduleBackoff();
+        if (backoff > 0)
+            return backoff;
+        // It's a good time to check if temp buffer needs to be queued, like waitNotEmpty() does
+        publisher.queue.checkPendingRecords();
+        if (publisher.sendNextBufferAsync(false))
+            return 0;
+        // Nothing to send: woken up when a buffer is queued, or when the temp buffer may be old enough to be
+        long waitMillis = publisher.flow.getWaitOnEmptyPublishQueueMillis();
+        return waitMillis > 0 ? waitMillis : publisher.flow.getMaxBufferAgeMillis();
+    }
+
     public void flush() {
         publisher.flush();
     }
@@ -125,7 +151,11 @@ public final class AsyncPublisherService<R extends IRecord>
 
         // Give the senders some time to complete before cancelling everything
         LOGGER.trace("{}: Shutdown timeout: {}ms", serviceName(), getShutdownTimeoutMillis());
-        waitForIdle(getShutdownTimeoutMillis(), TimeUnit.MILLISECONDS);
+        if (waitForIdle(getShutdownTimeoutMillis(), TimeUnit.MILLISECONDS)) {
+            // Only once nothing is being sent, since a buffer that fails to send may not fit in the spill log
+            if (publisher.checkpointSpilledRecords())
+                LOGGER.debug("{}: Checkpointed the spilled records, which are sent after a restart.", serviceName());
+        }
     }
 
     protected long getShutdownTimeoutMillis() {
@@ -176,6 +176,30 @@ public class AsyncPublisherThrottler<R extends IRecord> {
      * @return the actual time spent sleeping in milliseconds.
      */
     public long backoff() {
+        long delay = startBackoff();
+        if (delay > 0) {
+            return sleepUpTo(delay);
+        } else
+            return 0;
+    }
+
+    /**
+     * Like {@link #backoff()}, but returns the time to back off for instead
+     * of sleeping, for publishers that must not block (see
+     * {@link FlowScheduler}). The backoff isn't cut short by a call to
+     * {@link #onSendSuccess()}.
+     *
+     * @return the time to back off for in milliseconds, or 0 if no backoff
+     *         is required.
+     */
+    public long scheduleBackoff() {
+        long delay = startBackoff();
+        if (delay > 0)
+            totalBackoffTime.addAndGet(delay);
+        return delay;
+    }
+
+    private long startBackoff() {
         long delay = 0;
         synchronized(this) {
             delay = getNextBackoff();
@@ -186,11 +210,9 @@ public class AsyncPublisherThrottler<R extends IRecord> {
             }
             abortBackoff = false;
         }
-        if (delay > 0) {
+        if (delay > 0)
             totalBackoffCount.incrementAndGet();
-            return sleepUpTo(delay);
-        } else
-            return 0;
+        return delay;
     }
 
     private long sleepUpTo(long delay) {
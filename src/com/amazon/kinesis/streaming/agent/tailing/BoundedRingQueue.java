@@ -0,0 +1,151 @@
+/*
+ * Copyright 2014-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file.
+ * This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+package com.amazon.kinesis.streaming.agent.tailing;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A bounded queue that any number of threads can offer to and poll from
+ * without locking, backed by an array used as a ring.
+ * <p>
+ * Each slot of the ring has a sequence number telling whose turn it is: the
+ * producer that claimed position {@code p} (by moving the tail from
+ * {@code p} to {@code p + 1}) may fill the slot once its sequence is
+ * {@code p}, and the consumer that claimed position {@code p} (by moving the
+ * head) may empty it once its sequence is {@code p + 1}. A full or empty
+ * queue is detected from the sequence of the next slot, so neither
+ * {@link #offer(Object)} nor {@link #poll()} ever waits; it's up to the
+ * caller to park when the queue is full or empty.
+ *
+ * @param <E> The element type.
+ */
+@ThreadSafe
+final class BoundedRingQueue<E> {
+    private final int capacity;
+    private final AtomicReferenceArray<E> elements;
+    private final AtomicLongArray sequences;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    BoundedRingQueue(int capacity) {
+        Preconditions.checkArgument(capacity > 0, "Capacity must be positive.");
+        this.capacity = capacity;
+        this.elements = new AtomicReferenceArray<>(capacity);
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; ++i)
+            sequences.set(i, i);
+    }
+
+    /**
+     * @return {@code true} if the element was added, or {@code false} if the
+     *         queue is full.
+     */
+    boolean offer(E element) {
+        Preconditions.checkNotNull(element);
+        long position = tail.get();
+        while (true) {
+            int slot = slot(position);
+            long turn = sequences.get(slot) - position;
+            if (turn == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    elements.set(slot, element);
+                    sequences.set(slot, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (turn < 0) {
+                // The slot still holds the element of the previous lap
+                return false;
+            } else {
+                // Another producer claimed the position
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * @return The oldest element, or {@code null} if the queue is empty.
+     */
+    E poll() {
+        long position = head.get();
+        while (true) {
+            int slot = slot(position);
+            long turn = sequences.get(slot) - (position + 1);
+            if (turn == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    E element = elements.get(slot);
+                    elements.set(slot, null);
+                    sequences.set(slot, position + capacity);
+                    return element;
+                }
+                position = head.get();
+            } else if (turn < 0) {
+                // The slot wasn't filled yet
+                return null;
+            } else {
+                // Another consumer claimed the position
+                position = head.get();
+            }
+        }
+    }
+
+    /**
+     * @return The oldest element, without removing it, or {@code null} if the
+     *         queue is empty. Another thread may poll it meanwhile.
+     */
+    E peek() {
+        while (true) {
+            long position = head.get();
+            int slot = slot(position);
+            if (sequences.get(slot) != position + 1)
+                return null;
+            E element = elements.get(slot);
+            if (element != null && head.get() == position)
+                return element;
+        }
+    }
+
+    /**
+     * @return The number of elements, including those being added or removed
+     *         concurrently.
+     */
+    int size() {
+        // Read the head first so the tail can't be behind it
+        long headPosition = head.get();
+        long tailPosition = tail.get();
+        return (int) Math.max(0, Math.min(capacity, tailPosition - headPosition));
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    boolean isFull() {
+        return size() >= capacity;
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    private int slot(long position) {
+        return (int) (position % capacity);
+    }
+}
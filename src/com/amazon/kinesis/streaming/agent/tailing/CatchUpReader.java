@@ -0,0 +1,342 @@
+/*
+ * Copyright 2014-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file.
+ * This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+package com.amazon.kinesis.streaming.agent.tailing;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import lombok.Getter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Reads the rotated files a {@link FileTailer} fell behind on (e.g. after an
+ * outage) several at a time, while the tailer goes on with the latest file.
+ * Only used by flows with a {@code catchUpParallelism} above 1, whose
+ * destination doesn't need the records of different files in order.
+ * <p>
+ * Each file is read by its own parser, from the offset it was handed over
+ * at to its end, and its records are published with those of the tailer.
+ * Since the files are closed, they're done once their end is reached, and
+ * each one has a checkpoint of its own (see
+ * {@link com.amazon.kinesis.streaming.agent.tailing.checkpoints.Checkpointer}).
+ * A file that fails to be read (e.g. on an I/O error) is reopened and read
+ * again from the end of its last record published, after a backoff. Once
+ * the retries are exhausted, it's left at its checkpoint, where reading
+ * resumes when the agent restarts.
+ * The threads are stopped when there's nothing left to catch up on, and the
+ * tailer goes back to reading files one at a time.
+ *
+ * @param <R> The record type.
+ */
+@ThreadSafe
+public class CatchUpReader<R extends IRecord> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CatchUpReader.class);
+    private static final long THREAD_KEEP_ALIVE_SECONDS = 60;
+    /** Number of times reading a file is retried before giving up on it. */
+    private static final int MAX_RETRIES = 5;
+
+    private final FileFlow<R> flow;
+    private final AsyncPublisherService<R> publisher;
+    private final String name;
+    private final ThreadPoolExecutor executor;
+    private final long backoffMillis;
+    private final MemoryBudget.Account memory;
+    private volatile boolean stopped = false;
+    // The files handed over and not done yet, oldest first
+    private final List<Task> tasks = new ArrayList<>();
+    private long catchUpStartTime = 0;
+    private long bytesReadSinceStart = 0;
+
+    @Getter private final AtomicLong totalFilesCompleted = new AtomicLong();
+    @Getter private final AtomicLong totalFilesFailed = new AtomicLong();
+    @Getter private final AtomicLong totalFileRetries = new AtomicLong();
+    @Getter private final AtomicLong totalBytesRead = new AtomicLong();
+    @Getter private final AtomicLong totalRecordsTruncated = new AtomicLong();
+
+    public CatchUpReader(FileFlow<R> flow, AsyncPublisherService<R> publisher, String name) {
+        Preconditions.checkArgument(flow.getCatchUpParallelism() > 1, "Catching up isn't enabled for this flow.");
+        this.flow = flow;
+        this.publisher = publisher;
+        this.name = name;
+        ThreadFactory threadFactory = new ThreadFactoryBuilder().setNameFormat("catch-up-" + flow.getId() + "-%d").setDaemon(true).build();
+        this.executor = new ThreadPoolExecutor(flow.getCatchUpParallelism(), flow.getCatchUpParallelism(),
+                THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), threadFactory);
+        // No threads are kept around once caught up
+        this.executor.allowCoreThreadTimeOut(true);
+        this.backoffMillis = Math.max(1, flow.minTimeBetweenFilePollsMillis());
+        this.memory = flow.getAgentContext().getMemoryBudget().account(flow.getId());
+    }
+
+    /**
+     * Reads the given file, from its current offset to its end.
+     *
+     * @param file An open file that's not written to anymore (i.e. rotated).
+     * @throws IOException
+     */
+    public void readFile(TrackedFile file) throws IOException {
+        Preconditions.checkArgument(file.isOpen(), "File must be open.");
+        Task task = new Task(file, file.getCurrentOffset(), file.getCurrentSize(), file.getCurrentOffset(), 0);
+        synchronized (this) {
+            if (tasks.isEmpty()) {
+                catchUpStartTime = System.currentTimeMillis();
+                bytesReadSinceStart = 0;
+            }
+            tasks.add(task);
+        }
+        LOGGER.debug("{}: Catching up on {} from offset {}.", name, file, task.startOffset);
+        executor.execute(task);
+    }
+
+    /**
+     * @return {@code true} if some files handed over were not read to their
+     *         end yet.
+     */
+    public synchronized boolean isCatchingUp() {
+        return !tasks.isEmpty();
+    }
+
+    public synchronized int filesRemaining() {
+        return tasks.size();
+    }
+
+    public synchronized long bytesRemaining() {
+        long remaining = 0;
+        for (Task task : tasks)
+            remaining += task.bytesRemaining();
+        return remaining;
+    }
+
+    /**
+     * @return The rate at which files were read since they started falling
+     *         behind, in bytes per second.
+     */
+    public synchronized long bytesPerSecond() {
+        long elapsedMillis = System.currentTimeMillis() - catchUpStartTime;
+        return tasks.isEmpty() || elapsedMillis <= 0 ? 0 : bytesReadSinceStart * 1000 / elapsedMillis;
+    }
+
+    /**
+     * @return The estimated time left to read all the files, in seconds, or
+     *         {@code -1} if it can't be estimated yet.
+     */
+    public synchronized long secondsRemaining() {
+        if (tasks.isEmpty())
+            return 0;
+        long rate = bytesPerSecond();
+        return rate > 0 ? bytesRemaining() / rate : -1;
+    }
+
+    /**
+     * Stops reading, and closes the files that are not done. Their
+     * checkpoints are where reading resumes when the tailer restarts.
+     */
+    public void stop() {
+        stopped = true;
+        List<Runnable> queued = executor.shutdownNow();
+        List<Task> current;
+        synchronized (this) {
+            current = new ArrayList<>(tasks);
+        }
+        // The tasks that never started won't close their file themselves
+        for (Task task : current) {
+            if (queued.contains(task))
+                task.finish(false);
+        }
+    }
+
+    public void logProgress() {
+        List<Task> current;
+        synchronized (this) {
+            if (tasks.isEmpty())
+                return;
+            current = new ArrayList<>(tasks);
+        }
+        long secondsRemaining = secondsRemaining();
+        LOGGER.info("{}: Catching up on {} file(s), {} bytes left at {} bytes/s, {}.", name, current.size(),
+                bytesRemaining(), bytesPerSecond(),
+                secondsRemaining < 0 ? "time left unknown" : "about " + secondsRemaining + "s left");
+        for (Task task : current) {
+            long read = task.offset - task.startOffset;
+            long total = task.size - task.startOffset;
+            LOGGER.info("{}: Caught up {}% on {} ({} of {} bytes).", name, total > 0 ? read * 100 / total : 100,
+                    task.file.getPath(), task.offset, task.size);
+        }
+    }
+
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new HashMap<>();
+        metrics.put("FileTailer.CatchUpFiles", filesRemaining());
+        metrics.put("FileTailer.CatchUpBytesRemaining", bytesRemaining());
+        metrics.put("FileTailer.CatchUpBytesPerSecond", bytesPerSecond());
+        metrics.put("FileTailer.CatchUpSecondsRemaining", secondsRemaining());
+        metrics.put("FileTailer.CatchUpFilesCompleted", totalFilesCompleted);
+        metrics.put("FileTailer.CatchUpFilesFailed", totalFilesFailed);
+        metrics.put("FileTailer.CatchUpFileRetries", totalFileRetries);
+        metrics.put("FileTailer.CatchUpBytesRead", totalBytesRead);
+        metrics.put("FileTailer.CatchUpRecordsTruncated", totalRecordsTruncated);
+        return metrics;
+    }
+
+    private synchronized void onRead(long bytes) {
+        bytesReadSinceStart += bytes;
+    }
+
+    private class Task implements Runnable {
+        private final TrackedFile file;
+        private final long startOffset;
+        private final long size;
+        // The number of times reading the file was retried so far
+        private final int retries;
+        // The end of the last record published
+        private volatile long offset;
+
+        Task(TrackedFile file, long startOffset, long size, long offset, int retries) {
+            this.file = file;
+            this.startOffset = startOffset;
+            this.size = size;
+            this.offset = offset;
+            this.retries = retries;
+        }
+
+        long bytesRemaining() {
+            return Math.max(0, size - offset);
+        }
+
+        @Override
+        public void run() {
+            IParser<R> parser = flow.buildParser();
+            boolean completed = false;
+            R record = null;
+            try {
+                if (retries > 0) {
+                    Thread.sleep(Math.min(flow.getRetryMaxBackoffMillis(), flow.getRetryInitialBackoffMillis() << (retries - 1)));
+                }
+                if (!parser.continueParsingWithFile(file)) {
+                    LOGGER.error("{}: Failed to start catching up on {}.", name, file);
+                    return;
+                }
+                while (!stopped) {
+                    if (record == null) {
+                        if (!memory.mayRead()) {
+                            // The flow is over its share of the memory budget: back off a bit
+                            Thread.sleep(backoffMillis);
+                            continue;
+                        }
+                        record = parser.readRecord();
+                    }
+                    if (record == null) {
+                        if (parser.isAtEndOfCurrentFile() || !parser.isParsing())
+                            break;
+                        // The parser is waiting for buffers: try again shortly
+                        Thread.sleep(backoffMillis);
+                        continue;
+                    }
+                    if (record.length() > flow.getMaxRecordSizeBytes()) {
+                        record.truncate();
+                        totalRecordsTruncated.incrementAndGet();
+                        LOGGER.warn("{}: Truncated a record in {}, because it exceeded the the configured max record size: {}", name, file, flow.getMaxRecordSizeBytes());
+                    }
+                    if (publisher.publishRecord(record)) {
+                        long bytes = record.endOffset() - offset;
+                        offset = record.endOffset();
+                        totalBytesRead.addAndGet(bytes);
+                        onRead(bytes);
+                        record = null;
+                    } else {
+                        // Publisher is exerting back-pressure: back off a bit
+                        Thread.sleep(backoffMillis);
+                    }
+                }
+                // The rest of a file after its footer is skipped on purpose
+                completed = !stopped && (parser.isParsing() || parser.hasReachedFileFooter());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                LOGGER.trace("{}: Thread interrupted while catching up on {}.", name, file);
+            } catch (Exception e) {
+                LOGGER.error("{}: Error when catching up on {}.", name, file, e);
+            } finally {
+                if (record != null) {
+                    // Never published: give its parser buffer back, or the flow stays charged for it
+                    record.release();
+                }
+                parser.stopParsing(completed ? "Caught up." : "Stopped catching up.");
+                finish(completed);
+            }
+        }
+
+        void finish(boolean completed) {
+            if (file.isOpen())
+                file.close();
+            Task retry = completed || stopped ? null : retry();
+            synchronized (CatchUpReader.this) {
+                int index = tasks.indexOf(this);
+                if (index >= 0 && retry != null)
+                    tasks.set(index, retry);
+                else
+                    tasks.remove(this);
+            }
+            if (completed) {
+                totalFilesCompleted.incrementAndGet();
+                LOGGER.info("{}: Caught up on {} ({} bytes).", name, file.getPath(), offset - startOffset);
+            } else if (retry != null) {
+                totalFileRetries.incrementAndGet();
+                LOGGER.warn("{}: Stopped catching up on {} at offset {} of {}, retrying ({} of {}).", name, file.getPath(),
+                        offset, size, retry.retries, MAX_RETRIES);
+                try {
+                    executor.execute(retry);
+                } catch (RejectedExecutionException e) {
+                    // Stopped in the meantime
+                    retry.finish(false);
+                }
+            } else if (!stopped) {
+                totalFilesFailed.incrementAndGet();
+                LOGGER.error("{}: Gave up catching up on {} at offset {} of {}. Reading it resumes there when the agent restarts.",
+                        name, file.getPath(), offset, size);
+            }
+        }
+
+        /**
+         * @return A task that reads the file again, from the end of the last
+         *         record published, or {@code null} if there are no retries
+         *         left or the file can't be reopened.
+         */
+        private Task retry() {
+            if (retries >= MAX_RETRIES)
+                return null;
+            try {
+                file.open(offset);
+            } catch (IOException e) {
+                LOGGER.error("{}: Failed to reopen {} at offset {}.", name, file.getPath(), offset, e);
+                return null;
+            }
+            return new Task(file, startOffset, size, offset, retries + 1);
+        }
+    }
+}
@@ -0,0 +1,473 @@
+/*
+ * Copyright 2014-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file.
+ * This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+package com.amazon.kinesis.streaming.agent.tailing;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import lombok.Getter;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+
+/**
+ * A cache of directory listings and file attributes shared by all the flows
+ * of the agent, so that flows tailing files in the same directory don't each
+ * list it on every refresh.
+ * <p>
+ * The file names in a directory are listed again only when the directory
+ * changes (i.e. its last modified time moves), or when the listing is older
+ * than the scan interval, which covers file systems with coarse timestamps.
+ * Checking whether a directory changed costs a single stat, instead of
+ * reading every entry of the directory for every flow.
+ * <p>
+ * The attributes of the files that match a flow are read with a single call
+ * to {@link Files#readAttributes(Path, Class, java.nio.file.LinkOption...)}.
+ * They can be reused by all flows for a maximum age, {@code 0} by default:
+ * appending to or truncating a file doesn't change its directory, so reused
+ * sizes and last modified times lag behind the file. Whatever their age,
+ * cached attributes are dropped whenever the directory is listed again, so
+ * that files that were created, deleted or renamed (i.e. rotated) are never
+ * reported with the attributes of the file that had their name before.
+ * <p>
+ * Callers that only need up-to-date attributes for some of the files (e.g.
+ * the newest ones, see {@link SourceFile#listFiles(TrackedFile)}) can use
+ * {@link #listCachedFiles(Path, Filter)} and {@link #refresh(Entry)}
+ * instead, so that the other files are only read once in a while.
+ * <p>
+ * A directory is forgotten as soon as it's found missing, and when it
+ * hasn't been listed for {@link #DEFAULT_IDLE_EXPIRY_MILLIS} (e.g. dated
+ * directories that flows moved on from), so that the index doesn't grow
+ * with every directory the agent ever looked at.
+ */
+@ThreadSafe
+public class DirectoryIndex {
+    static final long DEFAULT_IDLE_EXPIRY_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    static final long CACHED_ATTRIBUTES_MAX_AGE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private final long scanIntervalMillis;
+    private final long attributesMaxAgeMillis;
+    private final long idleExpiryMillis;
+    private final ConcurrentMap<Path, DirectoryEntries> directories = new ConcurrentHashMap<>();
+    private final AtomicLong lastExpiryMillis = new AtomicLong(System.currentTimeMillis());
+
+    @Getter private final AtomicLong totalDirectoryScans = new AtomicLong();
+    @Getter private final AtomicLong totalAttributeReads = new AtomicLong();
+    @Getter private final AtomicLong totalCacheHits = new AtomicLong();
+    @Getter private final AtomicLong totalExpiredDirectories = new AtomicLong();
+    private final AtomicLong totalScanNanos = new AtomicLong();
+    private final AtomicLong maxScanNanos = new AtomicLong();
+
+    public static interface Filter {
+        boolean matches(Path fileName);
+    }
+
+    /**
+     * @param scanIntervalMillis How long a directory listing is reused for
+     *        while the directory doesn't change. With {@code 0}, every call
+     *        lists the directory again.
+     * @param attributesMaxAgeMillis How long the attributes of a file are
+     *        reused for. With {@code 0}, every call reads them again.
+     */
+    public DirectoryIndex(long scanIntervalMillis, long attributesMaxAgeMillis) {
+        this(scanIntervalMillis, attributesMaxAgeMillis, DEFAULT_IDLE_EXPIRY_MILLIS);
+    }
+
+    @VisibleForTesting
+    DirectoryIndex(long scanIntervalMillis, long attributesMaxAgeMillis, long idleExpiryMillis) {
+        Preconditions.checkArgument(scanIntervalMillis >= 0);
+        Preconditions.checkArgument(attributesMaxAgeMillis >= 0);
+        Preconditions.checkArgument(idleExpiryMillis >= 0);
+        this.scanIntervalMillis = scanIntervalMillis;
+        this.attributesMaxAgeMillis = attributesMaxAgeMillis;
+        this.idleExpiryMillis = idleExpiryMillis;
+    }
+
+    /**
+     * @param directory
+     * @param filter Selects the file names to return, without their directory.
+     * @return The regular files in the directory that match the filter, in no
+     *         particular order. An empty list is returned if the directory
+     *         doesn't exist.
+     * @throws IOException If there was an error reading the directory or the
+     *         attributes of a file.
+     */
+    public List<Entry> listFiles(Path directory, Filter filter) throws IOException {
+        return getEntries(directory).listFiles(filter);
+    }
+
+    /**
+     * Same as {@link #listFiles(Path, Filter)}, except that the attributes
+     * last read for a file are reused for up to
+     * {@link #CACHED_ATTRIBUTES_MAX_AGE_MILLIS} (or the maximum age of
+     * attributes, if longer), even if the directory was listed again since.
+     * They may therefore be out of date, or even belong to the file that had
+     * its name before, so use {@link #refresh(Entry)} to get up-to-date
+     * attributes for the files that need them.
+     *
+     * @param directory
+     * @param filter Selects the file names to return, without their directory.
+     * @return The regular files in the directory that match the filter, in no
+     *         particular order. An empty list is returned if the directory
+     *         doesn't exist.
+     * @throws IOException If there was an error reading the directory or the
+     *         attributes of a file.
+     */
+    public List<Entry> listCachedFiles(Path directory, Filter filter) throws IOException {
+        return getEntries(directory).listCachedFiles(filter);
+    }
+
+    /**
+     * @param entry An entry returned by
+     *        {@link #listCachedFiles(Path, Filter)}.
+     * @return The attributes of the file, as up to date as those returned by
+     *         {@link #listFiles(Path, Filter)}, or {@code null} if it's not a
+     *         regular file any more or was deleted.
+     * @throws IOException If there was an error reading the attributes.
+     */
+    public Entry refresh(Entry entry) throws IOException {
+        return getEntries(entry.getPath().getParent()).refresh(entry.getPath().getFileName());
+    }
+
+    /**
+     * More lightweight than {@link #listFiles(Path, Filter)}: the attributes
+     * of a file are only read the first time it's seen in the directory.
+     *
+     * @param directory
+     * @param filter Selects the file names to count, without their directory.
+     * @return The number of regular files in the directory that match the
+     *         filter, or {@code 0} if the directory doesn't exist.
+     * @throws IOException If there was an error reading the directory or the
+     *         attributes of a file.
+     */
+    public int countFiles(Path directory, Filter filter) throws IOException {
+        return getEntries(directory).countFiles(filter);
+    }
+
+    /**
+     * @param directory
+     * @return The sub-directories of the directory, in no particular order,
+     *         or an empty list if the directory doesn't exist. The type of an
+     *         entry is only read the first time it's seen in the directory,
+     *         so walking a tree that didn't change costs a single stat per
+     *         directory.
+     * @throws IOException If there was an error reading the directory or the
+     *         attributes of an entry.
+     */
+    public List<Path> listDirectories(Path directory) throws IOException {
+        return getEntries(directory).listDirectories();
+    }
+
+    /**
+     * Makes the next call for the directory list it and read the attributes
+     * of its files again, e.g. after noticing that a file was truncated.
+     *
+     * @param directory
+     */
+    public void invalidate(Path directory) {
+        DirectoryEntries entries = directories.get(directory.toAbsolutePath().normalize());
+        if (entries != null)
+            entries.invalidate();
+    }
+
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new HashMap<>();
+        metrics.put("DirectoryIndex.TotalDirectoryScans", totalDirectoryScans);
+        metrics.put("DirectoryIndex.TotalAttributeReads", totalAttributeReads);
+        metrics.put("DirectoryIndex.TotalCacheHits", totalCacheHits);
+        metrics.put("DirectoryIndex.TotalExpiredDirectories", totalExpiredDirectories);
+        metrics.put("DirectoryIndex.Directories", directories.size());
+        metrics.put("DirectoryIndex.TotalScanMillis", TimeUnit.NANOSECONDS.toMillis(totalScanNanos.get()));
+        metrics.put("DirectoryIndex.MaxScanMillis", TimeUnit.NANOSECONDS.toMillis(maxScanNanos.get()));
+        return metrics;
+    }
+
+    private DirectoryEntries getEntries(Path directory) {
+        long now = System.currentTimeMillis();
+        expireIdleDirectories(now);
+        directory = directory.toAbsolutePath().normalize();
+        DirectoryEntries entries = directories.get(directory);
+        if (entries == null) {
+            DirectoryEntries newEntries = new DirectoryEntries(directory);
+            entries = directories.putIfAbsent(directory, newEntries);
+            if (entries == null)
+                entries = newEntries;
+        }
+        entries.lastUsedMillis = now;
+        return entries;
+    }
+
+    /**
+     * Forgets the directories that weren't used for the idle expiry. Runs at
+     * most once per idle expiry, on whichever thread gets there first.
+     */
+    private void expireIdleDirectories(long now) {
+        long last = lastExpiryMillis.get();
+        if (now - last < idleExpiryMillis || !lastExpiryMillis.compareAndSet(last, now))
+            return;
+        Iterator<DirectoryEntries> it = directories.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().lastUsedMillis >= idleExpiryMillis) {
+                it.remove();
+                totalExpiredDirectories.incrementAndGet();
+            }
+        }
+    }
+
+    private void recordScan(long nanos) {
+        totalScanNanos.addAndGet(nanos);
+        long max = maxScanNanos.get();
+        while (nanos > max && !maxScanNanos.compareAndSet(max, nanos))
+            max = maxScanNanos.get();
+    }
+
+    /**
+     * The attributes of a file, as of the last time they were read.
+     */
+    @Getter
+    public static class Entry {
+        private final Path path;
+        private final FileId id;
+        private final long lastModifiedTime;
+        private final long size;
+        private final long readTimeMillis;
+
+        Entry(Path path, BasicFileAttributes attributes, long readTimeMillis) throws IOException {
+            this.path = path;
+            this.id = FileId.get(attributes);
+            this.lastModifiedTime = attributes.lastModifiedTime().toMillis();
+            this.size = attributes.size();
+            this.readTimeMillis = readTimeMillis;
+        }
+    }
+
+    private static enum EntryType {
+        REGULAR_FILE,
+        DIRECTORY,
+        OTHER
+    }
+
+    private class DirectoryEntries {
+        final Path directory;
+        volatile long lastUsedMillis;
+        private long scanTimeMillis = -1;
+        private long directoryModifiedTime = -1;
+        private List<Path> fileNames = Collections.emptyList();
+        // The type of each name listed, once known, and the last attributes read for regular files
+        private final Map<Path, EntryType> types = new HashMap<>();
+        private final Map<Path, Entry> attributes = new HashMap<>();
+        // Attributes read before the directory was last listed, only reused by listCachedFiles
+        private final Map<Path, Entry> previousAttributes = new HashMap<>();
+
+        DirectoryEntries(Path directory) {
+            this.directory = directory;
+            this.lastUsedMillis = System.currentTimeMillis();
+        }
+
+        synchronized List<Entry> listFiles(Filter filter) throws IOException {
+            long now = System.currentTimeMillis();
+            if (!refreshFileNames(now)) {
+                return Collections.emptyList();
+            }
+            List<Entry> result = new ArrayList<>();
+            for (Path fileName : fileNames) {
+                EntryType type = types.get(fileName);
+                if (filter.matches(fileName) && (type == null || type == EntryType.REGULAR_FILE)) {
+                    Entry entry = attributes.get(fileName);
+                    if (entry == null || now - entry.readTimeMillis >= attributesMaxAgeMillis)
+                        entry = readAttributes(fileName, now);
+                    if (entry != null)
+                        result.add(entry);
+                }
+            }
+            return result;
+        }
+
+        synchronized List<Entry> listCachedFiles(Filter filter) throws IOException {
+            long now = System.currentTimeMillis();
+            if (!refreshFileNames(now)) {
+                return Collections.emptyList();
+            }
+            long maxAgeMillis = Math.max(CACHED_ATTRIBUTES_MAX_AGE_MILLIS, attributesMaxAgeMillis);
+            List<Entry> result = new ArrayList<>();
+            for (Path fileName : fileNames) {
+                EntryType type = types.get(fileName);
+                if (filter.matches(fileName) && (type == null || type == EntryType.REGULAR_FILE)) {
+                    Entry entry = attributes.get(fileName);
+                    if (entry == null)
+                        entry = previousAttributes.get(fileName);
+                    if (entry == null || now - entry.readTimeMillis >= maxAgeMillis)
+                        entry = readAttributes(fileName, now);
+                    if (entry != null)
+                        result.add(entry);
+                }
+            }
+            return result;
+        }
+
+        synchronized Entry refresh(Path fileName) throws IOException {
+            long now = System.currentTimeMillis();
+            Entry entry = attributes.get(fileName);
+            if (entry != null && now - entry.readTimeMillis < attributesMaxAgeMillis)
+                return entry;
+            return readAttributes(fileName, now);
+        }
+
+        synchronized int countFiles(Filter filter) throws IOException {
+            long now = System.currentTimeMillis();
+            if (!refreshFileNames(now)) {
+                return 0;
+            }
+            int count = 0;
+            for (Path fileName : fileNames) {
+                if (filter.matches(fileName)) {
+                    EntryType type = types.get(fileName);
+                    if (type == null) {
+                        readAttributes(fileName, now);
+                        type = types.get(fileName);
+                    }
+                    if (type == EntryType.REGULAR_FILE)
+                        ++count;
+                }
+            }
+            return count;
+        }
+
+        synchronized List<Path> listDirectories() throws IOException {
+            long now = System.currentTimeMillis();
+            if (!refreshFileNames(now)) {
+                return Collections.emptyList();
+            }
+            List<Path> result = new ArrayList<>();
+            for (Path fileName : fileNames) {
+                EntryType type = types.get(fileName);
+                if (type == null) {
+                    readAttributes(fileName, now);
+                    type = types.get(fileName);
+                }
+                if (type == EntryType.DIRECTORY)
+                    result.add(directory.resolve(fileName));
+            }
+            return result;
+        }
+
+        /**
+         * @return {@code false} if the directory doesn't exist.
+         */
+        private boolean refreshFileNames(long now) throws IOException {
+            long start = System.nanoTime();
+            long modifiedTime;
+            try {
+                BasicFileAttributes attr = Files.readAttributes(directory, BasicFileAttributes.class);
+                if (!attr.isDirectory()) {
+                    clear();
+                    return false;
+                }
+                modifiedTime = attr.lastModifiedTime().toMillis();
+            } catch (NoSuchFileException e) {
+                clear();
+                return false;
+            }
+            if (modifiedTime == directoryModifiedTime && now - scanTimeMillis < scanIntervalMillis) {
+                totalCacheHits.incrementAndGet();
+                return true;
+            }
+            List<Path> names = new ArrayList<>();
+            try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(directory)) {
+                for (Path p : directoryStream) {
+                    names.add(p.getFileName());
+                }
+            } catch (NoSuchFileException | NotDirectoryException e) {
+                clear();
+                return false;
+            }
+            // The names may now refer to different files
+            types.clear();
+            previousAttributes.putAll(attributes);
+            previousAttributes.keySet().retainAll(new HashSet<>(names));
+            attributes.clear();
+            fileNames = names;
+            directoryModifiedTime = modifiedTime;
+            scanTimeMillis = now;
+            recordScan(System.nanoTime() - start);
+            totalDirectoryScans.incrementAndGet();
+            return true;
+        }
+
+        /**
+         * Records the type of the entry, and its attributes if it's a regular
+         * file.
+         *
+         * @return The attributes of the file, or {@code null} if it's not a
+         *         regular file or was deleted since the directory was listed.
+         */
+        private Entry readAttributes(Path fileName, long now) throws IOException {
+            Path path = directory.resolve(fileName);
+            BasicFileAttributes attr;
+            totalAttributeReads.incrementAndGet();
+            previousAttributes.remove(fileName);
+            try {
+                attr = Files.readAttributes(path, BasicFileAttributes.class);
+            } catch (NoSuchFileException e) {
+                types.put(fileName, EntryType.OTHER);
+                attributes.remove(fileName);
+                return null;
+            }
+            types.put(fileName, attr.isRegularFile() ? EntryType.REGULAR_FILE
+                    : attr.isDirectory() ? EntryType.DIRECTORY : EntryType.OTHER);
+            if (!attr.isRegularFile()) {
+                attributes.remove(fileName);
+                return null;
+            }
+            Entry entry = new Entry(path, attr, now);
+            attributes.put(fileName, entry);
+            return entry;
+        }
+
+        synchronized void invalidate() {
+            scanTimeMillis = -1;
+        }
+
+        /**
+         * Forgets the directory, which doesn't exist (any more).
+         */
+        private void clear() {
+            directories.remove(directory, this);
+            fileNames = Collections.emptyList();
+            types.clear();
+            attributes.clear();
+            previousAttributes.clear();
+            directoryModifiedTime = -1;
+            scanTimeMillis = -1;
+        }
+    }
+}
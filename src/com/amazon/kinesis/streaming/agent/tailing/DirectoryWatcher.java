@@ -0,0 +1,202 @@
+/*
+ * Copyright 2014-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file.
+ * This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+package com.amazon.kinesis.streaming.agent.tailing;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import lombok.Getter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches directories for changes with a single {@link WatchService} (i.e.
+ * inotify on Linux) shared by all the flows of the agent, and notifies the
+ * listeners registered for each directory from a daemon thread.
+ * <p>
+ * Listeners must return quickly, since they're called on the watcher thread.
+ * Events can be lost or coalesced (e.g. on overflow), in which case
+ * listeners are notified with a {@code null} file name, meaning anything in
+ * the directory may have changed.
+ */
+@ThreadSafe
+public class DirectoryWatcher implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DirectoryWatcher.class);
+
+    public static interface Listener {
+        /**
+         * @param directory The directory that changed.
+         * @param fileName The name of the file that changed, relative to the
+         *        directory, or {@code null} if events were lost.
+         * @param modified {@code true} if the file was only written to, or
+         *        {@code false} if it was created, deleted or renamed.
+         */
+        void onChange(Path directory, Path fileName, boolean modified);
+    }
+
+    private final WatchService watchService;
+    private final Map<Path, WatchKey> keys = new HashMap<>();
+    private final Map<WatchKey, Path> directories = new HashMap<>();
+    private final Map<Path, List<Listener>> listeners = new HashMap<>();
+    private final Thread thread;
+
+    @Getter private final AtomicLong totalEvents = new AtomicLong();
+    @Getter private final AtomicLong totalOverflows = new AtomicLong();
+
+    public DirectoryWatcher() throws IOException {
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                processEvents();
+            }
+        }, "directory-watcher");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * @param directory
+     * @param listener
+     * @return {@code true} if the directory is being watched, or
+     *         {@code false} if it can't be (e.g. it doesn't exist yet), in
+     *         which case the caller should keep polling it.
+     */
+    public synchronized boolean register(Path directory, Listener listener) {
+        directory = directory.toAbsolutePath().normalize();
+        WatchKey key = keys.get(directory);
+        if (key == null || !key.isValid()) {
+            try {
+                key = directory.register(watchService,
+                        StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE,
+                        StandardWatchEventKinds.ENTRY_MODIFY);
+            } catch (IOException | UnsupportedOperationException | ClosedWatchServiceException e) {
+                LOGGER.debug("Cannot watch directory {}, it will be polled instead: {}", directory, e.toString());
+                return false;
+            }
+            keys.put(directory, key);
+            directories.put(key, directory);
+        }
+        List<Listener> directoryListeners = listeners.get(directory);
+        if (directoryListeners == null) {
+            directoryListeners = new CopyOnWriteArrayList<>();
+            listeners.put(directory, directoryListeners);
+        }
+        if (!directoryListeners.contains(listener))
+            directoryListeners.add(listener);
+        return true;
+    }
+
+    public synchronized void unregister(Path directory, Listener listener) {
+        directory = directory.toAbsolutePath().normalize();
+        List<Listener> directoryListeners = listeners.get(directory);
+        if (directoryListeners != null) {
+            directoryListeners.remove(listener);
+            if (directoryListeners.isEmpty()) {
+                listeners.remove(directory);
+                WatchKey key = keys.remove(directory);
+                if (key != null) {
+                    directories.remove(key);
+                    key.cancel();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return {@code true} if events for the directory are being delivered,
+     *         or {@code false} if it needs to be (re-)registered.
+     */
+    public synchronized boolean isWatching(Path directory) {
+        WatchKey key = keys.get(directory.toAbsolutePath().normalize());
+        return key != null && key.isValid();
+    }
+
+    public synchronized int watchedDirectories() {
+        return keys.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+        thread.interrupt();
+    }
+
+    private void processEvents() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                LOGGER.debug("Directory watcher stopped.");
+                return;
+            }
+            Path directory;
+            List<Listener> directoryListeners;
+            synchronized (this) {
+                directory = directories.get(key);
+                directoryListeners = directory == null ? null : listeners.get(directory);
+            }
+            List<WatchEvent<?>> events = key.pollEvents();
+            boolean valid = key.reset();
+            if (directoryListeners == null)
+                continue;
+            for (WatchEvent<?> event : events) {
+                totalEvents.incrementAndGet();
+                Path fileName = null;
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    totalOverflows.incrementAndGet();
+                } else {
+                    fileName = (Path) event.context();
+                }
+                notify(directoryListeners, directory, fileName, event.kind() == StandardWatchEventKinds.ENTRY_MODIFY);
+            }
+            if (!valid) {
+                // The directory was deleted or became inaccessible: listeners must fall back to polling
+                synchronized (this) {
+                    if (keys.get(directory) == key)
+                        keys.remove(directory);
+                    directories.remove(key);
+                }
+                notify(directoryListeners, directory, null, false);
+            }
+        }
+    }
+
+    private static void notify(List<Listener> listeners, Path directory, Path fileName, boolean modified) {
+        for (Listener listener : listeners) {
+            try {
+                listener.onChange(directory, fileName, modified);
+            } catch (RuntimeException e) {
+                LOGGER.error("Directory listener failed for {}", directory, e);
+            }
+        }
+    }
+}
@@ -14,6 +14,7 @@
 package com.amazon.kinesis.streaming.agent.tailing;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Collections;
 import java.util.LinkedList;
@@ -28,6 +29,7 @@ import com.amazon.kinesis.streaming.agent.AgentContext;
 import com.amazon.kinesis.streaming.agent.Constants;
 import com.amazon.kinesis.streaming.agent.config.Configuration;
 import com.amazon.kinesis.streaming.agent.config.ConfigurationException;
+import com.amazon.kinesis.streaming.agent.metrics.Metrics;
 import com.amazon.kinesis.streaming.agent.processing.interfaces.IDataConverter;
 import com.amazon.kinesis.streaming.agent.processing.processors.AgentDataConverterChain;
 import com.amazon.kinesis.streaming.agent.processing.utils.ProcessingUtilsFactory;
@@ -42,7 +44,7 @@ import com.google.common.collect.Range;
  *
  * @param <R> The record type of this flow.
  */
-@ToString
+@ToString(exclude = "latencies")
 public abstract class FileFlow<R extends IRecord> extends Configuration {
     private static final String MAX_TIME_BETWEEN_FILE_TRACKER_REFRESH_MILLIS_KEY = "maxTimeBetweenFileTrackerRefreshMillis";
     private static final long DEFAULT_MIN_TIME_BETWEEN_FILE_POLLS_MILLIS = 100L;
@@ -59,6 +61,40 @@ public abstract class FileFlow<R extends IRecord> extends Configuration {
     public static final String DEFAULT_TRUNCATED_RECORD_TERMINATOR = String.valueOf(Constants.NEW_LINE);
     public static final String CONVERSION_OPTION_KEY = "dataProcessingOptions";
     public static final String FILE_FOOTER_PATTERN = "fileFooterPattern"; //If a line matches this pattern it stops processing the file
+    public static final String READ_MODE_KEY = "readMode";
+    public static final String MAX_POOLED_PARSER_BUFFERS_KEY = "maxPooledParserBuffers";
+    public static final int DEFAULT_MAX_POOLED_PARSER_BUFFERS = 4;
+    public static final Range<Integer> VALID_MAX_POOLED_PARSER_BUFFERS_RANGE = Range.closed(0, 64);
+    public static final String MAX_PENDING_DATA_CONVERSIONS_KEY = "maxPendingDataConversions";
+    public static final int DEFAULT_MAX_PENDING_DATA_CONVERSIONS = 256;
+    public static final Range<Integer> VALID_MAX_PENDING_DATA_CONVERSIONS_RANGE = Range.closed(1, 65536);
+    public static final String COMPRESSION_KEY = "compression";
+    public static final String COMPRESSION_LEVEL_KEY = "compressionLevel";
+    public static final int DEFAULT_COMPRESSION_LEVEL = 6;
+    public static final Range<Integer> VALID_COMPRESSION_LEVEL_RANGE = Range.closed(1, 9);
+    public static final String READ_AHEAD_DEPTH_KEY = "readAheadDepth";
+    public static final int DEFAULT_READ_AHEAD_DEPTH = 0;
+    public static final Range<Integer> VALID_READ_AHEAD_DEPTH_RANGE = Range.closed(0, 16);
+    public static final String FILE_DISCOVERY_KEY = "fileDiscovery";
+    public static final String MAX_DIRECTORY_DEPTH_KEY = "maxDirectoryDepth";
+    public static final Range<Integer> VALID_MAX_DIRECTORY_DEPTH_RANGE = Range.closed(1, 64);
+    public static final String MAX_TRACKED_FILES_KEY = "maxTrackedFiles";
+    public static final Range<Integer> VALID_MAX_TRACKED_FILES_RANGE = Range.atLeast(0);
+    public static final String MAX_FILE_AGE_MILLIS_KEY = "maxFileAgeMillis";
+    public static final Range<Long> VALID_MAX_FILE_AGE_MILLIS_RANGE = Range.atLeast(0L);
+    public static final String READ_COMPRESSED_FILES_KEY = "readCompressedFiles";
+    public static final String TAILING_MODE_KEY = "tailingMode";
+    public static final String CATCH_UP_PARALLELISM_KEY = "catchUpParallelism";
+    public static final int DEFAULT_CATCH_UP_PARALLELISM = 1;
+    public static final Range<Integer> VALID_CATCH_UP_PARALLELISM_RANGE = Range.closed(1, 32);
+    public static final String MULTI_LINE_START_PATTERN_KEY = "multiLineStartPattern";
+    public static final String MULTI_LINE_IDLE_FLUSH_MILLIS_KEY = "multiLineIdleFlushMillis";
+    public static final Range<Long> VALID_MULTI_LINE_IDLE_FLUSH_MILLIS_RANGE = Range.closed(0L, 3600000L);
+    public static final String MAX_SPILL_BYTES_KEY = "maxSpillBytes";
+    public static final Range<Long> VALID_MAX_SPILL_BYTES_RANGE = Range.atLeast(0L);
+    public static final String SPILL_SEGMENT_SIZE_BYTES_KEY = "spillSegmentSizeBytes";
+    public static final int DEFAULT_SPILL_SEGMENT_SIZE_BYTES = 16 * 1024 * 1024;
+    public static final Range<Integer> VALID_SPILL_SEGMENT_SIZE_BYTES_RANGE = Range.closed(64 * 1024, 1024 * 1024 * 1024);
 
     @Getter protected final AgentContext agentContext;
     @Getter protected final SourceFile sourceFile;
@@ -77,6 +113,19 @@ public abstract class FileFlow<R extends IRecord> extends Configuration {
     @Getter protected final int publishQueueCapacity;
     @Getter protected final IDataConverter dataConverter;
     @Getter protected final Pattern fileFooterPattern;
+    @Getter protected final ReadMode readMode;
+    @Getter protected final int maxPooledParserBuffers;
+    @Getter protected final int maxPendingDataConversions;
+    @Getter protected final Compression compression;
+    @Getter protected final int compressionLevel;
+    @Getter protected final int readAheadDepth;
+    @Getter protected final FileDiscovery fileDiscovery;
+    @Getter protected final TailingMode tailingMode;
+    @Getter protected final int catchUpParallelism;
+    @Getter protected final long multiLineIdleFlushMillis;
+    @Getter protected final long maxSpillBytes;
+    @Getter protected final int spillSegmentSizeBytes;
+    @Getter protected final StageLatencies latencies = new StageLatencies();
 
     protected FileFlow(AgentContext context, Configuration config) {
         super(config);
@@ -98,6 +147,21 @@ public abstract class FileFlow<R extends IRecord> extends Configuration {
         Configuration.validateRange(waitOnEmptyPublishQueueMillis, getWaitOnEmptyPublishQueueMillisValidRange(), WAIT_ON_EMPTY_PUBLISH_QUEUE_MILLIS_KEY);
 
         initialPosition = readEnum(InitialPosition.class, INITIAL_POSITION_KEY, InitialPosition.END_OF_FILE);
+        readMode = readEnum(ReadMode.class, READ_MODE_KEY, ReadMode.BUFFERED);
+        maxPooledParserBuffers = readInteger(MAX_POOLED_PARSER_BUFFERS_KEY, DEFAULT_MAX_POOLED_PARSER_BUFFERS);
+        Configuration.validateRange(maxPooledParserBuffers, VALID_MAX_POOLED_PARSER_BUFFERS_RANGE, MAX_POOLED_PARSER_BUFFERS_KEY);
+        maxPendingDataConversions = readInteger(MAX_PENDING_DATA_CONVERSIONS_KEY, DEFAULT_MAX_PENDING_DATA_CONVERSIONS);
+        Configuration.validateRange(maxPendingDataConversions, VALID_MAX_PENDING_DATA_CONVERSIONS_RANGE, MAX_PENDING_DATA_CONVERSIONS_KEY);
+        compression = readEnum(Compression.class, COMPRESSION_KEY, Compression.NONE);
+        compressionLevel = readInteger(COMPRESSION_LEVEL_KEY, DEFAULT_COMPRESSION_LEVEL);
+        Configuration.validateRange(compressionLevel, VALID_COMPRESSION_LEVEL_RANGE, COMPRESSION_LEVEL_KEY);
+        readAheadDepth = readInteger(READ_AHEAD_DEPTH_KEY, DEFAULT_READ_AHEAD_DEPTH);
+        Configuration.validateRange(readAheadDepth, VALID_READ_AHEAD_DEPTH_RANGE, READ_AHEAD_DEPTH_KEY);
+        fileDiscovery = readEnum(FileDiscovery.class, FILE_DISCOVERY_KEY, FileDiscovery.POLLING);
+        tailingMode = readEnum(TailingMode.class, TAILING_MODE_KEY, TailingMode.SEQUENCE);
+        // Rotated files are read one at a time, in order, unless the order across files doesn't matter
+        catchUpParallelism = readInteger(CATCH_UP_PARALLELISM_KEY, DEFAULT_CATCH_UP_PARALLELISM);
+        Configuration.validateRange(catchUpParallelism, VALID_CATCH_UP_PARALLELISM_RANGE, CATCH_UP_PARALLELISM_KEY);
 
         // TODO: Add validation interval to following values
         retryInitialBackoffMillis = readLong("retryInitialBackoffMillis", getDefaultRetryInitialBackoffMillis());
@@ -106,8 +170,16 @@ public abstract class FileFlow<R extends IRecord> extends Configuration {
         
         skipHeaderLines = readInteger("skipHeaderLines", 0);
         
-        String pattern = readString("multiLineStartPattern", null);
-        recordSplitter = Strings.isNullOrEmpty(pattern) ? new SingleLineSplitter() : new RegexSplitter(pattern);
+        // By default, the last multi-line record is ended as soon as the data read so far ends with a complete line
+        multiLineIdleFlushMillis = readLong(MULTI_LINE_IDLE_FLUSH_MILLIS_KEY, 0L);
+        Configuration.validateRange(multiLineIdleFlushMillis, VALID_MULTI_LINE_IDLE_FLUSH_MILLIS_RANGE, MULTI_LINE_IDLE_FLUSH_MILLIS_KEY);
+        // By default, the buffers that don't fit in the publishing queue wait for room in the tailer
+        maxSpillBytes = readLong(MAX_SPILL_BYTES_KEY, 0L);
+        Configuration.validateRange(maxSpillBytes, VALID_MAX_SPILL_BYTES_RANGE, MAX_SPILL_BYTES_KEY);
+        spillSegmentSizeBytes = readInteger(SPILL_SEGMENT_SIZE_BYTES_KEY, DEFAULT_SPILL_SEGMENT_SIZE_BYTES);
+        Configuration.validateRange(spillSegmentSizeBytes, VALID_SPILL_SEGMENT_SIZE_BYTES_RANGE, SPILL_SEGMENT_SIZE_BYTES_KEY);
+        String pattern = readString(MULTI_LINE_START_PATTERN_KEY, null);
+        recordSplitter = Strings.isNullOrEmpty(pattern) ? new SingleLineSplitter() : new RegexSplitter(pattern, multiLineIdleFlushMillis > 0);
         
         String footerPattern = readString(FILE_FOOTER_PATTERN, null);
         
@@ -145,6 +217,11 @@ public abstract class FileFlow<R extends IRecord> extends Configuration {
 
     public abstract String getId();
     public abstract String getDestination();
+    /**
+     * @return The value of the {@link Metrics#DESTINATION_DIMENSION} of the
+     *         metrics of this flow, e.g. {@code KinesisStream:<name>}.
+     */
+    public abstract String getMetricsDestination();
     public abstract int getMaxRecordSizeBytes();
     public abstract int getPerRecordOverheadBytes();
     public abstract int getPerBufferOverheadBytes();
@@ -156,7 +233,16 @@ public abstract class FileFlow<R extends IRecord> extends Configuration {
             ExecutorService sendingExecutor);
 
     protected SourceFile buildSourceFile() {
-        return new SourceFile(this, readString(FILE_PATTERN_KEY));
+        int maxDirectoryDepth = readInteger(MAX_DIRECTORY_DEPTH_KEY, SourceFile.DEFAULT_MAX_DIRECTORY_DEPTH);
+        Configuration.validateRange(maxDirectoryDepth, VALID_MAX_DIRECTORY_DEPTH_RANGE, MAX_DIRECTORY_DEPTH_KEY);
+        // By default, all the files matching the pattern are tracked
+        int maxTrackedFiles = readInteger(MAX_TRACKED_FILES_KEY, 0);
+        Configuration.validateRange(maxTrackedFiles, VALID_MAX_TRACKED_FILES_RANGE, MAX_TRACKED_FILES_KEY);
+        long maxFileAgeMillis = readLong(MAX_FILE_AGE_MILLIS_KEY, 0L);
+        Configuration.validateRange(maxFileAgeMillis, VALID_MAX_FILE_AGE_MILLIS_RANGE, MAX_FILE_AGE_MILLIS_KEY);
+        // Rotated files compressed in place (e.g. by logrotate) are only read when asked for
+        boolean readCompressedFiles = readBoolean(READ_COMPRESSED_FILES_KEY, false);
+        return new SourceFile(this, readString(FILE_PATTERN_KEY), maxDirectoryDepth, maxTrackedFiles, maxFileAgeMillis, readCompressedFiles);
     }
     
     protected IDataConverter buildConverterChain(List<Configuration> conversionOptions) throws ConfigurationException {
@@ -178,7 +264,27 @@ public abstract class FileFlow<R extends IRecord> extends Configuration {
 
     protected abstract SourceFileTracker buildSourceFileTracker() throws IOException;
     protected abstract IParser<R> buildParser();
+
+    /**
+     * Splitters that keep state between calls, such as {@link RegexSplitter},
+     * are copied so that parsers reading different files of this flow at the
+     * same time (see {@link CatchUpReader}) don't share one.
+     *
+     * @return The splitter to be used by a new parser of this flow.
+     */
+    public ISplitter buildRecordSplitter() {
+        ISplitter splitter = getRecordSplitter();
+        return splitter instanceof RegexSplitter ? ((RegexSplitter) splitter).copy() : splitter;
+    }
+
     protected abstract ISender<R> buildSender();
+    /**
+     * Rebuilds a record read back from a {@link SpillLog}.
+     *
+     * @param partitionKey The partition key of the record, if the records of
+     *        this flow have one, else {@code null}.
+     */
+    protected abstract R restoreRecord(TrackedFile file, long offset, ByteBuffer data, long originalLength, String partitionKey);
 
     public abstract int getParserBufferSize();
 
@@ -202,4 +308,83 @@ public abstract class FileFlow<R extends IRecord> extends Configuration {
         START_OF_FILE,
         END_OF_FILE
     }
+
+    /**
+     * How the parser gets data out of the tailed files.
+     * <ul>
+     *   <li>{@code BUFFERED}: data is read from the file channel into heap
+     *       buffers.</li>
+     *   <li>{@code MEMORY_MAPPED}: rotated files are mapped in windows of the
+     *       parser buffer size, and records are slices of the mapping. The
+     *       live file, and the tail of a rotated file that does not fill a
+     *       window, are still read into heap buffers.</li>
+     * </ul>
+     */
+    public static enum ReadMode {
+        BUFFERED,
+        MEMORY_MAPPED
+    }
+
+    /**
+     * How each record (or aggregated record) is compressed before it's
+     * buffered for sending. Consumers must decompress the data themselves.
+     * <ul>
+     *   <li>{@code NONE}: records are sent as they are.</li>
+     *   <li>{@code GZIP}: each record is a complete gzip member (RFC 1952).</li>
+     *   <li>{@code DEFLATE}: each record is a zlib stream (RFC 1950), as in
+     *       HTTP's {@code deflate} content coding.</li>
+     * </ul>
+     */
+    public static enum Compression {
+        NONE,
+        GZIP,
+        DEFLATE
+    }
+
+    /**
+     * How the tailer finds out that the tailed files changed.
+     * <ul>
+     *   <li>{@code POLLING}: an idle tailer checks the current file every
+     *       {@code minTimeBetweenFilePollsMillis}, and lists the directory
+     *       every {@code maxTimeBetweenFileTrackerRefreshMillis}.</li>
+     *   <li>{@code WATCH}: the directory is watched for file system events,
+     *       which wake the tailer up as soon as a file is written to, and
+     *       refresh the file list as soon as a file is created, renamed or
+     *       deleted. An idle tailer only wakes up on its own every
+     *       {@code maxTimeBetweenFileTrackerRefreshMillis}. If the directory
+     *       can't be watched (e.g. it doesn't exist yet, or the file system
+     *       doesn't support events), the tailer polls until it can.
+     *       Network file systems don't report changes made by other hosts,
+     *       so flows tailing them should keep polling. Flows with globs in
+     *       the directory component of their file pattern, and flows
+     *       tailing their files concurrently, always poll.</li>
+     * </ul>
+     */
+    public static enum FileDiscovery {
+        POLLING,
+        WATCH
+    }
+
+    /**
+     * What the files matching the file pattern are.
+     * <ul>
+     *   <li>{@code SEQUENCE}: the successive files of a single rotating log
+     *       (in each directory, with globs in the directory component).
+     *       Only the newest one is tailed, and the older ones are read, one
+     *       at a time, when catching up after a rotation, or several at a
+     *       time, out of order, with a {@code catchUpParallelism} above 1
+     *       (see {@link CatchUpReader}).</li>
+     *   <li>{@code CONCURRENT}: each file is a live log of its own, e.g.
+     *       <code>/var/log/app/worker-*.log</code> with one file per worker
+     *       process, and all of them are tailed at the same time, with a
+     *       checkpoint each. The files they're rotated to are followed too,
+     *       as long as their name starts with the name of the live file
+     *       followed by a dot (e.g. {@code worker-1.log.1}), and the pattern
+     *       doesn't match them. Such flows always poll.</li>
+     * </ul>
+     */
+    public static enum TailingMode {
+        SEQUENCE,
+        CONCURRENT
+    }
 }
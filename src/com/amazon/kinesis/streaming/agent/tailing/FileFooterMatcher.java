@@ -0,0 +1,142 @@
+/*
+ * Copyright 2014-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file.
+ * This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+package com.amazon.kinesis.streaming.agent.tailing;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+import lombok.Getter;
+
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * Tells whether a record is the file footer, i.e. whether its data, decoded
+ * as UTF-8 and trimmed, {@link Matcher#matches() matches} the footer pattern.
+ * <p>
+ * Most records are rejected on their bytes alone, without decoding them:
+ * <ul>
+ *   <li>if the pattern is a plain literal, the trimmed bytes are compared
+ *       with it directly, and the regex is never run;</li>
+ *   <li>otherwise, the trimmed bytes are checked against the leading
+ *       characters every match must start with (see
+ *       {@link RegexSplitter#analyzePrefix(String)}), which also bounds the
+ *       length of a match from below. Only the remaining candidates are
+ *       decoded, into a reused buffer, and matched.</li>
+ * </ul>
+ */
+@NotThreadSafe
+public class FileFooterMatcher {
+    private static final String METACHARACTERS = "\\^$.|?*+()[]{}";
+
+    @Getter private final Pattern pattern;
+    private final byte[] literal;
+    private final BitSet[] prefix;
+    private final Matcher matcher;
+    private final CharsetDecoder decoder;
+    private CharBuffer decoded = CharBuffer.allocate(256);
+
+    public FileFooterMatcher(Pattern pattern) {
+        this.pattern = pattern;
+        // MULTILINE only changes what ^ and $ match, which the analysis ignores
+        boolean analyzable = (pattern.flags() & ~Pattern.MULTILINE) == 0;
+        this.literal = analyzable ? literalBytes(pattern.pattern()) : null;
+        this.prefix = analyzable ? RegexSplitter.analyzePrefix(pattern.pattern()) : new BitSet[0];
+        this.matcher = pattern.matcher("");
+        this.decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * @param data The record, from its position to its limit, which are left
+     *        unchanged.
+     * @return {@code true} if the trimmed record matches the footer pattern.
+     */
+    public boolean matches(ByteBuffer data) {
+        // Same as String.trim(): drop leading and trailing bytes <= ' ', all of which are ASCII
+        int start = data.position();
+        int end = data.limit();
+        while (start < end && (data.get(start) & 0xFF) <= ' ')
+            ++start;
+        while (end > start && (data.get(end - 1) & 0xFF) <= ' ')
+            --end;
+        int length = end - start;
+        if (literal != null) {
+            if (length != literal.length)
+                return false;
+            for (int i = 0; i < length; ++i) {
+                if (data.get(start + i) != literal[i])
+                    return false;
+            }
+            return true;
+        }
+        // Every match is at least as long as its known prefix
+        if (length < prefix.length)
+            return false;
+        for (int i = 0; i < prefix.length; ++i) {
+            if (!prefix[i].get(data.get(start + i) & 0xFF))
+                return false;
+        }
+        return matcher.reset(decode(data, start, length)).matches();
+    }
+
+    @VisibleForTesting
+    boolean isLiteral() {
+        return literal != null;
+    }
+
+    @VisibleForTesting
+    int getPrefixLength() {
+        return prefix.length;
+    }
+
+    private CharBuffer decode(ByteBuffer data, int offset, int length) {
+        // UTF-8 never decodes to more chars than there are bytes
+        if (decoded.capacity() < length) {
+            decoded = CharBuffer.allocate(Math.max(length, 2 * decoded.capacity()));
+        }
+        ByteBuffer bytes = data.duplicate();
+        bytes.limit(offset + length).position(offset);
+        decoded.clear();
+        decoder.reset();
+        decoder.decode(bytes, decoded, true);
+        decoder.flush(decoded);
+        decoded.flip();
+        return decoded;
+    }
+
+    /**
+     * @return The bytes of the pattern if it only matches itself, i.e. it's
+     *         made of ASCII characters that aren't regex metacharacters, or
+     *         {@code null} otherwise.
+     */
+    private static byte[] literalBytes(String pattern) {
+        if (pattern.isEmpty())
+            return null;
+        for (int i = 0; i < pattern.length(); ++i) {
+            char c = pattern.charAt(i);
+            if (c > 0x7F || METACHARACTERS.indexOf(c) >= 0)
+                return null;
+        }
+        return pattern.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2014-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file.
+ * This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+package com.amazon.kinesis.streaming.agent.tailing;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import lombok.Getter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Keeps the number of files opened by all the flows of the agent within a
+ * budget, so that flows tailing many files don't run into the limit of open
+ * file descriptors.
+ * <p>
+ * Files are opened as {@link ManagedFileChannel}s. When more than
+ * {@link #maxOpenFiles} are open, the least recently read ones are closed,
+ * and opened again by path the next time they're read, after checking that
+ * the path still refers to the same file (see {@link FileId}). Channels that
+ * are being read from when the budget is exceeded are never closed, and
+ * neither are compressed files, which would have to be decompressed again
+ * from the start, nor files that can't be found by their path any more
+ * (e.g. deleted or renamed since). The budget can be exceeded temporarily if
+ * no channel can be closed.
+ * <p>
+ * Without a budget, {@link TrackedFile} opens plain channels and doesn't go
+ * through this manager at all, so that reads don't pay for the bookkeeping.
+ */
+@ThreadSafe
+public class FileHandleManager {
+    private static final Logger LOGGER = LoggerFactory.getLogger(FileHandleManager.class);
+
+    @Getter private final int maxOpenFiles;
+    // The channels with an open file, least recently used first
+    private final LinkedHashMap<ManagedFileChannel, Boolean> openChannels = new LinkedHashMap<>(16, 0.75f, true);
+
+    @Getter private final AtomicLong totalOpens = new AtomicLong();
+    @Getter private final AtomicLong totalEvictions = new AtomicLong();
+    @Getter private final AtomicLong totalReopens = new AtomicLong();
+    @Getter private final AtomicLong totalReopenMicros = new AtomicLong();
+    @Getter private final AtomicLong maxReopenMicros = new AtomicLong();
+    @Getter private final AtomicLong totalOverBudget = new AtomicLong();
+
+    /**
+     * @param maxOpenFiles The maximum number of files open at the same time,
+     *        or {@code 0} for no limit.
+     */
+    public FileHandleManager(int maxOpenFiles) {
+        Preconditions.checkArgument(maxOpenFiles >= 0, "Maximum open files cannot be negative!");
+        this.maxOpenFiles = maxOpenFiles;
+    }
+
+    /**
+     * @param path
+     * @param id The ID of the file, which it must still have when it's
+     *        opened again after being closed to stay within the budget.
+     * @return A channel to read the file, positioned at its start.
+     * @throws IOException
+     */
+    public FileChannel open(Path path, FileId id) throws IOException {
+        ManagedFileChannel channel = new ManagedFileChannel(this, path, id, openFile(path));
+        totalOpens.incrementAndGet();
+        onOpened(channel);
+        return channel;
+    }
+
+    /**
+     * @return The number of files currently open through this manager.
+     */
+    public synchronized int openFiles() {
+        return openChannels.size();
+    }
+
+    static FileChannel openFile(Path path) throws IOException {
+        return TrackedFile.isCompressed(path) ? GzipFileChannel.open(path) : FileChannel.open(path, StandardOpenOption.READ);
+    }
+
+    void onOpened(ManagedFileChannel channel) {
+        synchronized (this) {
+            openChannels.put(channel, Boolean.TRUE);
+        }
+        evictIfNeeded(channel);
+    }
+
+    void onReopened(ManagedFileChannel channel, long micros) {
+        totalReopens.incrementAndGet();
+        totalReopenMicros.addAndGet(micros);
+        long max = maxReopenMicros.get();
+        while (micros > max && !maxReopenMicros.compareAndSet(max, micros))
+            max = maxReopenMicros.get();
+        onOpened(channel);
+    }
+
+    synchronized void onAccessed(ManagedFileChannel channel) {
+        // Moves the channel to the end of the access order
+        openChannels.get(channel);
+    }
+
+    synchronized void onClosed(ManagedFileChannel channel) {
+        openChannels.remove(channel);
+    }
+
+    /**
+     * Closes the least recently used channels until the budget is met. The
+     * lock of this manager isn't held while closing channels, so that
+     * channels can call back into it without any lock ordering issue.
+     */
+    private void evictIfNeeded(ManagedFileChannel opened) {
+        if (maxOpenFiles == 0)
+            return;
+        List<ManagedFileChannel> candidates;
+        int excess;
+        synchronized (this) {
+            excess = openChannels.size() - maxOpenFiles;
+            if (excess <= 0)
+                return;
+            candidates = new ArrayList<>(openChannels.keySet());
+        }
+        for (ManagedFileChannel candidate : candidates) {
+            if (candidate != opened && candidate.evict()) {
+                totalEvictions.incrementAndGet();
+                if (--excess == 0)
+                    return;
+            }
+        }
+        totalOverBudget.incrementAndGet();
+        LOGGER.debug("Could not close enough idle files to stay within the budget of {} open files.", maxOpenFiles);
+    }
+
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new HashMap<>();
+        metrics.put("FileHandleManager.OpenFiles", openFiles());
+        metrics.put("FileHandleManager.MaxOpenFiles", maxOpenFiles);
+        metrics.put("FileHandleManager.TotalOpens", totalOpens);
+        metrics.put("FileHandleManager.TotalEvictions", totalEvictions);
+        metrics.put("FileHandleManager.TotalReopens", totalReopens);
+        metrics.put("FileHandleManager.TotalReopenMicros", totalReopenMicros);
+        metrics.put("FileHandleManager.MaxReopenMicros", maxReopenMicros);
+        metrics.put("FileHandleManager.TotalOverBudget", totalOverBudget);
+        return metrics;
+    }
+}
@@ -14,8 +14,21 @@
 package com.amazon.kinesis.streaming.agent.tailing;
 
 import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 import lombok.Getter;
@@ -26,7 +39,10 @@ import org.slf4j.LoggerFactory;
 
 import com.amazon.kinesis.streaming.agent.AgentContext;
 import com.amazon.kinesis.streaming.agent.IHeartbeatProvider;
+import com.amazon.kinesis.streaming.agent.metrics.IMetricsScope;
 import com.amazon.kinesis.streaming.agent.metrics.Metrics;
+import com.amazon.kinesis.streaming.agent.tailing.FileFlow.FileDiscovery;
+import com.amazon.kinesis.streaming.agent.tailing.FileFlow.TailingMode;
 import com.amazon.kinesis.streaming.agent.tailing.checkpoints.FileCheckpoint;
 import com.amazon.kinesis.streaming.agent.tailing.checkpoints.FileCheckpointStore;
 import com.fasterxml.jackson.core.JsonProcessingException;
@@ -34,7 +50,7 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Stopwatch;
-import com.google.common.util.concurrent.AbstractExecutionThreadService;
+import com.google.common.base.Strings;
 import com.google.common.util.concurrent.AbstractScheduledService;
 
 /**
@@ -42,9 +58,45 @@ import com.google.common.util.concurrent.AbstractScheduledService;
  * passing buffers of records downstream to the destination.
  * The tailer is configured using a {@link FileFlow} and supports
  * tailing logs within a single directory.
+ * <p>
+ * With {@link FileDiscovery#WATCH}, the tailer registers with the agent's
+ * {@link DirectoryWatcher} and, while the directory is watched, sleeps until
+ * a file event arrives instead of polling: writes wake it up, and files
+ * being created, renamed or deleted also force a refresh of the file
+ * tracker.
+ * <p>
+ * When the file pattern has globs in its directory (e.g.
+ * <code>/opt/*&#47;logs/app.log</code>), the tailer keeps a separate
+ * {@link SourceFileTracker} for each matching directory, so that rotations
+ * are tracked independently in each of them, and moves the parser from one
+ * directory to the next, in round-robin order, after at most
+ * {@code maxBufferSizeRecords} records or when it reaches the end of the
+ * current file, so that a busy directory doesn't hold back the others. Such
+ * flows always poll for changes.
+ * <p>
+ * Flows in the {@link TailingMode#CONCURRENT concurrent} tailing mode tail
+ * every matching file at the same time in the same way: each file has its
+ * own {@link SourceFileTracker} and checkpoints, and the tailer moves from
+ * one file to the next after at most {@code maxBufferSizeRecords} records,
+ * so that the records of all the files fill the same buffers.
+ * <p>
+ * With either, each tracker has a parser of its own, which keeps its buffer
+ * and position while the other trackers have their turn, so that switching
+ * doesn't read any data twice. The buffers of the idle parsers count against
+ * the flow's share of the memory budget like the others.
+ * <p>
+ * Flows tailing a single sequence of files with a {@code catchUpParallelism}
+ * above 1 hand the rotated files they fall behind on (i.e. when more than one
+ * file is pending) over to a {@link CatchUpReader}, which reads several of
+ * them at a time, and go on with the latest file. On startup, reading resumes
+ * from the oldest file whose checkpoint isn't at its end.
+ * <p>
+ * When the agent's {@code flowThreads} is set, the tailer doesn't sleep on a
+ * thread of its own: it runs on the agent's {@link FlowScheduler}, and file
+ * events wake it up instead (see {@link SchedulableService}).
  */
 // TODO: Refactor into two classes: FileTailer and FileTailerService, similar to AsyncPublisher and AsyncPublisherService
-public class FileTailer<R extends IRecord> extends AbstractExecutionThreadService implements IHeartbeatProvider {
+public class FileTailer<R extends IRecord> extends SchedulableService implements IHeartbeatProvider {
     private static final int NO_TIMEOUT = -1;
     private static final int MAX_SPIN_WAIT_TIME_MILLIS = 1000;
     private static final Logger LOGGER = LoggerFactory.getLogger(FileTailer.class);
@@ -52,8 +104,26 @@ public class FileTailer<R extends IRecord> extends AbstractExecutionThreadServic
     @Getter private final AgentContext agentContext;
     @Getter private final FileFlow<R> flow;
     private final String serviceName;
-    protected final SourceFileTracker fileTracker;
-    protected final IParser<R> parser;
+    // The tracker of the file being parsed: null with directory globs or concurrent tailing until a file is found
+    protected SourceFileTracker fileTracker;
+    // With directory globs, the tracker of each matching directory, with concurrent
+    // tailing, the tracker of each matching file, else null
+    private final Map<Path, SourceFileTracker> sourceTrackers;
+    private final boolean concurrentTailing;
+    // Source trackers whose current file must be parsed from the flow's initial position
+    private final Set<SourceFileTracker> trackersAtInitialPosition = new HashSet<>();
+    private long lastSourceRefreshTimestamp = 0;
+    private final AtomicLong sourceSwitches = new AtomicLong();
+    // Set when the current file had its turn, with directory globs or concurrent tailing
+    private boolean turnEnded = false;
+    // Source trackers whose parser has records left, since their turn ended before their data did
+    private final Set<SourceFileTracker> trackersWithRecordsLeft = new HashSet<>();
+    // The parser of the current file, which is the one of the current tracker with directory globs or concurrent tailing
+    protected IParser<R> parser;
+    // With directory globs or concurrent tailing, the parser of each source tracker that was parsed, else null
+    private final Map<SourceFileTracker, IParser<R>> sourceParsers;
+    // The metrics of the parsers of the source trackers that were dropped
+    private final Map<String, Object> droppedParserMetrics = new HashMap<>();
     @VisibleForTesting
     @Getter private final FileCheckpointStore checkpoints;
     protected final AsyncPublisherService<R> publisher;
@@ -67,6 +137,21 @@ public class FileTailer<R extends IRecord> extends AbstractExecutionThreadServic
 
     private boolean isInitialized = false;
     private final AtomicLong recordsTruncated = new AtomicLong();
+    // Reads the rotated files the tailer fell behind on in parallel, if enabled
+    private final CatchUpReader<R> catchUp;
+
+    private final DirectoryWatcher directoryWatcher;
+    private final DirectoryWatcher.Listener directoryListener;
+    // Released by the directory watcher to wake up the tailer
+    private final Semaphore fileChanges = new Semaphore(0);
+    private final AtomicBoolean filesModified = new AtomicBoolean();
+    private final AtomicBoolean filesAddedOrRemoved = new AtomicBoolean();
+    private final AtomicLong fileChangeEvents = new AtomicLong();
+
+    // The bytes held by the flow, counted against the agent's memory budget
+    private final MemoryBudget.Account memory;
+    // Set when the tailer stopped reading because the flow is over budget
+    private boolean throttledByMemory = false;
 
     public FileTailer(AgentContext agentContext,
             FileFlow<R> flow,
@@ -74,16 +159,36 @@ public class FileTailer<R extends IRecord> extends AbstractExecutionThreadServic
             AsyncPublisherService<R> publisher,
             IParser<R> parser,
             FileCheckpointStore checkpoints) throws IOException {
-        super();
+        super(agentContext.getFlowScheduler());
         this.agentContext = agentContext;
         this.flow = flow;
         this.serviceName = super.serviceName() + "[" + this.flow.getId() + "]";
         this.checkpoints = checkpoints;
         this.publisher = publisher;
         this.parser = parser;
-        this.fileTracker = new SourceFileTracker(this.agentContext, this.flow);
+        this.concurrentTailing = flow.getTailingMode() == TailingMode.CONCURRENT;
+        if (concurrentTailing || flow.getSourceFile().hasDirectoryPattern()) {
+            this.fileTracker = null;
+            this.sourceTrackers = new LinkedHashMap<>();
+            this.sourceParsers = new HashMap<>();
+        } else {
+            this.fileTracker = new SourceFileTracker(this.agentContext, this.flow);
+            this.sourceTrackers = null;
+            this.sourceParsers = null;
+        }
+        this.catchUp = sourceTrackers == null && flow.getCatchUpParallelism() > 1 ?
+                new CatchUpReader<R>(flow, publisher, serviceName) : null;
         this.minTimeBetweenFilePollsMillis = flow.minTimeBetweenFilePollsMillis();
         this.maxTimeBetweenFileTrackerRefreshMillis = flow.maxTimeBetweenFileTrackerRefreshMillis();
+        this.memory = this.agentContext.getMemoryBudget().account(this.flow.getId());
+        this.directoryWatcher = flow.getFileDiscovery() == FileDiscovery.WATCH && sourceTrackers == null ?
+                this.agentContext.getDirectoryWatcher() : null;
+        this.directoryListener = new DirectoryWatcher.Listener() {
+            @Override
+            public void onChange(Path directory, Path fileName, boolean modified) {
+                FileTailer.this.onFileChange(fileName, modified);
+            }
+        };
         this.metricsEmitter = new AbstractScheduledService() {
             @Override
             protected void runOneIteration() throws Exception {
@@ -101,6 +206,13 @@ public class FileTailer<R extends IRecord> extends AbstractExecutionThreadServic
                 return FileTailer.this.serviceName() + ".MetricsEmitter";
             }
 
+            @Override
+            protected ScheduledExecutorService executor() {
+                // Flows sharing threads don't get one of their own to report status either
+                FlowScheduler scheduler = FileTailer.this.agentContext.getFlowScheduler();
+                return scheduler != null ? scheduler.getTimer() : super.executor();
+            }
+
             @Override
             protected void shutDown() throws Exception {
                 LOGGER.debug("{}: shutting down...", serviceName());
@@ -116,18 +228,104 @@ public class FileTailer<R extends IRecord> extends AbstractExecutionThreadServic
         do {
             if (0 == runOnce() && !isNewFile) {
                 // Sleep only if the previous run did not process any records
-                if(isRunning() && minTimeBetweenFilePollsMillis > 0) {
-                    try {
-                        Thread.sleep(minTimeBetweenFilePollsMillis);
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                        LOGGER.trace("{}: Thread interrupted", e);
-                    }
+                if(isRunning()) {
+                    waitForFileChanges();
                 }
             }
         } while (isRunning());
     }
 
+    @Override
+    protected long runScheduled() {
+        if (0 == runOnce() && !isNewFile) {
+            if (canWaitForFileEvents()) {
+                // Events wake the tailer up, like they release the semaphore
+                fileChanges.drainPermits();
+                return fileEventsTimeoutMillis();
+            }
+            return minTimeBetweenFilePollsMillis;
+        }
+        return 0;
+    }
+
+    private void waitForFileChanges() {
+        try {
+            if (canWaitForFileEvents()) {
+                if (fileChanges.tryAcquire(fileEventsTimeoutMillis(), TimeUnit.MILLISECONDS)) {
+                    fileChanges.drainPermits();
+                }
+            } else if (minTimeBetweenFilePollsMillis > 0) {
+                Thread.sleep(minTimeBetweenFilePollsMillis);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOGGER.trace("{}: Thread interrupted", e);
+        }
+    }
+
+    private boolean canWaitForFileEvents() {
+        // The parser may be holding a multi-line record until its file is idle, which no event signals
+        boolean recordHeld = flow.getMultiLineIdleFlushMillis() > 0 && parser.bufferedBytesRemaining() > 0;
+        return pendingRecord == null && !recordHeld && !throttledByMemory && isWatchingDirectory();
+    }
+
+    private long fileEventsTimeoutMillis() {
+        // Events wake the tailer up; the timeout only bounds how stale the file list can get
+        return Math.max(minTimeBetweenFilePollsMillis, maxTimeBetweenFileTrackerRefreshMillis);
+    }
+
+    private void onFileChange(Path fileName, boolean modified) {
+        // A null file name means events were lost
+        if (fileName != null && !flow.getSourceFile().matches(fileName))
+            return;
+        fileChangeEvents.incrementAndGet();
+        filesModified.set(true);
+        if (!modified || fileName == null) {
+            filesAddedOrRemoved.set(true);
+        }
+        if (fileChanges.availablePermits() == 0) {
+            fileChanges.release();
+        }
+        wakeUp();
+    }
+
+    private boolean isWatchingDirectory() {
+        return directoryWatcher != null && directoryWatcher.isWatching(flow.getSourceFile().getDirectory());
+    }
+
+    /**
+     * Starts watching the directory of the tailed files, if the flow is
+     * configured to and it isn't watched already. Called on every refresh
+     * of the file tracker, so the tailer goes back to events once the
+     * directory can be watched again (e.g. after it's created).
+     */
+    private void watchDirectory() {
+        if (directoryWatcher != null && !isWatchingDirectory()) {
+            Path directory = flow.getSourceFile().getDirectory();
+            if (directoryWatcher.register(directory, directoryListener)) {
+                LOGGER.debug("{}: Watching {} for file changes.", serviceName(), directory);
+                // Anything that changed before the registration was missed
+                filesAddedOrRemoved.set(true);
+            }
+        }
+    }
+
+    /**
+     * @return {@code true} if the file tracker needs a full refresh. While
+     *         the directory is watched, only files being added or removed do,
+     *         and the quick checks of {@link SourceFileTracker#mustRefresh()}
+     *         only run after the tailed files were written to (e.g. to detect
+     *         truncation).
+     */
+    private boolean fileTrackerMustRefresh() {
+        if (isWatchingDirectory()) {
+            boolean addedOrRemoved = filesAddedOrRemoved.getAndSet(false);
+            boolean modified = filesModified.getAndSet(false);
+            return addedOrRemoved || (modified && fileTracker.mustRefresh());
+        }
+        return fileTracker.mustRefresh();
+    }
+
     protected int runOnce() {
         return processRecords();
     }
@@ -136,7 +334,14 @@ public class FileTailer<R extends IRecord> extends AbstractExecutionThreadServic
     public synchronized void initialize() throws IOException {
         if(isInitialized)
             return;
-        FileCheckpoint cp = checkpoints.getCheckpointForFlow(flow);
+        if (sourceTrackers != null) {
+            refreshSources(true);
+            switchSource();
+            isNewFile = parser.isParsing();
+            isInitialized = true;
+            return;
+        }
+        FileCheckpoint cp = catchUp != null ? getCatchUpCheckpoint() : checkpoints.getCheckpointForFlow(flow);
         if (cp != null) {
             LOGGER.debug("{}: Found checkpoint {}.", serviceName(), cp);
             if (fileTracker.initialize(cp) && parser.continueParsingWithFile(fileTracker.getCurrentOpenFile())) {
@@ -160,6 +365,237 @@ public class FileTailer<R extends IRecord> extends AbstractExecutionThreadServic
         isInitialized = true;
     }
 
+    /**
+     * @return The checkpoint of the oldest file that wasn't read to its end,
+     *         e.g. one that was being caught up on, or else the checkpoint of
+     *         the newest file, so that no file is skipped when resuming.
+     * @throws IOException
+     */
+    private FileCheckpoint getCatchUpCheckpoint() throws IOException {
+        List<FileCheckpoint> flowCheckpoints = checkpoints.getCheckpointsForFlow(flow);
+        if (flowCheckpoints.isEmpty())
+            return null;
+        TrackedFileList files = flow.getSourceFile().listFiles();
+        Map<FileId, FileCheckpoint> checkpointsById = checkpointsByFileId(flowCheckpoints);
+        FileCheckpoint newest = null;
+        FileCheckpoint oldestUnfinished = null;
+        // Files are newest first
+        for (TrackedFile file : files) {
+            FileCheckpoint checkpoint = checkpointsById.get(file.getId());
+            if (checkpoint == null)
+                continue;
+            if (newest == null)
+                newest = checkpoint;
+            if (checkpoint.getOffset() < file.getSize())
+                oldestUnfinished = checkpoint;
+        }
+        if (oldestUnfinished != null)
+            return oldestUnfinished;
+        // Falls back to the latest checkpoint, which the tracker may still find
+        return newest != null ? newest : flowCheckpoints.get(0);
+    }
+
+    /**
+     * @return The latest checkpoint of each file, by ID, since files are
+     *         renamed when rotated.
+     */
+    private static Map<FileId, FileCheckpoint> checkpointsByFileId(List<FileCheckpoint> latestFirst) {
+        Map<FileId, FileCheckpoint> checkpointsById = new HashMap<>();
+        for (FileCheckpoint checkpoint : latestFirst) {
+            if (!checkpointsById.containsKey(checkpoint.getFile().getId()))
+                checkpointsById.put(checkpoint.getFile().getId(), checkpoint);
+        }
+        return checkpointsById;
+    }
+
+    /**
+     * Hands the current file, which was rotated, and the files between it and
+     * the latest one over to the {@link CatchUpReader}, and moves the parser
+     * to the latest file. Files are read from their checkpoint, if any (e.g.
+     * when resuming after a restart), and otherwise from their start.
+     *
+     * @throws IOException
+     */
+    private void catchUpOnPendingFiles() throws IOException {
+        TrackedFile currentFile = parser.getCurrentFile();
+        // Rewind to the first byte that wasn't returned as a record yet
+        long resumeOffset = currentFile.getCurrentOffset() - parser.bufferedBytesRemaining();
+        parser.stopParsing("Catching up on rotated files in parallel.");
+        currentFile.getChannel().position(resumeOffset);
+        List<TrackedFile> skipped = fileTracker.skipToLatestFile();
+        Map<FileId, FileCheckpoint> checkpointsById = checkpointsByFileId(checkpoints.getCheckpointsForFlow(flow));
+        for (TrackedFile file : skipped) {
+            if (!file.isOpen()) {
+                FileCheckpoint checkpoint = checkpointsById.get(file.getId());
+                long offset = checkpoint != null && checkpoint.getOffset() <= file.getSize() ? checkpoint.getOffset() : 0;
+                if (offset == file.getSize() && offset > 0) {
+                    LOGGER.debug("{}: Already caught up on {}.", serviceName(), file);
+                    continue;
+                }
+                file.open(offset);
+            }
+            // Reading the file resumes here if the agent restarts before it's done
+            checkpoints.saveCheckpoint(file, file.getCurrentOffset());
+            catchUp.readFile(file);
+        }
+        LOGGER.info("{}: Catching up on {} rotated file(s) in parallel, and moving on to {}.", serviceName(),
+                skipped.size(), fileTracker.getCurrentOpenFile());
+        isNewFile = parser.continueParsingWithFile(fileTracker.getCurrentOpenFile());
+    }
+
+    /**
+     * Starts tracking the directories (or files, with concurrent tailing)
+     * that newly match the file pattern, and stops tracking the ones that
+     * don't exist anymore, except for the one being parsed, which is dropped
+     * once the parser moves on, and the ones whose current file still has
+     * data to parse (e.g. a file that was rotated away).
+     *
+     * @param initializing {@code true} when called as the tailer starts, in
+     *        which case files without checkpoints are parsed from the flow's
+     *        initial position. Directories and files found later are new,
+     *        and their files are parsed from the start.
+     * @throws IOException
+     */
+    private void refreshSources(boolean initializing) throws IOException {
+        Set<Path> sources = new HashSet<>();
+        if (concurrentTailing) {
+            for (TrackedFile file : flow.getSourceFile().listFiles())
+                sources.add(file.getPath());
+        } else {
+            sources.addAll(flow.getSourceFile().listDirectories());
+        }
+        Iterator<Map.Entry<Path, SourceFileTracker>> it = sourceTrackers.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Path, SourceFileTracker> entry = it.next();
+            SourceFileTracker tracker = entry.getValue();
+            TrackedFile file = tracker.getCurrentOpenFile();
+            if (!sources.contains(entry.getKey()) && tracker != fileTracker && !hasRecordsLeft(tracker)
+                    && (file == null || !file.isOpen() || file.getCurrentOffset() >= file.getCurrentSize())) {
+                LOGGER.debug("{}: {} doesn't match anymore, no longer tracking it.", serviceName(), entry.getKey());
+                IParser<R> trackerParser = sourceParsers.remove(tracker);
+                if (trackerParser != null) {
+                    trackerParser.stopParsing("No longer tracking the file.");
+                    addMetrics(droppedParserMetrics, trackerParser.getMetrics());
+                }
+                if (file != null)
+                    file.close();
+                trackersAtInitialPosition.remove(tracker);
+                it.remove();
+            }
+        }
+        for (Path source : sources) {
+            if (!sourceTrackers.containsKey(source)) {
+                sourceTrackers.put(source, newSourceTracker(source, initializing));
+            }
+        }
+        lastSourceRefreshTimestamp = System.currentTimeMillis();
+    }
+
+    private SourceFileTracker newSourceTracker(Path source, boolean initializing) throws IOException {
+        SourceFile sourceFile = concurrentTailing ?
+                flow.getSourceFile().forFile(source) : flow.getSourceFile().forDirectory(source);
+        SourceFileTracker tracker = new SourceFileTracker(agentContext, flow, sourceFile);
+        FileCheckpoint cp = concurrentTailing ?
+                checkpoints.getCheckpointForSource(flow, sourceFile) : checkpoints.getCheckpointForDirectory(flow, source);
+        if (cp != null) {
+            LOGGER.debug("{}: Found checkpoint {}.", serviceName(), cp);
+            if (tracker.initialize(cp)) {
+                LOGGER.info("{}: Successfully started tailing from previous checkpoint {}@{}", serviceName(), tracker.getCurrentOpenFile().getPath(), cp.getOffset());
+            } else {
+                LOGGER.warn("{}: Failed to start tailing from previous checkpoint {}@{}", serviceName(), cp.getFile(), cp.getOffset());
+                trackersAtInitialPosition.add(tracker);
+            }
+        } else {
+            LOGGER.debug("{}: Started tracking {}.", serviceName(), sourceFile);
+            tracker.initialize();
+            if (initializing)
+                trackersAtInitialPosition.add(tracker);
+        }
+        return tracker;
+    }
+
+    /**
+     * Moves the parser to the next directory (or file, with concurrent
+     * tailing), in round-robin order, that has data left to parse, so that
+     * a busy one doesn't hold back the others.
+     *
+     * @return {@code true} if the parser moved to another tracker.
+     * @throws IOException
+     */
+    private boolean switchSource() throws IOException {
+        List<SourceFileTracker> trackers = new ArrayList<>(sourceTrackers.values());
+        int current = trackers.indexOf(fileTracker);
+        for (int i = 1; i <= trackers.size(); ++i) {
+            SourceFileTracker candidate = trackers.get((current + i) % trackers.size());
+            if (candidate != fileTracker && hasInputPending(candidate)) {
+                moveParserTo(candidate);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return {@code true} if the tracker, which isn't the one being parsed,
+     *         has records left in its parser, data left in its current file
+     *         or newer files pending.
+     */
+    private boolean hasInputPending(SourceFileTracker tracker) throws IOException {
+        if (System.currentTimeMillis() - tracker.getLastRefreshTimestamp() >= maxTimeBetweenFileTrackerRefreshMillis
+                || tracker.mustRefresh()) {
+            if (!tracker.refresh()) {
+                // The file was truncated or replaced: what its parser buffered is gone
+                IParser<R> trackerParser = sourceParsers.get(tracker);
+                if (trackerParser != null && trackerParser.isParsing()) {
+                    trackerParser.switchParsingToFile(tracker.getCurrentOpenFile());
+                    trackersWithRecordsLeft.remove(tracker);
+                }
+            }
+        }
+        TrackedFile file = tracker.getCurrentOpenFile();
+        return file != null && (hasRecordsLeft(tracker)
+                || file.getCurrentOffset() < file.getCurrentSize() || tracker.newerFilesPending());
+    }
+
+    /**
+     * @return {@code true} if the parser of the tracker holds records it
+     *         didn't return yet: ones left when its turn ended, or a
+     *         multi-line record waiting for its file to be idle.
+     */
+    private boolean hasRecordsLeft(SourceFileTracker tracker) {
+        if (trackersWithRecordsLeft.contains(tracker))
+            return true;
+        IParser<R> trackerParser = sourceParsers.get(tracker);
+        return trackerParser != null && flow.getMultiLineIdleFlushMillis() > 0
+                && trackerParser.bufferedBytesRemaining() > 0;
+    }
+
+    private void moveParserTo(SourceFileTracker tracker) throws IOException {
+        if (fileTracker != null && turnEnded) {
+            trackersWithRecordsLeft.add(fileTracker);
+        }
+        // The parser of the current tracker keeps its buffer and position
+        // until it's this tracker's turn again. Before any tracker was
+        // parsed, the tailer's parser is still free.
+        IParser<R> trackerParser = sourceParsers.get(tracker);
+        if (trackerParser == null) {
+            trackerParser = fileTracker == null ? parser : flow.buildParser();
+            sourceParsers.put(tracker, trackerParser);
+        }
+        parser = trackerParser;
+        fileTracker = tracker;
+        trackersWithRecordsLeft.remove(tracker);
+        TrackedFile newFile = tracker.getCurrentOpenFile();
+        if (trackersAtInitialPosition.remove(tracker)) {
+            parser.startParsingFile(newFile);
+        } else {
+            parser.continueParsingWithFile(newFile);
+        }
+        isNewFile = parser.isParsing();
+        sourceSwitches.incrementAndGet();
+        LOGGER.debug("{}: Switching to file {} of another tracker.", serviceName(), newFile);
+    }
+
     /**
      * @return {@code false} if there are any records queued for sending or
      *         currently being sent (e.g. asynchronously), or if there are more
@@ -214,6 +650,7 @@ public class FileTailer<R extends IRecord> extends AbstractExecutionThreadServic
         LOGGER.debug("{}: Starting up...", serviceName());
         super.startUp();
         initialize();
+        watchDirectory();
         metricsEmitter.startAsync();
         publisher.startPublisher();
     }
@@ -222,6 +659,14 @@ public class FileTailer<R extends IRecord> extends AbstractExecutionThreadServic
     protected synchronized void triggerShutdown() {
         LOGGER.debug("{}: Shutdown triggered...", serviceName());
         super.triggerShutdown();
+        if (catchUp != null) {
+            catchUp.stop();
+        }
+        if (directoryWatcher != null) {
+            directoryWatcher.unregister(flow.getSourceFile().getDirectory(), directoryListener);
+            // Wake up the tailing thread so it notices the shutdown
+            fileChanges.release();
+        }
         publisher.stopPublisher();
         metricsEmitter.stopAsync();
     }
@@ -238,6 +683,11 @@ public class FileTailer<R extends IRecord> extends AbstractExecutionThreadServic
                 LOGGER.trace("{}: There's no file being tailed.", serviceName());
                 return 0;
             }
+            if (catchUp != null && isRunning() && pendingRecord == null && fileTracker.getPendingFiles().size() > 1
+                    && !parser.hasBufferedDataFromPreviousFile()) {
+                // Fell behind by more than one rotation: read the rotated files in parallel
+                catchUpOnPendingFiles();
+            }
             processed = processRecordsInCurrentFile();
             if (parser.isAtEndOfCurrentFile()) {
                 // We think we reached the end of the current file...
@@ -252,6 +702,11 @@ public class FileTailer<R extends IRecord> extends AbstractExecutionThreadServic
                     isNewFile = parser.continueParsingWithFile(fileTracker.getCurrentOpenFile());
                 }
             }
+            if (sourceTrackers != null && isRunning() && !isNewFile && pendingRecord == null
+                    && (parser.isAtEndOfCurrentFile() || turnEnded)) {
+                // Give the other trackers a turn while this file has no more data, or has had its turn
+                switchSource();
+            }
         } catch (Exception e) {
             LOGGER.error("{}: Error when processing current input file or when tracking its status.", serviceName(), e);
         }
@@ -260,11 +715,15 @@ public class FileTailer<R extends IRecord> extends AbstractExecutionThreadServic
 
     protected synchronized int processRecordsInCurrentFile() throws IOException {
         isNewFile = false;
+        turnEnded = false;
+        throttledByMemory = false;
+        int processed = 0;
+        if (pendingRecord == null && !mayReadRecord())
+            return processed;
         // See if there's a pending record from the previous run, and start
         // with it, otherwise, read a new record from the parser.
         R record = pendingRecord == null ? parser.readRecord() : pendingRecord;
         pendingRecord = null;
-        int processed = 0;
         while(record != null) {
         	if (record.length() > flow.getMaxRecordSizeBytes()) {
                 record.truncate();
@@ -274,6 +733,13 @@ public class FileTailer<R extends IRecord> extends AbstractExecutionThreadServic
             // Process a slice of records, and then check if we've been asked to stop
             if(isRunning() && publisher.publishRecord(record)) {
                 ++processed;
+                if (sourceTrackers != null && processed >= flow.getMaxBufferSizeRecords()) {
+                    // The other directories or files get a turn before this one is read any further
+                    turnEnded = true;
+                    return processed;
+                }
+                if (!mayReadRecord())
+                    return processed;
                 // Read the next record
                 record = parser.readRecord();
             } else {
@@ -288,6 +754,16 @@ public class FileTailer<R extends IRecord> extends AbstractExecutionThreadServic
         return processed;
     }
 
+    private boolean mayReadRecord() {
+        if (memory.mayRead())
+            return true;
+        // Like the publisher's back-pressure, but the records are held by any of the flow's buffers
+        LOGGER.debug("{}: flow holds {} bytes, over its share of the memory budget. Backing off a bit.",
+                serviceName(), memory.heldBytes());
+        throttledByMemory = true;
+        return false;
+    }
+
     /**
      * @return {@code true} if we suspect there's more data in current file, or
      *         if there are newer files waiting to be tailed, {@code false}
@@ -301,9 +777,19 @@ public class FileTailer<R extends IRecord> extends AbstractExecutionThreadServic
             // Ignore
         }
         TrackedFile currentFile = parser.getCurrentFile();
-        return parser.bufferedBytesRemaining() > 0
+        if (parser.bufferedBytesRemaining() > 0
                 || (currentFile != null && currentFile.getCurrentOffset() < currentFile.getSize())
-                || fileTracker.newerFilesPending();
+                || (fileTracker != null && fileTracker.newerFilesPending())
+                || (catchUp != null && catchUp.isCatchingUp())) {
+            return true;
+        }
+        if (sourceTrackers != null) {
+            for (SourceFileTracker tracker : sourceTrackers.values()) {
+                if (tracker != fileTracker && hasInputPending(tracker))
+                    return true;
+            }
+        }
+        return false;
     }
 
     protected synchronized long bytesBehind() {
@@ -313,8 +799,21 @@ public class FileTailer<R extends IRecord> extends AbstractExecutionThreadServic
             if (currentFile != null) {
                 result += currentFile.getChannel().size() - currentFile.getChannel().position();
             }
-            for(TrackedFile f : fileTracker.getPendingFiles()) {
-                result += f.getSize();
+            for(SourceFileTracker tracker : trackers()) {
+                TrackedFile trackerFile = tracker.getCurrentOpenFile();
+                if (tracker != fileTracker && trackerFile != null && trackerFile.isOpen()) {
+                    result += trackerFile.getChannel().size() - trackerFile.getChannel().position();
+                    IParser<R> trackerParser = sourceParsers.get(tracker);
+                    if (trackerParser != null) {
+                        result += trackerParser.bufferedBytesRemaining();
+                    }
+                }
+                for(TrackedFile f : tracker.getPendingFiles()) {
+                    result += f.getSize();
+                }
+            }
+            if (catchUp != null) {
+                result += catchUp.bytesRemaining();
             }
             return result;
         } catch (IOException e) {
@@ -324,7 +823,36 @@ public class FileTailer<R extends IRecord> extends AbstractExecutionThreadServic
     }
 
     protected synchronized int filesBehind() {
-        return fileTracker.getPendingFiles().size();
+        int result = 0;
+        for(SourceFileTracker tracker : trackers()) {
+            result += tracker.getPendingFiles().size();
+        }
+        if (catchUp != null) {
+            result += catchUp.filesRemaining();
+        }
+        return result;
+    }
+
+    private synchronized int filesOutsideWindow() {
+        int result = 0;
+        for(SourceFileTracker tracker : trackers()) {
+            result += tracker.getFilesOutsideWindow();
+        }
+        return result;
+    }
+
+    private synchronized long rotationAnalyses(boolean skipped) {
+        long result = 0;
+        for(SourceFileTracker tracker : trackers()) {
+            result += skipped ? tracker.getTotalRotationAnalysesSkipped().get() : tracker.getTotalRotationAnalyses().get();
+        }
+        return result;
+    }
+
+    private Iterable<SourceFileTracker> trackers() {
+        if (sourceTrackers != null)
+            return sourceTrackers.values();
+        return fileTracker == null ? new ArrayList<SourceFileTracker>() : Collections.singletonList(fileTracker);
     }
 
     /**
@@ -337,18 +865,29 @@ public class FileTailer<R extends IRecord> extends AbstractExecutionThreadServic
      */
     protected synchronized boolean updateRecordParser(boolean forceRefresh) throws IOException {
         if(isRunning()) {
+            if (sourceTrackers != null) {
+                if (forceRefresh || System.currentTimeMillis() - lastSourceRefreshTimestamp >= maxTimeBetweenFileTrackerRefreshMillis) {
+                    refreshSources(false);
+                }
+                if (fileTracker == null) {
+                    // Nothing is being parsed yet: look for a tracker with data
+                    switchSource();
+                    return parser.isParsing();
+                }
+            }
             boolean resetParsing = false;
             boolean refreshed = false;
             long elapsedSinceLastRefresh = System.currentTimeMillis() - fileTracker.getLastRefreshTimestamp();
             // Refresh sparingly to save CPU cycles and unecessary IO...
             if(forceRefresh
                     || elapsedSinceLastRefresh >= maxTimeBetweenFileTrackerRefreshMillis
-                    || fileTracker.mustRefresh()) {
+                    || fileTrackerMustRefresh()) {
                 LOGGER.trace("{} is refreshing current tailed file.", serviceName());
                 if(fileTracker.getLastRefreshTimestamp() > 0)
                     LOGGER.trace("{}: Time since last refresh: {}", serviceName(), Duration.millis(elapsedSinceLastRefresh));
                 resetParsing = !fileTracker.refresh();
                 refreshed = true;
+                watchDirectory();
             }
             // Only update the parser if something changed
             if(refreshed || (!parser.isParsing() && fileTracker.getCurrentOpenFile() != null)) {
@@ -425,17 +964,103 @@ public class FileTailer<R extends IRecord> extends AbstractExecutionThreadServic
             } else if (bytesBehind > 0) {
                 LOGGER.debug(msg);
             }
+            if (catchUp != null) {
+                catchUp.logProgress();
+            }
+            emitLatencies();
         } catch (Exception e) {
             LOGGER.error("{}: Failed while emitting tailer status.", serviceName(), e);
         }
     }
 
+    /**
+     * Emits the latency percentiles of the flow since they were last emitted,
+     * along with the metrics of its sender.
+     */
+    private void emitLatencies() {
+        IMetricsScope scope = agentContext.beginScope();
+        scope.addDimension(Metrics.DESTINATION_DIMENSION, flow.getMetricsDestination());
+        if (!Strings.isNullOrEmpty(agentContext.getInstanceTag())) {
+            scope.addDimension(Metrics.INSTANCE_DIMENSION, agentContext.getInstanceTag());
+        }
+        try {
+            flow.getLatencies().emit(scope);
+        } finally {
+            scope.commit();
+        }
+    }
+
     public Map<String, Object> getMetrics() {
         Map<String, Object> metrics = publisher.getMetrics();
-        metrics.putAll(parser.getMetrics());
+        metrics.putAll(parserMetrics());
         metrics.put("FileTailer.FilesBehind", filesBehind());
         metrics.put("FileTailer.BytesBehind", bytesBehind());
         metrics.put("FileTailer.RecordsTruncated", recordsTruncated);
+        metrics.put("FileTailer.RotationAnalyses", rotationAnalyses(false));
+        metrics.put("FileTailer.RotationAnalysesSkipped", rotationAnalyses(true));
+        metrics.put("FileTailer.FilesOutsideWindow", filesOutsideWindow());
+        metrics.putAll(memory.getMetrics());
+        metrics.putAll(flow.getLatencies().getMetrics());
+        if (directoryWatcher != null) {
+            metrics.put("FileTailer.FileChangeEvents", fileChangeEvents);
+            metrics.put("FileTailer.WatchingDirectory", isWatchingDirectory());
+        }
+        if (concurrentTailing) {
+            metrics.put("FileTailer.ConcurrentFiles", sourceTrackers.size());
+            metrics.put("FileTailer.FileSwitches", sourceSwitches);
+        } else if (sourceTrackers != null) {
+            metrics.put("FileTailer.Directories", sourceTrackers.size());
+            metrics.put("FileTailer.DirectorySwitches", sourceSwitches);
+        }
+        if (catchUp != null) {
+            metrics.putAll(catchUp.getMetrics());
+        }
         return metrics;
     }
+
+    /**
+     * @return The metrics of the parser, or the totals of the parsers of all
+     *         the source trackers, including the ones dropped since.
+     */
+    private synchronized Map<String, Object> parserMetrics() {
+        if (sourceParsers == null)
+            return parser.getMetrics();
+        Map<String, Object> metrics = new HashMap<>();
+        addMetrics(metrics, droppedParserMetrics);
+        if (!sourceParsers.containsValue(parser))
+            addMetrics(metrics, parser.getMetrics());
+        for (IParser<R> trackerParser : sourceParsers.values())
+            addMetrics(metrics, trackerParser.getMetrics());
+        // Ratios can't be added up: work them out from the totals
+        for (Map.Entry<String, Object> entry : metrics.entrySet()) {
+            if (entry.getKey().endsWith(".CompressionRatio")) {
+                String prefix = entry.getKey().substring(0, entry.getKey().length() - ".CompressionRatio".length());
+                long in = Metrics.getMetric(metrics, prefix + ".TotalBytesBeforeCompression", new AtomicLong()).get();
+                long out = Metrics.getMetric(metrics, prefix + ".TotalBytesAfterCompression", new AtomicLong()).get();
+                entry.setValue(out == 0 ? 0.0 : (double) in / out);
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Adds the counters of a parser to the totals, keeping their types.
+     */
+    private static void addMetrics(Map<String, Object> totals, Map<String, Object> metrics) {
+        for (Map.Entry<String, Object> entry : metrics.entrySet()) {
+            Object total = totals.get(entry.getKey());
+            Object value = entry.getValue();
+            if (value instanceof AtomicLong) {
+                long sum = ((AtomicLong) value).get() + (total != null ? ((AtomicLong) total).get() : 0);
+                totals.put(entry.getKey(), new AtomicLong(sum));
+            } else if (value instanceof AtomicInteger) {
+                int sum = ((AtomicInteger) value).get() + (total != null ? ((AtomicInteger) total).get() : 0);
+                totals.put(entry.getKey(), new AtomicInteger(sum));
+            } else if (value instanceof Long) {
+                totals.put(entry.getKey(), (Long) value + (total != null ? (Long) total : 0L));
+            } else {
+                totals.put(entry.getKey(), value);
+            }
+        }
+    }
 }
@@ -14,6 +14,7 @@
 package com.amazon.kinesis.streaming.agent.tailing;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
 
@@ -56,6 +57,11 @@ public class FirehoseFileFlow extends FileFlow<FirehoseRecord> {
         }
     }
 
+    @Override
+    public String getMetricsDestination() {
+        return "DeliveryStream:" + destination;
+    }
+
     @Override
     public int getPerRecordOverheadBytes() {
         return FirehoseConstants.PER_RECORD_OVERHEAD_BYTES;
@@ -105,6 +111,11 @@ public class FirehoseFileFlow extends FileFlow<FirehoseRecord> {
         return new FirehoseSender(agentContext, this);
     }
 
+    @Override
+    protected FirehoseRecord restoreRecord(TrackedFile file, long offset, ByteBuffer data, long originalLength, String partitionKey) {
+        return new FirehoseRecord(file, offset, data, originalLength);
+    }
+
     @Override
     public int getParserBufferSize() {
         return FirehoseConstants.DEFAULT_PARSER_BUFFER_SIZE_BYTES;
@@ -77,7 +77,7 @@ public class FirehoseSender extends AbstractSender<FirehoseRecord> {
     protected BufferSendResult<FirehoseRecord> attemptSend(RecordBuffer<FirehoseRecord> buffer) {
         activeBatchPutCalls.incrementAndGet();
         IMetricsScope metrics = agentContext.beginScope();
-        metrics.addDimension(Metrics.DESTINATION_DIMENSION, "DeliveryStream:" + getDestination());
+        metrics.addDimension(Metrics.DESTINATION_DIMENSION, flow.getMetricsDestination());
         if (!Strings.isNullOrEmpty(agentContext.getInstanceTag())) {
             metrics.addDimension(Metrics.INSTANCE_DIMENSION, agentContext.getInstanceTag());
         }
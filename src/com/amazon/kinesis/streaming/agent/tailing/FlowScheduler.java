@@ -0,0 +1,275 @@
+/*
+ * Copyright 2014-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file.
+ * This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+package com.amazon.kinesis.streaming.agent.tailing;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Runs the tailers and publishers of all flows as tasks on a small, fixed
+ * pool of threads, instead of each of them owning a thread (see
+ * {@link com.amazon.kinesis.streaming.agent.config.AgentConfiguration#flowThreads()}).
+ * <p>
+ * A task runs one iteration at a time and never blocks waiting for work:
+ * each iteration says how long to wait before the next one, and the task is
+ * woken up earlier when there's work for it (e.g. a file changed, or a
+ * buffer is ready to send). Waking up a task that's running makes it run
+ * again right after, so no wake-up is lost. Iterations of different tasks
+ * run in parallel, but a task never runs twice at the same time.
+ */
+@ThreadSafe
+public class FlowScheduler {
+    private static final Logger LOGGER = LoggerFactory.getLogger(FlowScheduler.class);
+    /** Returned by an iteration to run the next one only when woken up. */
+    public static final long WAIT_FOR_WAKE_UP = -1;
+    // How long to wait before running a task again after it failed unexpectedly
+    private static final long ERROR_BACKOFF_MILLIS = 1000;
+
+    private static final int IDLE = 0;
+    private static final int QUEUED = 1;
+    private static final int RUNNING = 2;
+    private static final int RUNNING_WOKEN = 3;
+    private static final int CANCELLED = 4;
+
+    /**
+     * One iteration of the work of a task.
+     */
+    public interface Task {
+        /**
+         * @return How long to wait before the next iteration, in
+         *         milliseconds: {@code 0} to run again right away, or
+         *         {@link FlowScheduler#WAIT_FOR_WAKE_UP} to wait until woken up.
+         */
+        long runOnce() throws Exception;
+    }
+
+    private final ForkJoinPool pool;
+    private final ScheduledThreadPoolExecutor timer;
+    private final AtomicLong totalIterations = new AtomicLong();
+    private final AtomicLong totalWakeUps = new AtomicLong();
+    private final AtomicLong totalTimeouts = new AtomicLong();
+    private final AtomicLong totalErrors = new AtomicLong();
+    private final AtomicInteger activeTasks = new AtomicInteger();
+
+    public FlowScheduler(int threads) {
+        Preconditions.checkArgument(threads > 0, "Need at least one thread.");
+        final AtomicInteger threadCount = new AtomicInteger();
+        ForkJoinPool.ForkJoinWorkerThreadFactory threadFactory = new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            @Override
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName("flow-" + threadCount.getAndIncrement());
+                return thread;
+            }
+        };
+        // Tasks are independent, so they're run in the order they're woken up
+        this.pool = new ForkJoinPool(threads, threadFactory, null, true);
+        this.timer = new ScheduledThreadPoolExecutor(1,
+                new ThreadFactoryBuilder().setNameFormat("flow-timer-%d").setDaemon(true).build());
+        this.timer.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Starts running a task. Its first iteration runs right away.
+     *
+     * @param name Used in logs.
+     * @param task
+     * @return The handle used to wake up or cancel the task.
+     */
+    public ScheduledTask schedule(String name, Task task) {
+        ScheduledTask scheduled = new ScheduledTask(name, task);
+        activeTasks.incrementAndGet();
+        scheduled.wakeUp();
+        return scheduled;
+    }
+
+    /**
+     * @return The executor on which periodic chores that don't deserve a
+     *         thread of their own can run (e.g. status reporting). What runs
+     *         there delays the wake-ups of tasks, so it must be quick.
+     */
+    public ScheduledExecutorService getTimer() {
+        return timer;
+    }
+
+    public int getThreads() {
+        return pool.getParallelism();
+    }
+
+    public void shutdown() {
+        timer.shutdownNow();
+        pool.shutdownNow();
+    }
+
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new HashMap<>();
+        metrics.put("FlowScheduler.Threads", pool.getParallelism());
+        metrics.put("FlowScheduler.ActiveThreads", pool.getActiveThreadCount());
+        metrics.put("FlowScheduler.QueuedTasks", pool.getQueuedSubmissionCount());
+        metrics.put("FlowScheduler.Tasks", activeTasks.get());
+        metrics.put("FlowScheduler.TotalIterations", totalIterations);
+        metrics.put("FlowScheduler.TotalWakeUps", totalWakeUps);
+        metrics.put("FlowScheduler.TotalTimeouts", totalTimeouts);
+        metrics.put("FlowScheduler.TotalErrors", totalErrors);
+        return metrics;
+    }
+
+    /**
+     * A task running on the scheduler.
+     */
+    public final class ScheduledTask implements Runnable {
+        private final String name;
+        private final Task task;
+        private final AtomicInteger state = new AtomicInteger(IDLE);
+        private volatile ScheduledFuture<?> timeout;
+        // Run once the last iteration is done, after the task is cancelled
+        private final AtomicReference<Runnable> onCancelled = new AtomicReference<>();
+        private final Runnable wakeUpOnTimeout = new Runnable() {
+            @Override
+            public void run() {
+                totalTimeouts.incrementAndGet();
+                wakeUp();
+            }
+        };
+
+        private ScheduledTask(String name, Task task) {
+            this.name = name;
+            this.task = task;
+        }
+
+        /**
+         * Runs the next iteration as soon as a thread is available, or right
+         * after the current one if it's running.
+         */
+        public void wakeUp() {
+            while (true) {
+                int current = state.get();
+                if (current == IDLE) {
+                    if (state.compareAndSet(IDLE, QUEUED)) {
+                        totalWakeUps.incrementAndGet();
+                        cancelTimeout();
+                        pool.execute(this);
+                        return;
+                    }
+                } else if (current == RUNNING) {
+                    if (state.compareAndSet(RUNNING, RUNNING_WOKEN))
+                        return;
+                } else {
+                    // Already queued, woken up or cancelled
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Stops running the task. If an iteration is running, it completes.
+         *
+         * @param then Run once no iteration is running anymore, either on
+         *        the calling thread or on the thread that ran the last one.
+         *        Ignored if the task was already cancelled.
+         */
+        public void cancel(Runnable then) {
+            if (!onCancelled.compareAndSet(null, then)) {
+                LOGGER.debug("{}: Task already cancelled.", name);
+                return;
+            }
+            int previous = state.getAndSet(CANCELLED);
+            cancelTimeout();
+            if (previous == IDLE || previous == QUEUED) {
+                // The queued run sees the task cancelled and doesn't run it
+                onCancelled();
+            }
+            // else, the running iteration calls onCancelled() when done
+        }
+
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        @Override
+        public void run() {
+            if (!state.compareAndSet(QUEUED, RUNNING))
+                return;
+            long delay;
+            try {
+                totalIterations.incrementAndGet();
+                delay = task.runOnce();
+            } catch (Throwable t) {
+                totalErrors.incrementAndGet();
+                LOGGER.error("{}: Unexpected error, running again in {}ms.", name, ERROR_BACKOFF_MILLIS, t);
+                delay = ERROR_BACKOFF_MILLIS;
+            }
+            while (true) {
+                int current = state.get();
+                if (current == CANCELLED) {
+                    // Cancelled while running
+                    onCancelled();
+                    return;
+                } else if (current == RUNNING_WOKEN || delay == 0) {
+                    // Back in the queue rather than looping, so other tasks get their turn
+                    if (state.compareAndSet(current, QUEUED)) {
+                        pool.execute(this);
+                        return;
+                    }
+                } else {
+                    // The timeout is set before the task is seen idle, so that a wake-up always finds it to cancel
+                    ScheduledFuture<?> scheduled = delay > 0 ? timer.schedule(wakeUpOnTimeout, delay, TimeUnit.MILLISECONDS) : null;
+                    timeout = scheduled;
+                    if (state.compareAndSet(RUNNING, IDLE))
+                        return;
+                    // Woken up or cancelled in the meantime
+                    if (scheduled != null) {
+                        scheduled.cancel(false);
+                        timeout = null;
+                    }
+                }
+            }
+        }
+
+        private void onCancelled() {
+            activeTasks.decrementAndGet();
+            onCancelled.get().run();
+        }
+
+        private void cancelTimeout() {
+            ScheduledFuture<?> current = timeout;
+            if (current != null) {
+                current.cancel(false);
+                timeout = null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright 2014-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file.
+ * This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+package com.amazon.kinesis.streaming.agent.tailing;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPInputStream;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A read-only {@link FileChannel} over the uncompressed content of a gzip
+ * file, so that rotated files compressed after they were rotated (e.g. by
+ * logrotate) can be parsed and checkpointed like the original files: the
+ * positions and sizes of the channel are uncompressed offsets.
+ * <p>
+ * The file is decompressed as a stream. Moving the position forward skips
+ * data, and moving it backward starts decompressing again from the start
+ * of the file. Positional reads, memory mapping and locking are not
+ * supported.
+ * <p>
+ * Until the end of the data is reached, the size is the uncompressed size
+ * recorded in the gzip trailer, which only covers the last member of the
+ * file (modulo 2<sup>32</sup>). It's never reported smaller than one byte
+ * past the current position, so readers keep reading until the end of the
+ * data is actually reached.
+ */
+@NotThreadSafe
+public class GzipFileChannel extends FileChannel {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // A header and a trailer, without any data
+    private static final int MIN_GZIP_FILE_SIZE = 18;
+
+    private final FileChannel file;
+    private final long trailerSize;
+    private GZIPInputStream stream;
+    // The uncompressed offset of the next byte the stream returns
+    private long streamPosition;
+    private long position;
+    private boolean endOfStream;
+
+    public static GzipFileChannel open(Path path) throws IOException {
+        FileChannel file = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            return new GzipFileChannel(file);
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @param path
+     * @return The uncompressed size recorded in the trailer of the gzip file,
+     *         or {@code 0} if the file is too short to be complete.
+     * @throws IOException
+     */
+    public static long uncompressedSize(Path path) throws IOException {
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            return readTrailerSize(file);
+        }
+    }
+
+    private GzipFileChannel(FileChannel file) throws IOException {
+        this.file = file;
+        this.trailerSize = readTrailerSize(file);
+        openStream();
+    }
+
+    private static long readTrailerSize(FileChannel file) throws IOException {
+        long fileSize = file.size();
+        if (fileSize < MIN_GZIP_FILE_SIZE)
+            return 0;
+        ByteBuffer trailer = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        while (trailer.hasRemaining() && file.read(trailer, fileSize - 4 + trailer.position()) > 0) {
+            // Keep reading until the 4 bytes of ISIZE are read
+        }
+        trailer.flip();
+        return trailer.remaining() == 4 ? trailer.getInt() & 0xFFFFFFFFL : 0;
+    }
+
+    private void openStream() throws IOException {
+        if (stream != null)
+            stream.close();
+        file.position(0);
+        streamPosition = 0;
+        endOfStream = false;
+        // Closing the decoder must not close the file, which is reused when seeking backward
+        FilterInputStream input = new FilterInputStream(Channels.newInputStream(file)) {
+            @Override
+            public void close() {
+            }
+        };
+        try {
+            stream = new GZIPInputStream(input, BUFFER_SIZE);
+        } catch (EOFException e) {
+            // The file is empty, or too short to have a complete header
+            stream = null;
+            endOfStream = true;
+        }
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (!isOpen())
+            throw new ClosedChannelException();
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        ensureOpen();
+        if (position != streamPosition)
+            skipTo(position);
+        if (endOfStream)
+            return -1;
+        if (!dst.hasRemaining())
+            return 0;
+        int bytes;
+        if (dst.hasArray()) {
+            bytes = stream.read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+            if (bytes > 0)
+                dst.position(dst.position() + bytes);
+        } else {
+            byte[] data = new byte[Math.min(dst.remaining(), BUFFER_SIZE)];
+            bytes = stream.read(data);
+            if (bytes > 0)
+                dst.put(data, 0, bytes);
+        }
+        if (bytes < 0) {
+            endOfStream = true;
+            return -1;
+        }
+        streamPosition += bytes;
+        position = streamPosition;
+        return bytes;
+    }
+
+    @Override
+    public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        long total = 0;
+        for (int i = offset; i < offset + length; ++i) {
+            int expected = dsts[i].remaining();
+            int bytes = read(dsts[i]);
+            if (bytes < 0)
+                return total == 0 ? -1 : total;
+            total += bytes;
+            if (bytes < expected)
+                break;
+        }
+        return total;
+    }
+
+    private void skipTo(long newPosition) throws IOException {
+        if (newPosition < streamPosition)
+            openStream();
+        while (!endOfStream && streamPosition < newPosition) {
+            long skipped = stream.skip(newPosition - streamPosition);
+            if (skipped > 0) {
+                streamPosition += skipped;
+            } else if (stream.read() < 0) {
+                endOfStream = true;
+            } else {
+                streamPosition += 1;
+            }
+        }
+    }
+
+    @Override
+    public long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+    @Override
+    public FileChannel position(long newPosition) throws IOException {
+        ensureOpen();
+        Preconditions.checkArgument(newPosition >= 0, "Position must be a non-negative number.");
+        // The stream is moved on the next read, as with a file channel
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        ensureOpen();
+        if (endOfStream && position >= streamPosition)
+            return streamPosition;
+        return Math.max(trailerSize, streamPosition + 1);
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public int write(ByteBuffer src, long position) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public FileChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public void force(boolean metaData) {
+        // Nothing is ever written
+    }
+
+    @Override
+    public long transferFrom(ReadableByteChannel src, long position, long count) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) {
+        throw new UnsupportedOperationException("Compressed files can only be read sequentially.");
+    }
+
+    @Override
+    public int read(ByteBuffer dst, long position) {
+        throw new UnsupportedOperationException("Compressed files can only be read sequentially.");
+    }
+
+    @Override
+    public MappedByteBuffer map(MapMode mode, long position, long size) {
+        throw new UnsupportedOperationException("Compressed files cannot be mapped.");
+    }
+
+    @Override
+    public FileLock lock(long position, long size, boolean shared) {
+        throw new UnsupportedOperationException("Compressed files cannot be locked.");
+    }
+
+    @Override
+    public FileLock tryLock(long position, long size, boolean shared) {
+        throw new UnsupportedOperationException("Compressed files cannot be locked.");
+    }
+
+    @Override
+    protected void implCloseChannel() throws IOException {
+        try {
+            if (stream != null)
+                stream.close();
+        } finally {
+            file.close();
+        }
+    }
+}
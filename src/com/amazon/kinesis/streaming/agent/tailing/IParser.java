@@ -116,6 +116,14 @@ public interface IParser<R extends IRecord> {
      */
     public int bufferedBytesRemaining();
 
+    /**
+     * @return {@code true} if some of the buffered data was read from a file
+     *         the parser was on before the current one (e.g. the end of a
+     *         rotated file), in which case {@link #bufferedBytesRemaining()}
+     *         doesn't tell where parsing is in the current file.
+     */
+    public boolean hasBufferedDataFromPreviousFile();
+
     /**
      * NOTE: A {@code null} return should indicate to the caller that we reached
      *       the end of file for the underlying channel. It's up to the caller to
@@ -134,5 +142,13 @@ public interface IParser<R extends IRecord> {
      */
     public boolean isAtEndOfCurrentFile();
 
+    /**
+     * @return {@code true} if the parser stopped reading the last file it was
+     *         on because the file footer was reached (see
+     *         {@link FileFlow#getFileFooterPattern()}), and {@code false}
+     *         otherwise, e.g. if reading failed.
+     */
+    public boolean hasReachedFileFooter();
+
     public Map<String, Object> getMetrics();
 }
@@ -31,6 +31,36 @@ public interface IRecord {
      */
     public void truncate();
 
+    /**
+     * Replaces the data of this record with its compressed form. Data that
+     * would exceed the max record size is truncated first, since compressed
+     * data can't be truncated.
+     * @param compressor
+     */
+    public void compress(RecordCompressor compressor);
+
+    /**
+     * Keeps the given parser buffer from being reused while this record
+     * points into it, until {@link #release()} is called.
+     * @param chunk
+     */
+    public void retainBuffer(ParserBufferPool.Chunk chunk);
+
+    /**
+     * @return The bytes of heap that the record's data takes up on its own,
+     *         or {@code 0} if it points into a parser buffer it retains
+     *         (see {@link #retainBuffer(ParserBufferPool.Chunk)}) or into a
+     *         memory-mapped file.
+     */
+    public long ownedBytes();
+
+    /**
+     * Signals that the record's data is no longer needed (i.e. the record
+     * was sent or dropped), so any parser buffer it retains can be reused.
+     * Calling this more than once has no effect.
+     */
+    public void release();
+
     /**
      * @return A string representation of the data in this record, encoded
      *         with UTF-8; use for debugging only please.
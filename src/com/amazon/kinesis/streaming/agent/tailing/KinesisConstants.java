@@ -27,6 +27,9 @@ public class KinesisConstants extends Constants {
     public static final int MAX_BUFFER_SIZE_RECORDS = MAX_PUT_RECORDS_SIZE_RECORDS;
     public static final int MAX_BUFFER_SIZE_BYTES = MAX_PUT_RECORDS_SIZE_BYTES;
     public static final int DEFAULT_PARSER_BUFFER_SIZE_BYTES = MAX_BUFFER_SIZE_BYTES;
+    public static final int DEFAULT_AGGREGATED_RECORD_SIZE_BYTES = 0;
+    // Keeps an aggregated record under MAX_RECORD_SIZE_BYTES even in the worst case of the encoding
+    public static final int MAX_AGGREGATED_RECORD_SIZE_BYTES = MAX_RECORD_SIZE_BYTES / (AggregatedRecordEncoder.MAX_EXPANSION_RATIO + 1);
 
     public static enum PartitionKeyOption {
         RANDOM,
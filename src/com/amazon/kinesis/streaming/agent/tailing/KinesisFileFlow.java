@@ -14,6 +14,7 @@
 package com.amazon.kinesis.streaming.agent.tailing;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
 
@@ -38,6 +39,9 @@ public class KinesisFileFlow extends FileFlow<KinesisRecord> {
             TimeUnit.SECONDS.toMillis(1), TimeUnit.MINUTES.toMillis(15));
     public static final Range<Long> VALID_WAIT_ON_EMPTY_PUBLISH_QUEUE_MILLIS_RANGE = Range.closed(
             TimeUnit.SECONDS.toMillis(1), TimeUnit.MINUTES.toMillis(15));
+    public static final Range<Integer> VALID_AGGREGATED_RECORD_SIZE_BYTES_RANGE = Range.closed(0, KinesisConstants.MAX_AGGREGATED_RECORD_SIZE_BYTES);
+
+    public static final String AGGREGATED_RECORD_SIZE_BYTES_KEY = "aggregatedRecordSizeBytes";
 
     @Getter protected final String id;
     @Getter protected final String destination;
@@ -48,6 +52,17 @@ public class KinesisFileFlow extends FileFlow<KinesisRecord> {
         destination = readString(KinesisConstants.DESTINATION_KEY);
         id = "kinesis:" + destination + ":" + sourceFile.toString();
         partitionKeyOption = readEnum(PartitionKeyOption.class, KinesisConstants.PARTITION_KEY, PartitionKeyOption.RANDOM);
+
+        int recordSizeHint = readInteger(AGGREGATED_RECORD_SIZE_BYTES_KEY, KinesisConstants.DEFAULT_AGGREGATED_RECORD_SIZE_BYTES);
+        Configuration.validateRange(recordSizeHint, VALID_AGGREGATED_RECORD_SIZE_BYTES_RANGE, AGGREGATED_RECORD_SIZE_BYTES_KEY);
+        if (recordSizeHint > 0 && recordSplitter instanceof SingleLineSplitter) {
+            recordSplitter = new AggregationSplitter(recordSizeHint);
+        }
+    }
+
+    @Override
+    public String getMetricsDestination() {
+        return "KinesisStream:" + destination;
     }
 
     @Override
@@ -99,6 +114,11 @@ public class KinesisFileFlow extends FileFlow<KinesisRecord> {
         return new KinesisSender(agentContext, this);
     }
 
+    @Override
+    protected KinesisRecord restoreRecord(TrackedFile file, long offset, ByteBuffer data, long originalLength, String partitionKey) {
+        return new KinesisRecord(file, offset, data, originalLength, partitionKey);
+    }
+
     @Override
     public int getParserBufferSize() {
         return KinesisConstants.DEFAULT_PARSER_BUFFER_SIZE_BYTES;
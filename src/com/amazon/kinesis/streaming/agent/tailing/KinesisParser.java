@@ -14,11 +14,14 @@
 package com.amazon.kinesis.streaming.agent.tailing;
 
 import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Implementation of {@link AbstractParser} specific to Kinesis.
  */
 public class KinesisParser extends AbstractParser<KinesisRecord> {
+    private final AtomicLong totalRecordsAggregated = new AtomicLong();
 
     public KinesisParser(FileFlow<KinesisRecord> flow) {
         super(flow);
@@ -30,11 +33,22 @@ public class KinesisParser extends AbstractParser<KinesisRecord> {
 
     @Override
     protected synchronized KinesisRecord buildRecord(TrackedFile recordFile, ByteBuffer data, long offset, long originalLength) {
-        return new KinesisRecord(recordFile, offset, data, originalLength);
+        KinesisRecord record = new KinesisRecord(recordFile, offset, data, originalLength);
+        if (recordSplitter instanceof AggregationSplitter && record.aggregate()) {
+            totalRecordsAggregated.incrementAndGet();
+        }
+        return record;
     }
 
     @Override
     protected int getMaxRecordSize() {
         return KinesisConstants.MAX_RECORD_SIZE_BYTES;
     }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = super.getMetrics();
+        metrics.put(getClass().getSimpleName() + ".TotalRecordsAggregated", totalRecordsAggregated);
+        return metrics;
+    }
 }
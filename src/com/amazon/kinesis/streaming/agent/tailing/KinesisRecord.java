@@ -22,25 +22,86 @@ import com.google.common.base.Preconditions;
 import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
 
+/**
+ * A record sent to Kinesis, along with its partition key.
+ * <p>
+ * Deterministic partition keys are hashes of the record's data, and always
+ * have the same length, so they're only generated when first asked for,
+ * which is usually by the {@link KinesisSender} when the request is built.
+ * That way the tailer doesn't hash every line it reads. Random keys are
+ * generated as soon as the length of the record is needed, since theirs
+ * varies. Either way, the key is generated before the data is truncated or
+ * compressed, so it doesn't depend on when it's asked for.
+ */
 public class KinesisRecord extends AbstractRecord {
-    protected final String partitionKey;
+    // The length of a hex-encoded MD5 hash
+    private static final int DETERMINISTIC_PARTITION_KEY_LENGTH = 32;
+
+    private final PartitionKeyOption partitionKeyOption;
+    protected String partitionKey;
     
     public KinesisRecord(TrackedFile file, long offset, ByteBuffer data, long originalLength) {
         super(file, offset, data, originalLength);
         Preconditions.checkNotNull(file);
-        partitionKey = generatePartitionKey(((KinesisFileFlow)file.getFlow()).getPartitionKeyOption());
+        partitionKeyOption = ((KinesisFileFlow)file.getFlow()).getPartitionKeyOption();
     }
 
     public KinesisRecord(TrackedFile file, long offset, byte[] data, long originalLength) {
         super(file, offset, data, originalLength);
         Preconditions.checkNotNull(file);
-        partitionKey = generatePartitionKey(((KinesisFileFlow)file.getFlow()).getPartitionKeyOption());
+        partitionKeyOption = ((KinesisFileFlow)file.getFlow()).getPartitionKeyOption();
+    }
+
+    /**
+     * Restores a record with the partition key it was first given (e.g.
+     * when read back from a {@link SpillLog}).
+     */
+    KinesisRecord(TrackedFile file, long offset, ByteBuffer data, long originalLength, String partitionKey) {
+        super(file, offset, data, originalLength);
+        Preconditions.checkNotNull(file);
+        this.partitionKeyOption = ((KinesisFileFlow)file.getFlow()).getPartitionKeyOption();
+        this.partitionKey = partitionKey;
     }
     
     public String partitionKey() {
+        if (partitionKey == null)
+            partitionKey = generatePartitionKey(partitionKeyOption);
         return partitionKey;
     }
 
+    private int partitionKeyLength() {
+        if (partitionKey == null && partitionKeyOption == PartitionKeyOption.DETERMINISTIC)
+            return DETERMINISTIC_PARTITION_KEY_LENGTH;
+        return partitionKey().length();
+    }
+
+    @Override
+    public void truncate() {
+        partitionKey();
+        super.truncate();
+    }
+
+    @Override
+    public void compress(RecordCompressor compressor) {
+        partitionKey();
+        super.compress(compressor);
+    }
+
+    /**
+     * Packs the lines of this record into a KPL aggregated record sharing
+     * its partition key. Records with a single line, or whose aggregated
+     * form would be too large, are left as they are.
+     *
+     * @return {@code true} if the record was aggregated.
+     */
+    public boolean aggregate() {
+        ByteBuffer aggregated = AggregatedRecordEncoder.encode(partitionKey(), data);
+        if (aggregated == data || aggregated.remaining() > getMaxDataSize())
+            return false;
+        data = aggregated;
+        return true;
+    }
+
     @Override
     public long lengthWithOverhead() {
         return length() + KinesisConstants.PER_RECORD_OVERHEAD_BYTES;
@@ -48,12 +109,12 @@ public class KinesisRecord extends AbstractRecord {
     
     @Override
     public long length() {
-        return dataLength() + partitionKey.length();
+        return dataLength() + partitionKeyLength();
     }
     
     @Override
     protected int getMaxDataSize() {
-        return KinesisConstants.MAX_RECORD_SIZE_BYTES - partitionKey.length();
+        return KinesisConstants.MAX_RECORD_SIZE_BYTES - partitionKeyLength();
     }
     
     @VisibleForTesting
@@ -62,7 +123,8 @@ public class KinesisRecord extends AbstractRecord {
         
         if (option == PartitionKeyOption.DETERMINISTIC) {
             Hasher hasher = Hashing.md5().newHasher();
-            hasher.putBytes(data.array());
+            if (data != null)
+                hasher.putBytes(data.duplicate());
             return hasher.hash().toString();
         }
         if (option == PartitionKeyOption.RANDOM)
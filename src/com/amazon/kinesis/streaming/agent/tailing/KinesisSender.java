@@ -78,7 +78,7 @@ public class KinesisSender extends AbstractSender<KinesisRecord> {
     protected BufferSendResult<KinesisRecord> attemptSend(RecordBuffer<KinesisRecord> buffer) {
         activePutRecordsCalls.incrementAndGet();
         IMetricsScope metrics = agentContext.beginScope();
-        metrics.addDimension(Metrics.DESTINATION_DIMENSION, "KinesisStream:" + getDestination());
+        metrics.addDimension(Metrics.DESTINATION_DIMENSION, flow.getMetricsDestination());
         if (!Strings.isNullOrEmpty(agentContext.getInstanceTag())) {
             metrics.addDimension(Metrics.INSTANCE_DIMENSION, agentContext.getInstanceTag());
         }
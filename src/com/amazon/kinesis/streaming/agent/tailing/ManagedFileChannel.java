@@ -0,0 +1,331 @@
+/*
+ * Copyright 2014-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file.
+ * This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+package com.amazon.kinesis.streaming.agent.tailing;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import lombok.Getter;
+
+/**
+ * A {@link FileChannel} whose file can be closed by the
+ * {@link FileHandleManager} to stay within the budget of open files, and is
+ * opened again transparently, at the same position, the next time it's
+ * used. Readers keep using the same channel instance throughout.
+ * <p>
+ * The file is opened again by path, and only if the path still refers to
+ * the file that was open (i.e. it has the same {@link FileId}), otherwise
+ * the operation fails with an {@link IOException}. The path is updated
+ * when the file is found under another name (e.g. after a rotation by
+ * rename, see {@link TrackedFile#inheritChannel(TrackedFile)}).
+ */
+@ThreadSafe
+public class ManagedFileChannel extends FileChannel {
+    private final FileHandleManager manager;
+    @Getter private final FileId id;
+    private final boolean compressed;
+    // Held while the file is used, so that it's never closed from under a reader
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile Path path;
+    private FileChannel file;
+    // The position of the channel while the file is closed
+    private long position;
+
+    ManagedFileChannel(FileHandleManager manager, Path path, FileId id, FileChannel file) {
+        this.manager = manager;
+        this.path = path;
+        this.id = id;
+        this.compressed = TrackedFile.isCompressed(path);
+        this.file = file;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    void setPath(Path path) {
+        this.path = path;
+    }
+
+    /**
+     * @return {@code true} if the file is currently open, or {@code false}
+     *         if it was closed to stay within the budget of open files.
+     */
+    public boolean isFileOpen() {
+        lock.lock();
+        try {
+            return file != null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes the file if it's not being used and can be opened again later.
+     *
+     * @return {@code true} if the file was closed.
+     */
+    boolean evict() {
+        if (!lock.tryLock())
+            return false;
+        try {
+            if (file == null || compressed || !isOpen())
+                return false;
+            // Files that were deleted or renamed can't be opened again by path
+            try {
+                if (!id.equals(FileId.get(path)))
+                    return false;
+                position = file.position();
+                file.close();
+            } catch (IOException e) {
+                return false;
+            }
+            file = null;
+        } finally {
+            lock.unlock();
+        }
+        manager.onClosed(this);
+        return true;
+    }
+
+    /**
+     * Must be called with the lock held.
+     */
+    private FileChannel file() throws IOException {
+        if (!isOpen())
+            throw new ClosedChannelException();
+        if (file == null) {
+            long start = System.nanoTime();
+            Path currentPath = path;
+            if (!id.equals(FileId.get(currentPath)))
+                throw new NoSuchFileException(currentPath.toString(), null,
+                        "File " + id + " is not found at this path any more since it was closed to save open files");
+            FileChannel reopened = FileHandleManager.openFile(currentPath);
+            reopened.position(position);
+            file = reopened;
+            manager.onReopened(this, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+        } else {
+            manager.onAccessed(this);
+        }
+        return file;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        lock.lock();
+        try {
+            return file().read(dst);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        lock.lock();
+        try {
+            return file().read(dsts, offset, length);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer dst, long position) throws IOException {
+        lock.lock();
+        try {
+            return file().read(dst, position);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        lock.lock();
+        try {
+            return file().write(src);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        lock.lock();
+        try {
+            return file().write(srcs, offset, length);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src, long position) throws IOException {
+        lock.lock();
+        try {
+            return file().write(src, position);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long position() throws IOException {
+        lock.lock();
+        try {
+            if (!isOpen())
+                throw new ClosedChannelException();
+            return file == null ? position : file.position();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public FileChannel position(long newPosition) throws IOException {
+        lock.lock();
+        try {
+            if (!isOpen())
+                throw new ClosedChannelException();
+            if (file == null)
+                position = newPosition;
+            else
+                file.position(newPosition);
+            return this;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Doesn't open the file again if it was closed: the size is read from
+     * its attributes instead, as long as the path still refers to the same
+     * file.
+     */
+    @Override
+    public long size() throws IOException {
+        lock.lock();
+        try {
+            if (isOpen() && file == null) {
+                Path currentPath = path;
+                BasicFileAttributes attr = Files.readAttributes(currentPath, BasicFileAttributes.class);
+                if (id.equals(FileId.get(attr)))
+                    return attr.size();
+            }
+            return file().size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public FileChannel truncate(long size) throws IOException {
+        lock.lock();
+        try {
+            file().truncate(size);
+            return this;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void force(boolean metaData) throws IOException {
+        lock.lock();
+        try {
+            file().force(metaData);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        lock.lock();
+        try {
+            return file().transferTo(position, count, target);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+        lock.lock();
+        try {
+            return file().transferFrom(src, position, count);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+        lock.lock();
+        try {
+            return file().map(mode, position, size);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public FileLock lock(long position, long size, boolean shared) throws IOException {
+        lock.lock();
+        try {
+            return file().lock(position, size, shared);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+        lock.lock();
+        try {
+            return file().tryLock(position, size, shared);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    protected void implCloseChannel() throws IOException {
+        lock.lock();
+        try {
+            if (file != null) {
+                file.close();
+                file = null;
+            }
+        } finally {
+            lock.unlock();
+            manager.onClosed(this);
+        }
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2014-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file.
+ * This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+package com.amazon.kinesis.streaming.agent.tailing;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import lombok.Getter;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Keeps the heap held by the records of all the flows of the agent within a
+ * budget, so that the agent runs in a fixed heap however many flows it has
+ * and however long their destinations are unavailable.
+ * <p>
+ * Each flow has an {@link Account} of the bytes it holds: the buffers its
+ * parsers leased (see {@link ParserBufferPool}), and the buffers queued in
+ * its {@link PublishingQueue}, both never published and to be retried.
+ * Records that point into the buffers of their parser retain them, so
+ * they're already counted with the parser's buffers. Only the records that
+ * own their data (e.g. converted, aggregated or compressed ones, see
+ * {@link IRecord#ownedBytes()}) are added to them. Records that point into
+ * a memory-mapped file aren't on the heap, and aren't counted.
+ * <p>
+ * The budget is enforced by the tailers, which stop reading new records
+ * while their flow can't {@link Account#mayRead() read}, the same way they
+ * back off when their publisher is full. While the agent is within budget,
+ * any flow can read. Once the budget is used up, only the flows holding
+ * less than their fair share of it (the budget divided by the number of
+ * flows) can, so that a flow whose destination is down can't starve the
+ * others. Flows read a record at a time, and a record may need a new
+ * parser buffer, so the budget can be exceeded by up to a buffer per flow,
+ * plus the fair shares that the other flows didn't use yet when it ran out.
+ * <p>
+ * A flow can always read while it holds no more than its
+ * {@link Account#reserve(long) reserved} bytes (a parser buffer), or while
+ * none of its records are queued. Its parsers only release their buffers
+ * as they read, so otherwise a budget smaller than a buffer per flow would
+ * stop every flow for good.
+ */
+@ThreadSafe
+public class MemoryBudget {
+    @Getter private final long maxBytes;
+    private final ConcurrentMap<String, Account> accounts = new ConcurrentHashMap<>();
+    private final AtomicLong heldBytes = new AtomicLong();
+
+    @Getter private final AtomicLong totalThrottles = new AtomicLong();
+
+    /**
+     * @param maxBytes The maximum number of bytes all flows can hold, or
+     *        {@code 0} for no limit.
+     */
+    public MemoryBudget(long maxBytes) {
+        Preconditions.checkArgument(maxBytes >= 0, "Maximum memory cannot be negative!");
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param flowId
+     * @return The account of the given flow, shared by all its parsers,
+     *         queue and tailer.
+     */
+    public Account account(String flowId) {
+        Account account = accounts.get(flowId);
+        if (account == null) {
+            Account created = new Account(flowId);
+            account = accounts.putIfAbsent(flowId, created);
+            if (account == null)
+                account = created;
+        }
+        return account;
+    }
+
+    /**
+     * @return The bytes held by all flows.
+     */
+    public long heldBytes() {
+        return heldBytes.get();
+    }
+
+    /**
+     * @return The bytes each flow can hold even when the budget is used up.
+     */
+    public long fairShareBytes() {
+        return maxBytes / Math.max(1, accounts.size());
+    }
+
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new HashMap<>();
+        metrics.put("MemoryBudget.MaxBytes", maxBytes);
+        metrics.put("MemoryBudget.HeldBytes", heldBytes());
+        metrics.put("MemoryBudget.FairShareBytes", fairShareBytes());
+        metrics.put("MemoryBudget.TotalThrottles", totalThrottles);
+        return metrics;
+    }
+
+    /**
+     * The bytes held by one flow.
+     */
+    @ThreadSafe
+    public class Account {
+        @Getter private final String flowId;
+        private long parserBytes = 0;
+        private long queuedBytes = 0;
+        private long retryBytes = 0;
+        private long ownedBytes = 0;
+        private volatile long heldBytes = 0;
+        private volatile long queuedOrRetryBytes = 0;
+        private volatile long reservedBytes = 0;
+        @Getter private final AtomicLong totalThrottles = new AtomicLong();
+
+        private Account(String flowId) {
+            this.flowId = flowId;
+        }
+
+        /**
+         * @param delta The bytes leased (if positive) or returned (if
+         *        negative) by a parser of the flow.
+         */
+        public synchronized void addParserBytes(long delta) {
+            parserBytes += delta;
+            update();
+        }
+
+        /**
+         * @param delta The bytes of the buffers queued (if positive) or taken
+         *        (if negative) from the never-published queue of the flow.
+         * @param ownedDelta The part of {@code delta} that the records own
+         *        (see {@link RecordBuffer#ownedBytes()}).
+         */
+        public synchronized void addQueuedBytes(long delta, long ownedDelta) {
+            queuedBytes += delta;
+            ownedBytes += ownedDelta;
+            update();
+        }
+
+        /**
+         * @param delta The bytes of the buffers queued (if positive) or taken
+         *        (if negative) from the retry queue of the flow.
+         * @param ownedDelta The part of {@code delta} that the records own
+         *        (see {@link RecordBuffer#ownedBytes()}).
+         */
+        public synchronized void addRetryBytes(long delta, long ownedDelta) {
+            retryBytes += delta;
+            ownedBytes += ownedDelta;
+            update();
+        }
+
+        /**
+         * @param bytes The bytes the flow can hold and still read, whatever
+         *        the budget, e.g. the buffer its parser reads into. The
+         *        largest of the reserved amounts is kept.
+         */
+        public synchronized void reserve(long bytes) {
+            reservedBytes = Math.max(reservedBytes, bytes);
+        }
+
+        /**
+         * Keep private. Call only when holding the lock of this account.
+         */
+        private void update() {
+            queuedOrRetryBytes = queuedBytes + retryBytes;
+            long held = parserBytes + ownedBytes;
+            MemoryBudget.this.heldBytes.addAndGet(held - heldBytes);
+            heldBytes = held;
+        }
+
+        public long heldBytes() {
+            return heldBytes;
+        }
+
+        /**
+         * @return {@code true} if the flow can read more records, either
+         *         because the agent is within budget, because the flow
+         *         holds less than its fair share of it, or because reading
+         *         is the only way the flow can release what it holds.
+         */
+        public boolean mayRead() {
+            if (maxBytes == 0 || MemoryBudget.this.heldBytes.get() < maxBytes
+                    || heldBytes < fairShareBytes()
+                    || heldBytes <= reservedBytes || queuedOrRetryBytes == 0)
+                return true;
+            totalThrottles.incrementAndGet();
+            MemoryBudget.this.totalThrottles.incrementAndGet();
+            return false;
+        }
+
+        public synchronized Map<String, Object> getMetrics() {
+            Map<String, Object> metrics = new HashMap<>();
+            metrics.put("MemoryBudget.FlowHeldBytes", heldBytes);
+            metrics.put("MemoryBudget.FlowParserBytes", parserBytes);
+            metrics.put("MemoryBudget.FlowQueuedBytes", queuedBytes);
+            metrics.put("MemoryBudget.FlowRetryBytes", retryBytes);
+            metrics.put("MemoryBudget.FlowOwnedBytes", ownedBytes);
+            metrics.put("MemoryBudget.FlowThrottles", totalThrottles);
+            return metrics;
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getSimpleName() + "[" + flowId + "]";
+        }
+    }
+}
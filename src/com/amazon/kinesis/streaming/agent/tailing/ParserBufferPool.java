@@ -0,0 +1,158 @@
+/*
+ * Copyright 2014-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file.
+ * This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+package com.amazon.kinesis.streaming.agent.tailing;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import lombok.Getter;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A bounded pool of the fixed-size heap buffers that an {@link AbstractParser}
+ * reads file data into.
+ * <p>
+ * Records built by the parser are views into these buffers, so a buffer can
+ * only be reused once every record that points into it has been sent or
+ * dropped. Each leased buffer is therefore wrapped in a reference-counted
+ * {@link Chunk}: the parser holds one reference while it reads into the
+ * chunk, and each record holds one until {@link IRecord#release()} is called
+ * on it. When the count drops to zero the buffer goes back to the pool, or is
+ * left to the garbage collector if the pool is already full.
+ * <p>
+ * The pool never hands out a buffer while it's still referenced, so a chunk
+ * that is never released (e.g. its records were lost on shutdown) is
+ * garbage collected instead of being reused.
+ * <p>
+ * Leased buffers are charged to the {@link MemoryBudget} of the flow, if
+ * any, until they go back to the pool. Pooled buffers aren't, since there
+ * are at most {@link #maxPooledBuffers} of them. A buffer is reserved in
+ * the account, since the parser always holds the one it reads into. A chunk
+ * that is never released stays charged for as long as the flow runs, so
+ * every record that isn't published must still be released, e.g. when
+ * parsing is stopped before the record is returned, or when it's dropped.
+ */
+@ThreadSafe
+public class ParserBufferPool {
+    @Getter private final int bufferSize;
+    @Getter private final int maxPooledBuffers;
+    private final Queue<ByteBuffer> freeBuffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger freeBufferCount = new AtomicInteger();
+    private final MemoryBudget.Account memory;
+
+    @Getter private final AtomicLong totalHits = new AtomicLong();
+    @Getter private final AtomicLong totalMisses = new AtomicLong();
+    @Getter private final AtomicLong outstandingChunks = new AtomicLong();
+
+    public ParserBufferPool(int bufferSize, int maxPooledBuffers) {
+        this(bufferSize, maxPooledBuffers, null);
+    }
+
+    /**
+     * @param bufferSize
+     * @param maxPooledBuffers
+     * @param memory The account leased buffers are charged to, or
+     *        {@code null} if they aren't accounted for.
+     */
+    public ParserBufferPool(int bufferSize, int maxPooledBuffers, MemoryBudget.Account memory) {
+        Preconditions.checkArgument(bufferSize > 0, "Buffer size must be positive.");
+        Preconditions.checkArgument(maxPooledBuffers >= 0, "Pool size must be non-negative.");
+        this.bufferSize = bufferSize;
+        this.maxPooledBuffers = maxPooledBuffers;
+        this.memory = memory;
+        if (memory != null)
+            memory.reserve(bufferSize);
+    }
+
+    /**
+     * @return A chunk wrapping an empty buffer of {@link #getBufferSize()}
+     *         bytes, holding a single reference on behalf of the caller.
+     */
+    public Chunk lease() {
+        ByteBuffer buffer = freeBuffers.poll();
+        if (buffer != null) {
+            freeBufferCount.decrementAndGet();
+            totalHits.incrementAndGet();
+        } else {
+            buffer = ByteBuffer.allocate(bufferSize);
+            totalMisses.incrementAndGet();
+        }
+        outstandingChunks.incrementAndGet();
+        if (memory != null)
+            memory.addParserBytes(bufferSize);
+        return new Chunk(buffer);
+    }
+
+    /**
+     * @return The number of buffers currently available for reuse.
+     */
+    public int pooledBuffers() {
+        return freeBufferCount.get();
+    }
+
+    private void recycle(ByteBuffer buffer) {
+        outstandingChunks.decrementAndGet();
+        if (memory != null)
+            memory.addParserBytes(-bufferSize);
+        if (freeBufferCount.incrementAndGet() <= maxPooledBuffers) {
+            buffer.clear();
+            freeBuffers.offer(buffer);
+        } else {
+            freeBufferCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * A leased buffer along with its reference count.
+     */
+    @ThreadSafe
+    public class Chunk {
+        @Getter private final ByteBuffer buffer;
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        private Chunk(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        /**
+         * Adds a reference to this chunk.
+         */
+        public void retain() {
+            int previous = references.getAndIncrement();
+            Preconditions.checkState(previous > 0, "Chunk was already returned to the pool.");
+        }
+
+        /**
+         * Drops a reference to this chunk, and returns the buffer to the pool
+         * if it was the last one.
+         */
+        public void release() {
+            int remaining = references.decrementAndGet();
+            Preconditions.checkState(remaining >= 0, "Chunk was released more times than it was retained.");
+            if (remaining == 0) {
+                recycle(buffer);
+            }
+        }
+
+        public int references() {
+            return references.get();
+        }
+    }
+}
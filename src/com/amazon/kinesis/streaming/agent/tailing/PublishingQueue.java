@@ -13,11 +13,16 @@
  */
 package com.amazon.kinesis.streaming.agent.tailing;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
@@ -27,6 +32,8 @@ import org.slf4j.LoggerFactory;
 
 import com.amazon.kinesis.streaming.agent.AgentContext;
 import com.amazon.kinesis.streaming.agent.IHeartbeatProvider;
+import com.amazon.kinesis.streaming.agent.metrics.LatencyHistogram;
+import com.amazon.kinesis.streaming.agent.tailing.StageLatencies.Stage;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Stopwatch;
 
@@ -64,6 +71,23 @@ import com.google.common.base.Stopwatch;
  *       indefinitely.</li>
  * </ul>
  *
+ * The never-published queue is a {@link BoundedRingQueue} and the retry queue
+ * a {@link ConcurrentLinkedQueue}, so buffers are queued and taken without
+ * locking. Only the temporary buffer is guarded by a lock, which the sender
+ * threads never wait for, and threads only park (on a separate lock) when
+ * the queue is empty or full.
+ *
+ * If the flow has {@link FileFlow#getMaxSpillBytes() maxSpillBytes} set,
+ * buffers that don't fit in the never-published queue are spilled to a
+ * {@link SpillLog} on disk instead of making the tailer wait, and so are the
+ * buffers queued after them, until they're all read back. They're taken once
+ * the never-published queue is empty, so buffers are still taken in the order
+ * they were queued. The spill log survives a restart: once the queue is
+ * closed, the buffers still in memory can be spilled too (see
+ * {@link #spillAllRecords()}), and what's in the log is sent after the
+ * restart. Buffers that fail to send once the queue is closed are spilled
+ * instead of being retried.
+ *
  * @param <R> The record type.
  */
 public final class PublishingQueue<R extends IRecord> implements IHeartbeatProvider {
@@ -72,17 +96,29 @@ public final class PublishingQueue<R extends IRecord> implements IHeartbeatProvi
     private final FileFlow<R> flow;
     private final String name;
 
-    private final Queue<RecordBuffer<R>> neverPubQueue;
+    private final BoundedRingQueue<RecordBuffer<R>> neverPubQueue;
     private final int neverPubCapacity;
     private final Queue<RecordBuffer<R>> retryQueue;
-    private boolean isOpen = true;
+    private final AtomicInteger retryQueueSize = new AtomicInteger();
+    private volatile boolean isOpen = true;
 
-    private final ReentrantLock lock;
+    // Guards the temporary buffer
+    private final ReentrantLock bufferLock;
+    // Only used to park threads while the queue is empty or full
+    private final ReentrantLock parkingLock;
     private final Condition notEmpty;
     private final Condition notFull;
-
-    private int queuedRecords = 0;
-    private long queuedBytes = 0;
+    private final AtomicInteger parkedConsumers = new AtomicInteger();
+    private final AtomicInteger parkedProducers = new AtomicInteger();
+    // Told when buffers are queued, for consumers that don't wait on notEmpty
+    private volatile Runnable notEmptyListener;
+
+    private final AtomicInteger queuedRecords = new AtomicInteger();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    // Where queued buffers are charged, or null if they aren't accounted for
+    private final MemoryBudget.Account memory;
+    // Where buffers go when the never-published queue is full, or null if they wait
+    private final SpillLog<R> spill;
 
     private final AtomicLong totalQueuedRecords = new AtomicLong(0);
     private final AtomicLong totalQueuedBuffers = new AtomicLong(0);
@@ -91,11 +127,11 @@ public final class PublishingQueue<R extends IRecord> implements IHeartbeatProvi
     private final AtomicLong totalTakeTimeouts = new AtomicLong(0);
     private final AtomicLong totalBuffersQueuedForRetry = new AtomicLong(0);
     private final AtomicLong totalQueueTimeouts = new AtomicLong(0);
-    // TODO: time a buffer spends in the queue
-    //private final AtomicLong totalTimeInQueue = new AtomicLong(0);
+    // Where the time buffers spend in the queue is recorded, among the other stages of the flow
+    private final StageLatencies latencies;
 
     /** Where records are held before being queued, a.k.a. temporary buffer. */
-    private RecordBuffer<R> currentBuffer;
+    private volatile RecordBuffer<R> currentBuffer;
 
     public PublishingQueue(
             FileFlow<R> flow,
@@ -103,54 +139,77 @@ public final class PublishingQueue<R extends IRecord> implements IHeartbeatProvi
         Preconditions.checkNotNull(flow);
         this.flow = flow;
         this.name = getClass().getSimpleName() + "[" + flow.getId() + "]";
-        this.neverPubQueue = new LinkedList<>();
+        this.neverPubQueue = new BoundedRingQueue<>(capacity);
         this.neverPubCapacity = capacity;
-        this.retryQueue = new LinkedList<>();
-        this.lock = new ReentrantLock();
-        this.notEmpty = lock.newCondition();
-        this.notFull =  lock.newCondition();
+        this.retryQueue = new ConcurrentLinkedQueue<>();
+        this.bufferLock = new ReentrantLock();
+        this.parkingLock = new ReentrantLock();
+        this.notEmpty = parkingLock.newCondition();
+        this.notFull =  parkingLock.newCondition();
         this.currentBuffer = new RecordBuffer<>(flow);
+        this.memory = flow.getAgentContext() != null ? flow.getAgentContext().getMemoryBudget().account(flow.getId()) : null;
+        this.spill = openSpillLog();
+        this.latencies = flow.getLatencies();
+    }
+
+    private SpillLog<R> openSpillLog() {
+        if (flow.getMaxSpillBytes() == 0 || flow.getAgentContext() == null)
+            return null;
+        // Flow IDs contain characters that aren't safe in file names
+        Path directory = flow.getAgentContext().spillDirectory().resolve(
+                flow.getId().replaceAll("[^A-Za-z0-9._-]", "_") + "-" + Integer.toHexString(flow.getId().hashCode()));
+        try {
+            return new SpillLog<>(flow, directory, flow.getMaxSpillBytes(), flow.getSpillSegmentSizeBytes());
+        } catch (IOException e) {
+            LOGGER.error("{}: Failed to open the spill log in {}. Buffers will wait for room in the queue instead.",
+                    name, directory, e);
+            return null;
+        }
     }
 
     public boolean offerRecord(R record) {
         return offerRecord(record, true);
     }
 
+    /**
+     * @param listener Run whenever a buffer is queued or the queue is closed,
+     *        so it must be quick. Lets consumers that can't block in
+     *        {@link #waitNotEmpty()} know when to {@link #take(boolean) take}
+     *        the next buffer.
+     */
+    public void setNotEmptyListener(Runnable listener) {
+        this.notEmptyListener = listener;
+    }
+
     public boolean waitNotEmpty() {
-        lock.lock();
-        try {
-            // It's a good time to check if temp buffer needs to be queued, in case the queue is empty
-            checkPendingRecords();
-            long waitMillis = flow.getWaitOnEmptyPublishQueueMillis();
-            if (isOpen && waitMillis != 0) {
-                try {
-                    if (waitMillis > 0) {
-                        // Wait for a limited time
-                        long nanos = TimeUnit.MILLISECONDS.toNanos(waitMillis);
-                        while (isOpen && neverPubQueue.isEmpty() && retryQueue.isEmpty() && nanos > 0) {
-                            nanos = notEmpty.awaitNanos(nanos);
-                        }
-                    } else {
-                        // Wait indefinitely
-                        if (neverPubQueue.isEmpty() && retryQueue.isEmpty())
-                            notEmpty.await();
-                    }
-                    return size() > 0;
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    // No need to make method interruptable; just return null.
-                    LOGGER.trace("{}: Thread interrupted.", name, e);
-                    return size() > 0;
+        // It's a good time to check if temp buffer needs to be queued, in case the queue is empty
+        checkPendingRecords();
+        long waitMillis = flow.getWaitOnEmptyPublishQueueMillis();
+        if (isOpen && waitMillis != 0 && isEmpty()) {
+            parkedConsumers.incrementAndGet();
+            parkingLock.lock();
+            try {
+                // Wait for a limited time, or indefinitely
+                long nanos = waitMillis > 0 ? TimeUnit.MILLISECONDS.toNanos(waitMillis) : Long.MAX_VALUE;
+                while (isOpen && isEmpty() && nanos > 0) {
+                    nanos = notEmpty.awaitNanos(nanos);
                 }
-            } else
-                return size() > 0;
-        } finally {
-            lock.unlock();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                // No need to make method interruptable; just return null.
+                LOGGER.trace("{}: Thread interrupted.", name, e);
+            } finally {
+                parkingLock.unlock();
+                parkedConsumers.decrementAndGet();
+            }
         }
+        return size() > 0;
     }
 
     public boolean offerRecord(R record, boolean block) {
-        lock.lock();
+        if (!isOpen)
+            return false;
+        bufferLock.lock();
         try {
             if (!isOpen)
                 return false;
@@ -164,119 +223,156 @@ public final class PublishingQueue<R extends IRecord> implements IHeartbeatProvi
                 // Add record
                 if (!record.shouldSkip()) {
                     currentBuffer.add(record);
+                } else {
+                    record.release();
                 }
                 return true;
             } else
                 return false;
         } finally {
-            lock.unlock();
+            bufferLock.unlock();
         }
     }
 
     public boolean queueBufferForRetry(RecordBuffer<R> buffer) {
-        lock.lock();
-        try {
-            if (!isOpen)
+        if (!isOpen) {
+            // Sent after a restart instead, if it fits in the spill log
+            if (spill == null || !spill.append(buffer))
                 return false;
-            //LOGGER.trace("{}:{} Buffer added to retry queue.", name, buffer);
-            retryQueue.add(buffer);
-            totalBuffersQueuedForRetry.incrementAndGet();
-            onQueueBufferSuccess(buffer, 0);
+            buffer.release();
             return true;
-        } finally {
-            lock.unlock();
         }
+        //LOGGER.trace("{}:{} Buffer added to retry queue.", name, buffer);
+        // Counted before it's visible, so it's never taken before it's counted
+        retryQueueSize.incrementAndGet();
+        onQueueBuffer(buffer, Lane.RETRY);
+        buffer.setQueuedNanos(System.nanoTime());
+        retryQueue.add(buffer);
+        totalBuffersQueuedForRetry.incrementAndGet();
+        onQueueBufferSuccess(buffer, 0);
+        return true;
     }
 
     public RecordBuffer<R> peek() {
-        lock.lock();
-        try {
-            if(!retryQueue.isEmpty()) {
-                return retryQueue.peek();
-            } else {
-                return neverPubQueue.peek();
-            }
-        } finally {
-            lock.unlock();
-        }
+        RecordBuffer<R> buffer = retryQueue.peek();
+        return buffer != null ? buffer : neverPubQueue.peek();
     }
 
     /**
-     * Keep private. Call only when holding lock.
+     * Keep private. Call only when holding the buffer lock.
      * @param elapsedWaiting
      * @return
      */
     private boolean tryQueueCurrentBuffer(long elapsedWaiting) {
-        if (currentBuffer.isEmpty())
+        RecordBuffer<R> buffer = currentBuffer;
+        if (buffer.isEmpty())
             return true;    // no-op
-        if (isOpen && neverPubQueue.size() < neverPubCapacity) {
-            neverPubQueue.add(currentBuffer);
-            //LOGGER.trace("{}:{} Buffer added to never-published queue.", name, currentBuffer);
-            totalQueuedRecords.addAndGet(currentBuffer.sizeRecords());
-            totalQueuedBuffers.incrementAndGet();
-            onQueueBufferSuccess(currentBuffer, elapsedWaiting);
-            currentBuffer = new RecordBuffer<>(flow);
-            return true;
-        } else if (elapsedWaiting > 0) {
-            onQueueBufferTimeout(currentBuffer, elapsedWaiting);
-            return false;
-        } else
-            return false;
+        if (isOpen && spill != null && (spill.size() > 0 || neverPubQueue.isFull())) {
+            // Buffers queued after a spilled one are spilled too, so they're taken after it
+            long queuedNanos = System.nanoTime();
+            buffer.setQueuedNanos(queuedNanos);
+            if (spill.append(buffer)) {
+                //LOGGER.trace("{}:{} Buffer spilled.", name, buffer);
+                latencies.record(Stage.BUFFER_LINGER, queuedNanos - buffer.firstRecordNanos());
+                currentBuffer = new RecordBuffer<>(flow);
+                totalQueuedRecords.addAndGet(buffer.sizeRecords());
+                totalQueuedBuffers.incrementAndGet();
+                // The records were copied to the log
+                buffer.release();
+                onQueueBufferSuccess(buffer, elapsedWaiting);
+                return true;
+            }
+        } else if (isOpen && !neverPubQueue.isFull()) {
+            onQueueBuffer(buffer, Lane.NEVER_PUBLISHED);
+            // Stamped before it's visible, and not read back since a sender may queue it for retry meanwhile
+            long queuedNanos = System.nanoTime();
+            buffer.setQueuedNanos(queuedNanos);
+            if (neverPubQueue.offer(buffer)) {
+                //LOGGER.trace("{}:{} Buffer added to never-published queue.", name, buffer);
+                latencies.record(Stage.BUFFER_LINGER, queuedNanos - buffer.firstRecordNanos());
+                currentBuffer = new RecordBuffer<>(flow);
+                totalQueuedRecords.addAndGet(buffer.sizeRecords());
+                totalQueuedBuffers.incrementAndGet();
+                onQueueBufferSuccess(buffer, elapsedWaiting);
+                return true;
+            }
+            // This is the only offer, and it's made under the buffer lock, so no other buffer took
+            // the slot. But a sender polling the queue moves its head before it frees the slot,
+            // and until then isFull() counts the slot as free while offer() can't fill it yet.
+            onTakeBuffer(buffer, Lane.NEVER_PUBLISHED);
+        }
+        if (elapsedWaiting > 0) {
+            onQueueBufferTimeout(buffer, elapsedWaiting);
+        }
+        return false;
     }
 
+    /**
+     * Keep private. Call only when holding the buffer lock.
+     * @param block
+     * @return
+     */
     private boolean queueCurrentBuffer(boolean block) {
-        lock.lock();
+        if (!isOpen)
+            return false;
+        else if (currentBuffer.isEmpty())
+            return true;    // practically a no-op
+        long waitMillis = flow.getWaitOnFullPublishQueueMillis();
+        if (block && waitMillis != 0 && neverPubQueue.isFull()) {
+            // No need to wait if the buffer can be spilled
+            if (spill != null && tryQueueCurrentBuffer(0))
+                return true;
+            Stopwatch timer = Stopwatch.createStarted();
+            // Let others use the temp buffer while parked, e.g. to flush it
+            bufferLock.unlock();
+            try {
+                parkWhileFull(waitMillis);
+            } finally {
+                bufferLock.lock();
+            }
+            return tryQueueCurrentBuffer(timer.elapsed(TimeUnit.MILLISECONDS));
+        } else {
+            return tryQueueCurrentBuffer(0);
+        }
+    }
+
+    private void parkWhileFull(long waitMillis) {
+        parkedProducers.incrementAndGet();
+        parkingLock.lock();
         try {
-            if (!isOpen)
-                return false;
-            else if (currentBuffer.isEmpty())
-                return true;    // practically a no-op
-            long waitMillis = flow.getWaitOnFullPublishQueueMillis();
-            if (block && waitMillis != 0) {
-                Stopwatch timer = Stopwatch.createStarted();
-                try {
-                    if (waitMillis > 0) {
-                        // Wait for a limited time
-                        long nanos = TimeUnit.MILLISECONDS.toNanos(waitMillis);
-                        while (isOpen && neverPubQueue.size() == neverPubCapacity && nanos > 0) {
-                            nanos = notFull.awaitNanos(nanos);
-                        }
-                    } else {
-                        if (neverPubQueue.size() == neverPubCapacity) {
-                            // Wait indefinitely
-                            notFull.await();
-                        }
-                    }
-                    return tryQueueCurrentBuffer(timer.elapsed(TimeUnit.MILLISECONDS));
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    // Doesn't make sense to make this method interruptable; just return immediately
-                    LOGGER.trace("{}: Thread interrupted.", name, e);
-                    return tryQueueCurrentBuffer(timer.elapsed(TimeUnit.MILLISECONDS));
-                }
-            } else {
-                return tryQueueCurrentBuffer(0);
+            // Wait for a limited time, or indefinitely
+            long nanos = waitMillis > 0 ? TimeUnit.MILLISECONDS.toNanos(waitMillis) : Long.MAX_VALUE;
+            while (isOpen && neverPubQueue.isFull() && nanos > 0) {
+                nanos = notFull.awaitNanos(nanos);
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            // Doesn't make sense to make this method interruptable; just return immediately
+            LOGGER.trace("{}: Thread interrupted.", name, e);
         } finally {
-            lock.unlock();
+            parkingLock.unlock();
+            parkedProducers.decrementAndGet();
         }
     }
 
-    /**
-     * Keep private. Call only when holding lock.
-     * @return
-     */
     private RecordBuffer<R> tryTake(long elapsedWaiting) {
-        RecordBuffer<R> result = null;
-        if(!retryQueue.isEmpty()) {
-            result = retryQueue.poll();
+        RecordBuffer<R> result = retryQueue.poll();
+        Lane lane = Lane.RETRY;
+        if (result != null) {
+            retryQueueSize.decrementAndGet();
             //LOGGER.trace("{}:{} Polled from retry queue.", name, result);
         } else {
             result = neverPubQueue.poll();
+            lane = Lane.NEVER_PUBLISHED;
             //LOGGER.trace("{}:{} Polled from never-published queue.", name, result);
+            if (result == null && spill != null && isOpen) {
+                result = spill.poll();
+                lane = Lane.SPILL;
+                //LOGGER.trace("{}:{} Polled from spill log.", name, result);
+            }
         }
         if(result != null) {
-            return onTakeSuccess(result, elapsedWaiting);
+            return onTakeSuccess(result, lane, elapsedWaiting);
         } else if (elapsedWaiting > 0) {
             return onTakeTimeout(elapsedWaiting);
         } else
@@ -288,17 +384,12 @@ public final class PublishingQueue<R extends IRecord> implements IHeartbeatProvi
     }
 
     public RecordBuffer<R> take(boolean block) {
-        lock.lock();
-        try {
-            if (block) {
-                Stopwatch timer = Stopwatch.createStarted();
-                waitNotEmpty();
-                return tryTake(timer.elapsed(TimeUnit.MILLISECONDS));
-            } else {
-                return tryTake(0);
-            }
-        } finally {
-            lock.unlock();
+        if (block) {
+            Stopwatch timer = Stopwatch.createStarted();
+            waitNotEmpty();
+            return tryTake(timer.elapsed(TimeUnit.MILLISECONDS));
+        } else {
+            return tryTake(0);
         }
     }
 
@@ -314,37 +405,84 @@ public final class PublishingQueue<R extends IRecord> implements IHeartbeatProvi
         return false;
     }
 
+    private void onQueueBuffer(RecordBuffer<R> buffer, Lane lane) {
+        queuedRecords.addAndGet(buffer.sizeRecords());
+        queuedBytes.addAndGet(buffer.sizeBytesWithOverhead());
+        chargeMemory(buffer, 1, lane);
+    }
+
+    private void onTakeBuffer(RecordBuffer<R> buffer, Lane lane) {
+        if (lane == Lane.SPILL)
+            return;     // counted by the spill log
+        queuedRecords.addAndGet(-buffer.sizeRecords());
+        queuedBytes.addAndGet(-buffer.sizeBytesWithOverhead());
+        chargeMemory(buffer, -1, lane);
+    }
+
+    private void chargeMemory(RecordBuffer<R> buffer, int sign, Lane lane) {
+        if (memory == null)
+            return;
+        if (lane == Lane.RETRY)
+            memory.addRetryBytes(sign * buffer.sizeBytesWithOverhead(), sign * buffer.ownedBytes());
+        else
+            memory.addQueuedBytes(sign * buffer.sizeBytesWithOverhead(), sign * buffer.ownedBytes());
+    }
+
     /**
-     * Keep private. Call only when holding lock.
      * @param buffer
      * @param elapsed
      * @return
      */
     private boolean onQueueBufferSuccess(RecordBuffer<R> buffer, long elapsed) {
-        queuedRecords += buffer.sizeRecords();
-        queuedBytes += buffer.sizeBytesWithOverhead();
         totalQueueWaitTimeMillis.addAndGet(elapsed);
-        notEmpty.signal();
+        if (parkedConsumers.get() > 0) {
+            parkingLock.lock();
+            try {
+                notEmpty.signal();
+            } finally {
+                parkingLock.unlock();
+            }
+        }
+        notifyNotEmptyListener();
         return true;
     }
 
     /**
-     * Keep private. Call only when holding lock.
      * @param buffer
      * @param elapsed
      * @return
      */
-    private RecordBuffer<R> onTakeSuccess(RecordBuffer<R> buffer, long elapsed) {
-        queuedRecords -= buffer.sizeRecords();
-        queuedBytes -= buffer.sizeBytesWithOverhead();
-        // It's a good time to check if temp buffer needs to be queued, in case
-        //  the queue was full
-        checkPendingRecords();
+    private RecordBuffer<R> onTakeSuccess(RecordBuffer<R> buffer, Lane lane, long elapsed) {
+        onTakeBuffer(buffer, lane);
+        latencies.recordSince(Stage.QUEUE_WAIT, buffer.queuedNanos());
         totalTakenBuffers.incrementAndGet();
-        notFull.signal();
+        if (parkedProducers.get() > 0) {
+            parkingLock.lock();
+            try {
+                notFull.signal();
+            } finally {
+                parkingLock.unlock();
+            }
+        }
+        // It's a good time to check if temp buffer needs to be queued, in case
+        //  the queue was full. Unless another thread is using it, in which case
+        //  that thread takes care of it.
+        if (bufferLock.tryLock()) {
+            try {
+                checkPendingRecordsLocked();
+            } finally {
+                bufferLock.unlock();
+            }
+        }
         return buffer;
     }
 
+    private void notifyNotEmptyListener() {
+        Runnable listener = notEmptyListener;
+        if (listener != null)
+            listener.run();
+    }
+
     /**
      * @param elapsed
      * @return
@@ -355,21 +493,11 @@ public final class PublishingQueue<R extends IRecord> implements IHeartbeatProvi
     }
 
     public int pendingRecords() {
-        lock.lock();
-        try {
-            return currentBuffer.sizeRecords();
-        } finally {
-            lock.unlock();
-        }
+        return currentBuffer.sizeRecords();
     }
 
     public long pendingBytes() {
-        lock.lock();
-        try {
-            return currentBuffer.sizeBytesWithOverhead();
-        } finally {
-            lock.unlock();
-        }
+        return currentBuffer.sizeBytesWithOverhead();
     }
 
     /**
@@ -378,64 +506,141 @@ public final class PublishingQueue<R extends IRecord> implements IHeartbeatProvi
      *         be queued, but could not for any reason.
      */
     public boolean checkPendingRecords() {
-        lock.lock();
+        bufferLock.lock();
         try {
-            if (!currentBuffer.isEmpty() &&
-                    (currentBuffer.sizeBytesWithOverhead() >= flow.getMaxBufferSizeBytes()
-                    || currentBuffer.sizeRecords() >= flow.getMaxBufferSizeRecords()
-                    || currentBuffer.age() >= flow.getMaxBufferAgeMillis())) {
-                return queueCurrentBuffer(false);
-            } else
-                return true;
+            return checkPendingRecordsLocked();
         } finally {
-            lock.unlock();
+            bufferLock.unlock();
         }
     }
 
+    private boolean checkPendingRecordsLocked() {
+        if (!currentBuffer.isEmpty() &&
+                (currentBuffer.sizeBytesWithOverhead() >= flow.getMaxBufferSizeBytes()
+                || currentBuffer.sizeRecords() >= flow.getMaxBufferSizeRecords()
+                || currentBuffer.age() >= flow.getMaxBufferAgeMillis())) {
+            return queueCurrentBuffer(false);
+        } else
+            return true;
+    }
+
     public RecordBuffer<R> flushPendingRecords() {
-        RecordBuffer<R> buffer = currentBuffer;
-        if (queueCurrentBuffer(false))
-            return buffer;
-        else
-            return null;
+        bufferLock.lock();
+        try {
+            RecordBuffer<R> buffer = currentBuffer;
+            if (queueCurrentBuffer(false))
+                return buffer;
+            else
+                return null;
+        } finally {
+            bufferLock.unlock();
+        }
     }
 
     public int discardPendingRecords() {
-        lock.lock();
+        bufferLock.lock();
         try {
             int discarded = currentBuffer.sizeRecords();
             if (!currentBuffer.isEmpty()) {
                 LOGGER.trace("{}: Discarding {} records in the temporary buffer...",
                         name, currentBuffer.sizeRecords());
             }
+            currentBuffer.release();
             currentBuffer = new RecordBuffer<>(flow);
             return discarded;
         } finally {
-            lock.unlock();
+            bufferLock.unlock();
         }
     }
 
-    public int discardAllRecords() {
-        lock.lock();
+    /**
+     * Moves the buffers that weren't sent from memory to the spill log, if
+     * any, once the queue is closed, so that they're sent after a restart
+     * instead of being read again from their files. Those that don't fit are
+     * dropped, as they would be by {@link #discardAllRecords()}.
+     *
+     * @return {@code true} if all the buffers in memory were spilled, or
+     *         {@code false} if there's no spill log or some didn't fit.
+     */
+    public boolean spillAllRecords() {
+        Preconditions.checkState(!isOpen, "%s: The queue must be closed first.", name);
+        if (spill == null)
+            return false;
+        bufferLock.lock();
         try {
-            int discarded = discardPendingRecords();
-            while (size() > 0) {
-                RecordBuffer<R> buffer = tryTake(0);
-                discarded += buffer.sizeRecords();
+            boolean spilledAll = true;
+            RecordBuffer<R> buffer;
+            while ((buffer = retryQueue.poll()) != null) {
+                retryQueueSize.decrementAndGet();
+                onTakeBuffer(buffer, Lane.RETRY);
+                spilledAll &= spillOnClose(buffer);
             }
-            LOGGER.trace("{}: Discarded {} records.", name, discarded);
-            return discarded;
+            while ((buffer = neverPubQueue.poll()) != null) {
+                onTakeBuffer(buffer, Lane.NEVER_PUBLISHED);
+                spilledAll &= spillOnClose(buffer);
+            }
+            if (!currentBuffer.isEmpty()) {
+                spilledAll &= spillOnClose(currentBuffer);
+                currentBuffer = new RecordBuffer<>(flow);
+            }
+            return spilledAll;
         } finally {
-            lock.unlock();
+            bufferLock.unlock();
+        }
+    }
+
+    private boolean spillOnClose(RecordBuffer<R> buffer) {
+        boolean spilled = spill.append(buffer);
+        if (!spilled)
+            LOGGER.debug("{}:{} Buffer didn't fit in the spill log on close; its records will be read again.", name, buffer);
+        buffer.release();
+        return spilled;
+    }
+
+    /**
+     * @return The buffers in the spill log that weren't sent, oldest first,
+     *         which are sent after a restart. Empty if there's no spill log.
+     *         The caller should release them.
+     */
+    public List<RecordBuffer<R>> spilledBuffers() {
+        return spill != null ? spill.unacknowledgedBuffers() : Collections.<RecordBuffer<R>>emptyList();
+    }
+
+    public int discardAllRecords() {
+        // What's in the spill log is kept for the next run
+        int discarded = discardPendingRecords();
+        RecordBuffer<R> buffer;
+        while ((buffer = tryTake(0)) != null) {
+            discarded += buffer.sizeRecords();
+            buffer.release();
         }
+        LOGGER.trace("{}: Discarded {} records.", name, discarded);
+        return discarded;
     }
 
-    public synchronized int size() {
-        return neverPubQueue.size() + retryQueue.size();
+    public int size() {
+        return neverPubQueue.size() + retryQueueSize.get() + spilledSize();
     }
 
-    public synchronized int retrySize() {
-        return retryQueue.size();
+    // Once the queue is closed, what's in the spill log is left for the next run
+    private int spilledSize() {
+        return spill != null && isOpen ? spill.size() : 0;
+    }
+
+    private long spilledRecords() {
+        return spill != null && isOpen ? spill.unreadRecords() : 0;
+    }
+
+    private long spilledBytes() {
+        return spill != null && isOpen ? spill.unreadBytes() : 0;
+    }
+
+    public int retrySize() {
+        return retryQueueSize.get();
+    }
+
+    private boolean isEmpty() {
+        return retryQueueSize.get() == 0 && neverPubQueue.isEmpty() && spilledSize() == 0;
     }
 
     public int capacity() {
@@ -443,40 +648,36 @@ public final class PublishingQueue<R extends IRecord> implements IHeartbeatProvi
     }
 
     public int totalRecords() {
-        lock.lock();
-        try {
-            return queuedRecords + currentBuffer.sizeRecords();
-        } finally {
-            lock.unlock();
-        }
+        return queuedRecords.get() + currentBuffer.sizeRecords() + (int) spilledRecords();
     }
 
     public long totalBytes() {
-        lock.lock();
-        try {
-            return queuedBytes + currentBuffer.sizeBytesWithOverhead();
-        } finally {
-            lock.unlock();
-        }
+        return queuedBytes.get() + currentBuffer.sizeBytesWithOverhead() + spilledBytes();
     }
 
     public void close() {
-        lock.lock();
+        bufferLock.lock();
         try {
             isOpen = false;
             queueCurrentBuffer(false);
-
+        } finally {
+            bufferLock.unlock();
+        }
+        parkingLock.lock();
+        try {
             // Any pending offer() calls should return false
             notFull.signalAll();
 
             // Any take() calls waiting on queue to fill should return null immediately
             notEmpty.signalAll();
         } finally {
-            lock.unlock();
+            parkingLock.unlock();
         }
+        notifyNotEmptyListener();
     }
 
     /**
+     * Keep private. Call only when holding the buffer lock.
      * @param record
      * @param block
      * @return {@code true} either if the temp buffer does not need to be queued
@@ -484,18 +685,13 @@ public final class PublishingQueue<R extends IRecord> implements IHeartbeatProvi
      *         be queued, but could not for any reason.
      */
     private boolean checkPendingRecordsBeforeNewRecord(R record, boolean block) {
-        lock.lock();
-        try {
-            if (!currentBuffer.isEmpty() && (
-                    currentBuffer.sizeBytesWithOverhead() + flow.getPerBufferOverheadBytes() + record.lengthWithOverhead() > flow.getMaxBufferSizeBytes()
-                    || currentBuffer.sizeRecords() >= flow.getMaxBufferSizeRecords())
-            ) {
-                return queueCurrentBuffer(block);
-            } else
-                return true;
-        } finally {
-            lock.unlock();
-        }
+        if (!currentBuffer.isEmpty() && (
+                currentBuffer.sizeBytesWithOverhead() + flow.getPerBufferOverheadBytes() + record.lengthWithOverhead() > flow.getMaxBufferSizeBytes()
+                || currentBuffer.sizeRecords() >= flow.getMaxBufferSizeRecords())
+        ) {
+            return queueCurrentBuffer(block);
+        } else
+            return true;
     }
 
     @Override
@@ -511,7 +707,7 @@ public final class PublishingQueue<R extends IRecord> implements IHeartbeatProvi
         sb.append(getClass().getSimpleName())
           .append("(neverPubQueueSize=").append(neverPubQueue.size())
           //.append(",neverPubQueueCapacity=").append(neverPubCapacity)
-          .append(",retryQueueSize=").append(retryQueue.size())
+          .append(",retryQueueSize=").append(retryQueueSize.get())
           .append(",totalRecords=").append(totalRecords())
           //.append(",totalBytes=").append(totalBytes())
           .append(",pendingRecords=").append(pendingRecords())
@@ -521,12 +717,20 @@ public final class PublishingQueue<R extends IRecord> implements IHeartbeatProvi
         return sb.toString();
     }
 
+    private enum Lane {
+        NEVER_PUBLISHED,
+        RETRY,
+        SPILL,
+    }
+
     @SuppressWarnings("serial")
     public Map<String, Object> getMetrics() {
+        final LatencyHistogram.Snapshot timeInQueue = latencies.snapshot(Stage.QUEUE_WAIT);
         return new HashMap<String, Object>() {{
             put("PublishingQueue.PendingRecords", currentBuffer.sizeRecords());
+            put("PublishingQueue.QueuedBuffers", size());
             put("PublishingQueue.TotalRecords", totalRecords());
-            put("PublishingQueue.RetryQueueSize", retryQueue.size());
+            put("PublishingQueue.RetryQueueSize", retryQueueSize.get());
             put("PublishingQueue.NeverPublishedQueueSize", neverPubQueue.size());
             put("PublishingQueue.TotalQueuedRecords", totalQueuedRecords);
             put("PublishingQueue.TotalQueuedBuffers", totalQueuedBuffers);
@@ -536,8 +740,10 @@ public final class PublishingQueue<R extends IRecord> implements IHeartbeatProvi
             put("PublishingQueue.TotalQueueTimeouts", totalQueueTimeouts);
             put("PublishingQueue.TotalQueuedWaitTimeMillis", totalQueueWaitTimeMillis);
             put("PublishingQueue.AverageQueueWaitTimeMillis", totalQueuedBuffers.get() == 0 ? 0.0 : (totalQueueWaitTimeMillis.doubleValue() / totalQueuedBuffers.doubleValue()));
-            put("PublishingQueue.TotalTimeInQueueMillis", "NA");
-            put("PublishingQueue.AverageTimeInQueueMillis", "NA");
+            put("PublishingQueue.TotalTimeInQueueMillis", TimeUnit.NANOSECONDS.toMillis(timeInQueue.sum()));
+            put("PublishingQueue.AverageTimeInQueueMillis", StageLatencies.toMillis((long) timeInQueue.mean()));
+            if (spill != null)
+                putAll(spill.getMetrics());
         }};
     }
 }
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2014-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file.
+ * This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+package com.amazon.kinesis.streaming.agent.tailing;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+import lombok.Getter;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * Reads the next chunks of a file on a background executor while the caller
+ * is busy with the data it already has, so that read latency and parsing
+ * overlap.
+ * <p>
+ * The chunks are read with positional reads, which don't move the position
+ * of the channel. {@link #read(FileChannel, ByteBuffer)} copies data from the
+ * chunks that were read ahead and advances the channel position as if it
+ * had been read from the channel directly, so callers see exactly the same
+ * data and offsets as with {@link FileChannel#read(ByteBuffer)}.
+ * <p>
+ * Reading ahead only starts when there is at least one full chunk of data
+ * left in the file beyond the channel position (e.g. when catching up on
+ * a backlog), and stops as soon as a chunk comes back short, i.e. when the
+ * end of the file was reached. Any change of channel or position not made
+ * by this reader (e.g. when the parser switches files, or maps a chunk
+ * into memory) drops the chunks read so far.
+ */
+@NotThreadSafe
+public class ReadAheadReader {
+    private final ExecutorService executor;
+    private final int chunkSize;
+    private final ArrayDeque<ByteBuffer> freeBuffers = new ArrayDeque<>();
+    private final ArrayDeque<Chunk> pendingChunks = new ArrayDeque<>();
+    private FileChannel channel;
+    // The channel position the next read is expected at, i.e. where the data read ahead starts
+    private long expectedPosition = -1;
+    // The file offset where the next chunk will be read from
+    private long nextChunkOffset = -1;
+    private ByteBuffer current;
+
+    @Getter private final AtomicLong totalBytesReadAhead = new AtomicLong();
+    @Getter private final AtomicLong totalReadAheadWaitMillis = new AtomicLong();
+
+    /**
+     * @param executor The executor running the reads.
+     * @param chunkSize The size of each read.
+     * @param depth The number of chunks that can be read ahead of the data
+     *        consumed by the caller.
+     */
+    public ReadAheadReader(ExecutorService executor, int chunkSize, int depth) {
+        Preconditions.checkArgument(chunkSize > 0);
+        Preconditions.checkArgument(depth > 0);
+        this.executor = executor;
+        this.chunkSize = chunkSize;
+        for (int i = 0; i < depth; ++i) {
+            freeBuffers.add(ByteBuffer.allocate(chunkSize));
+        }
+    }
+
+    /**
+     * Same contract as {@link FileChannel#read(ByteBuffer)}.
+     *
+     * @param channel The channel to read from, at its current position.
+     * @param dst The buffer to read into.
+     * @return The number of bytes read, possibly {@code 0}, or {@code -1} if
+     *         the channel has reached end-of-stream.
+     * @throws IOException
+     */
+    public int read(FileChannel channel, ByteBuffer dst) throws IOException {
+        if (channel != this.channel || channel.position() != expectedPosition) {
+            reset();
+        }
+        // Fill the buffer as far as the data allows, like a read from the channel would
+        int total = 0;
+        while (dst.hasRemaining() && (current != null || !pendingChunks.isEmpty())) {
+            if (current == null) {
+                current = awaitNextChunk();
+                if (current == null) {
+                    // The read failed or hit the end of file at the time; read directly below
+                    reset();
+                    break;
+                }
+            }
+            total += copyFromCurrentChunk(channel, dst);
+        }
+        if (dst.hasRemaining()) {
+            int bytes = channel.read(dst);
+            if (bytes > 0 || total == 0) {
+                total += bytes;
+            }
+            if (current == null && pendingChunks.isEmpty() && channel.size() - channel.position() >= chunkSize) {
+                start(channel, channel.position());
+            }
+        }
+        return total;
+    }
+
+    private int copyFromCurrentChunk(FileChannel channel, ByteBuffer dst) throws IOException {
+        int bytes = Math.min(current.remaining(), dst.remaining());
+        ByteBuffer data = current.duplicate();
+        data.limit(data.position() + bytes);
+        dst.put(data);
+        current.position(data.position());
+        expectedPosition += bytes;
+        channel.position(expectedPosition);
+        totalBytesReadAhead.addAndGet(bytes);
+        if (!current.hasRemaining()) {
+            boolean endOfFile = current.limit() < chunkSize;
+            freeBuffers.add(current);
+            current = null;
+            if (endOfFile) {
+                // Later chunks were read past what was the end of file, so may have a gap
+                reset();
+            } else {
+                readAhead();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Drops all the data read ahead so far. Waits for any reads that are
+     * still running, since they're writing into buffers owned by this reader.
+     */
+    public void reset() {
+        for (Chunk chunk : pendingChunks) {
+            try {
+                Uninterruptibles.getUninterruptibly(chunk.read);
+            } catch (ExecutionException e) {
+                // Ignore: the data is being dropped anyway
+            }
+            freeBuffers.add(chunk.buffer);
+        }
+        pendingChunks.clear();
+        if (current != null) {
+            freeBuffers.add(current);
+            current = null;
+        }
+        channel = null;
+        expectedPosition = -1;
+        nextChunkOffset = -1;
+    }
+
+    private void start(FileChannel channel, long position) {
+        this.channel = channel;
+        this.expectedPosition = position;
+        this.nextChunkOffset = position;
+        readAhead();
+    }
+
+    private void readAhead() {
+        while (!freeBuffers.isEmpty()) {
+            final ByteBuffer buffer = freeBuffers.poll();
+            final FileChannel channel = this.channel;
+            final long offset = nextChunkOffset;
+            try {
+                Future<?> read = executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        buffer.clear();
+                        while (buffer.hasRemaining() && channel.read(buffer, offset + buffer.position()) > 0) {
+                            // Keep reading until the buffer is full or the end of file is reached
+                        }
+                        buffer.flip();
+                        return null;
+                    }
+                });
+                pendingChunks.add(new Chunk(buffer, read));
+                nextChunkOffset += chunkSize;
+            } catch (RejectedExecutionException e) {
+                // The executor is shutting down: keep reading synchronously
+                freeBuffers.add(buffer);
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return The data of the next chunk, or {@code null} if there is none,
+     *         because the read failed or was at the end of the file.
+     */
+    private ByteBuffer awaitNextChunk() {
+        Chunk chunk = pendingChunks.poll();
+        long start = System.currentTimeMillis();
+        try {
+            Uninterruptibles.getUninterruptibly(chunk.read);
+        } catch (ExecutionException e) {
+            // The synchronous read that follows will report the error, if it persists
+            chunk.buffer.limit(0);
+        } finally {
+            totalReadAheadWaitMillis.addAndGet(System.currentTimeMillis() - start);
+        }
+        if (chunk.buffer.hasRemaining())
+            return chunk.buffer;
+        freeBuffers.add(chunk.buffer);
+        return null;
+    }
+
+    private static class Chunk {
+        final ByteBuffer buffer;
+        final Future<?> read;
+
+        Chunk(ByteBuffer buffer, Future<?> read) {
+            this.buffer = buffer;
+            this.read = read;
+        }
+    }
+}
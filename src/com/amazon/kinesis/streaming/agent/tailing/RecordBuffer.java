@@ -13,9 +13,12 @@
  */
 package com.amazon.kinesis.streaming.agent.tailing;
 
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.concurrent.NotThreadSafe;
@@ -37,15 +40,47 @@ public class RecordBuffer<R extends IRecord> implements Iterable<R> {
     protected final List<R> records;
 
     protected long timestamp = -1;
+    // System.nanoTime() when the first record was added, and when the buffer was last queued
+    protected long firstRecordNanos = -1;
+    private long queuedNanos = -1;
     /** Cumulative size of records including any per-record overhead. */
     protected long currentSizeBytes = 0;
+    /** Cumulative heap owned by the records (see {@link IRecord#ownedBytes()}). */
+    protected long currentOwnedBytes = 0;
     protected IRecord lastRecord;
+    // The last record of each file the records stopped coming from, by path, if any
+    protected Map<Path, IRecord> lastRecordsOfPreviousFiles;
     protected final long id;
+    // Run once the buffer is released, if set
+    private Runnable releaseListener;
 
     public RecordBuffer(FileFlow<R> flow) {
         this.flow = flow;
         this.records = new ArrayList<R>(DEFAULT_INITIAL_CAPACITY);
-        this.id = NEXT_BUFFER_ID.incrementAndGet();
+        this.id = nextId();
+    }
+
+    /**
+     * @return A new sequence number, higher than those of all the buffers
+     *         created so far.
+     */
+    static long nextId() {
+        return NEXT_BUFFER_ID.incrementAndGet();
+    }
+
+    /**
+     * Restores a buffer with the sequence number and timestamps it was first
+     * given (e.g. when read back from a {@link SpillLog}), so that its
+     * checkpoint is ordered the same as if it never left memory, and its
+     * latencies include the time it spent on disk.
+     */
+    RecordBuffer(FileFlow<R> flow, long id, long timestamp, long firstRecordNanos, long queuedNanos) {
+        this.flow = flow;
+        this.records = new ArrayList<R>(DEFAULT_INITIAL_CAPACITY);
+        this.id = id;
+        this.timestamp = timestamp;
+        this.firstRecordNanos = firstRecordNanos;
+        this.queuedNanos = queuedNanos;
     }
 
     /**
@@ -53,12 +88,24 @@ public class RecordBuffer<R extends IRecord> implements Iterable<R> {
      * @param record
      */
     public void add(R record) {
+        if(lastRecord != null && lastRecord.file() != record.file() && lastRecord.file() != null) {
+            if(lastRecordsOfPreviousFiles == null) {
+                lastRecordsOfPreviousFiles = new LinkedHashMap<>();
+            }
+            Path path = lastRecord.file().getPath();
+            lastRecordsOfPreviousFiles.remove(path);
+            lastRecordsOfPreviousFiles.put(path, lastRecord);
+        }
         records.add(record);
         lastRecord = record;
         currentSizeBytes += record.lengthWithOverhead();
+        currentOwnedBytes += record.ownedBytes();
         if(timestamp < 0) {
             timestamp = System.currentTimeMillis();
         }
+        if(firstRecordNanos < 0) {
+            firstRecordNanos = System.nanoTime();
+        }
     }
 
     /**
@@ -76,6 +123,26 @@ public class RecordBuffer<R extends IRecord> implements Iterable<R> {
         return timestamp;
     }
 
+    /**
+     * @return The {@link System#nanoTime()} when the first record was added,
+     *         or {@code -1} if the buffer is empty.
+     */
+    long firstRecordNanos() {
+        return firstRecordNanos;
+    }
+
+    /**
+     * @return The {@link System#nanoTime()} when the buffer was last queued
+     *         for publishing (or for retry), or {@code -1} if it never was.
+     */
+    long queuedNanos() {
+        return queuedNanos;
+    }
+
+    void setQueuedNanos(long queuedNanos) {
+        this.queuedNanos = queuedNanos;
+    }
+
     public long age() {
         return age(System.currentTimeMillis());
     }
@@ -97,6 +164,14 @@ public class RecordBuffer<R extends IRecord> implements Iterable<R> {
         return currentSizeBytes + flow.getPerBufferOverheadBytes();
     }
 
+    /**
+     * @return The bytes of heap the records take up on their own, as opposed
+     *         to the parser buffers they retain.
+     */
+    public long ownedBytes() {
+        return currentOwnedBytes;
+    }
+
     public boolean isEmpty() {
         return records.isEmpty();
     }
@@ -109,6 +184,29 @@ public class RecordBuffer<R extends IRecord> implements Iterable<R> {
         return lastRecord.endOffset();
     }
 
+    /**
+     * Records of more than one file end up in the same buffer after a
+     * rotation, or when the flow tails files concurrently, and each file
+     * needs its own checkpoint.
+     *
+     * @return The last record added from each file, including the records
+     *         removed since, in the order the files were last added to.
+     *         The last one is the record of {@link #checkpointFile()}.
+     */
+    public List<IRecord> lastRecordOfEachFile() {
+        List<IRecord> result = new ArrayList<>();
+        if(lastRecordsOfPreviousFiles != null) {
+            Path lastPath = lastRecord.file() == null ? null : lastRecord.file().getPath();
+            for(Map.Entry<Path, IRecord> entry : lastRecordsOfPreviousFiles.entrySet()) {
+                if(!entry.getKey().equals(lastPath)) {
+                    result.add(entry.getValue());
+                }
+            }
+        }
+        result.add(lastRecord);
+        return result;
+    }
+
     /**
      * Removes the records at the specified indices.
      * @param itemsToRemoveSorted Indices of the records to be removed.
@@ -120,7 +218,31 @@ public class RecordBuffer<R extends IRecord> implements Iterable<R> {
     }
 
     /**
-     * Removes the records at the specified indices.
+     * Releases all records in the buffer (see {@link IRecord#release()}).
+     * Should be called once the buffer was sent or dropped.
+     */
+    public void release() {
+        for (R record : records) {
+            record.release();
+        }
+        Runnable listener = releaseListener;
+        if (listener != null) {
+            releaseListener = null;
+            listener.run();
+        }
+    }
+
+    /**
+     * @param listener Run once, when the buffer is {@link #release()
+     *        released}.
+     */
+    void setReleaseListener(Runnable listener) {
+        this.releaseListener = listener;
+    }
+
+    /**
+     * Removes the records at the specified indices. The removed records are
+     * released (see {@link IRecord#release()}).
      * @param itemsToRemoveSorted Indices of the records to be removed.
      * @return A buffer identical to the current one with the specified records
      *         removed.
@@ -133,6 +255,8 @@ public class RecordBuffer<R extends IRecord> implements Iterable<R> {
             for(int originalIndex = toRemoveIndex; originalIndex < records.size(); ++originalIndex) {
                 if(originalIndex == toRemoveIndex) {
                     currentSizeBytes -= records.get(toRemoveIndex).length();
+                    currentOwnedBytes -= records.get(toRemoveIndex).ownedBytes();
+                    records.get(toRemoveIndex).release();
                     toRemoveIndex = toRemoveIt.hasNext() ? toRemoveIt.next() : -1;
                 } else {
                     records.set(newIndex++, records.get(originalIndex));
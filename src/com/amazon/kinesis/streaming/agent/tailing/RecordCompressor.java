@@ -0,0 +1,157 @@
+/*
+ * Copyright 2014-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file.
+ * This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+package com.amazon.kinesis.streaming.agent.tailing;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+import lombok.Getter;
+
+import com.amazon.kinesis.streaming.agent.tailing.FileFlow.Compression;
+import com.google.common.base.Preconditions;
+
+/**
+ * Compresses record data with the JDK {@link Deflater}, which is reused
+ * across records, and keeps track of the bytes saved and the CPU time spent
+ * doing so.
+ * <p>
+ * The deflater holds native zlib memory, which is only freed when the GC
+ * gets to it unless it's {@link #close() closed}. It's created again if
+ * more data is compressed after that.
+ */
+@NotThreadSafe
+public class RecordCompressor {
+    private static final byte[] GZIP_HEADER = {
+            0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+    private static final int GZIP_TRAILER_SIZE = 8;
+    // Upper bound for the zlib header and trailer, or the gzip ones
+    private static final int MAX_FRAMING_SIZE = GZIP_HEADER.length + GZIP_TRAILER_SIZE;
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    @Getter private final Compression compression;
+    private final int level;
+    private Deflater deflater;
+    private final CRC32 crc;
+    private final boolean measureCpuTime;
+    private byte[] output = new byte[0];
+
+    @Getter private final AtomicLong totalRecordsCompressed = new AtomicLong();
+    @Getter private final AtomicLong totalBytesIn = new AtomicLong();
+    @Getter private final AtomicLong totalBytesOut = new AtomicLong();
+    @Getter private final AtomicLong totalCpuNanos = new AtomicLong();
+
+    public RecordCompressor(Compression compression, int level) {
+        Preconditions.checkArgument(compression != Compression.NONE);
+        this.compression = compression;
+        this.level = level;
+        this.crc = compression == Compression.GZIP ? new CRC32() : null;
+        this.measureCpuTime = THREADS.isCurrentThreadCpuTimeSupported() && THREADS.isThreadCpuTimeEnabled();
+    }
+
+    /**
+     * @param data The data to compress, from its position to its limit. The
+     *        position of the buffer is left unchanged.
+     * @return A new buffer holding the compressed data.
+     */
+    public ByteBuffer compress(ByteBuffer data) {
+        long start = measureCpuTime ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+        int inputSize = data.remaining();
+        int bound = maxOutputSize(inputSize);
+        if (output.length < bound) {
+            output = new byte[bound];
+        }
+        int length = 0;
+        if (crc != null) {
+            System.arraycopy(GZIP_HEADER, 0, output, 0, GZIP_HEADER.length);
+            length = GZIP_HEADER.length;
+            crc.reset();
+            crc.update(data.duplicate());
+        }
+        if (deflater == null) {
+            deflater = new Deflater(level, compression == Compression.GZIP);
+        }
+        deflater.reset();
+        deflater.setInput(data.duplicate());
+        deflater.finish();
+        while (!deflater.finished()) {
+            length += deflater.deflate(output, length, output.length - length);
+            Preconditions.checkState(length < output.length || deflater.finished(),
+                    "Compressed data exceeded its bound of %s bytes.", bound);
+        }
+        if (crc != null) {
+            length = writeIntLE(output, length, (int) crc.getValue());
+            length = writeIntLE(output, length, inputSize);
+        }
+        ByteBuffer compressed = ByteBuffer.wrap(Arrays.copyOf(output, length));
+
+        long end = measureCpuTime ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+        totalCpuNanos.addAndGet(end - start);
+        totalRecordsCompressed.incrementAndGet();
+        totalBytesIn.addAndGet(inputSize);
+        totalBytesOut.addAndGet(length);
+        return compressed;
+    }
+
+    /**
+     * Releases the native memory of the deflater.
+     */
+    public void close() {
+        if (deflater != null) {
+            deflater.end();
+            deflater = null;
+        }
+    }
+
+    /**
+     * @return The ratio of uncompressed to compressed bytes so far, or
+     *         {@code 0} if nothing was compressed yet.
+     */
+    public double getCompressionRatio() {
+        long out = totalBytesOut.get();
+        return out == 0 ? 0.0 : totalBytesIn.doubleValue() / out;
+    }
+
+    /**
+     * Same bound as zlib's {@code compressBound()}, plus room for the gzip
+     * framing: deflate stores incompressible data in blocks of up to 16K
+     * with 5 bytes of overhead each.
+     */
+    public static int maxOutputSize(int inputSize) {
+        return inputSize + (inputSize >> 12) + (inputSize >> 14) + (inputSize >> 25) + 13 + MAX_FRAMING_SIZE;
+    }
+
+    /**
+     * @return The largest input whose compressed form is guaranteed to fit
+     *         within {@code outputSize} bytes.
+     */
+    public static int maxInputSize(int outputSize) {
+        int inputSize = outputSize - (outputSize >> 11) - 16 - MAX_FRAMING_SIZE;
+        return Math.max(0, inputSize);
+    }
+
+    private static int writeIntLE(byte[] output, int offset, int value) {
+        output[offset++] = (byte) value;
+        output[offset++] = (byte) (value >>> 8);
+        output[offset++] = (byte) (value >>> 16);
+        output[offset++] = (byte) (value >>> 24);
+        return offset;
+    }
+}
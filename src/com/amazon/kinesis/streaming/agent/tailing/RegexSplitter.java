@@ -1,42 +1,123 @@
 /*
  * Copyright 2014-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
- * 
+ *
  * Licensed under the Amazon Software License (the "License").
- * You may not use this file except in compliance with the License. 
+ * You may not use this file except in compliance with the License.
  * A copy of the License is located at
- * 
+ *
  *  http://aws.amazon.com/asl/
- *  
- * or in the "license" file accompanying this file. 
- * This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ *
+ * or in the "license" file accompanying this file.
+ * This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
  * See the License for the specific language governing permissions and limitations under the License.
  */
 package com.amazon.kinesis.streaming.agent.tailing;
 
 import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.annotation.concurrent.NotThreadSafe;
+
+import com.amazon.kinesis.streaming.agent.ByteBuffers;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 
 /**
  * Returns one record that splits records based on a regex that matches the beginning of a record
- * 
+ * <p>
+ * To avoid decoding every line and running the regex on it, the leading
+ * part of the pattern is analyzed when the splitter is built: for each of
+ * the first few characters a match must start with (e.g. a digit for
+ * {@code ^\d{4}-}, or {@code [} for {@code ^\[}) the set of allowed ASCII
+ * bytes is computed. Lines whose first bytes are not in those sets are
+ * rejected without decoding them. Only the remaining candidate lines are
+ * decoded, into a reused buffer, and matched with the full pattern.
+ * <p>
+ * By default, the last record in a buffer that isn't full ends with the
+ * buffer, as long as it ends with a complete line. When the last record is
+ * held instead, it only ends where the next record starts, so that lines of
+ * the same record written a moment later aren't split into another record,
+ * and it's up to the parser to end it once no more lines are coming (see
+ * {@link FileFlow#getMultiLineIdleFlushMillis()}).
+ * <p>
+ * The matcher and the decoding buffer are reused from one line to the next,
+ * so an instance must not be shared by parsers: each one gets its own copy
+ * (see {@link FileFlow#buildRecordSplitter()}).
  */
+@NotThreadSafe
 public class RegexSplitter implements ISplitter {
+    /** Upper bound on the number of leading characters that are analyzed. */
+    private static final int MAX_PREFIX_LENGTH = 16;
+    private static final String METACHARACTERS = "\\^$.|?*+()[]{}";
+
     public final Pattern startingPattern;
+    private final BitSet[] prefix;
+    private final Matcher matcher;
+    private final CharsetDecoder decoder;
+    private final boolean holdLastRecord;
+    private CharBuffer decodedLine = CharBuffer.allocate(256);
 
     public RegexSplitter(String startingPattern) {
+        this(startingPattern, false);
+    }
+
+    /**
+     * @param startingPattern
+     * @param holdLastRecord If {@code true}, the last record in the buffer
+     *        never ends with the buffer.
+     */
+    public RegexSplitter(String startingPattern, boolean holdLastRecord) {
         Preconditions.checkArgument(!Strings.isNullOrEmpty(startingPattern));
+        this.holdLastRecord = holdLastRecord;
         this.startingPattern = Pattern.compile(startingPattern);
+        this.prefix = analyzePrefix(startingPattern);
+        this.matcher = this.startingPattern.matcher("");
+        this.decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    private RegexSplitter(RegexSplitter other) {
+        this.holdLastRecord = other.holdLastRecord;
+        this.startingPattern = other.startingPattern;
+        this.prefix = other.prefix;
+        this.matcher = this.startingPattern.matcher("");
+        this.decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * @return A splitter with the same pattern and analyzed prefix, but with
+     *         a matcher and a decoding buffer of its own.
+     */
+    public RegexSplitter copy() {
+        return new RegexSplitter(this);
     }
 
     public String getPattern() {
         return startingPattern.pattern();
     }
 
+    /**
+     * @return The number of leading bytes a line is checked against before
+     *         the full pattern is run on it; {@code 0} if the pattern could
+     *         not be analyzed.
+     */
+    @VisibleForTesting
+    int getPrefixLength() {
+        return prefix.length;
+    }
+
     @Override
     public int locateNextRecord(ByteBuffer buffer) {
         return advanceBufferToNextPattern(buffer);
@@ -45,40 +126,324 @@ public class RegexSplitter implements ISplitter {
     /**
      * Advances the buffer current position to be at the index at the beginning of the
      * next pattern, or else the end of the buffer if there is no final pattern.
-     * 
+     *
      * @return {@code position} of the buffer at the starting index of the next new pattern;
      *         {@code -1} if the end of the buffer was reached.
      */
     private int advanceBufferToNextPattern(ByteBuffer buffer) {
-        Matcher matcher;
         // this marks the position before which we already attempted to match the pattern
         int currentLookedPosition = buffer.position();
         boolean firstLine = true;
-        while (buffer.hasRemaining()) {
-            // start matching from the current position on a line by line basis
-            if (buffer.get() == SingleLineSplitter.LINE_DELIMITER) {
-                // Skip the first line as it must be part of the current record
-                if (!firstLine) {
-                    String line = new String(buffer.array(), currentLookedPosition, buffer.position() - currentLookedPosition, StandardCharsets.UTF_8);
-                    matcher = startingPattern.matcher(line);
-                    if(matcher.lookingAt()) {
-                        buffer.position(currentLookedPosition);
-                        return currentLookedPosition;
-                    }
-                }
-                firstLine = false;
-                // update the position that we already looked at
-                currentLookedPosition = buffer.position();
+        int newLine;
+        while ((newLine = ByteBuffers.indexOf(buffer, currentLookedPosition, buffer.limit(), (byte) SingleLineSplitter.LINE_DELIMITER)) != -1) {
+            int lineEnd = newLine + 1;
+            // Skip the first line as it must be part of the current record
+            if (!firstLine && lineStartsRecord(buffer, currentLookedPosition, lineEnd)) {
+                buffer.position(currentLookedPosition);
+                return currentLookedPosition;
             }
+            firstLine = false;
+            // update the position that we already looked at
+            currentLookedPosition = lineEnd;
         }
-        
+        buffer.position(buffer.limit());
+
         // We've scanned to the end and there is only one complete record in the buffer, set the position to the end
-        if (!firstLine && buffer.limit() < buffer.capacity() 
+        if (!holdLastRecord && !firstLine && buffer.limit() < buffer.capacity()
                 && buffer.position() > 0
                 && buffer.get(buffer.position() - 1) == SingleLineSplitter.LINE_DELIMITER) {
             return buffer.position();
         }
-        
+
         return -1;
     }
+
+    /**
+     * @param buffer
+     * @param lineStart Absolute index of the first byte of the line.
+     * @param lineEnd Absolute index after the line's delimiter.
+     * @return {@code true} if the pattern matches at the start of the line.
+     */
+    @VisibleForTesting
+    boolean lineStartsRecord(ByteBuffer buffer, int lineStart, int lineEnd) {
+        int lineLength = lineEnd - lineStart;
+        for (int i = 0; i < prefix.length && i < lineLength; ++i) {
+            if (!prefix[i].get(buffer.get(lineStart + i) & 0xFF)) {
+                return false;
+            }
+        }
+        return matcher.reset(decode(buffer, lineStart, lineLength)).lookingAt();
+    }
+
+    private CharBuffer decode(ByteBuffer buffer, int offset, int length) {
+        // UTF-8 never decodes to more chars than there are bytes
+        if (decodedLine.capacity() < length) {
+            decodedLine = CharBuffer.allocate(Math.max(length, 2 * decodedLine.capacity()));
+        }
+        decodedLine.clear();
+        decoder.reset();
+        decoder.decode(ByteBuffers.getPartialView(buffer, offset, length), decodedLine, true);
+        decoder.flush(decodedLine);
+        decodedLine.flip();
+        return decodedLine;
+    }
+
+    /**
+     * Works out, for each of the leading characters of any match of the
+     * given pattern, the set of bytes it can be. This is deliberately
+     * conservative: analysis stops at the first construct that isn't
+     * understood, and patterns with top-level alternation yield no prefix.
+     * Only ASCII characters are considered, which are encoded as single
+     * bytes in UTF-8.
+     *
+     * @param pattern
+     * @return One set of allowed bytes per leading character; empty if
+     *         nothing is known about the start of a match.
+     */
+    @VisibleForTesting
+    static BitSet[] analyzePrefix(String pattern) {
+        List<BitSet> sets = new ArrayList<>();
+        if (!hasTopLevelAlternation(pattern)) {
+            int index = pattern.startsWith("^") ? 1 : 0;
+            while (index < pattern.length() && sets.size() < MAX_PREFIX_LENGTH) {
+                // end[0]: index after the atom; end[1]: 1 if the atom is a group
+                int[] end = new int[2];
+                BitSet atom = parseAtom(pattern, index, end);
+                if (atom == null)
+                    break;
+                index = end[0];
+                boolean group = end[1] == 1;
+                // Look at the quantifier, if any
+                int repeat = 1;
+                boolean last = false;
+                if (index < pattern.length()) {
+                    char q = pattern.charAt(index);
+                    if (q == '?' || q == '*') {
+                        break;
+                    } else if (q == '+') {
+                        last = true;
+                    } else if (q == '{') {
+                        int close = pattern.indexOf('}', index);
+                        if (close == -1)
+                            break;
+                        String[] bounds = pattern.substring(index + 1, close).split(",", -1);
+                        try {
+                            repeat = Integer.parseInt(bounds[0].trim());
+                        } catch (NumberFormatException e) {
+                            break;
+                        }
+                        last = bounds.length > 1 && !bounds[1].trim().equals(bounds[0].trim());
+                        index = close + 1;
+                    }
+                }
+                if (group) {
+                    // Only the first character of a group is known
+                    repeat = Math.min(repeat, 1);
+                    last = true;
+                }
+                for (int i = 0; i < repeat && sets.size() < MAX_PREFIX_LENGTH; ++i) {
+                    sets.add(atom);
+                }
+                if (last || repeat == 0)
+                    break;
+            }
+        }
+        return sets.toArray(new BitSet[sets.size()]);
+    }
+
+    /**
+     * Parses a single character, escape, character class or group starting
+     * at {@code start}.
+     *
+     * @param end Receives the index following the atom, and whether the
+     *        atom was a group.
+     * @return The set of bytes the first character of the atom can be, or
+     *         {@code null} if the atom isn't understood.
+     */
+    private static BitSet parseAtom(String pattern, int start, int[] end) {
+        char c = pattern.charAt(start);
+        end[1] = 0;
+        if (c == '\\') {
+            if (start + 1 >= pattern.length())
+                return null;
+            end[0] = start + 2;
+            return escapeSet(pattern.charAt(start + 1));
+        } else if (c == '[') {
+            return parseClass(pattern, start, end);
+        } else if (c == '(') {
+            return parseGroup(pattern, start, end);
+        } else if (METACHARACTERS.indexOf(c) >= 0 || c > 0x7F) {
+            return null;
+        } else {
+            end[0] = start + 1;
+            return singleton(c);
+        }
+    }
+
+    private static BitSet parseClass(String pattern, int start, int[] end) {
+        BitSet set = new BitSet(256);
+        int index = start + 1;
+        if (index < pattern.length() && pattern.charAt(index) == '^')
+            return null;
+        boolean first = true;
+        while (index < pattern.length()) {
+            char c = pattern.charAt(index);
+            if (c == ']' && !first) {
+                end[0] = index + 1;
+                return set;
+            }
+            first = false;
+            BitSet member;
+            char low;
+            if (c == '\\') {
+                if (index + 1 >= pattern.length())
+                    return null;
+                char escaped = pattern.charAt(index + 1);
+                member = escapeSet(escaped);
+                if (member == null)
+                    return null;
+                low = member.cardinality() == 1 ? (char) member.nextSetBit(0) : 0;
+                index += 2;
+            } else if (c == '[' || c == '&' || c > 0x7F) {
+                return null;
+            } else {
+                member = singleton(c);
+                low = c;
+                index += 1;
+            }
+            // Ranges like a-z (a trailing '-' is a literal)
+            if (low != 0 && index + 1 < pattern.length() && pattern.charAt(index) == '-' && pattern.charAt(index + 1) != ']') {
+                char high = pattern.charAt(index + 1);
+                if (high == '\\' || high == '[' || high > 0x7F || high < low)
+                    return null;
+                member = new BitSet(256);
+                member.set(low, high + 1);
+                index += 2;
+            }
+            set.or(member);
+        }
+        return null;
+    }
+
+    private static BitSet parseGroup(String pattern, int start, int[] end) {
+        int index = start + 1;
+        if (pattern.startsWith("?:", index)) {
+            index += 2;
+        } else if (index < pattern.length() && pattern.charAt(index) == '?') {
+            // Flags, lookarounds, named groups...
+            return null;
+        }
+        // Find the alternatives and the end of the group
+        List<Integer> alternativeStarts = new ArrayList<>();
+        alternativeStarts.add(index);
+        int depth = 0;
+        for (; index < pattern.length(); ++index) {
+            char c = pattern.charAt(index);
+            if (c == '\\') {
+                ++index;
+            } else if (c == '[') {
+                index = skipClass(pattern, index);
+            } else if (c == '(') {
+                ++depth;
+            } else if (c == ')') {
+                if (depth-- == 0)
+                    break;
+            } else if (c == '|' && depth == 0) {
+                alternativeStarts.add(index + 1);
+            }
+        }
+        if (index >= pattern.length())
+            return null;
+        end[0] = index + 1;
+        end[1] = 1;
+        // The first character of the group is the first character of one of its alternatives
+        BitSet set = new BitSet(256);
+        for (int alternativeStart : alternativeStarts) {
+            if (alternativeStart >= pattern.length() || pattern.charAt(alternativeStart) == '|' || pattern.charAt(alternativeStart) == ')')
+                return null;  // empty alternative
+            int[] atomEnd = new int[2];
+            BitSet first = parseAtom(pattern, alternativeStart, atomEnd);
+            if (first == null || first.isEmpty())
+                return null;
+            if (atomEnd[0] < pattern.length() && "?*{".indexOf(pattern.charAt(atomEnd[0])) >= 0)
+                return null;  // possibly optional
+            set.or(first);
+        }
+        return set;
+    }
+
+    /**
+     * @return The index of the {@code ]} closing the character class that
+     *         starts at {@code start}, or the end of the pattern.
+     */
+    private static int skipClass(String pattern, int start) {
+        int index = start + 1;
+        if (index < pattern.length() && pattern.charAt(index) == '^')
+            ++index;
+        if (index < pattern.length() && pattern.charAt(index) == ']')
+            ++index;  // a leading ] is a literal
+        for (; index < pattern.length(); ++index) {
+            char c = pattern.charAt(index);
+            if (c == '\\') {
+                ++index;
+            } else if (c == ']') {
+                return index;
+            }
+        }
+        return index;
+    }
+
+    private static BitSet escapeSet(char c) {
+        BitSet set = new BitSet(256);
+        switch (c) {
+        case 'd':
+            set.set('0', '9' + 1);
+            return set;
+        case 'w':
+            set.set('0', '9' + 1);
+            set.set('a', 'z' + 1);
+            set.set('A', 'Z' + 1);
+            set.set('_');
+            return set;
+        case 's':
+            set.set(' ');
+            set.set('\t');
+            set.set('\n');
+            set.set(0x0B);
+            set.set('\f');
+            set.set('\r');
+            return set;
+        case 't':
+            return singleton('\t');
+        default:
+            // Escaped punctuation is a literal; anything else (\b, \p, \Q,
+            // \x, back-references...) is not analyzed.
+            return c <= 0x7F && !Character.isLetterOrDigit(c) ? singleton(c) : null;
+        }
+    }
+
+    private static BitSet singleton(char c) {
+        BitSet set = new BitSet(256);
+        set.set(c);
+        return set;
+    }
+
+    private static boolean hasTopLevelAlternation(String pattern) {
+        int depth = 0;
+        for (int i = 0; i < pattern.length(); ++i) {
+            char c = pattern.charAt(i);
+            if (c == '\\') {
+                ++i;
+            } else if (c == '[') {
+                i = skipClass(pattern, i);
+            } else if (c == '(') {
+                ++depth;
+            } else if (c == ')') {
+                --depth;
+            } else if (c == '|' && depth == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
 }
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2014-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file.
+ * This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+package com.amazon.kinesis.streaming.agent.tailing;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.AbstractExecutionThreadService;
+import com.google.common.util.concurrent.AbstractService;
+
+/**
+ * A service that runs in a loop, either on a thread of its own, like an
+ * {@link AbstractExecutionThreadService} (the default), or as a task of a
+ * {@link FlowScheduler} shared with other services.
+ * <p>
+ * On a thread of its own, the service runs {@link #run()}, which loops until
+ * the service stops and can block waiting for work. On a scheduler, it runs
+ * {@link #runScheduled()} over and over instead, which must not block: it
+ * returns how long to wait before running again, and the service calls
+ * {@link #wakeUp()} when there's work to do before then. In both cases,
+ * {@link #startUp()}, {@link #triggerShutdown()} and {@link #shutDown()} are
+ * called like they are by {@link AbstractExecutionThreadService}, except
+ * that {@link #startUp()} runs on the thread starting a scheduled service.
+ */
+public abstract class SchedulableService extends AbstractService {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SchedulableService.class);
+
+    private final FlowScheduler scheduler;
+    private volatile FlowScheduler.ScheduledTask task;
+
+    /**
+     * @param scheduler The scheduler to run the service on, or {@code null}
+     *        for the service to run on a thread of its own.
+     */
+    protected SchedulableService(FlowScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    protected void startUp() throws Exception {
+    }
+
+    /**
+     * The main loop of the service, when it runs on a thread of its own. It
+     * should return once {@link #isRunning()} is {@code false}.
+     */
+    protected abstract void run() throws Exception;
+
+    /**
+     * One iteration of the service, when it runs on a scheduler.
+     *
+     * @return How long to wait before the next iteration, in milliseconds:
+     *         {@code 0} to run again right away, or
+     *         {@link FlowScheduler#WAIT_FOR_WAKE_UP} to wait until
+     *         {@link #wakeUp()} is called.
+     */
+    protected abstract long runScheduled() throws Exception;
+
+    /**
+     * Makes the service stop, e.g. by waking up the thread running it. Called
+     * once when the service is stopped, on the thread stopping it.
+     */
+    protected void triggerShutdown() {
+    }
+
+    protected void shutDown() throws Exception {
+    }
+
+    protected String serviceName() {
+        return getClass().getSimpleName();
+    }
+
+    /**
+     * @return {@code true} if the service runs on a scheduler rather than a
+     *         thread of its own.
+     */
+    protected boolean isScheduled() {
+        return scheduler != null;
+    }
+
+    /**
+     * Runs the next iteration as soon as possible, if the service runs on a
+     * scheduler. A no-op on a thread of its own.
+     */
+    protected void wakeUp() {
+        FlowScheduler.ScheduledTask current = task;
+        if (current != null)
+            current.wakeUp();
+    }
+
+    @Override
+    protected final void doStart() {
+        if (scheduler == null) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runOnThread();
+                }
+            }, serviceName());
+            thread.start();
+        } else {
+            try {
+                startUp();
+                notifyStarted();
+            } catch (Throwable t) {
+                notifyFailed(t);
+                return;
+            }
+            task = scheduler.schedule(serviceName(), new FlowScheduler.Task() {
+                @Override
+                public long runOnce() {
+                    return runOnScheduler();
+                }
+            });
+        }
+    }
+
+    @Override
+    protected final void doStop() {
+        triggerShutdown();
+        FlowScheduler.ScheduledTask current = task;
+        if (current != null) {
+            current.cancel(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        shutDown();
+                        notifyStopped();
+                    } catch (Throwable t) {
+                        notifyFailed(t);
+                    }
+                }
+            });
+        }
+    }
+
+    private void runOnThread() {
+        try {
+            startUp();
+            notifyStarted();
+            if (isRunning()) {
+                try {
+                    run();
+                } catch (Throwable t) {
+                    try {
+                        shutDown();
+                    } catch (Exception ignored) {
+                        LOGGER.warn("{}: Error while attempting to shut down the service after failure.", serviceName(), ignored);
+                    }
+                    notifyFailed(t);
+                    return;
+                }
+            }
+            shutDown();
+            notifyStopped();
+        } catch (Throwable t) {
+            notifyFailed(t);
+        }
+    }
+
+    private long runOnScheduler() {
+        if (!isRunning())
+            return FlowScheduler.WAIT_FOR_WAKE_UP;
+        try {
+            return runScheduled();
+        } catch (final Throwable t) {
+            task.cancel(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        shutDown();
+                    } catch (Exception ignored) {
+                        LOGGER.warn("{}: Error while attempting to shut down the service after failure.", serviceName(), ignored);
+                    }
+                    notifyFailed(t);
+                }
+            });
+            return FlowScheduler.WAIT_FOR_WAKE_UP;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return serviceName() + " [" + state() + "]";
+    }
+}
@@ -24,9 +24,11 @@ import org.slf4j.LoggerFactory;
 
 import com.amazon.kinesis.streaming.agent.AgentContext;
 import com.amazon.kinesis.streaming.agent.IHeartbeatProvider;
+import com.amazon.kinesis.streaming.agent.tailing.StageLatencies.Stage;
 import com.amazon.kinesis.streaming.agent.tailing.checkpoints.Checkpointer;
 import com.amazon.kinesis.streaming.agent.tailing.checkpoints.FileCheckpointStore;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
 
 /**
  * Core functionality of a publisher that buffers records into an
@@ -43,6 +45,8 @@ class SimplePublisher<R extends IRecord> implements IHeartbeatProvider {
     final Checkpointer<R> checkpointer;
     protected final ISender<R> sender;
     protected volatile boolean isOpen = true;
+    // Whether every buffer that wasn't sent when the publisher closed went to the spill log
+    private volatile boolean spilledAllOnClose = false;
 
     @Getter final AgentContext agentContext;
     @Getter final FileFlow<R> flow;
@@ -82,9 +86,30 @@ class SimplePublisher<R extends IRecord> implements IHeartbeatProvider {
     public void close() {
         isOpen = false;
         queue.close();
+        spilledAllOnClose = queue.spillAllRecords();
         queue.discardAllRecords();
     }
 
+    /**
+     * Checkpoints the records in the spill log as if they were sent, since
+     * they're sent after a restart, so that they aren't read again from their
+     * files too. Call once the publisher is closed and nothing is being sent
+     * anymore. Does nothing unless all the records that weren't sent were
+     * spilled, since the checkpoints would skip the others.
+     *
+     * @return {@code true} if the spilled records were checkpointed.
+     */
+    public boolean checkpointSpilledRecords() {
+        Preconditions.checkState(!isOpen, "%s: The publisher must be closed first.", name());
+        if (!spilledAllOnClose)
+            return false;
+        for (RecordBuffer<R> buffer : queue.spilledBuffers()) {
+            checkpointer.saveCheckpoint(buffer);
+            buffer.release();
+        }
+        return true;
+    }
+
     /**
      * Returns immediately if the record could not be published because the
      * queue is full (or if publisher is shutting down).
@@ -123,12 +148,15 @@ class SimplePublisher<R extends IRecord> implements IHeartbeatProvider {
 
     public void sendBufferSync(RecordBuffer<R> buffer) {
         BufferSendResult<R> result = null;
+        long sendStartNanos = System.nanoTime();
         try {
             result = sender.sendBuffer(buffer);
         } catch(Throwable t) {
+            flow.getLatencies().recordSince(Stage.SEND, sendStartNanos);
             onSendError(buffer, t);
             return;
         }
+        flow.getLatencies().recordSince(Stage.SEND, sendStartNanos);
         totalSentBuffers.incrementAndGet();
         switch(result.getStatus()) {
         case SUCCESS:
@@ -149,7 +177,11 @@ class SimplePublisher<R extends IRecord> implements IHeartbeatProvider {
                 onBufferDropped(buffer, "retry rejected by queue");
                 return false;
             }
+        } else if (queue.queueBufferForRetry(buffer)) {
+            logger.trace("{}:{} Buffer Spilled for Retry after a Restart", name(), buffer);
+            return true;
         } else {
+            spilledAllOnClose = false;
             onBufferDropped(buffer, "retry rejected: publisher is closed");
             return false;
         }
@@ -158,6 +190,7 @@ class SimplePublisher<R extends IRecord> implements IHeartbeatProvider {
     protected void onBufferDropped(RecordBuffer<R> buffer, String reason) {
         buffersDropped.incrementAndGet();
         logger.trace("{}:{} Buffer Dropped: {}", name(), reason, buffer);
+        buffer.release();
     }
 
     /**
@@ -168,10 +201,16 @@ class SimplePublisher<R extends IRecord> implements IHeartbeatProvider {
     protected void onSendSuccess(RecordBuffer<R> buffer) {
         sendSuccess.incrementAndGet();
         logger.trace("{}:{} Send SUCCESS", name(), buffer);
+        // The destination acknowledged the last of its records
+        flow.getLatencies().recordSince(Stage.END_TO_END, buffer.firstRecordNanos());
         try {
+            long checkpointStartNanos = System.nanoTime();
             checkpointer.saveCheckpoint(buffer);
+            flow.getLatencies().recordSince(Stage.CHECKPOINT, checkpointStartNanos);
         } catch(Exception e) {
             logger.error("{}:{} Error in onSendSuccess", name(), buffer, e);
+        } finally {
+            buffer.release();
         }
     }
 
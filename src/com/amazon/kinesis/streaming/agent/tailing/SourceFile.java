@@ -14,41 +14,249 @@
 package com.amazon.kinesis.streaming.agent.tailing;
 
 import java.io.IOException;
-import java.nio.file.DirectoryStream;
 import java.nio.file.FileSystems;
-import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import lombok.EqualsAndHashCode;
 import lombok.Getter;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.CharMatcher;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
 
 /**
  * Specification of the file(s) to be tailed.
+ * <p>
+ * The directory component can contain globs too, e.g.
+ * <code>/opt/*&#47;logs/app.log</code> or <code>/var/lib/containers/**&#47;*.log</code>.
+ * In that case, {@link #directory} is the deepest directory without globs,
+ * and the files are looked for in all the directories under it that match
+ * {@link #directoryPattern} (see {@link #listDirectories()}), at most
+ * {@link #maxDirectoryDepth} levels down. As with {@link PathMatcher globs},
+ * {@code *} stays within one directory level while {@code **} crosses
+ * levels. Rotations are tracked separately in each of those directories
+ * (see {@link #forDirectory(Path)}).
+ * <p>
+ * When old rotated files are kept around in large numbers, the files that
+ * are tracked can be limited to the {@link #maxTrackedFiles} newest ones,
+ * and to those modified within {@link #maxFileAgeMillis}.
+ * <p>
+ * Compressed files are ignored, unless {@link #readCompressedFiles} is set,
+ * in which case gzip files are listed with their uncompressed size, so that
+ * rotated files compressed after they were rotated (e.g. by logrotate's
+ * {@code compress} option) can still be read when catching up.
+ * <p>
+ * Flows that tail all the matching files at the same time track each of
+ * them, and the files it's rotated to, separately (see
+ * {@link #forFile(Path)}).
  */
-@EqualsAndHashCode(exclude = { "pathMatcher" })
+@EqualsAndHashCode(exclude = { "pathMatcher", "directoryMatcher", "filter", "uncachedIndex" })
 public class SourceFile {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SourceFile.class);
+    public static final int DEFAULT_MAX_DIRECTORY_DEPTH = 8;
+    // Same order as TrackedFile.NewestFirstComparator
+    private static final Comparator<Map.Entry<Path, DirectoryIndex.Entry>> NEWEST_ENTRY_FIRST = new Comparator<Map.Entry<Path, DirectoryIndex.Entry>>() {
+        @Override
+        public int compare(Map.Entry<Path, DirectoryIndex.Entry> f1, Map.Entry<Path, DirectoryIndex.Entry> f2) {
+            DirectoryIndex.Entry e1 = f1.getValue();
+            DirectoryIndex.Entry e2 = f2.getValue();
+            return e1.getId().equals(e2.getId()) ? 0 :
+                (TrackedFile.isNewer(e1.getLastModifiedTime(), e1.getSize(), e2.getLastModifiedTime(), e2.getSize()) ? -1 : 1);
+        }
+    };
+
     @Getter private final FileFlow<?> flow;
     @Getter private final Path directory;
+    @Getter private final Path directoryPattern;
     @Getter private final Path filePattern;
+    @Getter private final int maxDirectoryDepth;
+    @Getter private final int maxTrackedFiles;
+    @Getter private final long maxFileAgeMillis;
+    @Getter private final boolean readCompressedFiles;
     private final PathMatcher pathMatcher;
+    private final PathMatcher directoryMatcher;
+    private final DirectoryIndex.Filter filter;
+    private DirectoryIndex uncachedIndex;
 
     public SourceFile(FileFlow<?> flow, String filePattern) {
+        this(flow, filePattern, DEFAULT_MAX_DIRECTORY_DEPTH);
+    }
+
+    public SourceFile(FileFlow<?> flow, String filePattern, int maxDirectoryDepth) {
+        this(flow, filePattern, maxDirectoryDepth, 0, 0);
+    }
+
+    public SourceFile(FileFlow<?> flow, String filePattern, int maxDirectoryDepth, int maxTrackedFiles, long maxFileAgeMillis) {
+        this(flow, filePattern, maxDirectoryDepth, maxTrackedFiles, maxFileAgeMillis, false);
+    }
+
+    /**
+     * @param flow
+     * @param filePattern
+     * @param maxDirectoryDepth
+     * @param maxTrackedFiles The maximum number of files listed, newest
+     *        first, or {@code 0} for no limit.
+     * @param maxFileAgeMillis Files last modified longer ago than this are
+     *        not listed, or {@code 0} for no limit.
+     * @param readCompressedFiles If {@code true}, gzip files that match the
+     *        pattern are listed too, and read through a
+     *        {@link GzipFileChannel}.
+     */
+    public SourceFile(FileFlow<?> flow, String filePattern, int maxDirectoryDepth, int maxTrackedFiles,
+            long maxFileAgeMillis, boolean readCompressedFiles) {
         this.flow = flow;
         // fileName
         Preconditions.checkArgument(!filePattern.endsWith("/"), "File name component is empty!");
+        Preconditions.checkArgument(maxDirectoryDepth > 0, "Maximum directory depth must be positive!");
         Path filePath = FileSystems.getDefault().getPath(filePattern);
-        // TODO: this does not handle globs in directory component: e.g. /opt/*/logs/app.log, /opt/**/app.log*
-        this.directory = filePath.getParent();
-        validateDirectory(this.directory);
+        Path parent = filePath.getParent();
+        validateDirectory(parent);
+        // Split the directory component at the first name with globs
+        int globIndex = 0;
+        while (globIndex < parent.getNameCount() && !isGlob(parent.getName(globIndex).toString()))
+            ++globIndex;
+        if (globIndex == parent.getNameCount()) {
+            this.directory = parent;
+            this.directoryPattern = null;
+            this.directoryMatcher = null;
+        } else {
+            Path root = parent.getRoot();
+            Path fixed = globIndex == 0 ? null : parent.subpath(0, globIndex);
+            this.directory = root == null ? fixed : (fixed == null ? root : root.resolve(fixed));
+            Preconditions.checkArgument(this.directory != null, "Directory component must start with a directory without globs!");
+            this.directoryPattern = parent.subpath(globIndex, parent.getNameCount());
+            this.directoryMatcher = FileSystems.getDefault().getPathMatcher("glob:" + this.directoryPattern.toString());
+        }
+        Preconditions.checkArgument(maxTrackedFiles >= 0, "Maximum tracked files cannot be negative!");
+        Preconditions.checkArgument(maxFileAgeMillis >= 0, "Maximum file age cannot be negative!");
+        this.maxDirectoryDepth = maxDirectoryDepth;
+        this.maxTrackedFiles = maxTrackedFiles;
+        this.maxFileAgeMillis = maxFileAgeMillis;
+        this.readCompressedFiles = readCompressedFiles;
         this.filePattern = filePath.getFileName();
         this.pathMatcher = FileSystems.getDefault().getPathMatcher("glob:" + this.filePattern.toString());
+        this.filter = newFilter();
+    }
+
+    /**
+     * A source for the files in one directory matched by a source with globs
+     * in its directory component, or for one of the files matched by a
+     * source and the files it's rotated to.
+     */
+    private SourceFile(SourceFile source, Path directory, Path fileName) {
+        this.flow = source.flow;
+        this.directory = directory;
+        this.directoryPattern = null;
+        this.directoryMatcher = null;
+        this.maxDirectoryDepth = source.maxDirectoryDepth;
+        this.maxTrackedFiles = source.maxTrackedFiles;
+        this.maxFileAgeMillis = source.maxFileAgeMillis;
+        this.readCompressedFiles = source.readCompressedFiles;
+        if (fileName == null) {
+            this.filePattern = source.filePattern;
+            this.pathMatcher = source.pathMatcher;
+        } else {
+            this.filePattern = fileName;
+            this.pathMatcher = newRotatedFileMatcher(fileName.toString(), source.pathMatcher);
+        }
+        this.filter = newFilter();
+    }
+
+    private static PathMatcher newRotatedFileMatcher(final String liveFileName, final PathMatcher sourceMatcher) {
+        final String rotatedPrefix = liveFileName + ".";
+        return new PathMatcher() {
+            @Override
+            public boolean matches(Path fileName) {
+                String name = fileName.toString();
+                // Files matched by the source are live files of their own
+                return name.equals(liveFileName) || (name.startsWith(rotatedPrefix) && !sourceMatcher.matches(fileName));
+            }
+        };
+    }
+
+    private DirectoryIndex.Filter newFilter() {
+        return new DirectoryIndex.Filter() {
+            @Override
+            public boolean matches(Path fileName) {
+                return SourceFile.this.matches(fileName);
+            }
+        };
+    }
+
+    /**
+     * @return {@code true} if the directory component has globs, so the files
+     *         can be in more than one directory.
+     */
+    public boolean hasDirectoryPattern() {
+        return this.directoryPattern != null;
+    }
+
+    /**
+     * @param leafDirectory One of the directories returned by
+     *        {@link #listDirectories()}.
+     * @return The specification of the files to tail in that directory only.
+     */
+    public SourceFile forDirectory(Path leafDirectory) {
+        return new SourceFile(this, leafDirectory, null);
+    }
+
+    /**
+     * @param file One of the files listed by {@link #listFiles()}.
+     * @return The specification of that file alone, along with the files
+     *         it's rotated to, i.e. those whose name starts with its name
+     *         followed by a dot (e.g. {@code app.log.1} or {@code app.log.2.gz}
+     *         for {@code app.log}), unless this source matches them too.
+     */
+    public SourceFile forFile(Path file) {
+        Preconditions.checkArgument(file.getParent() != null && file.getFileName() != null, "File must have a directory!");
+        return new SourceFile(this, file.getParent(), file.getFileName());
+    }
+
+    /**
+     * Walks the directories under {@link #directory} that could match
+     * {@link #directoryPattern}. The listings come from the
+     * {@link DirectoryIndex} shared by all flows, so only directories whose
+     * last modified time changed are read again, and walking a tree that
+     * didn't change costs a single stat per directory.
+     *
+     * @return The directories the files could be in, sorted by path: only
+     *         {@link #directory} itself if the directory component has no
+     *         globs.
+     * @throws IOException If there was an error reading a directory.
+     */
+    public List<Path> listDirectories() throws IOException {
+        if (this.directoryPattern == null)
+            return Collections.singletonList(this.directory);
+        List<Path> directories = new ArrayList<>();
+        // Without "**", only directories exactly as deep as the pattern can match
+        int depth = this.directoryPattern.toString().contains("**") ?
+                this.maxDirectoryDepth : Math.min(this.maxDirectoryDepth, this.directoryPattern.getNameCount());
+        walkDirectories(this.directory, 0, depth, directories);
+        Collections.sort(directories);
+        return directories;
+    }
+
+    private void walkDirectories(Path dir, int depth, int maxDepth, List<Path> directories) throws IOException {
+        if (depth > 0 && this.directoryMatcher.matches(this.directory.relativize(dir)))
+            directories.add(dir);
+        if (depth < maxDepth) {
+            for (Path subdirectory : getDirectoryIndex().listDirectories(dir)) {
+                walkDirectories(subdirectory, depth + 1, maxDepth, directories);
+            }
+        }
     }
 
     /**
@@ -56,27 +264,162 @@ public class SourceFile {
      *          and that match the file name pattern, sorted by {@code lastModifiedTime}
      *          descending (newest at the top). An empty list is returned if
      *          {@link #directory} does not exist, or if there are no files
-     *          that match the pattern.
+     *          that match the pattern. The listing comes from the
+     *          {@link DirectoryIndex} shared by all flows, and is limited to
+     *          the tracking window (see {@link #listFiles(TrackedFile)}).
      * @throws IOException If there was an error reading the directory or getting
      *          the {@code lastModifiedTime} of a directory. Note that if
      *          the {@link #directory} doesn't exist no exception will be thrown
      *          but an empty list is returned instead.
      */
     public TrackedFileList listFiles() throws IOException {
-        if(!Files.exists(this.directory))
-            return TrackedFileList.emptyList();
-
-        List<TrackedFile> files = new ArrayList<>();
-        try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(this.directory)) {
-            for (Path p : directoryStream) {
-                if (this.pathMatcher.matches(p.getFileName()) && validateFile(p)) {
-                    files.add(new TrackedFile(flow, p));
+        return listFiles(null);
+    }
+
+    /**
+     * Same as {@link #listFiles()}, but limited to the tracking window (see
+     * {@link #maxTrackedFiles} and {@link #maxFileAgeMillis}). Files outside
+     * the window are dropped before any {@link TrackedFile} is built for
+     * them, and counted in {@link TrackedFileList#getFilesOutsideWindow()}.
+     * So are compressed files whose uncompressed counterpart is still listed,
+     * since they're still being compressed.
+     * <p>
+     * With a window, the files are first placed with the attributes cached
+     * by the {@link DirectoryIndex} (see
+     * {@link DirectoryIndex#listCachedFiles(Path, DirectoryIndex.Filter)}),
+     * and only those that fall inside the window are read again, until the
+     * window is made of up-to-date files only. So the attributes of the many
+     * old files outside the window are only read once in a while.
+     *
+     * @param currentFile The file being tailed, if any. If it's outside the
+     *        window (e.g. the tailer is far behind), the window is extended
+     *        to include it and all the files newer than it, so that no data
+     *        is skipped.
+     * @return See {@link #listFiles()}.
+     * @throws IOException See {@link #listFiles()}.
+     */
+    public TrackedFileList listFiles(TrackedFile currentFile) throws IOException {
+        DirectoryIndex index = getDirectoryIndex();
+        boolean windowed = this.maxTrackedFiles > 0 || this.maxFileAgeMillis > 0;
+        // The entries' paths are normalized by the index, so keep the directory as listed
+        List<Map.Entry<Path, DirectoryIndex.Entry>> entries = new ArrayList<>();
+        int compressionsInProgress = 0;
+        for (Path dir : listDirectories()) {
+            List<DirectoryIndex.Entry> dirEntries = windowed ? index.listCachedFiles(dir, filter) : index.listFiles(dir, filter);
+            Set<Path> fileNames = new HashSet<>();
+            if (this.readCompressedFiles) {
+                for (DirectoryIndex.Entry entry : dirEntries)
+                    fileNames.add(entry.getPath().getFileName());
+            }
+            for (DirectoryIndex.Entry entry : dirEntries) {
+                Path fileName = entry.getPath().getFileName();
+                if (TrackedFile.isCompressed(fileName)) {
+                    // While the file is being compressed, it's the uncompressed one that's read
+                    String name = fileName.toString();
+                    if (fileNames.contains(fileName.resolveSibling(name.substring(0, name.length() - TrackedFile.GZIP_EXTENSION.length())))) {
+                        ++compressionsInProgress;
+                        continue;
+                    }
+                }
+                entries.add(Maps.immutableEntry(dir.resolve(fileName), entry));
+            }
+        }
+        // The files read again since they were listed
+        Set<Path> refreshed = new HashSet<>();
+        int windowSize;
+        int currentFileIndex;
+        while (true) {
+            // sort the files by decsending last modified time
+            Collections.sort(entries, NEWEST_ENTRY_FIRST);
+            windowSize = windowSize(entries);
+            currentFileIndex = indexOf(entries, currentFile);
+            if (!windowed)
+                break;
+            int filesToRefresh = Math.max(windowSize, currentFileIndex + 1);
+            if (currentFile != null && currentFileIndex < 0) {
+                // The current file may be listed with the attributes of another file
+                filesToRefresh = entries.size();
+            }
+            if (!refresh(index, entries, filesToRefresh, refreshed))
+                break;
+        }
+        if (currentFileIndex >= windowSize) {
+            LOGGER.warn("Current file {} is outside the tracking window of {} ({} newer files); " +
+                    "tracking it until it's been read.", currentFile.getPath(), this, currentFileIndex);
+            windowSize = currentFileIndex + 1;
+        }
+        List<TrackedFile> files = new ArrayList<>(windowSize);
+        for (Map.Entry<Path, DirectoryIndex.Entry> e : entries.subList(0, windowSize)) {
+            DirectoryIndex.Entry entry = e.getValue();
+            long size = entry.getSize();
+            if (TrackedFile.isCompressed(e.getKey())) {
+                // Offsets in compressed files are offsets in the uncompressed data
+                try {
+                    size = GzipFileChannel.uncompressedSize(e.getKey());
+                } catch (NoSuchFileException ex) {
+                    ++compressionsInProgress;
+                    continue;
                 }
             }
+            files.add(new TrackedFile(flow, e.getKey(), entry.getId(), entry.getLastModifiedTime(), size));
         }
-        // sort the files by decsending last modified time and return
-        Collections.sort(files, new TrackedFile.NewestFirstComparator());
-        return new TrackedFileList(files);
+        return new TrackedFileList(files, entries.size() - windowSize + compressionsInProgress);
+    }
+
+    /**
+     * @param entries The files, newest first.
+     * @return The number of files at the start of the list that are inside
+     *         the tracking window.
+     */
+    private int windowSize(List<Map.Entry<Path, DirectoryIndex.Entry>> entries) {
+        int windowSize = entries.size();
+        if (this.maxFileAgeMillis > 0) {
+            long oldest = System.currentTimeMillis() - this.maxFileAgeMillis;
+            while (windowSize > 0 && entries.get(windowSize - 1).getValue().getLastModifiedTime() < oldest)
+                --windowSize;
+        }
+        if (this.maxTrackedFiles > 0)
+            windowSize = Math.min(windowSize, this.maxTrackedFiles);
+        return windowSize;
+    }
+
+    private static int indexOf(List<Map.Entry<Path, DirectoryIndex.Entry>> entries, TrackedFile file) {
+        if (file != null) {
+            for (int i = 0; i < entries.size(); ++i) {
+                if (entries.get(i).getValue().getId().equals(file.getId()))
+                    return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Reads the attributes of the first files of the list again, unless they
+     * were already, and drops the ones that are gone.
+     *
+     * @return {@code true} if any file changed, so the list has to be sorted
+     *         again.
+     */
+    private static boolean refresh(DirectoryIndex index, List<Map.Entry<Path, DirectoryIndex.Entry>> entries,
+            int count, Set<Path> refreshed) throws IOException {
+        boolean changed = false;
+        for (int i = 0; i < count; ++i) {
+            Map.Entry<Path, DirectoryIndex.Entry> e = entries.get(i);
+            if (!refreshed.add(e.getKey()))
+                continue;
+            DirectoryIndex.Entry entry = index.refresh(e.getValue());
+            if (entry == null) {
+                entries.remove(i--);
+                --count;
+                changed = true;
+            } else if (entry != e.getValue()) {
+                entries.set(i, Maps.immutableEntry(e.getKey(), entry));
+                changed = changed || !entry.getId().equals(e.getValue().getId())
+                        || entry.getLastModifiedTime() != e.getValue().getLastModifiedTime()
+                        || entry.getSize() != e.getValue().getSize();
+            }
+        }
+        return changed;
     }
 
     /**
@@ -89,21 +432,55 @@ public class SourceFile {
      */
     public int countFiles() throws IOException {
         int count = 0;
-        if(Files.exists(this.directory)) {
-            try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(this.directory)) {
-                for (Path p : directoryStream) {
-                    if (this.pathMatcher.matches(p.getFileName()) && validateFile(p)) {
-                        ++count;
-                    }
-                }
-            }
+        for (Path dir : listDirectories()) {
+            count += getDirectoryIndex().countFiles(dir, filter);
         }
         return count;
     }
 
+    /**
+     * Makes the next listing read the directory and file attributes again,
+     * instead of using the ones cached for all flows, e.g. after noticing
+     * that a file was truncated.
+     */
+    public void invalidate() throws IOException {
+        for (Path dir : listDirectories()) {
+            getDirectoryIndex().invalidate(dir);
+        }
+    }
+
+    /**
+     * @return The index shared by all flows of the agent, or one private to
+     *         this instance, that doesn't cache anything, if there's no agent.
+     */
+    private DirectoryIndex getDirectoryIndex() {
+        DirectoryIndex index = null;
+        if (flow != null && flow.getAgentContext() != null) {
+            index = flow.getAgentContext().getDirectoryIndex();
+        }
+        if (index == null) {
+            if (this.uncachedIndex == null) {
+                this.uncachedIndex = new DirectoryIndex(0, 0);
+            }
+            index = this.uncachedIndex;
+        }
+        return index;
+    }
+
+    /**
+     * @param fileName A file name, without its directory.
+     * @return {@code true} if a file with that name in {@link #directory}
+     *         would be tailed.
+     */
+    public boolean matches(Path fileName) {
+        return this.pathMatcher.matches(fileName) && validateFile(fileName);
+    }
+
     @Override
     public String toString() {
-        return this.directory + "/" + this.filePattern;
+        return this.directoryPattern == null ?
+                this.directory + "/" + this.filePattern :
+                this.directory + "/" + this.directoryPattern + "/" + this.filePattern;
     }
 
     /**
@@ -113,15 +490,21 @@ public class SourceFile {
      */
     private void validateDirectory(Path dir) {
         Preconditions.checkArgument(dir != null, "Directory component is empty!");
-        // TODO: validate that the directory component has no glob characters
+    }
+
+    private static boolean isGlob(String name) {
+        return CharMatcher.anyOf("*?[{").matchesAnyOf(name);
     }
     
     /**
      * Make sure to ignore invalid file for streaming
-     * e.g. well known compressed file extensions
+     * e.g. well known compressed file extensions, except gzip files when
+     * {@link #readCompressedFiles} is set
      * @param file
      */
     private boolean validateFile(Path file) {
+        if (this.readCompressedFiles && TrackedFile.isCompressed(file))
+            return true;
         List<String> ignoredExtensions = ImmutableList.of(".gz", ".bz2", ".zip"); 
         
         for (String extension : ignoredExtensions) {
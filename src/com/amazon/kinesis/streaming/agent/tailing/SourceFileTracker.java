@@ -16,9 +16,13 @@ package com.amazon.kinesis.streaming.agent.tailing;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.concurrent.NotThreadSafe;
 
@@ -111,6 +115,13 @@ import com.google.common.base.Preconditions;
  *       tracking completely by specifying a specific file name (rather than
  *       a glob) to track. The tests of this class include cases that cover this
  *       mode.</li>
+ *   <li>Compress: any of the above, followed by compressing the rotated
+ *       file with gzip and deleting it, like {@code logrotate}'s
+ *       {@code compress} option. Only tracked when the flow reads compressed
+ *       files (see {@link SourceFile#isReadCompressedFiles()}): the current
+ *       file is matched to a new compressed file heuristically (see
+ *       {@link #findCompressedCounterpart(TrackedFileList)}), which is read
+ *       from the same (uncompressed) offset.</li>
  * </ul>
  *
  * Notes:
@@ -146,10 +157,23 @@ public class SourceFileTracker {
     @Getter protected TrackedFileList pendingFiles;
     protected TrackedFileList currentSnapshot;
     @Getter protected long lastRefreshTimestamp = 0;
+    @Getter private final AtomicLong totalRotationAnalyses = new AtomicLong();
+    @Getter private final AtomicLong totalRotationAnalysesSkipped = new AtomicLong();
 
     public SourceFileTracker(AgentContext agentContext, FileFlow<?> flow) throws IOException {
+        this(agentContext, flow, flow.getSourceFile());
+    }
+
+    /**
+     * @param agentContext
+     * @param flow
+     * @param sourceFile The files to track, e.g. those of the flow in one of
+     *        the directories matched by its file pattern.
+     * @throws IOException
+     */
+    public SourceFileTracker(AgentContext agentContext, FileFlow<?> flow, SourceFile sourceFile) throws IOException {
         this.flow = flow;
-        this.sourceFile = flow.getSourceFile();
+        this.sourceFile = sourceFile;
     }
 
     public void initialize() throws IOException {
@@ -171,7 +195,7 @@ public class SourceFileTracker {
         currentSnapshot = new TrackedFileList(Collections.singletonList(currentOpenFile));
         currentOpenFileIndex = 0;
         pendingFiles = TrackedFileList.emptyList();
-        TrackedFileList newSnapshot = sourceFile.listFiles();
+        TrackedFileList newSnapshot = sourceFile.listFiles(currentOpenFile);
         if(updateCurrentFile(newSnapshot)) {
             // means that the current file was tracked... we just need to change the offset
             if (currentOpenFile.getSize() >= checkpoint.getOffset()) {
@@ -199,6 +223,14 @@ public class SourceFileTracker {
         return remaining;
     }
 
+    /**
+     * @return The number of files matching the pattern that were left out of
+     *         the current snapshot by the flow's tracking window.
+     */
+    public int getFilesOutsideWindow() {
+        return currentSnapshot == null ? 0 : currentSnapshot.getFilesOutsideWindow();
+    }
+
     public boolean newerFilesPending() {
         return !pendingFiles.isEmpty();
     }
@@ -228,6 +260,28 @@ public class SourceFileTracker {
         }
     }
 
+    /**
+     * Moves on to the latest file, leaving the current file and the files
+     * between it and the latest one to be read by someone else (e.g. a
+     * {@link CatchUpReader}). The current file is not closed.
+     *
+     * @return The files that were skipped, oldest first, starting with the
+     *         current file.
+     * @throws IOException
+     */
+    public List<TrackedFile> skipToLatestFile() throws IOException {
+        Preconditions.checkState(currentOpenFile != null && newerFilesPending(), "No newer files to skip to.");
+        List<TrackedFile> skipped = new ArrayList<>();
+        skipped.add(currentOpenFile);
+        // Pending files are newest first, and the latest one isn't skipped
+        for (int i = pendingFiles.size() - 1; i > 0; --i)
+            skipped.add(pendingFiles.get(i));
+        // Hand over the channel of the current file instead of closing it
+        currentOpenFile = null;
+        startTailingNewFile(currentSnapshot, 0);
+        return skipped;
+    }
+
     /**
      * This method performs a series of quick checks on the current open file
      * to see if we need to refresh. This is much faster than doing a full
@@ -241,11 +295,13 @@ public class SourceFileTracker {
     public boolean mustRefresh() {
         try {
             // Some files appeared/disappeared
-            if(currentSnapshot == null || sourceFile.countFiles() != currentSnapshot.size())
+            if(currentSnapshot == null
+                    || sourceFile.countFiles() != currentSnapshot.size() + currentSnapshot.getFilesOutsideWindow())
                 return true;
             if(currentOpenFile != null) {
                 if(!Files.exists(currentOpenFile.getPath())) {
                     LOGGER.debug("Current file {} does not exist anymore. Must refresh.", currentOpenFile.getPath());
+                    sourceFile.invalidate();
                     return true;
                 }
                 BasicFileAttributes newAttr = Files.readAttributes(currentOpenFile.getPath(), BasicFileAttributes.class);
@@ -253,11 +309,13 @@ public class SourceFileTracker {
                 FileId newId = FileId.get(newAttr);
                 if(!newId.equals(currentOpenFile.getId())) {
                     LOGGER.debug("ID for current file ({}) changed from {} to {}. Must refresh.", currentOpenFile.getPath(), currentOpenFile.getId(), newId);
+                    sourceFile.invalidate();
                     return true;
                 }
-                // Check if there are indications of truncation
-                if(newAttr.size() < currentOpenFile.getSize()) {
+                // Check if there are indications of truncation (compressed files are smaller than their data)
+                if(!currentOpenFile.isCompressed() && newAttr.size() < currentOpenFile.getSize()) {
                     LOGGER.debug("Current file ({}) shrunk in size from {} to {}. Must refresh.", currentOpenFile.getPath(), currentOpenFile.getSize(), newAttr.size());
+                    sourceFile.invalidate();
                     return true;
                 }
             }
@@ -281,7 +339,7 @@ public class SourceFileTracker {
      * @throws IOException
      */
     public boolean refresh() throws IOException {
-        TrackedFileList newSnapshot = sourceFile.listFiles();
+        TrackedFileList newSnapshot = sourceFile.listFiles(currentOpenFile);
         boolean currentFileTracked = false;
         if(currentOpenFile == null) {
             initializeCurrentFile(newSnapshot);
@@ -319,6 +377,14 @@ public class SourceFileTracker {
         TrackedFileList oldSnapshot = currentSnapshot;
         TrackedFile oldCurrentOpenFile = currentOpenFile;
 
+        // Most refreshes find the same files, at most with data appended to
+        // the latest one: no need to match every file against the old snapshot.
+        if(isSnapshotUnchanged(newSnapshot)) {
+            totalRotationAnalysesSkipped.incrementAndGet();
+            return onNoRotationDetected(newSnapshot, currentOpenFileIndex);
+        }
+        totalRotationAnalyses.incrementAndGet();
+
         // Initialize the analysis and log any anomalies
         TrackedFileRotationAnalyzer analyzer = new TrackedFileRotationAnalyzer(currentSnapshot, newSnapshot, currentOpenFile);
         if(!analyzer.getIncomingAnomalies().isEmpty()) {
@@ -331,7 +397,10 @@ public class SourceFileTracker {
         boolean currentFileTracked = false;
         if(!analyzer.checkNoRotation()) {
             onPossibleRotationDetected(newSnapshot);
-            if (!analyzer.allFilesHaveDisappeared()) {
+            int compressedIndex = analyzer.hasCounterpart(currentOpenFile) ? -1 : findCompressedCounterpart(newSnapshot);
+            if (compressedIndex >= 0) {
+                currentFileTracked = onRotationByCompression(newSnapshot, compressedIndex);
+            } else if (!analyzer.allFilesHaveDisappeared()) {
                 if(analyzer.hasCounterpart(currentOpenFile)) {
                     if(analyzer.currentOpenFileWasTruncated()) {
                         // If current file was truncated, we need to do something.
@@ -366,6 +435,97 @@ public class SourceFileTracker {
         return currentFileTracked;
     }
 
+    /**
+     * Compares the new snapshot to the current one position by position,
+     * which costs a single pass over the snapshots.
+     *
+     * @param newSnapshot
+     * @return {@code true} if the new snapshot has the same files as the
+     *         current one, with unique {@code FileId}s, the same paths and
+     *         in the same order, and only the latest file grew (if at all).
+     *         The rotation analysis would find no rotation nor anomalies in
+     *         that case, and continue tailing the current open file at the
+     *         same index.
+     */
+    @VisibleForTesting
+    boolean isSnapshotUnchanged(TrackedFileList newSnapshot) {
+        if(newSnapshot.size() != currentSnapshot.size()
+                || currentOpenFileIndex < 0
+                || currentSnapshot.get(currentOpenFileIndex) != currentOpenFile) // identity intended
+            return false;
+        Set<FileId> ids = new HashSet<>();
+        for(int i = 0; i < newSnapshot.size(); ++i) {
+            TrackedFile current = currentSnapshot.get(i);
+            TrackedFile incoming = newSnapshot.get(i);
+            if(!incoming.isSameAs(current) || !incoming.getPath().equals(current.getPath()) || !ids.add(incoming.getId()))
+                return false;
+            if(i == 0) {
+                // The latest file can be appended to, but a smaller size suggests truncation
+                if(incoming.getSize() < current.getSize() || incoming.getLastModifiedTime() < current.getLastModifiedTime())
+                    return false;
+            } else if(incoming.getSize() != current.getSize() || incoming.getLastModifiedTime() != current.getLastModifiedTime()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Looks for the current open file among the new compressed files of the
+     * snapshot, in case it was compressed after it was rotated (e.g. by
+     * logrotate), which gives it a new {@code FileId}. Compressed files keep
+     * the last modified time of the original file (at least to the second),
+     * and their uncompressed size can only be larger than what was read of
+     * the current file (see {@link #mayBeUncompressedSizeAtLeast}). The file named like the current one plus the
+     * compression extension is preferred, otherwise the oldest one that
+     * qualifies.
+     *
+     * @param newSnapshot
+     * @return The index of the compressed counterpart of the current open
+     *         file in the new snapshot, or {@code -1} if there's none.
+     * @throws IOException
+     */
+    @VisibleForTesting
+    int findCompressedCounterpart(TrackedFileList newSnapshot) throws IOException {
+        if(!sourceFile.isReadCompressedFiles() || currentOpenFile.isCompressed())
+            return -1;
+        long minSize = Math.max(currentOpenFile.getSize(), currentOpenFile.getCurrentOffset());
+        long minSeconds = currentOpenFile.getLastModifiedTime() / 1000;
+        String compressedName = currentOpenFile.getPath().getFileName() + TrackedFile.GZIP_EXTENSION;
+        int candidate = -1;
+        for(int i = newSnapshot.size() - 1; i >= 0; --i) {
+            TrackedFile file = newSnapshot.get(i);
+            if(file.isCompressed()
+                    && currentSnapshot.indexOfFileId(file.getId()) == -1
+                    && file.getLastModifiedTime() / 1000 >= minSeconds
+                    && mayBeUncompressedSizeAtLeast(file.getSize(), minSize)) {
+                if(file.getPath().getFileName().toString().equals(compressedName))
+                    return i;
+                if(candidate == -1)
+                    candidate = i;
+            }
+        }
+        return candidate;
+    }
+
+    /**
+     * The size of a compressed file is read from its gzip trailer, which only
+     * has the uncompressed size modulo 2<sup>32</sup>. Past 4 GiB, it is
+     * compared modulo 2<sup>32</sup>, assuming the file grew by less than
+     * 2 GiB since it was last looked at.
+     *
+     * @param trailerSize The size found in the trailer of a compressed file.
+     * @param minSize
+     * @return {@code true} if the uncompressed size of the file can be at
+     *         least {@code minSize}.
+     */
+    @VisibleForTesting
+    static boolean mayBeUncompressedSizeAtLeast(long trailerSize, long minSize) {
+        if (minSize < (1L << 32) && trailerSize >= minSize)
+            return true;
+        return (int) (trailerSize - minSize) >= 0;
+    }
+
     private void closeCurrentFileIfOpen() {
         if(currentOpenFile != null && currentOpenFile.isOpen())
             closeCurrentFile();
@@ -441,6 +601,8 @@ public class SourceFileTracker {
         // finally, update the files
         this.currentSnapshot = newSnapshot;
         this.pendingFiles = newPendingFiles;
+        // anything older than the newest file in the snapshot has been rotated
+        newSnapshot.get(currentFileIndex).setRotated(currentFileIndex > 0);
     }
 
     protected boolean onTrackingAnomaly(String message, TrackedFileList newSnapshot, boolean resetTailingRequested) throws IOException {
@@ -490,6 +652,15 @@ public class SourceFileTracker {
         return true;
     }
 
+    protected boolean onRotationByCompression(TrackedFileList newSnapshot, int newIndex) throws IOException {
+        TrackedFile resumed = newSnapshot.get(newIndex);
+        LOGGER.debug("Current file ({}) was apparently compressed after rotation; " +
+                "resuming with compressed file ({}).",
+                currentOpenFile.toShortString(), resumed.toShortString());
+        resumeTailingRotatedFileWithNewId(newSnapshot, newIndex);
+        return true;
+    }
+
     protected boolean onCurrentFileNotFound(TrackedFileList newSnapshot) throws IOException {
         String msg = "Current file was not found";
         if(newSnapshot.indexOfPath(currentOpenFile.getPath()) != -1)
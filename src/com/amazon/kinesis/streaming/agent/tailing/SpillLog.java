@@ -0,0 +1,605 @@
+/*
+ * Copyright 2014-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file.
+ * This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+package com.amazon.kinesis.streaming.agent.tailing;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import lombok.Getter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * An append-only log on disk of the buffers that don't fit in the
+ * {@link PublishingQueue} of a flow, so that its tailer can keep reading
+ * while the destination is throttling or unreachable.
+ * <p>
+ * The log is a sequence of segment files, each mapped into memory while it's
+ * on disk. Buffers are appended at the write cursor, read back in order at
+ * the read cursor, and acknowledged once the buffer read back was sent or
+ * dropped (i.e. {@link RecordBuffer#release() released}). The oldest segment
+ * is deleted once all its buffers were acknowledged. The records read back
+ * are read-only views into their segment, so they aren't copied to the heap.
+ * A deleted segment stays mapped until those views are garbage collected,
+ * but since its buffers were all acknowledged by then, it no longer counts
+ * in {@link #bytesOnDisk()}, so that a drained log takes buffers again
+ * right away.
+ * <p>
+ * Since buffers are acknowledged out of order, the cursors are kept as the
+ * state of each buffer in its segment, along with the path and
+ * {@link FileId} of the files its records come from. When the log is opened,
+ * the segments left over by a previous run are read back: the buffers that
+ * weren't acknowledged are read back again, oldest first, since those read
+ * back before may not have been sent. They're given new sequence numbers,
+ * in the same order, so that their checkpoints are ordered before those of
+ * the buffers of this run. A buffer is written before its length, so one
+ * that was cut short (e.g. by a crash) ends its segment. The segments aren't
+ * forced to disk though, so what's on disk after a crash of the host itself
+ * is up to the OS.
+ * <p>
+ * Whether the records read back after a restart are also read again from
+ * their files depends on the checkpoints: the publisher checkpoints the
+ * spilled records as if they were sent only if all the records it didn't
+ * send were spilled on shutdown (see
+ * {@link PublishingQueue#spillAllRecords()}). Otherwise, e.g. after a crash,
+ * the records in memory were lost, so the tailer reads again from the last
+ * checkpoint, and the spilled records may be sent twice.
+ *
+ * @param <R> The record type.
+ */
+@ThreadSafe
+class SpillLog<R extends IRecord> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SpillLog.class);
+    private static final String SEGMENT_GLOB = "segment-*.log";
+    private static final Pattern SEGMENT_NAME = Pattern.compile("segment-(\\d+)\\.log");
+    // Length (0 past the last buffer of a segment), state, buffer ID, timestamp, record count,
+    // size with overhead and file count
+    private static final int ENTRY_HEADER_BYTES = 4 + 4 + 8 + 8 + 4 + 8 + 4;
+    // Path length, ID length, last modified time and size, followed by the path and ID
+    private static final int FILE_HEADER_BYTES = 4 + 4 + 8 + 8;
+    // File index, start offset, original length, data length and partition key length
+    private static final int RECORD_HEADER_BYTES = 4 + 8 + 8 + 4 + 4;
+    private static final int UNREAD = 0;
+    private static final int READ = 1;
+    private static final int ACKNOWLEDGED = 2;
+
+    private final FileFlow<R> flow;
+    private final Path directory;
+    private final long maxBytes;
+    private final int segmentSizeBytes;
+    private final String name;
+
+    // Segments on disk, oldest first; appends go to the last one
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    // Buffers not read back yet, oldest first
+    private final Deque<Entry> unread = new ArrayDeque<>();
+    private long nextSegmentIndex = 0;
+    private long bytesOnDisk = 0;
+    private final AtomicInteger unreadBuffers = new AtomicInteger();
+    private final AtomicLong unreadRecords = new AtomicLong();
+    private final AtomicLong unreadBytes = new AtomicLong();
+
+    @Getter private final AtomicLong totalSpilledBuffers = new AtomicLong();
+    @Getter private final AtomicLong totalReplayedBuffers = new AtomicLong();
+    @Getter private final AtomicLong totalRefusedBuffers = new AtomicLong();
+    @Getter private final AtomicLong totalSegmentsDeleted = new AtomicLong();
+    @Getter private final AtomicLong totalRestoredBuffers = new AtomicLong();
+
+    /**
+     * Opens the log, and reads back the segments left over by a previous run.
+     *
+     * @param flow
+     * @param directory The directory of the segments, used by this log only.
+     * @param maxBytes The maximum size of the segments on disk. At least one
+     *        segment is needed to spill anything.
+     * @param segmentSizeBytes The size of each segment, unless a buffer
+     *        doesn't fit in one, in which case it gets a segment of its own.
+     * @throws IOException If the directory can't be created or listed.
+     */
+    SpillLog(FileFlow<R> flow, Path directory, long maxBytes, int segmentSizeBytes) throws IOException {
+        Preconditions.checkArgument(maxBytes > 0, "Maximum size must be positive.");
+        Preconditions.checkArgument(segmentSizeBytes > 0, "Segment size must be positive.");
+        this.flow = flow;
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.segmentSizeBytes = segmentSizeBytes;
+        this.name = getClass().getSimpleName() + "[" + flow.getId() + "]";
+        Files.createDirectories(directory);
+        restoreSegments();
+    }
+
+    /**
+     * Copies the records of the buffer to the end of the log. The caller
+     * should release the buffer once it's spilled.
+     *
+     * @param buffer
+     * @return {@code true} if the buffer was spilled, or {@code false} if the
+     *         log is full.
+     */
+    public synchronized boolean append(RecordBuffer<R> buffer) {
+        byte[][] partitionKeys = new byte[buffer.sizeRecords()][];
+        // Records of the same file share an entry in the file table
+        List<TrackedFile> files = new ArrayList<>();
+        List<byte[][]> fileNames = new ArrayList<>();
+        int size = ENTRY_HEADER_BYTES;
+        int i = 0;
+        for (R record : buffer) {
+            if (indexOf(files, record.file()) < 0) {
+                byte[][] fileName = record.file() == null ? new byte[][] { new byte[0], new byte[0] } : new byte[][] {
+                        record.file().getPath().toString().getBytes(StandardCharsets.UTF_8),
+                        record.file().getId().getId().getBytes(StandardCharsets.UTF_8) };
+                files.add(record.file());
+                fileNames.add(fileName);
+                size += FILE_HEADER_BYTES + fileName[0].length + fileName[1].length;
+            }
+            if (record instanceof KinesisRecord && ((KinesisRecord) record).partitionKey() != null)
+                partitionKeys[i] = ((KinesisRecord) record).partitionKey().getBytes(StandardCharsets.UTF_8);
+            size += RECORD_HEADER_BYTES + (record.data() == null ? 0 : record.data().remaining())
+                    + (partitionKeys[i] == null ? 0 : partitionKeys[i].length);
+            ++i;
+        }
+        Segment segment = segmentFor(size);
+        if (segment == null) {
+            totalRefusedBuffers.incrementAndGet();
+            return false;
+        }
+        ByteBuffer out = segment.map.duplicate();
+        out.position(segment.writePosition + 4);
+        out.putInt(UNREAD);
+        out.putLong(buffer.id());
+        out.putLong(buffer.timestamp());
+        out.putInt(buffer.sizeRecords());
+        out.putLong(buffer.sizeBytesWithOverhead());
+        out.putInt(files.size());
+        for (int f = 0; f < files.size(); ++f) {
+            byte[][] fileName = fileNames.get(f);
+            out.putInt(fileName[0].length);
+            out.putInt(fileName[1].length);
+            out.putLong(files.get(f) == null ? -1 : files.get(f).getLastModifiedTime());
+            out.putLong(files.get(f) == null ? -1 : files.get(f).getSize());
+            out.put(fileName[0]);
+            out.put(fileName[1]);
+        }
+        int recordsPosition = out.position();
+        i = 0;
+        for (R record : buffer) {
+            out.putInt(indexOf(files, record.file()));
+            out.putLong(record.startOffset());
+            out.putLong(record.endOffset() - record.startOffset());
+            if (record.data() == null) {
+                out.putInt(-1);
+            } else {
+                out.putInt(record.data().remaining());
+                out.put(record.data().duplicate());
+            }
+            if (partitionKeys[i] == null) {
+                out.putInt(-1);
+            } else {
+                out.putInt(partitionKeys[i].length);
+                out.put(partitionKeys[i]);
+            }
+            ++i;
+        }
+        // Written last, so that a buffer cut short isn't read back
+        segment.map.putInt(segment.writePosition, size);
+        Entry entry = new Entry(segment, segment.writePosition, recordsPosition, buffer.id(), buffer.timestamp(),
+                buffer.firstRecordNanos(), buffer.queuedNanos(), buffer.sizeRecords(), buffer.sizeBytesWithOverhead(),
+                files.toArray(new TrackedFile[files.size()]));
+        segment.writePosition += size;
+        segment.entries.add(entry);
+        unread.add(entry);
+        unreadBuffers.incrementAndGet();
+        unreadRecords.addAndGet(entry.records);
+        unreadBytes.addAndGet(entry.bytesWithOverhead);
+        totalSpilledBuffers.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * @return The oldest buffer not read back yet, or {@code null} if there
+     *         are none. Its segment is kept until the buffer is released.
+     */
+    public synchronized RecordBuffer<R> poll() {
+        final Entry entry = unread.poll();
+        if (entry == null)
+            return null;
+        unreadBuffers.decrementAndGet();
+        unreadRecords.addAndGet(-entry.records);
+        unreadBytes.addAndGet(-entry.bytesWithOverhead);
+        setState(entry, READ);
+        RecordBuffer<R> buffer = readBuffer(entry);
+        buffer.setReleaseListener(new Runnable() {
+            @Override
+            public void run() {
+                acknowledge(entry);
+            }
+        });
+        totalReplayedBuffers.incrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * @return The buffers that weren't acknowledged yet, whether they were
+     *         read back or not, ordered by sequence number. They're read
+     *         back again after a restart, so they can be checkpointed as if
+     *         they were sent once the log is no longer read from. Releasing
+     *         them doesn't acknowledge them.
+     */
+    public synchronized List<RecordBuffer<R>> unacknowledgedBuffers() {
+        List<Entry> entries = new ArrayList<>();
+        for (Segment segment : segments) {
+            for (Entry entry : segment.entries) {
+                if (entry.state != ACKNOWLEDGED)
+                    entries.add(entry);
+            }
+        }
+        Collections.sort(entries, BY_BUFFER_ID);
+        List<RecordBuffer<R>> buffers = new ArrayList<>(entries.size());
+        for (Entry entry : entries)
+            buffers.add(readBuffer(entry));
+        return buffers;
+    }
+
+    /**
+     * @return The number of buffers not read back yet.
+     */
+    public int size() {
+        return unreadBuffers.get();
+    }
+
+    public long unreadRecords() {
+        return unreadRecords.get();
+    }
+
+    public long unreadBytes() {
+        return unreadBytes.get();
+    }
+
+    /**
+     * @return The size of the segments that weren't deleted yet.
+     */
+    public synchronized long bytesOnDisk() {
+        return bytesOnDisk;
+    }
+
+    /**
+     * Drops the buffers not read back yet. They're acknowledged, so they
+     * aren't read back after a restart either.
+     *
+     * @return The number of records dropped.
+     */
+    public synchronized int discardUnread() {
+        int discarded = 0;
+        Entry entry;
+        while ((entry = unread.poll()) != null) {
+            unreadBuffers.decrementAndGet();
+            unreadRecords.addAndGet(-entry.records);
+            unreadBytes.addAndGet(-entry.bytesWithOverhead);
+            discarded += entry.records;
+            setState(entry, ACKNOWLEDGED);
+        }
+        deleteAcknowledgedSegments();
+        return discarded;
+    }
+
+    private synchronized void acknowledge(Entry entry) {
+        setState(entry, ACKNOWLEDGED);
+        deleteAcknowledgedSegments();
+    }
+
+    /**
+     * Keep private. Call only when holding the lock of this log.
+     */
+    private void setState(Entry entry, int state) {
+        entry.state = state;
+        entry.segment.map.putInt(entry.position + 4, state);
+        if (state == ACKNOWLEDGED)
+            ++entry.segment.acknowledged;
+    }
+
+    /**
+     * Keep private. Call only when holding the lock of this log.
+     */
+    private RecordBuffer<R> readBuffer(Entry entry) {
+        RecordBuffer<R> buffer = new RecordBuffer<>(flow, entry.bufferId, entry.timestamp,
+                entry.firstRecordNanos, entry.queuedNanos);
+        ByteBuffer in = entry.segment.map.duplicate();
+        in.position(entry.recordsPosition);
+        for (int i = 0; i < entry.records; ++i) {
+            TrackedFile file = entry.files[in.getInt()];
+            long offset = in.getLong();
+            long originalLength = in.getLong();
+            int dataLength = in.getInt();
+            ByteBuffer data = null;
+            if (dataLength >= 0) {
+                data = in.slice();
+                data.limit(dataLength);
+                data = data.asReadOnlyBuffer();
+                in.position(in.position() + dataLength);
+            }
+            int partitionKeyLength = in.getInt();
+            String partitionKey = null;
+            if (partitionKeyLength >= 0) {
+                byte[] bytes = new byte[partitionKeyLength];
+                in.get(bytes);
+                partitionKey = new String(bytes, StandardCharsets.UTF_8);
+            }
+            buffer.add(flow.restoreRecord(file, offset, data, originalLength, partitionKey));
+        }
+        return buffer;
+    }
+
+    /**
+     * Reads back the segments left over by a previous run. Called only by the
+     * constructor.
+     */
+    private void restoreSegments() throws IOException {
+        // By index, since names don't sort numerically
+        Map<Long, Path> leftovers = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_GLOB)) {
+            for (Path path : stream) {
+                Matcher matcher = SEGMENT_NAME.matcher(path.getFileName().toString());
+                if (matcher.matches())
+                    leftovers.put(Long.parseLong(matcher.group(1)), path);
+            }
+        }
+        // Records of the same file share the tracked file, as they did when spilled
+        Map<String, TrackedFile> files = new HashMap<>();
+        List<Entry> restored = new ArrayList<>();
+        for (Map.Entry<Long, Path> leftover : leftovers.entrySet()) {
+            nextSegmentIndex = leftover.getKey() + 1;
+            Path path = leftover.getValue();
+            Segment segment;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                segment = new Segment(path, channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size()));
+            } catch (IOException e) {
+                LOGGER.error("{}: Failed to open {} left over by a previous run. Its records won't be sent.", name, path, e);
+                continue;
+            }
+            // Appends go to a new segment
+            segment.sealed = true;
+            restored.addAll(restoreEntries(segment, files));
+            segments.add(segment);
+            bytesOnDisk += segment.map.capacity();
+        }
+        Collections.sort(restored, BY_BUFFER_ID);
+        long nowNanos = System.nanoTime();
+        for (Entry entry : restored) {
+            // Ordered before the buffers of this run, whose sequence numbers start over
+            entry.bufferId = RecordBuffer.nextId();
+            entry.firstRecordNanos = nowNanos;
+            entry.queuedNanos = nowNanos;
+            unread.add(entry);
+            unreadBuffers.incrementAndGet();
+            unreadRecords.addAndGet(entry.records);
+            unreadBytes.addAndGet(entry.bytesWithOverhead);
+        }
+        totalRestoredBuffers.addAndGet(restored.size());
+        deleteAcknowledgedSegments();
+        if (!leftovers.isEmpty()) {
+            LOGGER.info("{}: Restored {} buffers ({} records) from {} segments left over by a previous run.",
+                    name, restored.size(), unreadRecords.get(), leftovers.size());
+        }
+    }
+
+    /**
+     * @return The entries of the segment that weren't acknowledged.
+     */
+    private List<Entry> restoreEntries(Segment segment, Map<String, TrackedFile> files) {
+        List<Entry> restored = new ArrayList<>();
+        ByteBuffer in = segment.map.duplicate();
+        int position = 0;
+        while (position + ENTRY_HEADER_BYTES <= in.capacity()) {
+            int size = in.getInt(position);
+            if (size < ENTRY_HEADER_BYTES || size > in.capacity() - position)
+                break;
+            in.position(position + 4);
+            int state = in.getInt();
+            long bufferId = in.getLong();
+            long timestamp = in.getLong();
+            int records = in.getInt();
+            long bytesWithOverhead = in.getLong();
+            TrackedFile[] entryFiles = new TrackedFile[in.getInt()];
+            for (int f = 0; f < entryFiles.length; ++f) {
+                byte[] path = new byte[in.getInt()];
+                byte[] id = new byte[in.getInt()];
+                long lastModifiedTime = in.getLong();
+                long fileSize = in.getLong();
+                in.get(path);
+                in.get(id);
+                if (path.length == 0)
+                    continue;   // records without a file
+                String key = new String(path, StandardCharsets.UTF_8) + "\0" + new String(id, StandardCharsets.UTF_8);
+                TrackedFile file = files.get(key);
+                if (file == null) {
+                    file = new TrackedFile(flow, Paths.get(new String(path, StandardCharsets.UTF_8)),
+                            new FileId(new String(id, StandardCharsets.UTF_8)), lastModifiedTime, fileSize);
+                    files.put(key, file);
+                }
+                entryFiles[f] = file;
+            }
+            Entry entry = new Entry(segment, position, in.position(), bufferId, timestamp, -1, -1,
+                    records, bytesWithOverhead, entryFiles);
+            segment.entries.add(entry);
+            if (state == ACKNOWLEDGED) {
+                entry.state = ACKNOWLEDGED;
+                ++segment.acknowledged;
+            } else {
+                // Those read back may not have been sent
+                restored.add(entry);
+            }
+            position += size;
+        }
+        segment.writePosition = position;
+        return restored;
+    }
+
+    /**
+     * Keep private. Call only when holding the lock of this log.
+     */
+    private Segment segmentFor(int size) {
+        Segment segment = segments.peekLast();
+        if (segment != null && !segment.sealed) {
+            // Leaves room for the length that ends the segment
+            if (segment.map.capacity() - segment.writePosition >= size + 4)
+                return segment;
+            segment.sealed = true;
+            deleteAcknowledgedSegments();
+        }
+        int capacity = Math.max(segmentSizeBytes, size + 4);
+        if (bytesOnDisk + capacity > maxBytes)
+            return null;
+        Path path = directory.resolve("segment-" + nextSegmentIndex++ + ".log");
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // The mapping stays valid once the channel is closed
+            segment = new Segment(path, channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity));
+        } catch (IOException e) {
+            LOGGER.error("{}: Failed to create {}.", name, path, e);
+            return null;
+        }
+        segments.add(segment);
+        bytesOnDisk += capacity;
+        return segment;
+    }
+
+    /**
+     * Keep private. Call only when holding the lock of this log.
+     */
+    private void deleteAcknowledgedSegments() {
+        Segment oldest;
+        while ((oldest = segments.peek()) != null && oldest.sealed && oldest.acknowledged == oldest.entries.size()) {
+            deleteSegment(segments.poll());
+        }
+    }
+
+    /**
+     * Keep private. Call only when holding the lock of this log.
+     */
+    private void deleteSegment(Segment segment) {
+        totalSegmentsDeleted.incrementAndGet();
+        try {
+            Files.deleteIfExists(segment.path);
+        } catch (IOException e) {
+            LOGGER.error("{}: Failed to delete {}.", name, segment.path, e);
+        }
+        bytesOnDisk -= segment.map.capacity();
+        // Unmapped once the records read back from it are unreachable too
+        segment.map = null;
+    }
+
+    private static int indexOf(List<TrackedFile> files, TrackedFile file) {
+        for (int i = 0; i < files.size(); ++i) {
+            if (files.get(i) == file)
+                return i;
+        }
+        return -1;
+    }
+
+    public synchronized Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new HashMap<>();
+        metrics.put("SpillLog.UnreadBuffers", unreadBuffers.get());
+        metrics.put("SpillLog.UnreadRecords", unreadRecords.get());
+        metrics.put("SpillLog.Segments", segments.size());
+        metrics.put("SpillLog.BytesOnDisk", bytesOnDisk());
+        metrics.put("SpillLog.TotalSpilledBuffers", totalSpilledBuffers);
+        metrics.put("SpillLog.TotalReplayedBuffers", totalReplayedBuffers);
+        metrics.put("SpillLog.TotalRefusedBuffers", totalRefusedBuffers);
+        metrics.put("SpillLog.TotalSegmentsDeleted", totalSegmentsDeleted);
+        metrics.put("SpillLog.TotalRestoredBuffers", totalRestoredBuffers);
+        return metrics;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    private static final Comparator<Entry> BY_BUFFER_ID = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry e1, Entry e2) {
+            return Long.compare(e1.bufferId, e2.bufferId);
+        }
+    };
+
+    private static class Segment {
+        final Path path;
+        // Dropped once the segment is deleted, so that it can be unmapped
+        MappedByteBuffer map;
+        int writePosition = 0;
+        // Set once no more buffers are appended to the segment
+        boolean sealed = false;
+        final List<Entry> entries = new ArrayList<>();
+        int acknowledged = 0;
+
+        Segment(Path path, MappedByteBuffer map) {
+            this.path = path;
+            this.map = map;
+        }
+    }
+
+    private static class Entry {
+        final Segment segment;
+        final int position;
+        final int recordsPosition;
+        long bufferId;
+        final long timestamp;
+        long firstRecordNanos;
+        long queuedNanos;
+        final int records;
+        final long bytesWithOverhead;
+        final TrackedFile[] files;
+        int state = UNREAD;
+
+        Entry(Segment segment, int position, int recordsPosition, long bufferId, long timestamp,
+                long firstRecordNanos, long queuedNanos, int records, long bytesWithOverhead, TrackedFile[] files) {
+            this.segment = segment;
+            this.position = position;
+            this.recordsPosition = recordsPosition;
+            this.bufferId = bufferId;
+            this.timestamp = timestamp;
+            this.firstRecordNanos = firstRecordNanos;
+            this.queuedNanos = queuedNanos;
+            this.records = records;
+            this.bytesWithOverhead = bytesWithOverhead;
+            this.files = files;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2014-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file.
+ * This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+package com.amazon.kinesis.streaming.agent.tailing;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.amazon.kinesis.streaming.agent.metrics.IMetricsScope;
+import com.amazon.kinesis.streaming.agent.metrics.LatencyHistogram;
+import com.amazonaws.services.cloudwatch.model.StandardUnit;
+
+/**
+ * The latencies of the records of a flow at each stage of their way to the
+ * destination, as {@link LatencyHistogram histograms} in nanoseconds.
+ * <p>
+ * The percentiles in {@link #getMetrics()} cover all the records since the
+ * agent started, like the other totals in the status it logs. The ones
+ * {@link #emit(IMetricsScope) emitted} to CloudWatch cover only the records
+ * since they were last emitted.
+ */
+@ThreadSafe
+public class StageLatencies {
+    private static final double[] PERCENTILES = { 0.5, 0.99, 0.999 };
+    private static final String[] PERCENTILE_NAMES = { "P50", "P99", "P999" };
+
+    public static enum Stage {
+        /** Reading a record from its file. */
+        PARSE("Parse"),
+        /** From the first record of a buffer being added to the buffer being queued. */
+        BUFFER_LINGER("BufferLinger"),
+        /** From a buffer being queued (or queued for retry) to it being taken by a sender. */
+        QUEUE_WAIT("QueueWait"),
+        /** Sending a buffer to the destination, per attempt. */
+        SEND("Send"),
+        /** Saving the checkpoint of a buffer once it was sent. */
+        CHECKPOINT("Checkpoint"),
+        /** From the first record of a buffer being read to the destination acknowledging all of it. */
+        END_TO_END("EndToEnd");
+
+        private final String metricName;
+
+        private Stage(String metricName) {
+            this.metricName = metricName;
+        }
+    }
+
+    private final Map<Stage, LatencyHistogram> histograms = new EnumMap<>(Stage.class);
+    // What was last emitted to CloudWatch
+    private final Map<Stage, LatencyHistogram.Snapshot> emitted = new EnumMap<>(Stage.class);
+
+    public StageLatencies() {
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram histogram = new LatencyHistogram();
+            histograms.put(stage, histogram);
+            emitted.put(stage, histogram.snapshot());
+        }
+    }
+
+    /**
+     * @param stage
+     * @param nanos The time the stage took, in nanoseconds.
+     */
+    public void record(Stage stage, long nanos) {
+        histograms.get(stage).record(nanos);
+    }
+
+    /**
+     * Records the same time for several records at once.
+     *
+     * @param stage
+     * @param nanos The time the stage took for each record, in nanoseconds.
+     * @param records
+     */
+    public void record(Stage stage, long nanos, int records) {
+        histograms.get(stage).record(nanos, records);
+    }
+
+    /**
+     * Records the time since the given {@link System#nanoTime()}.
+     *
+     * @param stage
+     * @param startNanos
+     */
+    public void recordSince(Stage stage, long startNanos) {
+        record(stage, System.nanoTime() - startNanos);
+    }
+
+    public LatencyHistogram.Snapshot snapshot(Stage stage) {
+        return histograms.get(stage).snapshot();
+    }
+
+    /**
+     * Adds the percentiles of each stage, in milliseconds, of the records
+     * since the last call to the given scope, e.g.
+     * {@code QueueWaitLatencyP99}. Stages without any records since the last
+     * call are left out.
+     *
+     * @param scope
+     */
+    public synchronized void emit(IMetricsScope scope) {
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram.Snapshot current = histograms.get(stage).snapshot();
+            LatencyHistogram.Snapshot interval = current.since(emitted.get(stage));
+            emitted.put(stage, current);
+            if (interval.count() == 0)
+                continue;
+            for (int i = 0; i < PERCENTILES.length; ++i) {
+                scope.addData(stage.metricName + "Latency" + PERCENTILE_NAMES[i],
+                        toMillis(interval.percentile(PERCENTILES[i])), StandardUnit.Milliseconds);
+            }
+        }
+    }
+
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new HashMap<>();
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram.Snapshot snapshot = histograms.get(stage).snapshot();
+            String prefix = "Latency." + stage.metricName;
+            metrics.put(prefix + ".Count", snapshot.count());
+            for (int i = 0; i < PERCENTILES.length; ++i) {
+                metrics.put(prefix + "." + PERCENTILE_NAMES[i] + "Millis", toMillis(snapshot.percentile(PERCENTILES[i])));
+            }
+        }
+        return metrics;
+    }
+
+    static double toMillis(long nanos) {
+        return (double) nanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
@@ -23,6 +23,7 @@ import java.util.Comparator;
 import javax.annotation.concurrent.NotThreadSafe;
 
 import lombok.Getter;
+import lombok.Setter;
 import lombok.ToString;
 
 import org.slf4j.Logger;
@@ -38,6 +39,7 @@ import com.google.common.base.Preconditions;
 @ToString(exclude={"channel", "flow"})
 public class TrackedFile {
     private static final Logger LOGGER = LoggerFactory.getLogger(TrackedFile.class);
+    public static final String GZIP_EXTENSION = ".gz";
     @Getter protected final FileFlow<?> flow;
     @Getter protected final FileId id;
     @Getter protected final Path path;
@@ -45,6 +47,12 @@ public class TrackedFile {
     @Getter protected final long lastModifiedTime;
     @Getter protected final long size;
     @Getter protected FileChannel channel;
+    /**
+     * Set by the {@link SourceFileTracker} when newer files exist in the same
+     * snapshot, which means this file was rotated and is not expected to be
+     * written to or truncated any more.
+     */
+    @Getter @Setter protected boolean rotated = false;
 
     public TrackedFile(FileFlow<?> flow, Path path, FileId id, long lastModifiedTime, long size) {
         this.flow = flow;
@@ -56,11 +64,13 @@ public class TrackedFile {
     }
 
     public TrackedFile(FileFlow<?> flow, Path path) throws IOException {
-        this(flow, path, FileId.get(path), Files.getLastModifiedTime(path).toMillis(), Files.size(path));
+        this(flow, path, FileId.get(path), Files.getLastModifiedTime(path).toMillis(),
+                isCompressed(path) ? GzipFileChannel.uncompressedSize(path) : Files.size(path));
     }
 
     protected TrackedFile(TrackedFile original) {
         this(original.flow, original.path, original.id, original.lastModifiedTime, original.size);
+        this.rotated = original.rotated;
     }
 
     public void inheritChannel(TrackedFile oldOpenFile) throws IOException {
@@ -68,6 +78,10 @@ public class TrackedFile {
         Preconditions.checkState(channel == null, "This file has an open channel already.");
         Preconditions.checkState(oldOpenFile.id.equals(id), "File ID differ (old: %s, new: %s)", id.toString(), oldOpenFile.id.toString());
         channel = oldOpenFile.channel;
+        if (channel instanceof ManagedFileChannel) {
+            // The file may have been renamed, in which case it can only be opened again by its new name
+            ((ManagedFileChannel) channel).setPath(path);
+        }
     }
 
     public long getCurrentOffset() throws IOException {
@@ -75,6 +89,8 @@ public class TrackedFile {
     }
 
     public long getCurrentSize() throws IOException {
+        if (channel == null && isCompressed())
+            return size;
         return channel == null ? (Files.exists(path) ? Files.size(path) : 0) : channel.size();
     }
 
@@ -85,12 +101,29 @@ public class TrackedFile {
     public void open(long offset) throws IOException {
         Preconditions.checkState(channel == null, "File already open.");
         Preconditions.checkArgument(offset >= 0, "Offset must be a non-negative number.");
-        channel = FileChannel.open(path, StandardOpenOption.READ);
+        FileHandleManager handles = getFileHandleManager();
+        if (handles != null)
+            channel = handles.open(path, id);
+        else
+            channel = isCompressed() ? GzipFileChannel.open(path) : FileChannel.open(path, StandardOpenOption.READ);
         if(offset > 0) {
             channel.position(offset);
         }
     }
 
+    /**
+     * @return The manager shared by all the flows of the agent, which keeps
+     *         the number of open files within budget, or {@code null} if
+     *         there's no budget or no agent (e.g. in tests). Files are then
+     *         read through plain channels, without any bookkeeping.
+     */
+    private FileHandleManager getFileHandleManager() {
+        if (flow == null || flow.getAgentContext() == null)
+            return null;
+        FileHandleManager handles = flow.getAgentContext().getFileHandleManager();
+        return handles.getMaxOpenFiles() > 0 ? handles : null;
+    }
+
     /**
      * Closes the channel that's open to this file.
      */
@@ -114,6 +147,20 @@ public class TrackedFile {
         return channel != null && channel.isOpen();
     }
 
+    /**
+     * @return {@code true} if this is a gzip file, in which case it's read
+     *         through a {@link GzipFileChannel} and its offsets and size are
+     *         those of the uncompressed data.
+     */
+    public boolean isCompressed() {
+        return isCompressed(path);
+    }
+
+    public static boolean isCompressed(Path path) {
+        Path fileName = path.getFileName();
+        return fileName != null && fileName.toString().toLowerCase().endsWith(GZIP_EXTENSION);
+    }
+
     /**
      * @param f
      * @return {@code true} if the two files have the same ID,
@@ -21,6 +21,8 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
+import lombok.Getter;
+
 import com.google.common.base.Preconditions;
 
 /**
@@ -34,9 +36,22 @@ public class TrackedFileList extends AbstractList<TrackedFile> {
     }
 
     private final List<TrackedFile> snapshot;
+    // The files matching the pattern that were left out of the snapshot
+    @Getter private final int filesOutsideWindow;
 
     public TrackedFileList(List<TrackedFile> snapshot) {
+        this(snapshot, 0);
+    }
+
+    /**
+     * @param snapshot
+     * @param filesOutsideWindow The number of older files that matched the
+     *        file pattern but were left out of the snapshot (see
+     *        {@link SourceFile#listFiles(TrackedFile)}).
+     */
+    public TrackedFileList(List<TrackedFile> snapshot, int filesOutsideWindow) {
         this.snapshot = new ArrayList<>(validate(snapshot));
+        this.filesOutsideWindow = filesOutsideWindow;
     }
 
     @Override
@@ -345,7 +345,8 @@ public class TrackedFileRotationAnalyzer {
     /**
      * Matches all files in {@code newSnapshot} (except the top two) to
      * the {@code currentSnapshot}. {@code FileId} is used for the
-     * matching.
+     * matching. The current snapshot is indexed once, so matching takes
+     * linear time even with many rotated files.
      * @param other
      */
     @VisibleForTesting
@@ -353,10 +354,16 @@ public class TrackedFileRotationAnalyzer {
         // start with clean slate
         counterparts.clear();
         counterpartIndices.clear();
+        // Index the current files by ID, keeping the first (newest) file for duplicate IDs
+        Map<FileId, Integer> currentIndices = new HashMap<>();
+        for(int i = current.size() - 1; i >= 0; --i) {
+            currentIndices.put(current.get(i).getId(), i);
+        }
         // Use file ID to find the counterpart of new files in current
         for(int i = 0; i < incoming.size(); ++i) {
             TrackedFile incomingFile = incoming.get(i);
-            int currentIndex = current.indexOfFileId(incomingFile.getId());
+            Integer ix = currentIndices.get(incomingFile.getId());
+            int currentIndex = ix == null ? -1 : ix;
             if(currentIndex >= 0) {
                 TrackedFile currentFile = current.get(currentIndex);
                 counterparts.put(incomingFile, currentFile);
@@ -13,12 +13,17 @@
  */
 package com.amazon.kinesis.streaming.agent.tailing.checkpoints;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import lombok.Getter;
 
 import com.amazon.kinesis.streaming.agent.tailing.FileFlow;
+import com.amazon.kinesis.streaming.agent.tailing.FileFlow.TailingMode;
+import com.amazon.kinesis.streaming.agent.tailing.FileId;
 import com.amazon.kinesis.streaming.agent.tailing.IRecord;
 import com.amazon.kinesis.streaming.agent.tailing.RecordBuffer;
 import com.google.common.base.Preconditions;
@@ -27,6 +32,12 @@ import com.google.common.base.Preconditions;
  * Class that manages checkpoint updates per {@link FileFlow flow}.
  * Current implementation only makes sure that for a given {@link FileFlow flow}
  * an older checkpoint arriving late does not overwrite a newer checkpoint.
+ * Flows that tail more than one file at a time (i.e. with globs in the
+ * directory of their file pattern, tailing their files concurrently, or
+ * catching up on several rotated files in parallel) get
+ * a checkpoint for each file in the buffer, and the same rule applies to each
+ * file separately, since the buffers of different files are sent in no
+ * particular order.
  *
  * This is not ideal because it could potentially create gaps and lead to data
  * loss, but in normal cases this should happen only rarely.
@@ -40,14 +51,27 @@ import com.google.common.base.Preconditions;
  */
 public class Checkpointer<R extends IRecord> {
     private static final Logger LOGGER = LoggerFactory.getLogger(Checkpointer.class);
+    private static final int MAX_FILES_COMMITTED = 4096;
 
     @Getter private final FileCheckpointStore store;
     @Getter private final FileFlow<R> flow;
     private long committed = -1;
+    private final boolean checkpointPerFile;
+    // With a checkpoint per file, the last buffer committed for each of the most recent files
+    private final Map<FileId, Long> committedPerFile = new LinkedHashMap<FileId, Long>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<FileId, Long> eldest) {
+            return size() > MAX_FILES_COMMITTED;
+        }
+    };
 
     public Checkpointer(FileFlow<R> flow, FileCheckpointStore store) {
         this.flow = flow;
         this.store = store;
+        this.checkpointPerFile = flow != null && (flow.getTailingMode() == TailingMode.CONCURRENT
+                || flow.getSourceFile().hasDirectoryPattern() || flow.getCatchUpParallelism() > 1);
     }
 
     /**
@@ -57,6 +81,8 @@ public class Checkpointer<R extends IRecord> {
      *         would overwrite a previous checkpoint.
      */
     public synchronized FileCheckpoint saveCheckpoint(RecordBuffer<?> buffer) {
+        if(checkpointPerFile)
+            return saveCheckpointPerFile(buffer);
         // SANITYCHECK: Can remove when done with debugging
         Preconditions.checkArgument(buffer.id() != committed);
         // Only store the checkpoint if it has an increasing sequence number
@@ -70,4 +96,23 @@ public class Checkpointer<R extends IRecord> {
             return null;
         }
     }
+
+    private FileCheckpoint saveCheckpointPerFile(RecordBuffer<?> buffer) {
+        FileCheckpoint checkpoint = null;
+        // The buffer's last file comes last, so its checkpoint is the latest one
+        for(IRecord record : buffer.lastRecordOfEachFile()) {
+            FileId id = record.file().getId();
+            Long fileCommitted = committedPerFile.get(id);
+            // SANITYCHECK: Can remove when done with debugging
+            Preconditions.checkArgument(fileCommitted == null || buffer.id() != fileCommitted);
+            if(fileCommitted == null || buffer.id() > fileCommitted) {
+                committedPerFile.put(id, buffer.id());
+                checkpoint = store.saveCheckpoint(record.file(), record.endOffset());
+            } else {
+                LOGGER.trace("Buffer {} has lower sequence number than the last committed value {} for file {}. " +
+                        "Its checkpoint will not be updated.", buffer, fileCommitted, record.file());
+            }
+        }
+        return checkpoint;
+    }
 }
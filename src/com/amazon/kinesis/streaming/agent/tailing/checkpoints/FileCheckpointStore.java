@@ -18,6 +18,7 @@ import java.util.List;
 import java.util.Map;
 
 import com.amazon.kinesis.streaming.agent.tailing.FileFlow;
+import com.amazon.kinesis.streaming.agent.tailing.SourceFile;
 import com.amazon.kinesis.streaming.agent.tailing.TrackedFile;
 
 /**
@@ -50,6 +51,32 @@ public interface FileCheckpointStore {
      */
     public FileCheckpoint getCheckpointForFlow(FileFlow<?> flow);
 
+    /**
+     * @param flow
+     * @param directory
+     * @return The latest checkpoint for a file directly in the given
+     *         directory, for flows that tail files in more than one
+     *         directory, or {@code null} if there is none.
+     */
+    public FileCheckpoint getCheckpointForDirectory(FileFlow<?> flow, Path directory);
+
+    /**
+     * @param flow
+     * @param source A source without globs in its directory, e.g. one of the
+     *        files of a flow that tails its files concurrently (see
+     *        {@link SourceFile#forFile(Path)}).
+     * @return The latest checkpoint for a file of the given source, or
+     *         {@code null} if there is none.
+     */
+    public FileCheckpoint getCheckpointForSource(FileFlow<?> flow, SourceFile source);
+
+    /**
+     * @param flow
+     * @return All the checkpoints of the given flow, latest first, e.g. to
+     *         resume reading each of the files it was catching up on.
+     */
+    public List<FileCheckpoint> getCheckpointsForFlow(FileFlow<?> flow);
+
     /**
      * Cleans up any resources used up by this store.
      */
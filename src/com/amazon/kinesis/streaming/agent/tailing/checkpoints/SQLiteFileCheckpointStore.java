@@ -39,6 +39,7 @@ import org.slf4j.LoggerFactory;
 import com.amazon.kinesis.streaming.agent.AgentContext;
 import com.amazon.kinesis.streaming.agent.tailing.FileFlow;
 import com.amazon.kinesis.streaming.agent.tailing.FileId;
+import com.amazon.kinesis.streaming.agent.tailing.SourceFile;
 import com.amazon.kinesis.streaming.agent.tailing.TrackedFile;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
@@ -257,6 +258,88 @@ public class SQLiteFileCheckpointStore implements FileCheckpointStore {
         }
     }
 
+    @Override
+    public List<FileCheckpoint> getCheckpointsForFlow(FileFlow<?> flow) {
+        Preconditions.checkNotNull(flow);
+        if (!ensureConnected())
+            return Collections.emptyList();
+        try {
+            @Cleanup PreparedStatement statement = connection.prepareStatement(
+                    "select path, fileId, lastModifiedTime, size, offset " +
+                    "from FILE_CHECKPOINTS " +
+                    "where flow=? " +
+                    "order by lastUpdated desc");
+            statement.setString(1, flow.getId());
+            @Cleanup ResultSet result = statement.executeQuery();
+            List<FileCheckpoint> checkpoints = new ArrayList<>();
+            while (result.next()) {
+                TrackedFile file = new TrackedFile(
+                        flow, Paths.get(result.getString("path")),
+                        new FileId(result.getString("fileId")),
+                        result.getLong("lastModifiedTime"),
+                        result.getLong("size"));
+                checkpoints.add(new FileCheckpoint(file, result.getLong("offset")));
+            }
+            return checkpoints;
+        } catch (SQLException e) {
+            LOGGER.error("Failed when getting checkpoints for flow {}", flow.getId(), e);
+            return Collections.emptyList();
+        }
+    }
+
+    @Override
+    public FileCheckpoint getCheckpointForDirectory(FileFlow<?> flow, Path directory) {
+        Preconditions.checkNotNull(flow);
+        Preconditions.checkNotNull(directory);
+        return getLatestCheckpointInDirectory(flow, directory, null);
+    }
+
+    @Override
+    public FileCheckpoint getCheckpointForSource(FileFlow<?> flow, SourceFile source) {
+        Preconditions.checkNotNull(flow);
+        Preconditions.checkNotNull(source);
+        Preconditions.checkArgument(!source.hasDirectoryPattern(), "Source must be in a single directory!");
+        return getLatestCheckpointInDirectory(flow, source.getDirectory(), source);
+    }
+
+    /**
+     * @param source If not {@code null}, only the checkpoints of files it
+     *        matches are considered.
+     */
+    private FileCheckpoint getLatestCheckpointInDirectory(FileFlow<?> flow, Path directory, SourceFile source) {
+        if (!ensureConnected())
+            return null;
+        String prefix = directory.toAbsolutePath().toString() + "/";
+        try {
+            // Rows of sub-directories share the prefix too, and are skipped below
+            @Cleanup PreparedStatement statement = connection.prepareStatement(
+                    "select path, fileId, lastModifiedTime, size, offset " +
+                    "from FILE_CHECKPOINTS " +
+                    "where flow=? and substr(path, 1, ?)=? " +
+                    "order by lastUpdated desc");
+            statement.setString(1, flow.getId());
+            statement.setInt(2, prefix.length());
+            statement.setString(3, prefix);
+            @Cleanup ResultSet result = statement.executeQuery();
+            while (result.next()) {
+                Path path = Paths.get(result.getString("path"));
+                if (path.getParent().equals(directory.toAbsolutePath())
+                        && (source == null || source.matches(path.getFileName()))) {
+                    TrackedFile file = new TrackedFile(
+                            flow, path,
+                            new FileId(result.getString("fileId")),
+                            result.getLong("lastModifiedTime"),
+                            result.getLong("size"));
+                    return new FileCheckpoint(file, result.getLong("offset"));
+                }
+            }
+            return null;
+        } catch (SQLException e) {
+            LOGGER.error("Failed when getting checkpoint for directory {} in flow {}", directory, flow.getId(), e);
+            return null;
+        }
+    }
+
     @Override
     public List<Map<String, Object>> dumpCheckpoints() {
         if (!ensureConnected())
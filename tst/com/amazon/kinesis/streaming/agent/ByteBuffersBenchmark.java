@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2014-2017 Amazon.com, Inc. All Rights Reserved.
+ */
+package com.amazon.kinesis.streaming.agent;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import com.amazon.kinesis.streaming.agent.testing.MicroBenchmark;
+
+/**
+ * Compares {@link ByteBuffers#advanceBufferToNextLine(ByteBuffer)} with the
+ * original byte-at-a-time loop on buffers of short, average and very long
+ * lines. Disabled by default; enable and run it on its own when changing
+ * the newline scanner.
+ */
+public class ByteBuffersBenchmark {
+    private static final int BUFFER_SIZE = 4 * 1024 * 1024;
+
+    @DataProvider
+    public Object[][] lineLengths() {
+        return new Object[][] {
+                {"short", 16},
+                {"average", 160},
+                {"very long", 64 * 1024},
+        };
+    }
+
+    @Test(enabled=false, groups={"benchmark"}, dataProvider="lineLengths")
+    public void benchmarkAdvanceBufferToNextLine(String label, int lineLength) throws Exception {
+        MicroBenchmark benchmark = new MicroBenchmark(20, 20);
+        for (final ByteBuffer buffer : new ByteBuffer[] {
+                buildBuffer(ByteBuffer.allocate(BUFFER_SIZE), lineLength),
+                buildBuffer(ByteBuffer.allocateDirect(BUFFER_SIZE), lineLength)}) {
+            String kind = label + " lines, " + (buffer.isDirect() ? "direct" : "heap");
+            benchmark.run("byte-at-a-time (" + kind + ")", BUFFER_SIZE, new Callable<Long>() {
+                @Override
+                public Long call() {
+                    return scanAll(buffer, false);
+                }
+            });
+            benchmark.run("word-at-a-time (" + kind + ")", BUFFER_SIZE, new Callable<Long>() {
+                @Override
+                public Long call() {
+                    return scanAll(buffer, true);
+                }
+            });
+        }
+    }
+
+    private static long scanAll(ByteBuffer buffer, boolean wordAtATime) {
+        buffer.rewind();
+        long lines = 0;
+        while ((wordAtATime ? ByteBuffers.advanceBufferToNextLine(buffer)
+                : ByteBuffersTest.advanceBufferToNextLineOneByteAtATime(buffer)) != -1) {
+            ++lines;
+        }
+        return lines;
+    }
+
+    private static ByteBuffer buildBuffer(ByteBuffer buffer, int averageLineLength) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (buffer.hasRemaining()) {
+            int length = Math.min(buffer.remaining(), 1 + random.nextInt(2 * averageLineLength));
+            for (int i = 0; i < length - 1; ++i) {
+                buffer.put((byte) (' ' + random.nextInt(95)));
+            }
+            buffer.put((byte) Constants.NEW_LINE);
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
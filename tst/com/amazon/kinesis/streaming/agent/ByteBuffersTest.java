@@ -16,9 +16,11 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.StandardOpenOption;
+import java.util.Random;
 
 import org.apache.commons.lang3.RandomStringUtils;
 import org.testng.annotations.BeforeMethod;
@@ -156,4 +158,66 @@ public class ByteBuffersTest {
         original.position(0);
         assertEquals(ByteBuffers.toString(original, StandardCharsets.UTF_8), originalStr);
     }
+
+    /** The original byte-at-a-time implementation, used as reference. */
+    static int advanceBufferToNextLineOneByteAtATime(ByteBuffer buffer) {
+        while (buffer.hasRemaining()) {
+            if (buffer.get() == Constants.NEW_LINE) {
+                return buffer.position();
+            }
+        }
+        return -1;
+    }
+
+    @DataProvider
+    public Object[][] bufferKinds() {
+        return new Object[][] {
+                {false, ByteOrder.BIG_ENDIAN, 0},
+                {false, ByteOrder.LITTLE_ENDIAN, 0},
+                {false, ByteOrder.BIG_ENDIAN, 3},   // slice with non-zero arrayOffset
+                {true, ByteOrder.BIG_ENDIAN, 0},
+                {true, ByteOrder.LITTLE_ENDIAN, 5},
+        };
+    }
+
+    @Test(dataProvider = "bufferKinds")
+    public void testAdvanceBufferToNextLineMatchesByteAtATime(boolean direct, ByteOrder order, int sliceOffset) {
+        Random random = new Random(42);
+        // Bytes around the newline value and with the high bit set are the
+        // ones most likely to trip word-at-a-time tricks.
+        final byte[] alphabet = {'a', '\t', '\n', 0x0B, 0x09, (byte) 0x8A, (byte) 0xFF, 0x00, (byte) 0x80};
+        for (int iteration = 0; iteration < 200; ++iteration) {
+            byte[] data = new byte[sliceOffset + random.nextInt(100)];
+            for (int i = 0; i < data.length; ++i) {
+                data[i] = random.nextInt(4) == 0 ? alphabet[random.nextInt(alphabet.length)] : (byte) ('a' + random.nextInt(26));
+            }
+            ByteBuffer expected = ByteBuffer.wrap(data);
+            ByteBuffer actual = direct ? ByteBuffer.allocateDirect(data.length) : ByteBuffer.allocate(data.length);
+            actual.put(data).flip();
+            expected.position(sliceOffset);
+            actual.position(sliceOffset);
+            expected = expected.slice();
+            actual = actual.slice().order(order);
+            int start = expected.limit() == 0 ? 0 : random.nextInt(expected.limit());
+            int end = start + (expected.limit() == start ? 0 : random.nextInt(expected.limit() - start + 1));
+            expected.position(start).limit(end);
+            actual.position(start).limit(end);
+            int expectedResult;
+            do {
+                expectedResult = advanceBufferToNextLineOneByteAtATime(expected);
+                assertEquals(ByteBuffers.advanceBufferToNextLine(actual), expectedResult);
+                assertEquals(actual.position(), expected.position());
+            } while (expectedResult != -1);
+        }
+    }
+
+    @Test
+    public void testIndexOfDoesNotModifyBuffer() {
+        ByteBuffer buffer = ByteBuffers.fromString("0123456789abc\nd", StandardCharsets.UTF_8);
+        buffer.position(2);
+        assertEquals(ByteBuffers.indexOf(buffer, 2, buffer.limit(), (byte) '\n'), 13);
+        assertEquals(ByteBuffers.indexOf(buffer, 2, 13, (byte) '\n'), -1);
+        assertEquals(ByteBuffers.indexOf(buffer, 0, buffer.limit(), (byte) '0'), 0);
+        assertEquals(buffer.position(), 2);
+    }
 }
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2014-2017 Amazon.com, Inc. All Rights Reserved.
+ */
+package com.amazon.kinesis.streaming.agent.metrics;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBucketsCoverAllValuesInOrder() {
+        assertEquals(LatencyHistogram.bucketOf(0), 0);
+        assertEquals(LatencyHistogram.bucketOf(Long.MAX_VALUE), LatencyHistogram.BUCKETS - 1);
+        assertEquals(LatencyHistogram.highestValueOf(LatencyHistogram.BUCKETS - 1), Long.MAX_VALUE);
+        // Each bucket starts right after the previous one ends
+        for (int bucket = 0; bucket < LatencyHistogram.BUCKETS - 1; ++bucket) {
+            long highest = LatencyHistogram.highestValueOf(bucket);
+            assertEquals(LatencyHistogram.bucketOf(highest), bucket);
+            assertEquals(LatencyHistogram.bucketOf(highest + 1), bucket + 1);
+        }
+    }
+
+    @Test
+    public void testValuesAreRoundedUpWithinTheirBucketWidth() {
+        long[] values = { 1, 15, 16, 17, 100, 1000, 123456789, 987654321012L };
+        for (long value : values) {
+            long highest = LatencyHistogram.highestValueOf(LatencyHistogram.bucketOf(value));
+            assertTrue(highest >= value);
+            assertTrue(highest - value <= value / LatencyHistogram.SUB_BUCKETS, "value " + value);
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(histogram.snapshot().percentile(0.99), 0);
+        for (int i = 1; i <= 1000; ++i)
+            histogram.record(i * 1000L);
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(snapshot.count(), 1000);
+        assertEquals(snapshot.sum(), 500500000L);
+        assertEquals(snapshot.mean(), 500500.0);
+        assertWithin(snapshot.percentile(0.5), 500000);
+        assertWithin(snapshot.percentile(0.99), 990000);
+        assertWithin(snapshot.percentile(0.999), 999000);
+        assertWithin(snapshot.percentile(1.0), 1000000);
+        assertWithin(snapshot.percentile(0.0), 1000);
+    }
+
+    @Test
+    public void testRecordingAValueSeveralTimes() {
+        LatencyHistogram once = new LatencyHistogram();
+        LatencyHistogram repeated = new LatencyHistogram();
+        for (int i = 0; i < 100; ++i)
+            once.record(1234);
+        repeated.record(1234, 100);
+        repeated.record(5678, 0);
+        assertEquals(repeated.snapshot().count(), once.snapshot().count());
+        assertEquals(repeated.snapshot().sum(), once.snapshot().sum());
+        assertEquals(repeated.snapshot().percentile(0.5), once.snapshot().percentile(0.5));
+    }
+
+    @Test
+    public void testNegativeValuesAreRecordedAsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        assertEquals(histogram.snapshot().count(), 1);
+        assertEquals(histogram.snapshot().percentile(1.0), 0);
+    }
+
+    @Test
+    public void testSnapshotSinceEarlierSnapshot() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 100; ++i)
+            histogram.record(TimeUnit.SECONDS.toNanos(10));
+        LatencyHistogram.Snapshot earlier = histogram.snapshot();
+        for (int i = 0; i < 10; ++i)
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(1));
+        LatencyHistogram.Snapshot interval = histogram.snapshot().since(earlier);
+        assertEquals(interval.count(), 10);
+        assertWithin(interval.percentile(0.999), TimeUnit.MILLISECONDS.toNanos(1));
+        assertEquals(histogram.snapshot().since(histogram.snapshot()).count(), 0);
+    }
+
+    @Test(timeOut=30000)
+    public void testConcurrentRecording() throws Exception {
+        final int threads = 4;
+        final int valuesPerThread = 100_000;
+        final LatencyHistogram histogram = new LatencyHistogram();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> recording = new ArrayList<>();
+            for (int t = 0; t < threads; ++t) {
+                recording.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < valuesPerThread; ++i)
+                            histogram.record(i);
+                    }
+                }));
+            }
+            for (Future<?> future : recording)
+                future.get(20, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(snapshot.count(), (long) threads * valuesPerThread);
+        assertEquals(snapshot.sum(), (long) threads * valuesPerThread * (valuesPerThread - 1) / 2);
+    }
+
+    private static void assertWithin(long actual, long expected) {
+        assertTrue(actual >= expected && actual - expected <= expected / LatencyHistogram.SUB_BUCKETS,
+                "expected about " + expected + " but found " + actual);
+    }
+}
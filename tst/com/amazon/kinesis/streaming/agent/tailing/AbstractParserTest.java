@@ -34,13 +34,25 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
-
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang3.RandomStringUtils;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import com.amazon.kinesis.streaming.agent.AgentContext;
 import com.amazon.kinesis.streaming.agent.ByteBuffers;
 import com.amazon.kinesis.streaming.agent.config.Configuration;
+import com.amazon.kinesis.streaming.agent.processing.exceptions.DataConversionException;
+import com.amazon.kinesis.streaming.agent.processing.interfaces.IDataConverter;
 import com.amazon.kinesis.streaming.agent.processing.processors.AgentDataConverterChain;
 import com.amazon.kinesis.streaming.agent.processing.processors.LogToJSONDataConverter;
 import com.amazon.kinesis.streaming.agent.processing.processors.BracketsDataConverter;
@@ -50,7 +62,10 @@ import com.amazon.kinesis.streaming.agent.tailing.AbstractRecord;
 import com.amazon.kinesis.streaming.agent.tailing.FileFlow;
 import com.amazon.kinesis.streaming.agent.tailing.RegexSplitter;
 import com.amazon.kinesis.streaming.agent.tailing.TrackedFile;
+import com.amazon.kinesis.streaming.agent.tailing.FileFlow.Compression;
 import com.amazon.kinesis.streaming.agent.tailing.FileFlow.InitialPosition;
+import com.amazon.kinesis.streaming.agent.tailing.FileFlow.ReadMode;
+import com.amazon.kinesis.streaming.agent.tailing.StageLatencies.Stage;
 import com.amazon.kinesis.streaming.agent.tailing.testing.RecordGenerator;
 import com.amazon.kinesis.streaming.agent.tailing.testing.TailingTestBase;
 import com.amazon.kinesis.streaming.agent.testing.TestUtils;
@@ -236,6 +251,101 @@ public abstract class AbstractParserTest<P extends AbstractParser<R>, R extends
         assertRecordsMatchInputFiles(records, flow.getMaxRecordSizeBytes(), overSizedRecordCount, testFile);
     }
 
+    @Test
+    public void testReadRecordMemoryMappedFromRotatedFile() throws IOException {
+        flow = spy(flow);
+        when(flow.getReadMode()).thenReturn(ReadMode.MEMORY_MAPPED);
+        Path testFile = testFiles.createTempFile();
+        RecordGenerator generator = new RecordGenerator();
+        int expectedRecordCount = generator.appendDataToFile(testFile, getTestBytes());
+        P parser = buildParser();
+        TrackedFile file = new TrackedFile(flow, testFile);
+        file.setRotated(true);
+        file.open(0);
+        assertTrue(parser.switchParsingToFile(file));
+        List<R> records = parseAllRecords(parser, null);
+        assertEquals(records.size(), expectedRecordCount);
+        assertTrue(records.size() > 0);  // SANITYCHECK: Ensure we didn't shoot blanks
+        assertRecordsMatchInputFiles(records, testFile);
+        AtomicLong bytesMapped = (AtomicLong) parser.getMetrics().get(parser.getClass().getSimpleName() + ".TotalBytesMapped");
+        AtomicLong bytesDiscarded = (AtomicLong) parser.getMetrics().get(parser.getClass().getSimpleName() + ".TotalBytesDiscarded");
+        assertTrue(bytesMapped.get() > 0);
+        assertEquals(bytesDiscarded.get(), 0);
+    }
+
+    @Test
+    public void testReadRecordMemoryMappedFromRotatedFileWithOversizedRecords() throws IOException {
+        flow = spy(flow);
+        when(flow.getReadMode()).thenReturn(ReadMode.MEMORY_MAPPED);
+        Path testFile = testFiles.createTempFile();
+        RecordGenerator generator = new RecordGenerator();
+        int expectedRecordCount = generator.appendDataToFile(testFile, getTestBytes());
+        final int overSizedRecordCount = TestUtils.pickOne(1, 2, 3);
+        int oldAverageRecordSzie = generator.getAverageRecordSize();
+        generator.setAverageRecordSize(5 * getTestBufferSize());
+        generator.appendRecordsToFile(testFile, overSizedRecordCount);
+        expectedRecordCount += overSizedRecordCount;
+        generator.setAverageRecordSize(oldAverageRecordSzie);
+        expectedRecordCount += generator.appendDataToFile(testFile, getTestBytes());
+
+        P parser = buildParser();
+        parser = spy(parser);
+        TrackedFile file = new TrackedFile(flow, testFile);
+        file.setRotated(true);
+        file.open(0);
+        assertTrue(parser.switchParsingToFile(file));
+        List<R> records = parseAllRecords(parser, null);
+        verify(parser, atLeast(1)).onDiscardedData(anyInt(), anyInt(), anyString());
+        assertEquals(records.size(), expectedRecordCount);
+        assertRecordsMatchInputFiles(records, flow.getMaxRecordSizeBytes(), overSizedRecordCount, testFile);
+    }
+
+    @Test
+    public void testLiveFileIsNotMemoryMapped() throws IOException {
+        flow = spy(flow);
+        when(flow.getReadMode()).thenReturn(ReadMode.MEMORY_MAPPED);
+        Path testFile = testFiles.createTempFile();
+        RecordGenerator generator = new RecordGenerator();
+        int expectedRecordCount = generator.appendDataToFile(testFile, getTestBytes());
+        P parser = buildParser();
+        TrackedFile file = new TrackedFile(flow, testFile);
+        file.open(0);
+        assertTrue(parser.switchParsingToFile(file));
+        List<R> records = parseAllRecords(parser, null);
+        assertEquals(records.size(), expectedRecordCount);
+        assertRecordsMatchInputFiles(records, testFile);
+        AtomicLong bytesMapped = (AtomicLong) parser.getMetrics().get(parser.getClass().getSimpleName() + ".TotalBytesMapped");
+        assertEquals(bytesMapped.get(), 0);
+    }
+
+    @Test
+    public void testReleasedRecordsReturnBuffersToPool() throws IOException {
+        Path testFile = testFiles.createTempFile();
+        RecordGenerator generator = new RecordGenerator();
+        int expectedRecordCount = generator.appendDataToFile(testFile, getTestBytes());
+        P parser = buildParser();
+        TrackedFile file = new TrackedFile(flow, testFile);
+        file.open(0);
+        assertTrue(parser.switchParsingToFile(file));
+        // Consume and release each record right away, like a fast publisher would
+        StringBuilder parsedData = new StringBuilder();
+        int recordCount = 0;
+        R record = parser.readRecord();
+        while (record != null) {
+            parsedData.append(ByteBuffers.toString(record.data(), StandardCharsets.UTF_8));
+            record.release();
+            ++recordCount;
+            record = parser.readRecord();
+        }
+        assertEquals(recordCount, expectedRecordCount);
+        assertEquals(parsedData.toString(), new String(Files.readAllBytes(testFile), StandardCharsets.UTF_8));
+        assertTrue(parser.getBufferPool().getTotalHits().get() > 0);
+        // Only the parser's current buffer is still leased
+        assertEquals(parser.getBufferPool().getOutstandingChunks().get(), 1);
+        parser.stopParsing("Done.");
+        assertEquals(parser.getBufferPool().getOutstandingChunks().get(), 0);
+    }
+
     @Test
     public void testContinueParsingFromOffset() throws IOException {
         flow = spy(flow);
@@ -502,7 +612,47 @@ public abstract class AbstractParserTest<P extends AbstractParser<R>, R extends
         // Make sure no data was discarded
         verify(parser, never()).onDiscardedData(anyInt(), anyInt(), anyString());
     }
-    
+
+    @Test
+    public void testLastMultiLineRecordIsHeldUntilItsFileIsIdle() throws IOException {
+        flow = spy(flow);
+        when(flow.getRecordSplitter()).thenReturn(new RegexSplitter("^\\d{4}-", true));
+        when(flow.getMultiLineIdleFlushMillis()).thenReturn(60000L);
+        Path testFile = testFiles.createTempFile();
+        Files.write(testFile, "2017-01-01 first\n  at a\n2017-01-02 second\n  at b\n".getBytes(StandardCharsets.UTF_8));
+        P parser = buildParser();
+        TrackedFile file = new TrackedFile(flow, testFile);
+        file.open(0);
+        assertTrue(parser.switchParsingToFile(file));
+        assertEquals(ByteBuffers.toString(parser.readRecord().data(), StandardCharsets.UTF_8), "2017-01-01 first\n  at a\n");
+
+        // More lines of the last record may still be written
+        assertNull(parser.readRecord());
+        Files.write(testFile, "  at c\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        assertNull(parser.readRecord());
+
+        // Once its file is idle for long enough, the record is complete
+        TestUtils.ageFile(testFile, 120);
+        R record = parser.readRecord();
+        assertEquals(ByteBuffers.toString(record.data(), StandardCharsets.UTF_8), "2017-01-02 second\n  at b\n  at c\n");
+        assertEquals(record.endOffset(), Files.size(testFile));
+        assertNull(parser.readRecord());
+        String className = parser.getClass().getSimpleName();
+        assertEquals(((AtomicLong) parser.getMetrics().get(className + ".TotalRecordsFlushedOnIdle")).get(), 1);
+
+        // A partial line is never flushed
+        Files.write(testFile, "2017-01-03 third\n  at d".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        TestUtils.ageFile(testFile, 120);
+        assertNull(parser.readRecord());
+
+        // A rotated file isn't written to anymore, so its last record is complete right away
+        Files.write(testFile, "\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        assertNull(parser.readRecord());
+        file.setRotated(true);
+        assertEquals(ByteBuffers.toString(parser.readRecord().data(), StandardCharsets.UTF_8), "2017-01-03 third\n  at d\n");
+        assertTrue(parser.isAtEndOfCurrentFile());
+    }
+
     @Test
     public void testBuildingRecordOfConvertedData() throws IOException {
         flow = spy(flow);
@@ -527,6 +677,236 @@ public abstract class AbstractParserTest<P extends AbstractParser<R>, R extends
         }
     }
     
+    @Test
+    public void testReadRecordWithReadAhead() throws IOException {
+        Path testFile = testFiles.createTempFile();
+        RecordGenerator generator = new RecordGenerator();
+        final int expectedRecordCount = generator.appendDataToFile(testFile, getTestBytes());
+        FileFlow<R> readAheadFlow = spy(flow);
+        when(readAheadFlow.getReadAheadDepth()).thenReturn(2);
+
+        P parser = buildParser(readAheadFlow, getTestBufferSize());
+        TrackedFile file = new TrackedFile(readAheadFlow, testFile);
+        file.open(0);
+        assertTrue(parser.switchParsingToFile(file));
+        List<R> actualRecords = parseAllRecords(parser, null);
+        List<String> expectedRecords = getLines(null, testFile);
+        assertEquals(actualRecords.size(), expectedRecordCount);
+        long previousEndOffset = 0;
+        for(int i = 0; i < actualRecords.size(); i++) {
+            R record = actualRecords.get(i);
+            assertEquals(record.startOffset(), previousEndOffset);
+            assertEquals(ByteBuffers.toString(record.data(), StandardCharsets.UTF_8), expectedRecords.get(i), "Record " + i + " does not match!");
+            previousEndOffset = record.endOffset();
+        }
+        assertTrue(parser.isAtEndOfCurrentFile());
+        String className = parser.getClass().getSimpleName();
+        assertTrue(((AtomicLong) parser.getMetrics().get(className + ".TotalBytesReadAhead")).get() > 0);
+    }
+
+    @Test
+    public void testPassThroughRecordsMatchRegularPath() throws IOException {
+        Path testFile = testFiles.createTempFile();
+        RecordGenerator generator = new RecordGenerator();
+        // Enough records for several batches, across several buffers
+        generator.appendRecordsToFile(testFile, 3 * AbstractParser.PASS_THROUGH_BATCH_SIZE);
+        generator.appendDataToFile(testFile, getTestBytes());
+
+        P parser = buildParser();
+        TrackedFile file = new TrackedFile(flow, testFile);
+        file.open(0);
+        assertTrue(parser.switchParsingToFile(file));
+        List<R> passThroughRecords = parseAllRecords(parser, null);
+        assertEquals(parser.bufferedBytesRemaining(), 0);
+        // Batches are counted once they're done, which they are by the end of the file
+        String className = parser.getClass().getSimpleName();
+        assertEquals(((AtomicLong) parser.getMetrics().get(className + ".TotalRecordsParsed")).get(), passThroughRecords.size());
+        assertEquals(flow.getLatencies().snapshot(Stage.PARSE).count(), passThroughRecords.size());
+
+        // An identity converter disables the pass-through path
+        FileFlow<R> convertingFlow = spy(flow);
+        when(convertingFlow.getDataConverter()).thenReturn(new IDataConverter() {
+            @Override
+            public ByteBuffer convert(ByteBuffer data) {
+                return data;
+            }
+        });
+        P convertingParser = buildParser(convertingFlow, getTestBufferSize());
+        TrackedFile convertingFile = new TrackedFile(convertingFlow, testFile);
+        convertingFile.open(0);
+        assertTrue(convertingParser.switchParsingToFile(convertingFile));
+        List<R> regularRecords = parseAllRecords(convertingParser, null);
+
+        assertEquals(passThroughRecords.size(), regularRecords.size());
+        for(int i = 0; i < regularRecords.size(); i++) {
+            assertEquals(passThroughRecords.get(i).startOffset(), regularRecords.get(i).startOffset());
+            assertEquals(passThroughRecords.get(i).endOffset(), regularRecords.get(i).endOffset());
+            assertEquals(passThroughRecords.get(i).data(), regularRecords.get(i).data(), "Record " + i + " does not match!");
+        }
+        assertTrue(((AtomicLong) parser.getMetrics().get(className + ".TotalRecordsPassedThrough")).get() > 0);
+        assertEquals(((AtomicLong) convertingParser.getMetrics().get(className + ".TotalRecordsPassedThrough")).get(), 0);
+    }
+
+    @Test
+    public void testConvertingDataInParallelPreservesOrder() throws IOException {
+        final BracketsDataConverter brackets = new BracketsDataConverter();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            flow = spy(flow);
+            AgentContext parallelContext = spy(flow.getAgentContext());
+            when(parallelContext.getDataConversionExecutor()).thenReturn(executor);
+            when(flow.getAgentContext()).thenReturn(parallelContext);
+            when(flow.getMaxPendingDataConversions()).thenReturn(16);
+            when(flow.getDataConverter()).thenReturn(new IDataConverter() {
+                @Override
+                public ByteBuffer convert(ByteBuffer data) throws DataConversionException {
+                    // Finish conversions out of order
+                    if (ThreadLocalRandom.current().nextInt(8) == 0)
+                        Thread.yield();
+                    if (data.get(data.position()) == '#')
+                        throw new DataConversionException("Comment line");
+                    return brackets.convert(data);
+                }
+            });
+            Path testFile = testFiles.createTempFile();
+            RecordGenerator generator = new RecordGenerator();
+            final int expectedRecordCount = generator.appendDataToFile(testFile, getTestBytes() / 10);
+            Files.write(testFile, "# not convertible\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+            P parser = buildParser();
+            TrackedFile file = new TrackedFile(flow, testFile);
+            file.open(0);
+            assertTrue(parser.switchParsingToFile(file));
+            List<R> actualRecords = parseAllRecords(parser, null);
+            List<String> expectedRecords = getLines(null, testFile);
+            assertEquals(actualRecords.size(), expectedRecordCount + 1);
+            long previousOffset = -1;
+            for(int i = 0; i < expectedRecordCount; i++) {
+                String actualRecord = ByteBuffers.toString(actualRecords.get(i).data(), StandardCharsets.UTF_8);
+                assertEquals(actualRecord, "{" + expectedRecords.get(i) + "}", "Record " + i + " does not match!");
+                assertTrue(actualRecords.get(i).startOffset() > previousOffset);
+                previousOffset = actualRecords.get(i).startOffset();
+            }
+            // Records that fail conversion fall back to raw data, in place
+            assertEquals(ByteBuffers.toString(actualRecords.get(expectedRecordCount).data(), StandardCharsets.UTF_8), "# not convertible\n");
+            assertEquals(parser.bufferedBytesRemaining(), 0);
+            assertEquals(((AtomicInteger) parser.getMetrics().get(parser.getClass().getSimpleName() + ".PendingConversions")).get(), 0);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testParsingFilesOfTheSameFlowConcurrently() throws Exception {
+        // Catching up reads several rotated files of a flow at the same time, each with its own parser
+        flow = spy(flow);
+        when(flow.getRecordSplitter()).thenReturn(new RegexSplitter("^\\d{4}-"));
+        final int recordsPerFile = 20000;
+        List<Path> files = new ArrayList<>();
+        List<List<String>> expectedRecords = new ArrayList<>();
+        for (int f = 0; f < 2; ++f) {
+            Path testFile = testFiles.createTempFile();
+            List<String> expected = new ArrayList<>();
+            StringBuilder content = new StringBuilder();
+            for (int i = 0; i < recordsPerFile; ++i) {
+                StringBuilder record = new StringBuilder(String.format("%04d-%d-%d\n", i % 10000, f, i));
+                for (int j = 0; j < i % 4; ++j)
+                    record.append(RandomStringUtils.randomAlphanumeric(ThreadLocalRandom.current().nextInt(10, 100))).append('\n');
+                expected.add(record.toString());
+                content.append(record);
+            }
+            Files.write(testFile, content.toString().getBytes(StandardCharsets.UTF_8));
+            files.add(testFile);
+            expectedRecords.add(expected);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(files.size());
+        try {
+            List<Future<List<R>>> results = new ArrayList<>();
+            for (final Path testFile : files) {
+                final P parser = buildParser();
+                final TrackedFile file = new TrackedFile(flow, testFile);
+                file.open(0);
+                assertTrue(parser.switchParsingToFile(file));
+                results.add(executor.submit(new Callable<List<R>>() {
+                    @Override
+                    public List<R> call() throws Exception {
+                        return parseAllRecords(parser, null);
+                    }
+                }));
+            }
+            for (int f = 0; f < files.size(); ++f) {
+                List<R> actualRecords = results.get(f).get();
+                List<String> expected = expectedRecords.get(f);
+                assertEquals(actualRecords.size(), expected.size());
+                for (int i = 0; i < expected.size(); ++i) {
+                    assertEquals(ByteBuffers.toString(actualRecords.get(i).data(), StandardCharsets.UTF_8), expected.get(i),
+                            "Record " + i + " of file " + f + " does not match!");
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testCompressingRecords() throws IOException {
+        flow = spy(flow);
+        when(flow.getCompression()).thenReturn(Compression.GZIP);
+        Path testFile = testFiles.createTempFile();
+        RecordGenerator generator = new RecordGenerator();
+        int expectedRecordCount = generator.appendDataToFile(testFile, getTestBytes() / 10);
+        // An oversized line must be truncated before it's compressed
+        String oversized = RandomStringUtils.randomAlphabetic(flow.getMaxRecordSizeBytes() * 3 / 2) + "\n";
+        Files.write(testFile, oversized.getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        generator.appendRecordsToFile(testFile, 5);
+        expectedRecordCount += 5 + 1;
+
+        P parser = buildParser();
+        TrackedFile file = new TrackedFile(flow, testFile);
+        file.open(0);
+        assertTrue(parser.switchParsingToFile(file));
+        List<R> records = parseAllRecords(parser, null);
+        List<String> expectedRecords = getLines(null, testFile);
+        assertEquals(records.size(), expectedRecordCount);
+        long compressedBytes = 0;
+        for(int i = 0; i < records.size(); i++) {
+            R record = records.get(i);
+            assertTrue(record.length() <= flow.getMaxRecordSizeBytes());
+            compressedBytes += record.dataLength();
+            String actualRecord = new String(RecordCompressorTest.decompress(Compression.GZIP, record.data()), StandardCharsets.UTF_8);
+            if (expectedRecords.get(i).equals(oversized)) {
+                assertTrue(actualRecord.endsWith("\n"));
+                assertTrue(oversized.startsWith(actualRecord.substring(0, actualRecord.length() - 1)));
+            } else {
+                assertEquals(actualRecord, expectedRecords.get(i), "Record " + i + " does not match!");
+            }
+        }
+        Map<String, Object> metrics = parser.getMetrics();
+        String className = parser.getClass().getSimpleName();
+        assertEquals(((AtomicLong) metrics.get(className + ".TotalBytesAfterCompression")).get(), compressedBytes);
+        assertTrue((Double) metrics.get(className + ".CompressionRatio") > 1.0);
+        assertNotNull(metrics.get(className + ".TotalCompressionCpuMillis"));
+    }
+
+    @Test
+    public void testFileFooterStopsParsing() throws IOException {
+        flow = spy(flow);
+        when(flow.getFileFooterPattern()).thenReturn(Pattern.compile("--- END \\d+ ---", Pattern.MULTILINE));
+        Path testFile = testFiles.createTempFile();
+        RecordGenerator generator = new RecordGenerator();
+        int expectedRecordCount = generator.appendDataToFile(testFile, getTestBytes() / 10);
+        Files.write(testFile, "  --- END 42 ---\nignored\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        P parser = buildParser();
+        TrackedFile file = new TrackedFile(flow, testFile);
+        file.open(0);
+        assertTrue(parser.switchParsingToFile(file));
+        List<R> records = parseAllRecords(parser, null);
+        assertEquals(records.size(), expectedRecordCount);
+        assertFalse(parser.isParsing());
+    }
+
     @Test
     public void testConvertingMultiLineDataFromRealLog() throws IOException {
         final String testfileName = "pretty_printed_json";
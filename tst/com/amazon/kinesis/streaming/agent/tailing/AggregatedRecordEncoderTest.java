@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2014-2017 Amazon.com, Inc. All Rights Reserved.
+ */
+package com.amazon.kinesis.streaming.agent.tailing;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.testng.annotations.Test;
+
+
+public class AggregatedRecordEncoderTest {
+
+    @Test
+    public void testSingleLineIsNotAggregated() {
+        ByteBuffer data = ByteBuffer.wrap("just one line\n".getBytes(StandardCharsets.UTF_8));
+        assertSame(AggregatedRecordEncoder.encode("key", data), data);
+        ByteBuffer empty = ByteBuffer.allocate(0);
+        assertSame(AggregatedRecordEncoder.encode("key", empty), empty);
+    }
+
+    @Test
+    public void testEncodedRecordDecodesToOriginalLines() {
+        String text = "first line\nsecond\n\nfourth line without newline";
+        ByteBuffer data = ByteBuffer.wrap(("xx" + text + "yy").getBytes(StandardCharsets.UTF_8), 2, text.length());
+        List<String> lines = decode("1234.5", AggregatedRecordEncoder.encode("1234.5", data));
+        assertEquals(lines, Arrays.asList("first line\n", "second\n", "\n", "fourth line without newline"));
+        // The source buffer must be left untouched
+        assertEquals(data.position(), 2);
+        assertEquals(data.remaining(), text.length());
+    }
+
+    @Test
+    public void testLongLinesUseMultiByteLengths() {
+        Random random = new Random(3);
+        StringBuilder text = new StringBuilder();
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 50; ++i) {
+            char[] line = new char[random.nextInt(40000)];
+            Arrays.fill(line, (char) ('a' + random.nextInt(26)));
+            expected.add(new String(line) + "\n");
+            text.append(expected.get(i));
+        }
+        ByteBuffer data = ByteBuffer.allocateDirect(text.length());
+        data.put(text.toString().getBytes(StandardCharsets.UTF_8)).flip();
+        assertEquals(decode("k", AggregatedRecordEncoder.encode("k", data)), expected);
+    }
+
+    @Test
+    public void testWorstCaseExpansion() {
+        byte[] emptyLines = new byte[KinesisConstants.MAX_AGGREGATED_RECORD_SIZE_BYTES];
+        Arrays.fill(emptyLines, (byte) '\n');
+        ByteBuffer encoded = AggregatedRecordEncoder.encode("key", ByteBuffer.wrap(emptyLines));
+        assertTrue(encoded.remaining() <= emptyLines.length * AggregatedRecordEncoder.MAX_EXPANSION_RATIO
+                + AggregatedRecordEncoder.MAGIC.length + AggregatedRecordEncoder.DIGEST_SIZE_BYTES + 5);
+        assertTrue(encoded.remaining() < KinesisConstants.MAX_RECORD_SIZE_BYTES - 256);
+        assertEquals(decode("key", encoded).size(), emptyLines.length);
+    }
+
+    private static byte[] md5(byte[] input, int offset, int length) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            digest.update(input, offset, length);
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Minimal decoder for the aggregated format, following the steps of the
+     * KCL de-aggregation: check the magic and digest, then read the protobuf.
+     */
+    static List<String> decode(String expectedPartitionKey, ByteBuffer encoded) {
+        byte[] bytes = new byte[encoded.remaining()];
+        encoded.duplicate().get(bytes);
+        byte[] magic = AggregatedRecordEncoder.MAGIC;
+        assertEquals(Arrays.copyOfRange(bytes, 0, magic.length), magic);
+        int messageEnd = bytes.length - AggregatedRecordEncoder.DIGEST_SIZE_BYTES;
+        assertEquals(Arrays.copyOfRange(bytes, messageEnd, bytes.length),
+                md5(bytes, magic.length, messageEnd - magic.length));
+
+        List<String> partitionKeys = new ArrayList<>();
+        List<String> records = new ArrayList<>();
+        int[] offset = {magic.length};
+        while (offset[0] < messageEnd) {
+            int tag = readVarint(bytes, offset);
+            int length = readVarint(bytes, offset);
+            if (tag == ((1 << 3) | 2)) {
+                partitionKeys.add(new String(bytes, offset[0], length, StandardCharsets.UTF_8));
+                offset[0] += length;
+            } else {
+                assertEquals(tag, (3 << 3) | 2);
+                int recordEnd = offset[0] + length;
+                assertEquals(readVarint(bytes, offset), 1 << 3);
+                assertEquals(readVarint(bytes, offset), 0);
+                assertEquals(readVarint(bytes, offset), (3 << 3) | 2);
+                int dataLength = readVarint(bytes, offset);
+                records.add(new String(bytes, offset[0], dataLength, StandardCharsets.UTF_8));
+                offset[0] += dataLength;
+                assertEquals(offset[0], recordEnd);
+            }
+        }
+        assertEquals(offset[0], messageEnd);
+        assertEquals(partitionKeys, Arrays.asList(expectedPartitionKey));
+        return records;
+    }
+
+    private static int readVarint(byte[] bytes, int[] offset) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = bytes[offset[0]++];
+            value |= (b & 0x7F) << shift;
+            if (b >= 0)
+                return value;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2014-2017 Amazon.com, Inc. All Rights Reserved.
+ */
+package com.amazon.kinesis.streaming.agent.tailing;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.testng.annotations.Test;
+
+public class BoundedRingQueueTest {
+
+    @Test
+    public void testOfferAndPollInOrder() {
+        BoundedRingQueue<Integer> q = new BoundedRingQueue<>(3);
+        assertTrue(q.isEmpty());
+        assertNull(q.poll());
+        assertNull(q.peek());
+        // Go around the ring a few times
+        for (int i = 0; i < 10; ++i) {
+            assertTrue(q.offer(i));
+            assertTrue(q.offer(i + 100));
+            assertEquals(q.size(), 2);
+            assertEquals(q.peek(), Integer.valueOf(i));
+            assertEquals(q.poll(), Integer.valueOf(i));
+            assertEquals(q.poll(), Integer.valueOf(i + 100));
+            assertTrue(q.isEmpty());
+        }
+    }
+
+    @Test
+    public void testOfferFailsWhenFull() {
+        BoundedRingQueue<Integer> q = new BoundedRingQueue<>(3);
+        assertTrue(q.offer(1));
+        assertTrue(q.offer(2));
+        assertTrue(q.offer(3));
+        assertTrue(q.isFull());
+        assertEquals(q.size(), q.capacity());
+        assertFalse(q.offer(4));
+        assertEquals(q.poll(), Integer.valueOf(1));
+        assertFalse(q.isFull());
+        assertTrue(q.offer(4));
+        assertEquals(q.poll(), Integer.valueOf(2));
+        assertEquals(q.poll(), Integer.valueOf(3));
+        assertEquals(q.poll(), Integer.valueOf(4));
+        assertNull(q.poll());
+    }
+
+    @Test(expectedExceptions=IllegalArgumentException.class)
+    public void testCapacityMustBePositive() {
+        new BoundedRingQueue<Integer>(0);
+    }
+
+    @Test(timeOut=30000)
+    public void testConcurrentProducersAndConsumers() throws Exception {
+        final int producers = 4;
+        final int consumers = 4;
+        final int elementsPerProducer = 20_000;
+        final BoundedRingQueue<Long> q = new BoundedRingQueue<>(16);
+        final ConcurrentHashMap<Long, Boolean> seen = new ConcurrentHashMap<>();
+        final CountDownLatch produced = new CountDownLatch(producers);
+        final AtomicBoolean duplicates = new AtomicBoolean();
+        ExecutorService executor = Executors.newFixedThreadPool(producers + consumers);
+        try {
+            for (int p = 0; p < producers; ++p) {
+                final long first = (long) p * elementsPerProducer;
+                executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (long i = first; i < first + elementsPerProducer; ++i) {
+                            while (!q.offer(i))
+                                Thread.yield();
+                        }
+                        produced.countDown();
+                    }
+                });
+            }
+            List<Future<?>> consuming = new ArrayList<>();
+            for (int c = 0; c < consumers; ++c) {
+                consuming.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        // Per producer, elements must come out in the order they went in
+                        long[] last = new long[producers];
+                        for (int p = 0; p < producers; ++p)
+                            last[p] = -1;
+                        while (produced.getCount() > 0 || !q.isEmpty()) {
+                            Long element = q.poll();
+                            if (element == null) {
+                                Thread.yield();
+                                continue;
+                            }
+                            int producer = (int) (element / elementsPerProducer);
+                            assertTrue(element > last[producer]);
+                            last[producer] = element;
+                            if (seen.put(element, Boolean.TRUE) != null)
+                                duplicates.set(true);
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future : consuming)
+                future.get(20, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+        assertFalse(duplicates.get());
+        assertEquals(seen.size(), producers * elementsPerProducer);
+        assertTrue(q.isEmpty());
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2014-2017 Amazon.com, Inc. All Rights Reserved.
+ */
+package com.amazon.kinesis.streaming.agent.tailing;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.testng.annotations.Test;
+
+import com.amazon.kinesis.streaming.agent.testing.TestUtils.TestBase;
+
+public class DirectoryIndexTest extends TestBase {
+    private static final DirectoryIndex.Filter LOG_FILES = new DirectoryIndex.Filter() {
+        @Override
+        public boolean matches(Path fileName) {
+            return fileName.toString().endsWith(".log");
+        }
+    };
+    private static final DirectoryIndex.Filter ALL_FILES = new DirectoryIndex.Filter() {
+        @Override
+        public boolean matches(Path fileName) {
+            return true;
+        }
+    };
+
+    @Test
+    public void testFlowsShareTheScanOfADirectory() throws IOException {
+        Path directory = testFiles.getTmpDir();
+        Files.write(directory.resolve("app.log"), "data\n".getBytes(StandardCharsets.UTF_8));
+        Files.write(directory.resolve("app.txt"), "data\n".getBytes(StandardCharsets.UTF_8));
+        Files.createDirectory(directory.resolve("archive.log"));
+        DirectoryIndex index = new DirectoryIndex(60_000, 60_000);
+
+        List<DirectoryIndex.Entry> logs = index.listFiles(directory, LOG_FILES);
+        assertEquals(fileNames(logs), setOf("app.log"));
+        assertEquals(logs.get(0).getSize(), 5);
+        List<DirectoryIndex.Entry> all = index.listFiles(directory, ALL_FILES);
+        assertEquals(fileNames(all), setOf("app.log", "app.txt"));
+
+        // One listing, and attributes read once per entry across both filters
+        assertEquals(index.getTotalDirectoryScans().get(), 1);
+        assertEquals(index.getTotalAttributeReads().get(), 3);
+        assertEquals(index.getTotalCacheHits().get(), 1);
+        assertEquals(index.getMetrics().get("DirectoryIndex.Directories"), 1);
+        assertTrue(index.getMetrics().containsKey("DirectoryIndex.TotalScanMillis"));
+    }
+
+    @Test
+    public void testNewAndDeletedFilesAreSeenWithinTheScanInterval() throws IOException, InterruptedException {
+        Path directory = testFiles.getTmpDir();
+        Path first = directory.resolve("first.log");
+        Files.write(first, "data\n".getBytes(StandardCharsets.UTF_8));
+        DirectoryIndex index = new DirectoryIndex(60_000, 60_000);
+        assertEquals(fileNames(index.listFiles(directory, LOG_FILES)), setOf("first.log"));
+
+        // Make sure the directory's last modified time moves on file systems with coarse timestamps
+        Thread.sleep(1_100);
+        Files.write(directory.resolve("second.log"), "data\n".getBytes(StandardCharsets.UTF_8));
+        Files.delete(first);
+        assertEquals(fileNames(index.listFiles(directory, LOG_FILES)), setOf("second.log"));
+        assertEquals(index.getTotalDirectoryScans().get(), 2);
+    }
+
+    @Test
+    public void testAttributesAreReadAgainByDefault() throws IOException {
+        Path directory = testFiles.getTmpDir();
+        Path file = directory.resolve("app.log");
+        Files.write(file, "data\n".getBytes(StandardCharsets.UTF_8));
+        DirectoryIndex index = new DirectoryIndex(60_000, 0);
+        assertEquals(index.listFiles(directory, LOG_FILES).get(0).getSize(), 5);
+        Files.write(file, "more\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        assertEquals(index.listFiles(directory, LOG_FILES).get(0).getSize(), 10);
+        assertEquals(index.getTotalDirectoryScans().get(), 1);
+    }
+
+    @Test
+    public void testCountingFilesReadsAttributesOnlyOnce() throws IOException {
+        Path directory = testFiles.getTmpDir();
+        Files.write(directory.resolve("app.log"), "data\n".getBytes(StandardCharsets.UTF_8));
+        Files.createDirectory(directory.resolve("archive.log"));
+        DirectoryIndex index = new DirectoryIndex(60_000, 0);
+        assertEquals(index.countFiles(directory, LOG_FILES), 1);
+        assertEquals(index.countFiles(directory, LOG_FILES), 1);
+        assertEquals(index.getTotalAttributeReads().get(), 2);
+    }
+
+    @Test
+    public void testMissingDirectoryHasNoFiles() throws IOException {
+        DirectoryIndex index = new DirectoryIndex(60_000, 60_000);
+        assertTrue(index.listFiles(testFiles.getTmpDir().resolve("does-not-exist"), ALL_FILES).isEmpty());
+    }
+
+    @Test
+    public void testDeletedDirectoriesAreForgotten() throws IOException {
+        Path directory = Files.createDirectory(testFiles.getTmpDir().resolve("logs"));
+        Files.write(directory.resolve("app.log"), "data\n".getBytes(StandardCharsets.UTF_8));
+        DirectoryIndex index = new DirectoryIndex(60_000, 60_000);
+        assertEquals(index.listFiles(directory, LOG_FILES).size(), 1);
+        assertEquals(index.getMetrics().get("DirectoryIndex.Directories"), 1);
+
+        Files.delete(directory.resolve("app.log"));
+        Files.delete(directory);
+        assertTrue(index.listFiles(directory, LOG_FILES).isEmpty());
+        assertEquals(index.getMetrics().get("DirectoryIndex.Directories"), 0);
+    }
+
+    @Test
+    public void testIdleDirectoriesExpire() throws IOException, InterruptedException {
+        Path idle = Files.createDirectory(testFiles.getTmpDir().resolve("2017-01-01"));
+        Path active = Files.createDirectory(testFiles.getTmpDir().resolve("2017-01-02"));
+        DirectoryIndex index = new DirectoryIndex(60_000, 60_000, 1_000);
+        index.listFiles(idle, LOG_FILES);
+        index.listFiles(active, LOG_FILES);
+        assertEquals(index.getMetrics().get("DirectoryIndex.Directories"), 2);
+
+        Thread.sleep(600);
+        index.listFiles(active, LOG_FILES);
+        Thread.sleep(600);
+        index.listFiles(active, LOG_FILES);
+        assertEquals(index.getMetrics().get("DirectoryIndex.Directories"), 1);
+        assertEquals(index.getTotalExpiredDirectories().get(), 1);
+        // Listed again from scratch when it's used again
+        index.listFiles(idle, LOG_FILES);
+        assertEquals(index.getMetrics().get("DirectoryIndex.Directories"), 2);
+        assertEquals(index.getTotalDirectoryScans().get(), 3);
+    }
+
+    private static Set<String> fileNames(List<DirectoryIndex.Entry> entries) {
+        Set<String> names = new HashSet<>();
+        for (DirectoryIndex.Entry entry : entries) {
+            names.add(entry.getPath().getFileName().toString());
+        }
+        return names;
+    }
+
+    private static Set<String> setOf(String... names) {
+        Set<String> set = new HashSet<>();
+        for (String name : names) {
+            set.add(name);
+        }
+        return set;
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2014-2017 Amazon.com, Inc. All Rights Reserved.
+ */
+package com.amazon.kinesis.streaming.agent.tailing;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.amazon.kinesis.streaming.agent.testing.TestUtils.TestBase;
+
+public class DirectoryWatcherTest extends TestBase {
+    private static final long EVENT_TIMEOUT_MILLIS = 10_000;
+    private DirectoryWatcher watcher;
+
+    @BeforeMethod
+    public void setupWatcher() throws IOException {
+        watcher = new DirectoryWatcher();
+    }
+
+    @AfterMethod
+    public void closeWatcher() throws IOException {
+        watcher.close();
+    }
+
+    @Test
+    public void testListenerIsNotifiedOfChanges() throws Exception {
+        Path directory = testFiles.getTmpDir();
+        RecordingListener listener = new RecordingListener();
+        assertTrue(watcher.register(directory, listener));
+        assertTrue(watcher.isWatching(directory));
+
+        Path file = directory.resolve("app.log");
+        Files.write(file, "first\n".getBytes(StandardCharsets.UTF_8));
+        String created = listener.events.poll(EVENT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        assertEquals(created, "app.log:false");
+        listener.events.clear();
+
+        Files.write(file, "second\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        String modified = listener.events.poll(EVENT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        assertEquals(modified, "app.log:true");
+        assertTrue(watcher.getTotalEvents().get() >= 2);
+    }
+
+    @Test
+    public void testMissingDirectoryIsNotWatched() {
+        Path directory = testFiles.getTmpDir().resolve("does-not-exist");
+        assertFalse(watcher.register(directory, new RecordingListener()));
+        assertFalse(watcher.isWatching(directory));
+        assertEquals(watcher.watchedDirectories(), 0);
+    }
+
+    @Test
+    public void testDirectoryIsWatchedUntilLastListenerUnregisters() throws Exception {
+        Path directory = testFiles.getTmpDir();
+        RecordingListener first = new RecordingListener();
+        RecordingListener second = new RecordingListener();
+        assertTrue(watcher.register(directory, first));
+        assertTrue(watcher.register(directory, second));
+        assertEquals(watcher.watchedDirectories(), 1);
+
+        watcher.unregister(directory, first);
+        assertTrue(watcher.isWatching(directory));
+        Files.write(directory.resolve("app.log"), "data\n".getBytes(StandardCharsets.UTF_8));
+        assertNotNull(second.events.poll(EVENT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertTrue(first.events.isEmpty());
+
+        watcher.unregister(directory, second);
+        assertFalse(watcher.isWatching(directory));
+        assertEquals(watcher.watchedDirectories(), 0);
+    }
+
+    private static class RecordingListener implements DirectoryWatcher.Listener {
+        final BlockingQueue<String> events = new LinkedBlockingQueue<>();
+
+        @Override
+        public void onChange(Path directory, Path fileName, boolean modified) {
+            events.add(fileName + ":" + modified);
+        }
+    }
+}
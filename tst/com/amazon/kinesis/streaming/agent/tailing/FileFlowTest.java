@@ -5,7 +5,9 @@ package com.amazon.kinesis.streaming.agent.tailing;
 
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertNotSame;
 import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
 
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
@@ -72,6 +74,9 @@ public abstract class FileFlowTest<F extends FileFlow> extends TestBase {
         assertEquals(ff.getInitialPosition(), InitialPosition.START_OF_FILE);
         assertEquals(ff.getRecordSplitter().getClass(), RegexSplitter.class);
         assertEquals(((RegexSplitter) ff.getRecordSplitter()).getPattern(), ".+\\t\\d+\\t");
+        // Each parser gets a regex splitter of its own
+        assertNotSame(ff.buildRecordSplitter(), ff.buildRecordSplitter());
+        assertEquals(((RegexSplitter) ff.buildRecordSplitter()).getPattern(), ".+\\t\\d+\\t");
         assertEquals(ff.getSkipHeaderLines(), 5);
         assertEquals(ff.getRecordTerminatorBytes(), "\nEOE\n".getBytes(StandardCharsets.UTF_8));
         assertEquals(ff.getDataConverter().getClass(), AgentDataConverterChain.class);
@@ -84,6 +89,7 @@ public abstract class FileFlowTest<F extends FileFlow> extends TestBase {
         F ff = buildFileFlow(context, getConfiguration("/tmp/testfile.log.*", "testdes"));
         assertEquals(ff.getInitialPosition(), InitialPosition.END_OF_FILE);
         assertEquals(ff.getRecordSplitter().getClass(), SingleLineSplitter.class);
+        assertSame(ff.buildRecordSplitter(), ff.getRecordSplitter());
         assertEquals(ff.getSkipHeaderLines(), 0);
         assertEquals(ff.getRecordTerminatorBytes(), "\n".getBytes(StandardCharsets.UTF_8));
         assertNull(ff.getDataConverter());
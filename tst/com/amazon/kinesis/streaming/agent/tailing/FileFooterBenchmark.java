@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2014-2017 Amazon.com, Inc. All Rights Reserved.
+ */
+package com.amazon.kinesis.streaming.agent.tailing;
+
+import static org.testng.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Callable;
+import java.util.regex.Pattern;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import com.amazon.kinesis.streaming.agent.ByteBuffers;
+import com.amazon.kinesis.streaming.agent.testing.MicroBenchmark;
+
+/**
+ * Measures how much a file footer pattern slows down splitting a buffer into
+ * records: without a footer pattern, with {@link FileFooterMatcher}, and with
+ * the original check, which decoded and trimmed every record into a String
+ * before matching it. Disabled by default; enable and run it on its own when
+ * changing footer detection.
+ */
+public class FileFooterBenchmark {
+
+    @DataProvider
+    public Object[][] footerPatterns() {
+        return new Object[][] {
+                {"literal", "--- END OF LOG ---"},
+                {"regex", "--- END OF LOG \\d+ ---"},
+        };
+    }
+
+    @Test(enabled=false, groups={"benchmark"}, dataProvider="footerPatterns")
+    public void benchmarkSplittingWithFooterPattern(String label, String footer) throws Exception {
+        Path file = FileSystems.getDefault().getPath(getClass().getResource("apache_test_log").getFile());
+        byte[] log = Files.readAllBytes(file);
+        // Repeat the fixture to get a buffer of a few MB
+        final ByteBuffer buffer = ByteBuffer.allocate(log.length * (4 * 1024 * 1024 / log.length + 1));
+        while (buffer.remaining() >= log.length) {
+            buffer.put(log);
+        }
+        buffer.flip();
+        final Pattern pattern = Pattern.compile(footer, Pattern.MULTILINE);
+        final FileFooterMatcher matcher = new FileFooterMatcher(pattern);
+        assertEquals(split(buffer, matcher, null), split(buffer, null, pattern));
+
+        MicroBenchmark benchmark = new MicroBenchmark(20, 20);
+        benchmark.run("no footer pattern", buffer.limit(), new Callable<Long>() {
+            @Override
+            public Long call() {
+                return split(buffer, null, null);
+            }
+        });
+        benchmark.run("String per record (" + label + ")", buffer.limit(), new Callable<Long>() {
+            @Override
+            public Long call() {
+                return split(buffer, null, pattern);
+            }
+        });
+        benchmark.run("byte checks first (" + label + ")", buffer.limit(), new Callable<Long>() {
+            @Override
+            public Long call() {
+                return split(buffer, matcher, null);
+            }
+        });
+    }
+
+    private static long split(ByteBuffer buffer, FileFooterMatcher matcher, Pattern pattern) {
+        SingleLineSplitter splitter = new SingleLineSplitter();
+        buffer.rewind();
+        long records = 0;
+        int start = buffer.position();
+        int end;
+        while ((end = splitter.locateNextRecord(buffer)) != -1) {
+            ByteBuffer record = ByteBuffers.getPartialView(buffer, start, end - start);
+            if (matcher != null && matcher.matches(record))
+                break;
+            // The original check
+            if (pattern != null && pattern.matcher(ByteBuffers.toString(record, StandardCharsets.UTF_8).trim()).matches())
+                break;
+            ++records;
+            start = end;
+        }
+        return records;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2014-2017 Amazon.com, Inc. All Rights Reserved.
+ */
+package com.amazon.kinesis.streaming.agent.tailing;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+public class FileFooterMatcherTest {
+
+    @DataProvider
+    public Object[][] patternsAndAnalysis() {
+        return new Object[][] {
+                {"END OF FILE", true, 11},
+                {"#EOF", true, 4},
+                {"^END$", false, 3},
+                {"--- \\d+ records ---", false, 5},
+                {".*EOF", false, 0},
+                {"(?i)eof", false, 0},
+        };
+    }
+
+    @Test(dataProvider = "patternsAndAnalysis")
+    public void testAnalysis(String pattern, boolean literal, int prefixLength) {
+        FileFooterMatcher matcher = new FileFooterMatcher(Pattern.compile(pattern, Pattern.MULTILINE));
+        assertEquals(matcher.isLiteral(), literal);
+        assertEquals(matcher.getPrefixLength(), prefixLength);
+    }
+
+    @Test
+    public void testOtherFlagsDisableByteChecks() {
+        FileFooterMatcher matcher = new FileFooterMatcher(Pattern.compile("eof", Pattern.CASE_INSENSITIVE));
+        assertFalse(matcher.isLiteral());
+        assertEquals(matcher.getPrefixLength(), 0);
+        assertTrue(matcher.matches(ByteBuffer.wrap("  EOF\n".getBytes(StandardCharsets.UTF_8))));
+    }
+
+    @DataProvider
+    public Object[][] patterns() {
+        return new Object[][] {
+                {"END OF FILE"},
+                {"^END$"},
+                {"--- \\d+ records ---"},
+                {".*EOF"},
+                {"[A-Z]+"},
+                {"END\\s+\\d*"},
+        };
+    }
+
+    @Test(dataProvider = "patterns")
+    public void testMatchesAgreesWithTrimmedStringMatch(String pattern) {
+        Pattern regex = Pattern.compile(pattern, Pattern.MULTILINE);
+        FileFooterMatcher matcher = new FileFooterMatcher(regex);
+        Random random = new Random(5);
+        final String[] fragments = {"END", " OF", " FILE", "EOF", "--- ", "12", " records ---", "\t", " ",
+                "\n", "\r", "é", "x", "END OF FILE", "--- 7 records ---"};
+        for (int i = 0; i < 3000; ++i) {
+            StringBuilder record = new StringBuilder();
+            int pieces = 1 + random.nextInt(4);
+            for (int j = 0; j < pieces; ++j) {
+                record.append(fragments[random.nextInt(fragments.length)]);
+            }
+            byte[] bytes = record.toString().getBytes(StandardCharsets.UTF_8);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length + 4);
+            buffer.position(2);
+            buffer.put(bytes);
+            buffer.limit(2 + bytes.length).position(2);
+            assertEquals(matcher.matches(buffer), regex.matcher(record.toString().trim()).matches(),
+                    "Record: " + record);
+            assertEquals(buffer.position(), 2);
+        }
+    }
+}
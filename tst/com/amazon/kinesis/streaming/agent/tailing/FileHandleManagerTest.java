@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2014-2017 Amazon.com, Inc. All Rights Reserved.
+ */
+package com.amazon.kinesis.streaming.agent.tailing;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.amazon.kinesis.streaming.agent.testing.TestUtils.TestBase;
+
+public class FileHandleManagerTest extends TestBase {
+
+    private Path createFile(String name, String content) throws IOException {
+        Path file = testFiles.createTempFileWithName(name);
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private FileChannel open(FileHandleManager manager, Path file) throws IOException {
+        return manager.open(file, FileId.get(file));
+    }
+
+    private String read(FileChannel channel, int bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(bytes);
+        channel.read(buffer);
+        buffer.flip();
+        return StandardCharsets.UTF_8.decode(buffer).toString();
+    }
+
+    @Test
+    public void testLeastRecentlyUsedFilesAreClosed() throws IOException {
+        FileHandleManager manager = new FileHandleManager(2);
+        FileChannel first = open(manager, createFile("first.log", "first file"));
+        FileChannel second = open(manager, createFile("second.log", "second file"));
+        Assert.assertEquals(read(first, 5), "first");
+        FileChannel third = open(manager, createFile("third.log", "third file"));
+
+        // The second file was used least recently
+        Assert.assertEquals(manager.openFiles(), 2);
+        Assert.assertEquals(manager.getTotalEvictions().get(), 1);
+        Assert.assertTrue(((ManagedFileChannel) first).isFileOpen());
+        Assert.assertFalse(((ManagedFileChannel) second).isFileOpen());
+        Assert.assertTrue(((ManagedFileChannel) third).isFileOpen());
+        Assert.assertTrue(second.isOpen());
+        Assert.assertEquals(second.size(), "second file".length());
+
+        // Reading it again opens it, at the same position, and closes another one
+        second.position(7);
+        Assert.assertEquals(read(second, 4), "file");
+        Assert.assertEquals(manager.getTotalReopens().get(), 1);
+        Assert.assertEquals(manager.openFiles(), 2);
+        Assert.assertFalse(((ManagedFileChannel) first).isFileOpen());
+        Assert.assertEquals(first.position(), 5);
+        Assert.assertEquals(read(first, 5), " file");
+
+        first.close();
+        second.close();
+        third.close();
+        Assert.assertEquals(manager.openFiles(), 0);
+    }
+
+    @Test
+    public void testNoLimitByDefault() throws IOException {
+        FileHandleManager manager = new FileHandleManager(0);
+        for (int i = 0; i < 10; ++i)
+            open(manager, createFile("file" + i + ".log", "data"));
+        Assert.assertEquals(manager.openFiles(), 10);
+        Assert.assertEquals(manager.getTotalEvictions().get(), 0);
+    }
+
+    @Test
+    public void testDeletedFilesAreNotClosed() throws IOException {
+        FileHandleManager manager = new FileHandleManager(1);
+        Path deleted = createFile("deleted.log", "still readable");
+        FileChannel first = open(manager, deleted);
+        Files.delete(deleted);
+        open(manager, createFile("other.log", "data"));
+
+        // The budget is exceeded rather than losing the data of the deleted file
+        Assert.assertEquals(manager.openFiles(), 2);
+        Assert.assertEquals(manager.getTotalOverBudget().get(), 1);
+        Assert.assertEquals(read(first, 5), "still");
+    }
+
+    @Test
+    public void testClosedFileIsOpenedAgainUnderItsNewName() throws IOException {
+        FileHandleManager manager = new FileHandleManager(1);
+        Path file = createFile("app.log", "rotated data");
+        FileChannel first = open(manager, file);
+        open(manager, createFile("other.log", "data"));
+        Assert.assertFalse(((ManagedFileChannel) first).isFileOpen());
+
+        Path rotated = file.resolveSibling("app.log.1");
+        Files.move(file, rotated);
+        createFile("app.log", "new data");
+        try {
+            read(first, 7);
+            Assert.fail("A different file was read.");
+        } catch (NoSuchFileException e) {
+            // expected: the path now refers to another file
+        }
+
+        // The tracker finds the file under its new name when it refreshes
+        ((ManagedFileChannel) first).setPath(rotated);
+        Assert.assertEquals(read(first, 7), "rotated");
+    }
+}
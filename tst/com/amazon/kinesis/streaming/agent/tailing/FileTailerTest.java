@@ -3,29 +3,43 @@
  */
 package com.amazon.kinesis.streaming.agent.tailing;
 
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertNotNull;
 import static org.testng.Assert.assertNull;
 import static org.testng.Assert.assertTrue;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
 import com.amazon.kinesis.streaming.agent.AgentContext;
+import com.amazon.kinesis.streaming.agent.config.Configuration;
+import com.amazon.kinesis.streaming.agent.metrics.Metrics;
 import com.amazon.kinesis.streaming.agent.tailing.FileFlow;
 import com.amazon.kinesis.streaming.agent.tailing.FirehoseRecord;
 import com.amazon.kinesis.streaming.agent.tailing.IRecord;
 import com.amazon.kinesis.streaming.agent.tailing.TrackedFile;
+import com.amazon.kinesis.streaming.agent.tailing.FileFlow.FileDiscovery;
 import com.amazon.kinesis.streaming.agent.tailing.FileFlow.InitialPosition;
+import com.amazon.kinesis.streaming.agent.tailing.FileFlow.TailingMode;
 import com.amazon.kinesis.streaming.agent.tailing.checkpoints.FileCheckpoint;
 import com.amazon.kinesis.streaming.agent.tailing.checkpoints.FileCheckpointStore;
 import com.amazon.kinesis.streaming.agent.tailing.checkpoints.SQLiteFileCheckpointStore;
@@ -37,6 +51,8 @@ import com.amazon.kinesis.streaming.agent.tailing.testing.TestableFileTailer;
 import com.amazon.kinesis.streaming.agent.tailing.testing.FileSender.FileSenderFactory;
 import com.amazon.kinesis.streaming.agent.testing.TestUtils;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
 
 public class FileTailerTest extends TailingTestBase {
     private static final int TEST_TIMEOUT = 60_000;
@@ -257,6 +273,35 @@ public class FileTailerTest extends TailingTestBase {
         }.call();
     }
 
+    @Test(dataProvider="rotatorsSendersTailersInitialPosition", timeOut=TEST_TIMEOUT, skipFailedInvocations=true, invocationCount=TEST_REPS)
+    public void testInputFilesAppearingAfterStartInWatchedDirectory(
+            FileRotatorFactory rotatorFactory,
+            TestableFileTailerFactory<FirehoseRecord> tailerFactory,
+            FileSenderFactory<FirehoseRecord> senderFactory,
+            InitialPosition initialPosition) throws Exception {
+
+        new TailerTestRunner(false, rotatorFactory, senderFactory, tailerFactory, null, initialPosition) {
+            @Override
+            protected void createTailer() throws IOException {
+                when(flow.getFileDiscovery()).thenReturn(FileDiscovery.WATCH);
+                super.createTailer();
+            }
+
+            @Override
+            protected void doRun() throws Exception {
+                processAllInputFiles();
+                assertTrue(rotator.getActiveFiles().isEmpty());
+                assertEquals(tailer.getMetrics().get("FileTailer.WatchingDirectory"), Boolean.TRUE);
+
+                // The new file is picked up from the directory events
+                rotator.rotate();
+                processAllInputFiles();
+                while (((AtomicLong) tailer.getMetrics().get("FileTailer.FileChangeEvents")).get() == 0) {
+                    Thread.sleep(10);
+                }
+            }
+        }.call();
+    }
 
     @Test(dataProvider="rotatorsSendersTailersInitialPosition", timeOut=TEST_TIMEOUT, skipFailedInvocations=true, invocationCount=TEST_REPS)
     public void testStartWithPreexistingFileAndRotation(
@@ -281,6 +326,476 @@ public class FileTailerTest extends TailingTestBase {
         }.call();
     }
 
+    @DataProvider(name = "maxOpenFiles")
+    public Object[][] getMaxOpenFilesData() {
+        // With a budget of one open file, switching directories closes the file of the previous one
+        return new Object[][] { { 0 }, { 1 } };
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test(dataProvider = "maxOpenFiles", timeOut=TEST_TIMEOUT)
+    public void testTailingFilesInMultipleDirectories(int maxOpenFiles) throws Exception {
+        Path root = testFiles.getTmpDir();
+        Path first = Files.createDirectories(root.resolve("a/logs")).resolve("app.log");
+        Path second = Files.createDirectories(root.resolve("b/logs")).resolve("app.log");
+        appendLines(first, "a", 0, 1000);
+        appendLines(second, "b", 0, 1000);
+        Map<String, Object> config = new HashMap<>();
+        config.put("maxOpenFiles", maxOpenFiles);
+        AgentContext agentContext = getTestAgentContext(root.resolve("*/logs/app.log").toString(), config);
+        FileFlow<FirehoseRecord> flow = spy((FileFlow<FirehoseRecord>) agentContext.flows().get(0));
+        when(flow.getInitialPosition()).thenReturn(InitialPosition.START_OF_FILE);
+        when(flow.maxTimeBetweenFileTrackerRefreshMillis()).thenReturn(100L);
+        Path outputFile = testFiles.createTempFile();
+        FileSender<FirehoseRecord> sender = new FileSender.PerfectFileSenderFactory<FirehoseRecord>().create(agentContext, outputFile);
+        TestableFileTailer<FirehoseRecord> tailer = TestableFileTailer.createFirehoseTailer(agentContext, flow, sender, null);
+        tailer.startAsync(false);
+        tailer.awaitRunning();
+        // Data and directories appearing after the start are picked up too
+        appendLines(first, "a", 1000, 500);
+        Path third = Files.createDirectories(root.resolve("c/logs")).resolve("app.log");
+        appendLines(third, "c", 0, 500);
+        // New directories are only found when the tailer refreshes its view of the file system
+        Thread.sleep(500);
+        tailer.waitForIdle();
+        tailer.stopAsync();
+        tailer.awaitTerminated();
+
+        List<String> expected = getLines(null, first, second, third);
+        List<String> actual = getLines(null, outputFile);
+        Collections.sort(expected);
+        Collections.sort(actual);
+        assertEquals(actual, expected);
+        assertEquals(tailer.getMetrics().get("FileTailer.Directories"), 3);
+        if (maxOpenFiles > 0) {
+            assertTrue(agentContext.getFileHandleManager().getTotalEvictions().get() > 0);
+            assertTrue(agentContext.getFileHandleManager().getTotalReopens().get() > 0);
+        } else {
+            // Without a budget, files are opened as plain channels
+            assertEquals(agentContext.getFileHandleManager().getTotalOpens().get(), 0);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test(timeOut=TEST_TIMEOUT)
+    public void testBusyDirectoryDoesNotHoldBackTheOthers() throws Exception {
+        Path root = testFiles.getTmpDir();
+        Path first = Files.createDirectories(root.resolve("a/logs")).resolve("app.log");
+        Path second = Files.createDirectories(root.resolve("b/logs")).resolve("app.log");
+        appendLines(first, "a", 0, 5000);
+        appendLines(second, "b", 0, 5000);
+        AgentContext agentContext = getTestAgentContext(root.resolve("*/logs/app.log").toString(), new HashMap<String, Object>());
+        FileFlow<FirehoseRecord> flow = spy((FileFlow<FirehoseRecord>) agentContext.flows().get(0));
+        when(flow.getInitialPosition()).thenReturn(InitialPosition.START_OF_FILE);
+        when(flow.getMaxBufferSizeRecords()).thenReturn(100);
+        Path outputFile = testFiles.createTempFile();
+        FileSender<FirehoseRecord> sender = new FileSender.PerfectFileSenderFactory<FirehoseRecord>().create(agentContext, outputFile);
+        TestableFileTailer<FirehoseRecord> tailer = TestableFileTailer.createFirehoseTailer(agentContext, flow, sender, null);
+        tailer.startAsync(false);
+        tailer.awaitRunning();
+        tailer.waitForIdle();
+        tailer.stopAsync();
+        tailer.awaitTerminated();
+
+        // Each directory gets a turn of at most maxBufferSizeRecords records, rather than until the end of its file
+        List<String> actual = getLines(null, outputFile);
+        boolean foundFirst = false, foundSecond = false;
+        for (String line : actual.subList(0, 1000)) {
+            foundFirst |= line.startsWith("a-");
+            foundSecond |= line.startsWith("b-");
+        }
+        assertTrue(foundFirst && foundSecond, "The first lines sent are all from the same directory.");
+        List<String> expected = getLines(null, first, second);
+        Collections.sort(expected);
+        Collections.sort(actual);
+        assertEquals(actual, expected);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test(timeOut=TEST_TIMEOUT)
+    public void testTailingFilesConcurrently() throws Exception {
+        Path dir = testFiles.getTmpDir();
+        List<Path> files = Lists.newArrayList();
+        for (int i = 0; i < 4; ++i) {
+            Path file = dir.resolve("worker-" + i + ".log");
+            appendLines(file, "worker" + i, 0, 1000);
+            files.add(file);
+        }
+        Map<String, Object> flowConfig = getTestFlowConfig(dir.resolve("worker-*.log").toString());
+        flowConfig.put(FileFlow.TAILING_MODE_KEY, TailingMode.CONCURRENT.name());
+        Map<String, Object> config = new HashMap<>();
+        config.put("flows", Lists.newArrayList(new Configuration(flowConfig)));
+        AgentContext agentContext = getTestAgentContext(null, config);
+        FileFlow<FirehoseRecord> flow = spy((FileFlow<FirehoseRecord>) agentContext.flows().get(0));
+        when(flow.getInitialPosition()).thenReturn(InitialPosition.START_OF_FILE);
+        when(flow.maxTimeBetweenFileTrackerRefreshMillis()).thenReturn(100L);
+        when(flow.getMaxBufferSizeRecords()).thenReturn(100);
+        Path outputFile = testFiles.createTempFile();
+        FileSender<FirehoseRecord> sender = new FileSender.PerfectFileSenderFactory<FirehoseRecord>().create(agentContext, outputFile);
+        TestableFileTailer<FirehoseRecord> tailer = TestableFileTailer.createFirehoseTailer(agentContext, flow, sender, null);
+        tailer.startAsync(false);
+        tailer.awaitRunning();
+        tailer.waitForIdle();
+
+        // The files take turns rather than being read one after the other
+        List<String> firstLines = getLines(null, outputFile).subList(0, 1000);
+        for (int i = 0; i < files.size(); ++i) {
+            boolean found = false;
+            for (String line : firstLines)
+                found |= line.startsWith("worker" + i + "-");
+            assertTrue(found, "No line of worker " + i + " in the first lines sent.");
+        }
+
+        // New files, and files rotated to names that don't match the pattern, are read too
+        appendLines(files.get(0), "worker0", 1000, 500);
+        Path rotated = Files.move(files.get(1), dir.resolve("worker-1.log.1"));
+        appendLines(rotated, "worker1", 1000, 500);
+        appendLines(files.get(1), "worker1", 1500, 200);
+        TestUtils.ageFile(files.get(1), -10);
+        Path newFile = dir.resolve("worker-4.log");
+        appendLines(newFile, "worker4", 0, 500);
+        Thread.sleep(500);
+        tailer.waitForIdle();
+        tailer.stopAsync();
+        tailer.awaitTerminated();
+
+        List<String> expected = getLines(null, files.get(0), rotated, files.get(1), files.get(2), files.get(3), newFile);
+        List<String> actual = getLines(null, outputFile);
+        Collections.sort(expected);
+        Collections.sort(actual);
+        assertEquals(actual, expected);
+        assertEquals(tailer.getMetrics().get("FileTailer.ConcurrentFiles"), 5);
+        assertTrue(((AtomicLong) tailer.getMetrics().get("FileTailer.FileSwitches")).get() > 0);
+        // Each file has its own checkpoint
+        for (Path file : Lists.newArrayList(files.get(0), files.get(2), files.get(3), newFile)) {
+            FileCheckpoint cp = tailer.getCheckpoints().getCheckpointForSource(flow, flow.getSourceFile().forFile(file));
+            assertNotNull(cp);
+            assertEquals(cp.getFile().getPath(), file);
+            assertEquals(cp.getOffset(), Files.size(file));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test(timeOut=TEST_TIMEOUT)
+    public void testTailingFilesConcurrentlyReadsEachByteOnce() throws Exception {
+        Path dir = testFiles.getTmpDir();
+        List<Path> files = Lists.newArrayList();
+        long totalBytes = 0;
+        for (int i = 0; i < 3; ++i) {
+            Path file = dir.resolve("worker-" + i + ".log");
+            appendLines(file, "worker" + i, 0, 1000);
+            files.add(file);
+            totalBytes += Files.size(file);
+        }
+        Map<String, Object> flowConfig = getTestFlowConfig(dir.resolve("worker-*.log").toString());
+        flowConfig.put(FileFlow.TAILING_MODE_KEY, TailingMode.CONCURRENT.name());
+        Map<String, Object> config = new HashMap<>();
+        config.put("flows", Lists.newArrayList(new Configuration(flowConfig)));
+        AgentContext agentContext = getTestAgentContext(null, config);
+        FileFlow<FirehoseRecord> flow = spy((FileFlow<FirehoseRecord>) agentContext.flows().get(0));
+        when(flow.getInitialPosition()).thenReturn(InitialPosition.START_OF_FILE);
+        when(flow.getMaxBufferSizeRecords()).thenReturn(100);
+        Path outputFile = testFiles.createTempFile();
+        FileSender<FirehoseRecord> sender = new FileSender.PerfectFileSenderFactory<FirehoseRecord>().create(agentContext, outputFile);
+        TestableFileTailer<FirehoseRecord> tailer = TestableFileTailer.createFirehoseTailer(agentContext, flow, sender, null);
+        tailer.startAsync(false);
+        tailer.awaitRunning();
+        tailer.waitForIdle();
+        tailer.stopAsync();
+        tailer.awaitTerminated();
+
+        List<String> expected = getLines(null, files.get(0), files.get(1), files.get(2));
+        List<String> actual = getLines(null, outputFile);
+        Collections.sort(expected);
+        Collections.sort(actual);
+        assertEquals(actual, expected);
+        // The files took many turns, and each parser kept its buffer between them
+        Map<String, Object> metrics = tailer.getMetrics();
+        assertTrue(((AtomicLong) metrics.get("FileTailer.FileSwitches")).get() >= 20);
+        assertEquals(Metrics.getMetric(metrics, Metrics.PARSER_TOTAL_BYTES_CONSUMED_METRIC, new AtomicLong()).get(), totalBytes);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testResumingFromCheckpointInFileCompressedSince() throws Exception {
+        Path file = testFiles.getTmpDir().resolve("app.log");
+        appendLines(file, "old", 0, 1000);
+        Map<String, Object> flowConfig = getTestFlowConfig(file.toString() + "*");
+        flowConfig.put(FileFlow.READ_COMPRESSED_FILES_KEY, true);
+        Map<String, Object> config = new HashMap<>();
+        config.put("flows", Lists.newArrayList(new Configuration(flowConfig)));
+        AgentContext agentContext = getTestAgentContext(null, config);
+        FileFlow<FirehoseRecord> flow = spy((FileFlow<FirehoseRecord>) agentContext.flows().get(0));
+        when(flow.getInitialPosition()).thenReturn(InitialPosition.START_OF_FILE);
+        Path firstOutput = testFiles.createTempFile();
+        TestableFileTailer<FirehoseRecord> tailer = TestableFileTailer.createFirehoseTailer(agentContext, flow,
+                new FileSender.PerfectFileSenderFactory<FirehoseRecord>().create(agentContext, firstOutput), null);
+        tailer.startAsync(false);
+        tailer.awaitRunning();
+        tailer.waitForIdle();
+        tailer.stopAsync();
+        tailer.awaitTerminated();
+        assertEquals(getLines(null, firstOutput).size(), 1000);
+
+        // While the agent is down, the file gets more data, then it's rotated and compressed
+        appendLines(file, "old", 1000, 500);
+        Path rotated = file.resolveSibling("app.log.1");
+        Files.move(file, rotated);
+        TestUtils.gzipFile(rotated, file.resolveSibling("app.log.1.gz"));
+        appendLines(file, "new", 0, 200);
+        TestUtils.ageFile(file, -10);
+
+        Path secondOutput = testFiles.createTempFile();
+        tailer = TestableFileTailer.createFirehoseTailer(agentContext, flow,
+                new FileSender.PerfectFileSenderFactory<FirehoseRecord>().create(agentContext, secondOutput), null);
+        tailer.startAsync(false);
+        tailer.awaitRunning();
+        tailer.waitForIdle();
+        tailer.stopAsync();
+        tailer.awaitTerminated();
+
+        // Nothing is lost nor sent twice
+        List<String> actual = getLines(null, secondOutput);
+        assertEquals(actual.size(), 700);
+        assertEquals(actual.get(0), "old-1000\n");
+        assertEquals(actual.get(499), "old-1499\n");
+        assertEquals(actual.get(500), "new-0\n");
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testTailingOnSharedFlowThreads() throws Exception {
+        Path file = testFiles.getTmpDir().resolve("app.log");
+        appendLines(file, "first", 0, 1000);
+        Map<String, Object> config = new HashMap<>();
+        config.put("flows", Lists.newArrayList(new Configuration(getTestFlowConfig(file.toString()))));
+        config.put("flowThreads", 1);
+        AgentContext agentContext = getTestAgentContext(null, config);
+        FileFlow<FirehoseRecord> flow = spy((FileFlow<FirehoseRecord>) agentContext.flows().get(0));
+        when(flow.getInitialPosition()).thenReturn(InitialPosition.START_OF_FILE);
+        when(flow.maxTimeBetweenFileTrackerRefreshMillis()).thenReturn(100L);
+        Path output = testFiles.createTempFile();
+        TestableFileTailer<FirehoseRecord> tailer = TestableFileTailer.createFirehoseTailer(agentContext, flow,
+                new FileSender.PerfectFileSenderFactory<FirehoseRecord>().create(agentContext, output), null);
+        tailer.startAsync(false);
+        tailer.awaitRunning();
+        tailer.waitForIdle();
+        // The tailer is woken up by new data rather than waiting for it on a thread of its own
+        appendLines(file, "second", 0, 500);
+        Thread.sleep(500);
+        tailer.waitForIdle();
+        for (Thread thread : Thread.getAllStackTraces().keySet())
+            assertFalse(thread.getName().startsWith("FileTailer") || thread.getName().startsWith("AsyncPublisher"), thread.getName());
+        tailer.stopAsync();
+        tailer.awaitTerminated();
+        assertEquals(getLines(null, output), getLines(null, file));
+        agentContext.shutdownFlowScheduler();
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testCatchingUpOnRotatedFilesInParallel() throws Exception {
+        Path file = testFiles.getTmpDir().resolve("app.log");
+        appendLines(file, "old", 0, 1000);
+        Map<String, Object> flowConfig = getTestFlowConfig(file.toString() + "*");
+        flowConfig.put(FileFlow.CATCH_UP_PARALLELISM_KEY, 3);
+        Map<String, Object> config = new HashMap<>();
+        config.put("flows", Lists.newArrayList(new Configuration(flowConfig)));
+        AgentContext agentContext = getTestAgentContext(null, config);
+        FileFlow<FirehoseRecord> flow = spy((FileFlow<FirehoseRecord>) agentContext.flows().get(0));
+        when(flow.getInitialPosition()).thenReturn(InitialPosition.START_OF_FILE);
+        Path firstOutput = testFiles.createTempFile();
+        TestableFileTailer<FirehoseRecord> tailer = TestableFileTailer.createFirehoseTailer(agentContext, flow,
+                new FileSender.PerfectFileSenderFactory<FirehoseRecord>().create(agentContext, firstOutput), null);
+        tailer.startAsync(false);
+        tailer.awaitRunning();
+        tailer.waitForIdle();
+        tailer.stopAsync();
+        tailer.awaitTerminated();
+        assertEquals(getLines(null, firstOutput).size(), 1000);
+
+        // While the agent is down, the file gets more data and is rotated several times
+        appendLines(file, "old", 1000, 500);
+        List<Path> rotated = Lists.newArrayList();
+        for (int i = 4; i >= 1; --i) {
+            Path rotatedFile = file.resolveSibling("app.log." + i);
+            Files.move(file, rotatedFile);
+            TestUtils.ageFile(rotatedFile, 10 * i);
+            rotated.add(rotatedFile);
+            if (i > 1)
+                appendLines(file, "rotated" + i, 0, 2000);
+        }
+        appendLines(file, "new", 0, 200);
+
+        Path secondOutput = testFiles.createTempFile();
+        tailer = TestableFileTailer.createFirehoseTailer(agentContext, flow,
+                new FileSender.PerfectFileSenderFactory<FirehoseRecord>().create(agentContext, secondOutput), null);
+        tailer.startAsync(false);
+        tailer.awaitRunning();
+        tailer.waitForIdle();
+        Map<String, Object> metrics = tailer.getMetrics();
+        tailer.stopAsync();
+        tailer.awaitTerminated();
+
+        // Nothing is lost nor sent twice, although the files were not read in order
+        List<String> actual = getLines(null, secondOutput);
+        List<String> expected = getLines(null, rotated.get(1), rotated.get(2), rotated.get(3), file);
+        expected.addAll(getLines(null, rotated.get(0)).subList(1000, 1500));
+        Collections.sort(actual);
+        Collections.sort(expected);
+        assertEquals(actual, expected);
+        // The latest file is tailed as usual, and the others were caught up on in parallel
+        assertEquals(((AtomicLong) metrics.get("FileTailer.CatchUpFilesCompleted")).get(), 4);
+        assertEquals(metrics.get("FileTailer.CatchUpFiles"), 0);
+        assertEquals(metrics.get("FileTailer.CatchUpBytesRemaining"), 0L);
+        // Each file has its own checkpoint, at its end
+        Map<FileId, FileCheckpoint> checkpoints = new HashMap<>();
+        for (FileCheckpoint cp : tailer.getCheckpoints().getCheckpointsForFlow(flow))
+            checkpoints.put(cp.getFile().getId(), cp);
+        for (Path path : Lists.newArrayList(rotated.get(0), rotated.get(1), rotated.get(2), rotated.get(3), file)) {
+            FileCheckpoint cp = checkpoints.get(FileId.get(path));
+            assertNotNull(cp, "No checkpoint for " + path);
+            assertEquals(cp.getOffset(), Files.size(path));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testCatchingUpWhileRecordsAreBeingConverted() throws Exception {
+        Path file = testFiles.getTmpDir().resolve("app.log");
+        appendLines(file, "old", 0, 5000);
+        Map<String, Object> flowConfig = getTestFlowConfig(file.toString() + "*");
+        flowConfig.put(FileFlow.CATCH_UP_PARALLELISM_KEY, 3);
+        flowConfig.put(FileFlow.CONVERSION_OPTION_KEY, Lists.newArrayList(
+                new Configuration(ImmutableMap.<String, Object>of("optionName", "SINGLELINE", "escapeNewLineChar", ""))));
+        Map<String, Object> config = new HashMap<>();
+        config.put("flows", Lists.newArrayList(new Configuration(flowConfig)));
+        config.put("maxDataConversionThreads", 2);
+        config.put("maxMemoryBytes", 1024L);
+        AgentContext agentContext = getTestAgentContext(null, config);
+        FileFlow<FirehoseRecord> flow = spy((FileFlow<FirehoseRecord>) agentContext.flows().get(0));
+        when(flow.getInitialPosition()).thenReturn(InitialPosition.START_OF_FILE);
+        when(flow.maxTimeBetweenFileTrackerRefreshMillis()).thenReturn(100L);
+        Path output = testFiles.createTempFile();
+        TestableFileTailer<FirehoseRecord> tailer = TestableFileTailer.createFirehoseTailer(agentContext, flow,
+                new FileSender.PerfectFileSenderFactory<FirehoseRecord>().create(agentContext, output), null);
+        tailer.startAsync(true);
+        tailer.awaitRunning();
+        // As if a record was queued, the flow is over budget once its parser
+        // holds a buffer, so the tailer backs off after a record while the
+        // parser converts the next ones
+        MemoryBudget.Account memory = agentContext.getMemoryBudget().account(flow.getId());
+        memory.addQueuedBytes(1, 1);
+        assertEquals(((FileTailer<FirehoseRecord>) tailer).processRecords(), 1);
+        assertTrue(tailer.parser.bufferedBytesRemaining() > 0);
+
+        // Meanwhile, the file is rotated several times
+        List<Path> rotated = Lists.newArrayList();
+        for (int i = 3; i >= 1; --i) {
+            Path rotatedFile = file.resolveSibling("app.log." + i);
+            Files.move(file, rotatedFile);
+            TestUtils.ageFile(rotatedFile, 10 * i);
+            rotated.add(rotatedFile);
+            appendLines(file, i > 1 ? "rotated" + i : "new", 0, 2000);
+        }
+        memory.addQueuedBytes(-1, -1);
+        tailer.resume();
+        tailer.waitForIdle();
+        Map<String, Object> metrics = tailer.getMetrics();
+        tailer.stopAsync();
+        tailer.awaitTerminated();
+
+        // The records that were being converted are read again by the catch-up, and sent once
+        List<String> actual = getLines(null, output);
+        List<String> expected = getLines(null, rotated.get(0), rotated.get(1), rotated.get(2), file);
+        Collections.sort(actual);
+        Collections.sort(expected);
+        assertEquals(actual, expected);
+        assertEquals(((AtomicLong) metrics.get("FileTailer.CatchUpFilesCompleted")).get(), 3);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testCatchingUpRetriesAFileThatFailedToBeRead() throws Exception {
+        Path file = testFiles.getTmpDir().resolve("app.log");
+        appendLines(file, "old", 0, 1000);
+        Map<String, Object> flowConfig = getTestFlowConfig(file.toString() + "*");
+        flowConfig.put(FileFlow.CATCH_UP_PARALLELISM_KEY, 3);
+        Map<String, Object> config = new HashMap<>();
+        config.put("flows", Lists.newArrayList(new Configuration(flowConfig)));
+        AgentContext agentContext = getTestAgentContext(null, config);
+        final FileFlow<FirehoseRecord> flow = spy((FileFlow<FirehoseRecord>) agentContext.flows().get(0));
+        when(flow.getInitialPosition()).thenReturn(InitialPosition.START_OF_FILE);
+        Path firstOutput = testFiles.createTempFile();
+        TestableFileTailer<FirehoseRecord> tailer = TestableFileTailer.createFirehoseTailer(agentContext, flow,
+                new FileSender.PerfectFileSenderFactory<FirehoseRecord>().create(agentContext, firstOutput), null);
+        tailer.startAsync(false);
+        tailer.awaitRunning();
+        tailer.waitForIdle();
+        tailer.stopAsync();
+        tailer.awaitTerminated();
+
+        List<Path> rotated = Lists.newArrayList();
+        for (int i = 3; i >= 1; --i) {
+            Path rotatedFile = file.resolveSibling("app.log." + i);
+            Files.move(file, rotatedFile);
+            TestUtils.ageFile(rotatedFile, 10 * i);
+            rotated.add(rotatedFile);
+            appendLines(file, i > 1 ? "rotated" + i : "new", 0, 2000);
+        }
+        // Reading one of the files being caught up on fails once, half-way through
+        final Path failingFile = rotated.get(1);
+        final AtomicBoolean failed = new AtomicBoolean();
+        doAnswer(new Answer<IParser<FirehoseRecord>>() {
+            @Override
+            public IParser<FirehoseRecord> answer(InvocationOnMock invocation) throws Throwable {
+                IParser<FirehoseRecord> parser = spy((IParser<FirehoseRecord>) invocation.callRealMethod());
+                doAnswer(new Answer<FirehoseRecord>() {
+                    @Override
+                    public FirehoseRecord answer(InvocationOnMock invocation) throws Throwable {
+                        FirehoseRecord record = (FirehoseRecord) invocation.callRealMethod();
+                        if (record != null && record.file().getPath().equals(failingFile)
+                                && record.startOffset() > Files.size(failingFile) / 2 && failed.compareAndSet(false, true)) {
+                            record.release();
+                            throw new IllegalStateException("Simulated read failure");
+                        }
+                        return record;
+                    }
+                }).when(parser).readRecord();
+                return parser;
+            }
+        }).when(flow).buildParser();
+
+        Path secondOutput = testFiles.createTempFile();
+        tailer = TestableFileTailer.createFirehoseTailer(agentContext, flow,
+                new FileSender.PerfectFileSenderFactory<FirehoseRecord>().create(agentContext, secondOutput), null);
+        tailer.startAsync(false);
+        tailer.awaitRunning();
+        tailer.waitForIdle();
+        Map<String, Object> metrics = tailer.getMetrics();
+        tailer.stopAsync();
+        tailer.awaitTerminated();
+
+        // The file is read again from the last record published: nothing is lost nor sent twice
+        assertTrue(failed.get());
+        List<String> actual = getLines(null, secondOutput);
+        List<String> expected = getLines(null, rotated.get(1), rotated.get(2), file);
+        Collections.sort(actual);
+        Collections.sort(expected);
+        assertEquals(actual, expected);
+        assertEquals(((AtomicLong) metrics.get("FileTailer.CatchUpFileRetries")).get(), 1);
+        assertEquals(((AtomicLong) metrics.get("FileTailer.CatchUpFilesFailed")).get(), 0);
+        assertEquals(((AtomicLong) metrics.get("FileTailer.CatchUpFilesCompleted")).get(), 3);
+    }
+
+    private void appendLines(Path file, String prefix, int start, int count) throws IOException {
+        StringBuilder data = new StringBuilder();
+        for (int i = start; i < start + count; ++i) {
+            data.append(prefix).append("-").append(i).append("\n");
+        }
+        Files.write(file, data.toString().getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
     @DataProvider(name = "rotatorsSendersTailersInitialPosition")
     public Object[][] getrotatorsSendersTailersInitialPositionData() throws IOException {
         Object[][] initialPositions = new Object[][] {
@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2014-2017 Amazon.com, Inc. All Rights Reserved.
+ */
+package com.amazon.kinesis.streaming.agent.tailing;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class FlowSchedulerTest {
+    private static final long TIMEOUT_SECONDS = 5;
+    private FlowScheduler scheduler;
+
+    @BeforeMethod
+    public void setup() {
+        scheduler = new FlowScheduler(2);
+    }
+
+    @AfterMethod
+    public void teardown() {
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void testTaskRunsOnlyWhenWokenUp() throws Exception {
+        final Semaphore runs = new Semaphore(0);
+        FlowScheduler.ScheduledTask task = scheduler.schedule("test", new FlowScheduler.Task() {
+            @Override
+            public long runOnce() {
+                runs.release();
+                return FlowScheduler.WAIT_FOR_WAKE_UP;
+            }
+        });
+        assertTrue(runs.tryAcquire(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertFalse(runs.tryAcquire(200, TimeUnit.MILLISECONDS));
+        task.wakeUp();
+        assertTrue(runs.tryAcquire(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testTaskRunsAgainAfterDelay() throws Exception {
+        final Semaphore runs = new Semaphore(0);
+        scheduler.schedule("test", new FlowScheduler.Task() {
+            @Override
+            public long runOnce() {
+                runs.release();
+                return 50;
+            }
+        });
+        assertTrue(runs.tryAcquire(3, TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertTrue(((AtomicLong) scheduler.getMetrics().get("FlowScheduler.TotalTimeouts")).get() >= 2);
+    }
+
+    @Test
+    public void testWakeUpWhileRunningIsNotLost() throws Exception {
+        final CountDownLatch running = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        final AtomicInteger runs = new AtomicInteger();
+        final Semaphore secondRun = new Semaphore(0);
+        FlowScheduler.ScheduledTask task = scheduler.schedule("test", new FlowScheduler.Task() {
+            @Override
+            public long runOnce() throws Exception {
+                if (runs.incrementAndGet() == 1) {
+                    running.countDown();
+                    proceed.await();
+                } else {
+                    secondRun.release();
+                }
+                return FlowScheduler.WAIT_FOR_WAKE_UP;
+            }
+        });
+        assertTrue(running.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        task.wakeUp();
+        task.wakeUp();
+        proceed.countDown();
+        assertTrue(secondRun.tryAcquire(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        // Waking it up twice while it ran doesn't make it run twice more
+        assertFalse(secondRun.tryAcquire(200, TimeUnit.MILLISECONDS));
+        assertEquals(runs.get(), 2);
+    }
+
+    @Test
+    public void testWakeUpCancelsTheTimeoutOfTheLastIteration() throws Exception {
+        final Semaphore runs = new Semaphore(0);
+        FlowScheduler.ScheduledTask task = scheduler.schedule("test", new FlowScheduler.Task() {
+            @Override
+            public long runOnce() {
+                runs.release();
+                return 500;
+            }
+        });
+        // Wake the task up as it goes idle, again and again, for a while
+        long end = System.currentTimeMillis() + 2000;
+        while (System.currentTimeMillis() < end) {
+            assertTrue(runs.tryAcquire(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            task.wakeUp();
+        }
+        assertTrue(runs.tryAcquire(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        // Every iteration was woken up before its delay elapsed
+        assertEquals(((AtomicLong) scheduler.getMetrics().get("FlowScheduler.TotalTimeouts")).get(), 0);
+    }
+
+    @Test
+    public void testCancelWaitsForRunningIteration() throws Exception {
+        final CountDownLatch running = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        final AtomicInteger runs = new AtomicInteger();
+        FlowScheduler.ScheduledTask task = scheduler.schedule("test", new FlowScheduler.Task() {
+            @Override
+            public long runOnce() throws Exception {
+                runs.incrementAndGet();
+                running.countDown();
+                proceed.await();
+                return 0;
+            }
+        });
+        assertTrue(running.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        final CountDownLatch cancelled = new CountDownLatch(1);
+        task.cancel(new Runnable() {
+            @Override
+            public void run() {
+                cancelled.countDown();
+            }
+        });
+        assertFalse(cancelled.await(200, TimeUnit.MILLISECONDS));
+        proceed.countDown();
+        assertTrue(cancelled.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        task.wakeUp();
+        Thread.sleep(200);
+        assertTrue(task.isCancelled());
+        assertEquals(runs.get(), 1);
+    }
+
+    @Test
+    public void testTasksShareThreads() throws Exception {
+        final int taskCount = 50;
+        final Set<String> threads = ConcurrentHashMap.newKeySet();
+        final CountDownLatch done = new CountDownLatch(taskCount * 10);
+        for (int i = 0; i < taskCount; ++i) {
+            scheduler.schedule("test-" + i, new FlowScheduler.Task() {
+                private int runs = 0;
+
+                @Override
+                public long runOnce() {
+                    threads.add(Thread.currentThread().getName());
+                    done.countDown();
+                    return ++runs < 10 ? 0 : FlowScheduler.WAIT_FOR_WAKE_UP;
+                }
+            });
+        }
+        assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertTrue(threads.size() <= 2, "Threads: " + threads);
+    }
+}
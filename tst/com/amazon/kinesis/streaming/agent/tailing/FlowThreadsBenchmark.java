@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2014-2017 Amazon.com, Inc. All Rights Reserved.
+ */
+package com.amazon.kinesis.streaming.agent.tailing;
+
+import static org.testng.Assert.assertEquals;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import com.amazon.kinesis.streaming.agent.AgentContext;
+import com.amazon.kinesis.streaming.agent.config.Configuration;
+import com.amazon.kinesis.streaming.agent.metrics.Metrics;
+import com.amazon.kinesis.streaming.agent.tailing.FileFlow.InitialPosition;
+import com.amazon.kinesis.streaming.agent.tailing.checkpoints.FileCheckpointStore;
+import com.amazon.kinesis.streaming.agent.tailing.checkpoints.SQLiteFileCheckpointStore;
+import com.amazon.kinesis.streaming.agent.tailing.testing.FileSender;
+import com.amazon.kinesis.streaming.agent.tailing.testing.TailingTestBase;
+import com.amazon.kinesis.streaming.agent.testing.TestUtils;
+import com.google.common.base.Stopwatch;
+
+/**
+ * Compares flows running on threads of their own with flows sharing a pool
+ * of as many threads as there are cores (see {@link FlowScheduler}), at 10,
+ * 100 and 1000 flows: each flow tails a file of its own to a sender without
+ * latency, and the benchmark reports the peak number of threads, the
+ * context switches (on Linux) and the throughput. Disabled by default;
+ * enable and run it on its own when changing how flows are run.
+ */
+public class FlowThreadsBenchmark extends TailingTestBase {
+    private static final Logger LOGGER = TestUtils.getLogger(FlowThreadsBenchmark.class);
+    private static final int LINES_PER_FLOW = 2000;
+    // Just above the max record size, for a thousand parsers to fit in a test heap
+    private static final int PARSER_BUFFER_SIZE_BYTES = FirehoseConstants.MAX_RECORD_SIZE_BYTES + 64 * 1024;
+
+    @DataProvider
+    public Object[][] flowCounts() {
+        return new Object[][] {
+                {10},
+                {100},
+                {1000},
+        };
+    }
+
+    @Test(enabled=false, groups={"benchmark"}, dataProvider="flowCounts")
+    public void benchmarkFlowThreads(int flowCount) throws Exception {
+        runFlows(flowCount, 0);
+        runFlows(flowCount, Runtime.getRuntime().availableProcessors());
+    }
+
+    @SuppressWarnings("unchecked")
+    private void runFlows(int flowCount, int flowThreads) throws Exception {
+        Path dir = testFiles.getTmpDir().resolve("flows" + TestUtils.uniqueCounter());
+        Files.createDirectories(dir);
+        List<Configuration> flowConfigs = new ArrayList<>();
+        long totalBytes = 0;
+        for (int i = 0; i < flowCount; ++i) {
+            Path file = dir.resolve("app-" + i + ".log");
+            StringBuilder lines = new StringBuilder();
+            for (int j = 0; j < LINES_PER_FLOW; ++j)
+                lines.append("flow").append(i).append(" line ").append(j).append(" of the benchmark log\n");
+            byte[] data = lines.toString().getBytes(StandardCharsets.UTF_8);
+            Files.write(file, data);
+            totalBytes += data.length;
+            Map<String, Object> flowConfig = getTestFlowConfig(file.toString());
+            flowConfig.put(FileFlow.INITIAL_POSITION_KEY, InitialPosition.START_OF_FILE.name());
+            flowConfigs.add(new Configuration(flowConfig));
+        }
+        Map<String, Object> config = new HashMap<>();
+        config.put("flows", flowConfigs);
+        config.put("flowThreads", flowThreads);
+        AgentContext agentContext = getTestAgentContext(null, config);
+        ThreadPoolExecutor sendingExecutor = agentContext.createSendingExecutor();
+        FileCheckpointStore checkpoints = new SQLiteFileCheckpointStore(agentContext);
+        List<FileTailer<FirehoseRecord>> tailers = new ArrayList<>();
+        for (FileFlow<?> flow : agentContext.flows()) {
+            FileFlow<FirehoseRecord> firehoseFlow = (FileFlow<FirehoseRecord>) flow;
+            FileSender<FirehoseRecord> sender = new FileSender<>(agentContext, testFiles.createTempFile(), 0, 0, 0, 0, 0);
+            tailers.add(new FileTailer<FirehoseRecord>(agentContext, firehoseFlow,
+                    new SourceFileTracker(agentContext, firehoseFlow),
+                    new AsyncPublisherService<>(agentContext, firehoseFlow, checkpoints, sender, sendingExecutor),
+                    new FirehoseParser(firehoseFlow, PARSER_BUFFER_SIZE_BYTES),
+                    checkpoints));
+        }
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+        long contextSwitchesBefore = contextSwitches();
+        Stopwatch timer = Stopwatch.createStarted();
+        for (FileTailer<FirehoseRecord> tailer : tailers)
+            tailer.startAsync();
+        for (FileTailer<FirehoseRecord> tailer : tailers)
+            tailer.awaitRunning();
+        long recordsSent = 0;
+        for (FileTailer<FirehoseRecord> tailer : tailers) {
+            tailer.waitForIdle();
+            recordsSent += Metrics.getMetric(tailer.getMetrics(), Metrics.SENDER_TOTAL_RECORDS_SENT_METRIC, new AtomicLong()).get();
+        }
+        long elapsedMillis = Math.max(1, timer.elapsed(TimeUnit.MILLISECONDS));
+        long contextSwitches = contextSwitches() - contextSwitchesBefore;
+        LOGGER.info("{} flows, {}: {} peak threads, {} context switches, {} records/s, {} MB/s",
+                flowCount, flowThreads > 0 ? flowThreads + " shared thread(s)" : "threads of their own",
+                threads.getPeakThreadCount(), contextSwitchesBefore < 0 ? "unknown" : contextSwitches,
+                recordsSent * 1000 / elapsedMillis, String.format("%.2f", totalBytes / 1024.0 / 1024.0 * 1000 / elapsedMillis));
+        assertEquals(recordsSent, (long) flowCount * LINES_PER_FLOW);
+
+        for (FileTailer<FirehoseRecord> tailer : tailers)
+            tailer.stopAsync();
+        for (FileTailer<FirehoseRecord> tailer : tailers)
+            tailer.awaitTerminated();
+        sendingExecutor.shutdownNow();
+        agentContext.shutdownFlowScheduler();
+    }
+
+    /**
+     * @return The context switches of all the live threads of the process
+     *         so far, or {@code -1} where that's not available (i.e. not on
+     *         Linux).
+     */
+    private static long contextSwitches() {
+        Path tasks = Paths.get("/proc/self/task");
+        if (!Files.isDirectory(tasks))
+            return -1;
+        long total = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(tasks)) {
+            for (Path task : stream) {
+                try {
+                    for (String line : Files.readAllLines(task.resolve("status"), StandardCharsets.UTF_8)) {
+                        if (line.startsWith("voluntary_ctxt_switches:") || line.startsWith("nonvoluntary_ctxt_switches:"))
+                            total += Long.parseLong(line.substring(line.indexOf(':') + 1).trim());
+                    }
+                } catch (IOException e) {
+                    // The thread exited meanwhile
+                }
+            }
+        } catch (IOException e) {
+            return -1;
+        }
+        return total;
+    }
+}
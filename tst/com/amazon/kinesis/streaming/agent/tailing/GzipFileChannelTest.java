@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2014-2017 Amazon.com, Inc. All Rights Reserved.
+ */
+package com.amazon.kinesis.streaming.agent.tailing;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+
+import lombok.Cleanup;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.amazon.kinesis.streaming.agent.testing.TestUtils.TestBase;
+
+public class GzipFileChannelTest extends TestBase {
+
+    private Path writeGzipFile(byte[]... members) throws IOException {
+        Path file = testFiles.createTempFileWithName("app.log.1.gz");
+        for (byte[] member : members) {
+            // Each call appends a complete gzip member, like concatenated gzip files
+            try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(file, StandardOpenOption.APPEND))) {
+                out.write(member);
+            }
+        }
+        return file;
+    }
+
+    private byte[] testData(int lines) {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        for (int i = 0; i < lines; ++i) {
+            byte[] line = ("line " + i + " of the compressed test file\n").getBytes();
+            data.write(line, 0, line.length);
+        }
+        return data.toByteArray();
+    }
+
+    private byte[] readAll(GzipFileChannel channel, int bufferSize) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
+        while (channel.read(buffer) >= 0) {
+            buffer.flip();
+            data.write(buffer.array(), 0, buffer.limit());
+            buffer.clear();
+        }
+        return data.toByteArray();
+    }
+
+    @Test
+    public void testReadsUncompressedData() throws IOException {
+        byte[] data = testData(10000);
+        Path file = writeGzipFile(data);
+        Assert.assertTrue(Files.size(file) < data.length);
+        Assert.assertEquals(GzipFileChannel.uncompressedSize(file), data.length);
+
+        @Cleanup GzipFileChannel channel = GzipFileChannel.open(file);
+        Assert.assertEquals(channel.size(), data.length);
+        Assert.assertEquals(readAll(channel, 4096), data);
+        Assert.assertEquals(channel.position(), data.length);
+        Assert.assertEquals(channel.size(), data.length);
+    }
+
+    @Test
+    public void testSeekingForwardAndBackward() throws IOException {
+        byte[] data = testData(1000);
+        Path file = writeGzipFile(data);
+        @Cleanup GzipFileChannel channel = GzipFileChannel.open(file);
+
+        int offset = data.length / 2;
+        channel.position(offset);
+        Assert.assertEquals(channel.position(), offset);
+        ByteBuffer buffer = ByteBuffer.allocate(100);
+        Assert.assertEquals(channel.read(buffer), 100);
+        Assert.assertEquals(buffer.array(), Arrays.copyOfRange(data, offset, offset + 100));
+        Assert.assertEquals(channel.position(), offset + 100);
+
+        // Going back decompresses from the start again
+        channel.position(10);
+        buffer.clear();
+        Assert.assertEquals(channel.read(buffer), 100);
+        Assert.assertEquals(buffer.array(), Arrays.copyOfRange(data, 10, 110));
+
+        // Past the end, there's nothing to read
+        channel.position(data.length + 10);
+        buffer.clear();
+        Assert.assertEquals(channel.read(buffer), -1);
+    }
+
+    @Test
+    public void testSizeCoversAllMembers() throws IOException {
+        byte[] first = testData(1000);
+        byte[] second = testData(10);
+        Path file = writeGzipFile(first, second);
+        // The trailer only has the size of the last member...
+        Assert.assertEquals(GzipFileChannel.uncompressedSize(file), second.length);
+
+        // ...but the size never stops readers before the end of the data
+        @Cleanup GzipFileChannel channel = GzipFileChannel.open(file);
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        long total = 0;
+        while (channel.position() < channel.size()) {
+            buffer.clear();
+            int bytes = channel.read(buffer);
+            if (bytes > 0)
+                total += bytes;
+        }
+        Assert.assertEquals(total, first.length + second.length);
+        Assert.assertEquals(channel.size(), first.length + second.length);
+    }
+
+    @Test
+    public void testEmptyFile() throws IOException {
+        Path file = testFiles.createTempFileWithName("empty.log.gz");
+        Assert.assertEquals(GzipFileChannel.uncompressedSize(file), 0);
+        @Cleanup GzipFileChannel channel = GzipFileChannel.open(file);
+        Assert.assertEquals(channel.size(), 0);
+        Assert.assertEquals(channel.read(ByteBuffer.allocate(10)), -1);
+    }
+
+    @Test(expectedExceptions = NonWritableChannelException.class)
+    public void testChannelIsReadOnly() throws IOException {
+        Path file = writeGzipFile(testData(10));
+        @Cleanup GzipFileChannel channel = GzipFileChannel.open(file);
+        channel.write(ByteBuffer.allocate(10));
+    }
+}
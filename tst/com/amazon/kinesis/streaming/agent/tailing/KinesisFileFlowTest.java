@@ -51,6 +51,35 @@ public class KinesisFileFlowTest extends FileFlowTest<KinesisFileFlow> {
         assertEquals(ff2.getPartitionKeyOption(), KinesisConstants.PartitionKeyOption.RANDOM);
 	}
     
+    @SuppressWarnings("serial")
+    @Test
+    public void testRecordAggregationSizeBytes() {
+        AgentContext context = TestUtils.getTestAgentContext();
+        final String file = "/var/log/message*";
+        KinesisFileFlow ff1 = buildFileFlow(context, new Configuration(new HashMap<String, Object>() {{
+            put("filePattern", file);
+            put(getDestinationKey(), "des1");
+            put(KinesisFileFlow.AGGREGATED_RECORD_SIZE_BYTES_KEY, 50 * 1024);
+        }}));
+        KinesisFileFlow ff2 = buildFileFlow(context, new Configuration(new HashMap<String, Object>() {{
+            put("filePattern", file);
+            put(getDestinationKey(), "des2");
+        }}));
+        assertEquals(ff1.getRecordSplitter().getClass(), AggregationSplitter.class);
+        assertEquals(ff2.getRecordSplitter().getClass(), SingleLineSplitter.class);
+    }
+
+    @SuppressWarnings("serial")
+    @Test(expectedExceptions=ConfigurationException.class)
+    public void testRecordAggregationSizeBytesTooLarge() {
+        AgentContext context = TestUtils.getTestAgentContext();
+        buildFileFlow(context, new Configuration(new HashMap<String, Object>() {{
+            put("filePattern", "/var/log/message*");
+            put(getDestinationKey(), "des");
+            put(KinesisFileFlow.AGGREGATED_RECORD_SIZE_BYTES_KEY, KinesisConstants.MAX_AGGREGATED_RECORD_SIZE_BYTES + 1);
+        }}));
+    }
+
     @DataProvider(name="badPartitionKeyOptionInConfig")
     public Object[][] testPartitionKeyOptionInConfigData(){
         return new Object[][] { { "UNSUPPORTED" }, { "random" }, { "" } };
@@ -3,7 +3,15 @@
  */
 package com.amazon.kinesis.streaming.agent.tailing;
 
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -11,6 +19,7 @@ import java.util.Map;
 
 import org.apache.commons.lang3.RandomStringUtils;
 import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
 
 import com.amazon.kinesis.streaming.agent.AgentContext;
 import com.amazon.kinesis.streaming.agent.config.Configuration;
@@ -18,6 +27,8 @@ import com.amazon.kinesis.streaming.agent.tailing.FileFlow;
 import com.amazon.kinesis.streaming.agent.tailing.KinesisConstants;
 import com.amazon.kinesis.streaming.agent.tailing.KinesisParser;
 import com.amazon.kinesis.streaming.agent.tailing.KinesisRecord;
+import com.amazon.kinesis.streaming.agent.ByteBuffers;
+import com.amazon.kinesis.streaming.agent.tailing.testing.RecordGenerator;
 import com.amazon.kinesis.streaming.agent.testing.TestUtils;
 
 public class KinesisParserTest extends AbstractParserTest<KinesisParser, KinesisRecord> {
@@ -31,6 +42,40 @@ public class KinesisParserTest extends AbstractParserTest<KinesisParser, Kinesis
         flow = (FileFlow<KinesisRecord>) context.flows().get(0);
     }
     
+    @Test
+    public void testParsingRecordsWithAggregation() throws IOException {
+        final int recordSizeHint = 50 * 1024;
+        flow = spy(flow);
+        when(flow.getRecordSplitter()).thenReturn(new AggregationSplitter(recordSizeHint));
+        Path testFile = testFiles.createTempFile();
+        RecordGenerator generator = new RecordGenerator(150, 0.5);
+        int lineCount = generator.appendDataToFile(testFile, 4 * 1024 * 1024);
+        KinesisParser parser = buildParser();
+        TrackedFile file = new TrackedFile(flow, testFile);
+        file.open(0);
+        assertTrue(parser.switchParsingToFile(file));
+        List<KinesisRecord> records = parseAllRecords(parser, null);
+        // Each aggregated record holds roughly recordSizeHint / 150 lines
+        assertTrue(records.size() * 100 < lineCount);
+        StringBuilder lines = new StringBuilder();
+        int userRecords = 0;
+        for (KinesisRecord record : records) {
+            assertTrue(record.length() <= KinesisConstants.MAX_RECORD_SIZE_BYTES);
+            if (ByteBuffers.toString(record.data(), StandardCharsets.ISO_8859_1).startsWith("\u00F3\u0089\u009A\u00C2")) {
+                for (String line : AggregatedRecordEncoderTest.decode(record.partitionKey(), record.data())) {
+                    lines.append(line);
+                    ++userRecords;
+                }
+            } else {
+                lines.append(ByteBuffers.toString(record.data(), StandardCharsets.UTF_8));
+                ++userRecords;
+            }
+        }
+        assertEquals(userRecords, lineCount);
+        assertEquals(lines.toString(), new String(Files.readAllBytes(testFile), StandardCharsets.UTF_8));
+        assertTrue(((Number) parser.getMetrics().get("KinesisParser.TotalRecordsAggregated")).longValue() > 0);
+    }
+
 	@Override
 	protected KinesisParser buildParser(FileFlow<KinesisRecord> flow, int bufferSize) {
         return new KinesisParser(flow, bufferSize);
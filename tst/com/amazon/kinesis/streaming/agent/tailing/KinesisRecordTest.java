@@ -74,4 +74,28 @@ public class KinesisRecordTest extends TestBase {
         Assert.assertNotNull(record.partitionKey());
         Assert.assertEquals(record.partitionKey(), record.generatePartitionKey(partitionKeyOption));
     }
+
+    @Test
+    public void testDeterministicPartitionKeyLengthIsKnownBeforeTheKey() {
+        when(((KinesisFileFlow)flow).getPartitionKeyOption()).thenReturn(KinesisConstants.PartitionKeyOption.DETERMINISTIC);
+        byte[] data = RandomUtils.nextBytes(200);
+        KinesisRecord record = new KinesisRecord(file, 1023, data, data.length);
+        // The key is only generated when asked for, e.g. by the sender
+        Assert.assertNull(record.partitionKey);
+        Assert.assertEquals(record.length(), 200 + 32);
+        Assert.assertNull(record.partitionKey);
+        Assert.assertEquals(record.partitionKey().length(), 32);
+        Assert.assertEquals(record.length(), 200 + record.partitionKey().length());
+    }
+
+    @Test
+    public void testDeterministicPartitionKeyIsOfTheDataBeforeTruncation() {
+        when(((KinesisFileFlow)flow).getPartitionKeyOption()).thenReturn(KinesisConstants.PartitionKeyOption.DETERMINISTIC);
+        byte[] data = RandomUtils.nextBytes(KinesisConstants.MAX_RECORD_SIZE_BYTES + 100);
+        String expected = new KinesisRecord(file, 0, data.clone(), data.length).partitionKey();
+        KinesisRecord record = new KinesisRecord(file, 0, data, data.length);
+        record.truncate();
+        Assert.assertEquals(record.partitionKey(), expected);
+        Assert.assertEquals(record.length(), KinesisConstants.MAX_RECORD_SIZE_BYTES);
+    }
 }
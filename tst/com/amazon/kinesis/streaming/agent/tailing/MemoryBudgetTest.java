@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2014-2017 Amazon.com, Inc. All Rights Reserved.
+ */
+package com.amazon.kinesis.streaming.agent.tailing;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.annotations.Test;
+
+import com.amazon.kinesis.streaming.agent.AgentContext;
+import com.amazon.kinesis.streaming.agent.config.Configuration;
+import com.amazon.kinesis.streaming.agent.tailing.testing.RecordGenerator;
+import com.amazon.kinesis.streaming.agent.tailing.testing.TailingTestBase;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+public class MemoryBudgetTest extends TailingTestBase {
+
+    @Test
+    public void testFlowHoldsParserBytesAndOwnedQueuedBytes() {
+        MemoryBudget budget = new MemoryBudget(10_000);
+        MemoryBudget.Account account = budget.account("flow1");
+        assertSame(budget.account("flow1"), account);
+
+        account.addParserBytes(1000);
+        assertEquals(account.heldBytes(), 1000);
+        // Queued records that point into the parser's buffers are counted with them
+        account.addQueuedBytes(600, 0);
+        assertEquals(account.heldBytes(), 1000);
+        // Records that own their data (e.g. converted) are counted on their own
+        account.addQueuedBytes(400, 400);
+        account.addRetryBytes(300, 300);
+        assertEquals(account.heldBytes(), 1700);
+        assertEquals(budget.heldBytes(), 1700);
+        assertEquals(account.getMetrics().get("MemoryBudget.FlowQueuedBytes"), 1000L);
+        assertEquals(account.getMetrics().get("MemoryBudget.FlowOwnedBytes"), 700L);
+        // Buffers of the parser released, but the records are still queued
+        account.addParserBytes(-1000);
+        account.addQueuedBytes(-600, 0);
+        assertEquals(account.heldBytes(), 700);
+        assertEquals(budget.heldBytes(), 700);
+
+        budget.account("flow2").addParserBytes(500);
+        assertEquals(budget.heldBytes(), 1200);
+        account.addQueuedBytes(-400, -400);
+        account.addRetryBytes(-300, -300);
+        assertEquals(account.heldBytes(), 0);
+        assertEquals(budget.heldBytes(), 500);
+    }
+
+    @Test
+    public void testFlowsOverTheirFairShareAreThrottledWhenBudgetIsUsedUp() {
+        MemoryBudget budget = new MemoryBudget(1000);
+        MemoryBudget.Account busy = budget.account("busy");
+        MemoryBudget.Account quiet = budget.account("quiet");
+        assertEquals(budget.fairShareBytes(), 500);
+
+        // Within budget, a flow can read beyond its fair share
+        busy.addQueuedBytes(900, 900);
+        assertTrue(busy.mayRead());
+        busy.addQueuedBytes(100, 100);
+        assertFalse(busy.mayRead());
+        // The other flow still gets its share
+        assertTrue(quiet.mayRead());
+        quiet.addParserBytes(200);
+        assertTrue(quiet.mayRead());
+        assertEquals(busy.getTotalThrottles().get(), 1);
+        assertEquals(quiet.getTotalThrottles().get(), 0);
+        assertEquals(budget.getTotalThrottles().get(), 1);
+
+        busy.addQueuedBytes(-300, -300);
+        assertTrue(busy.mayRead());
+    }
+
+    @Test
+    public void testNoLimitWhenMaxBytesIsZero() {
+        MemoryBudget budget = new MemoryBudget(0);
+        MemoryBudget.Account account = budget.account("flow1");
+        account.addQueuedBytes(Long.MAX_VALUE / 2, Long.MAX_VALUE / 2);
+        assertTrue(account.mayRead());
+        assertEquals(budget.getTotalThrottles().get(), 0);
+    }
+
+    @Test
+    public void testParserBuffersAreChargedUntilRecycled() {
+        MemoryBudget budget = new MemoryBudget(10_000);
+        MemoryBudget.Account account = budget.account("flow1");
+        ParserBufferPool pool = new ParserBufferPool(1024, 1, account);
+        ParserBufferPool.Chunk c1 = pool.lease();
+        ParserBufferPool.Chunk c2 = pool.lease();
+        assertEquals(account.heldBytes(), 2048);
+        c1.retain();  // e.g. a record
+        c1.release();
+        c2.release();
+        assertEquals(account.heldBytes(), 1024);
+        c1.release();
+        // Pooled buffers aren't held by records anymore
+        assertEquals(account.heldBytes(), 0);
+        assertEquals(pool.pooledBuffers(), 1);
+    }
+
+    @Test
+    public void testFlowsHoldingOnlyTheirParserBufferKeepReading() {
+        // Fewer bytes than a buffer per flow
+        MemoryBudget budget = new MemoryBudget(3 * 1024);
+        List<MemoryBudget.Account> accounts = new ArrayList<>();
+        List<ParserBufferPool.Chunk> chunks = new ArrayList<>();
+        for (int i = 0; i < 10; ++i) {
+            MemoryBudget.Account account = budget.account("flow" + i);
+            accounts.add(account);
+            chunks.add(new ParserBufferPool(1024, 1, account).lease());
+        }
+        assertTrue(budget.heldBytes() > budget.getMaxBytes());
+        for (MemoryBudget.Account account : accounts)
+            assertTrue(account.mayRead());
+
+        // Once records are queued beyond the reserved buffer, the flow waits for them to be sent
+        MemoryBudget.Account account = accounts.get(0);
+        account.addQueuedBytes(2048, 2048);
+        assertFalse(account.mayRead());
+        assertTrue(accounts.get(1).mayRead());
+        account.addQueuedBytes(-2048, -2048);
+        assertTrue(account.mayRead());
+        assertEquals(budget.getTotalThrottles().get(), 1);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testFlowsKeepParsingWhenBudgetIsSmallerThanTheirBuffers() throws IOException {
+        int flows = 5;
+        List<Configuration> flowConfigs = new ArrayList<>();
+        for (int i = 0; i < flows; ++i)
+            flowConfigs.add(new Configuration(getTestFlowConfig("/var/log/flow" + i + ".log")));
+        Map<String, Object> config = new HashMap<>();
+        config.put("flows", flowConfigs);
+        config.put("maxMemoryBytes", 1024L);
+        AgentContext context = getTestAgentContext(null, config);
+        Path testFile = testFiles.createTempFile();
+        new RecordGenerator().appendDataToFile(testFile, 64 * 1024);
+        for (int i = 0; i < flows; ++i) {
+            FileFlow<FirehoseRecord> flow = (FileFlow<FirehoseRecord>) context.flows().get(i);
+            MemoryBudget.Account account = context.getMemoryBudget().account(flow.getId());
+            FirehoseParser parser = new FirehoseParser(flow);
+            TrackedFile file = new TrackedFile(flow, testFile);
+            file.open(0);
+            assertTrue(parser.switchParsingToFile(file));
+            long bytes = 0;
+            FirehoseRecord record;
+            // As the tailer does, read only while the budget allows it
+            while (account.mayRead() && (record = parser.readRecord()) != null) {
+                bytes += record.length();
+                record.release();
+            }
+            assertEquals(bytes, Files.size(testFile));
+        }
+        assertTrue(context.getMemoryBudget().heldBytes() > context.getMemoryBudget().getMaxBytes());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testConvertedRecordsOwnTheirDataInsteadOfRetainingParserBuffers() throws IOException {
+        Map<String, Object> convertedFlowConfig = getTestFlowConfig("/var/log/converted.log");
+        convertedFlowConfig.put(FileFlow.CONVERSION_OPTION_KEY, Collections.singletonList(new Configuration(
+                ImmutableMap.<String, Object>of("optionName", "SINGLELINE", "escapeNewLineChar", ""))));
+        Map<String, Object> config = new HashMap<>();
+        config.put("flows", Lists.newArrayList(new Configuration(getTestFlowConfig("/var/log/plain.log")),
+                new Configuration(convertedFlowConfig)));
+        AgentContext context = getTestAgentContext(null, config);
+        Path testFile = testFiles.createTempFile();
+        new RecordGenerator().appendDataToFile(testFile, 1024);
+
+        FileFlow<FirehoseRecord> plainFlow = (FileFlow<FirehoseRecord>) context.flows().get(0);
+        FirehoseParser parser = new FirehoseParser(plainFlow);
+        TrackedFile file = new TrackedFile(plainFlow, testFile);
+        file.open(0);
+        assertTrue(parser.switchParsingToFile(file));
+        FirehoseRecord record = parser.readRecord();
+        assertEquals(record.ownedBytes(), 0);
+        record.release();
+
+        FileFlow<FirehoseRecord> convertedFlow = (FileFlow<FirehoseRecord>) context.flows().get(1);
+        parser = new FirehoseParser(convertedFlow);
+        file = new TrackedFile(convertedFlow, testFile);
+        file.open(0);
+        assertTrue(parser.switchParsingToFile(file));
+        record = parser.readRecord();
+        assertEquals(record.ownedBytes(), record.length());
+        // Only the parser holds its buffer
+        assertEquals(parser.getBufferPool().getOutstandingChunks().get(), 1);
+        assertTrue(parser.stopParsing("Done."));
+        assertEquals(parser.getBufferPool().getOutstandingChunks().get(), 0);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testPublishingQueueChargesQueuedAndRetriedBuffers() {
+        Map<String, Object> flowConfig = getTestFlowConfig(null);
+        flowConfig.put(FileFlow.MAX_BUFFER_SIZE_RECORDS_KEY, 5);
+        Map<String, Object> config = new HashMap<>();
+        config.put("flows", Collections.singletonList(new Configuration(flowConfig)));
+        AgentContext context = getTestAgentContext(null, config);
+        FileFlow<FirehoseRecord> flow = (FileFlow<FirehoseRecord>) context.flows().get(0);
+        MemoryBudget.Account account = context.getMemoryBudget().account(flow.getId());
+        PublishingQueue<FirehoseRecord> q = new PublishingQueue<>(flow, 10);
+
+        for (int i = 0; i < 5; ++i)
+            assertTrue(q.offerRecord(getTestRecord(flow), false));
+        assertNotNull(q.flushPendingRecords());
+        assertEquals(account.heldBytes(), q.totalBytes());
+        assertTrue(account.heldBytes() > 0);
+
+        RecordBuffer<FirehoseRecord> buffer = q.take();
+        assertNotNull(buffer);
+        assertEquals(account.heldBytes(), 0);
+        q.queueBufferForRetry(buffer);
+        assertEquals(account.heldBytes(), buffer.sizeBytesWithOverhead());
+        assertEquals(account.getMetrics().get("MemoryBudget.FlowRetryBytes"), buffer.sizeBytesWithOverhead());
+        assertSame(q.take(), buffer);
+        assertEquals(account.heldBytes(), 0);
+        assertEquals(context.getMemoryBudget().heldBytes(), 0);
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2014-2017 Amazon.com, Inc. All Rights Reserved.
+ */
+package com.amazon.kinesis.streaming.agent.tailing;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
+
+import org.testng.annotations.Test;
+
+public class ParserBufferPoolTest {
+    @Test
+    public void testBufferIsReusedAfterLastReferenceIsReleased() {
+        ParserBufferPool pool = new ParserBufferPool(1024, 2);
+        ParserBufferPool.Chunk chunk = pool.lease();
+        chunk.getBuffer().put((byte) 1);
+        chunk.retain();  // e.g. a record
+        chunk.release(); // parser moves on
+        assertEquals(pool.pooledBuffers(), 0);
+        assertEquals(pool.getOutstandingChunks().get(), 1);
+        chunk.release(); // record is sent
+        assertEquals(pool.pooledBuffers(), 1);
+        assertEquals(pool.getOutstandingChunks().get(), 0);
+
+        ParserBufferPool.Chunk reused = pool.lease();
+        assertSame(reused.getBuffer(), chunk.getBuffer());
+        assertEquals(reused.getBuffer().position(), 0);
+        assertEquals(reused.getBuffer().limit(), 1024);
+        assertEquals(pool.getTotalHits().get(), 1);
+        assertEquals(pool.getTotalMisses().get(), 1);
+    }
+
+    @Test
+    public void testPoolIsBounded() {
+        ParserBufferPool pool = new ParserBufferPool(1024, 2);
+        ParserBufferPool.Chunk c1 = pool.lease();
+        ParserBufferPool.Chunk c2 = pool.lease();
+        ParserBufferPool.Chunk c3 = pool.lease();
+        c1.release();
+        c2.release();
+        c3.release();
+        assertEquals(pool.pooledBuffers(), 2);
+        assertEquals(pool.getOutstandingChunks().get(), 0);
+    }
+
+    @Test
+    public void testZeroSizedPoolNeverReuses() {
+        ParserBufferPool pool = new ParserBufferPool(1024, 0);
+        ParserBufferPool.Chunk c1 = pool.lease();
+        c1.release();
+        ParserBufferPool.Chunk c2 = pool.lease();
+        assertNotSame(c2.getBuffer(), c1.getBuffer());
+        assertEquals(pool.getTotalHits().get(), 0);
+        assertEquals(pool.getTotalMisses().get(), 2);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testRetainAfterReturnFails() {
+        ParserBufferPool pool = new ParserBufferPool(1024, 1);
+        ParserBufferPool.Chunk chunk = pool.lease();
+        chunk.release();
+        chunk.retain();
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testOverReleaseFails() {
+        ParserBufferPool pool = new ParserBufferPool(1024, 1);
+        ParserBufferPool.Chunk chunk = pool.lease();
+        chunk.release();
+        chunk.release();
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2014-2017 Amazon.com, Inc. All Rights Reserved.
+ */
+package com.amazon.kinesis.streaming.agent.tailing;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import com.amazon.kinesis.streaming.agent.AgentContext;
+import com.amazon.kinesis.streaming.agent.config.Configuration;
+import com.amazon.kinesis.streaming.agent.processing.interfaces.IDataConverter;
+import com.amazon.kinesis.streaming.agent.tailing.testing.RecordGenerator;
+import com.amazon.kinesis.streaming.agent.tailing.testing.TailingTestBase;
+import com.amazon.kinesis.streaming.agent.testing.MicroBenchmark;
+
+/**
+ * Compares parsing a file through the pass-through path of
+ * {@link AbstractParser} with parsing it through the regular path, which a
+ * flow takes once it has a data converter (here, one that returns the data
+ * as it is). Each round parses the whole file and releases the records, as
+ * the publisher would once they're sent. Disabled by default; enable and
+ * run it on its own when changing how the parser builds records.
+ */
+public class PassThroughBenchmark extends TailingTestBase {
+    private static final int FILE_SIZE = 32 * 1024 * 1024;
+
+    @DataProvider
+    public Object[][] lineLengths() {
+        return new Object[][] {{128}, {1024}};
+    }
+
+    @Test(enabled=false, groups={"benchmark"}, dataProvider="lineLengths")
+    public void benchmarkParsing(int averageLineLength) throws Exception {
+        AgentContext context = getTestAgentContext();
+        final Path file = testFiles.createTempFile();
+        new RecordGenerator(averageLineLength, 0.5).appendDataToFile(file, FILE_SIZE);
+        final FileFlow<FirehoseRecord> passThroughFlow = new FirehoseFileFlow(context,
+                new Configuration(getTestFlowConfig(null)));
+        // Not a spy, since spies remember every call
+        final FileFlow<FirehoseRecord> convertingFlow = new FirehoseFileFlow(context,
+                new Configuration(getTestFlowConfig(null))) {
+            @Override
+            public IDataConverter getDataConverter() {
+                return new IDataConverter() {
+                    @Override
+                    public ByteBuffer convert(ByteBuffer data) {
+                        return data;
+                    }
+                };
+            }
+        };
+        long records = parseAll(passThroughFlow, file, true);
+        assertEquals(parseAll(convertingFlow, file, false), records);
+
+        // Timed per record
+        MicroBenchmark benchmark = new MicroBenchmark(5, 10);
+        benchmark.run("regular path (" + averageLineLength + " byte lines)", records, new Callable<Long>() {
+            @Override
+            public Long call() throws IOException {
+                return parseAll(convertingFlow, file, false);
+            }
+        });
+        benchmark.run("pass-through path (" + averageLineLength + " byte lines)", records, new Callable<Long>() {
+            @Override
+            public Long call() throws IOException {
+                return parseAll(passThroughFlow, file, true);
+            }
+        });
+    }
+
+    private static long parseAll(FileFlow<FirehoseRecord> flow, Path path, boolean passThrough) throws IOException {
+        FirehoseParser parser = new FirehoseParser(flow);
+        TrackedFile file = new TrackedFile(flow, path);
+        file.open(0);
+        assertTrue(parser.switchParsingToFile(file));
+        long records = 0;
+        FirehoseRecord record;
+        while ((record = parser.readRecord()) != null) {
+            record.release();
+            ++records;
+        }
+        parser.stopParsing("Done.");
+        file.close();
+        // Records that span two buffers take the regular path either way
+        long passedThrough = ((AtomicLong) parser.getMetrics().get(
+                FirehoseParser.class.getSimpleName() + ".TotalRecordsPassedThrough")).get();
+        assertEquals(passedThrough > 0, passThrough);
+        return records;
+    }
+}
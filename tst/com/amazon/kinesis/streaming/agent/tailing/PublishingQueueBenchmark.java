@@ -0,0 +1,315 @@
+/*
+ * Copyright (c) 2014-2017 Amazon.com, Inc. All Rights Reserved.
+ */
+package com.amazon.kinesis.streaming.agent.tailing;
+
+import static org.testng.Assert.assertEquals;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import com.amazon.kinesis.streaming.agent.config.Configuration;
+import com.amazon.kinesis.streaming.agent.tailing.testing.TailingTestBase;
+import com.amazon.kinesis.streaming.agent.testing.MicroBenchmark;
+
+/**
+ * Measures contention on the publishing queue, with one tailer offering and
+ * 1, 4 or 16 senders taking (and one in ten buffers going back for a retry):
+ * first the {@link BoundedRingQueue} against the {@link LinkedList} behind
+ * a single lock with {@code notEmpty}/{@code notFull} conditions it
+ * replaced, then a {@link PublishingQueue} end to end, with a heartbeat
+ * checking the pending records meanwhile. Disabled by default; enable and
+ * run it on its own when changing the publishing queue.
+ */
+public class PublishingQueueBenchmark extends TailingTestBase {
+    private static final int CAPACITY = 100;
+    private static final int BUFFERS_PER_ROUND = 200_000;
+    private static final int RECORDS_PER_ROUND = 200_000;
+
+    @DataProvider
+    public Object[][] senderCounts() {
+        return new Object[][] {
+                {1},
+                {4},
+                {16},
+        };
+    }
+
+    @Test(enabled=false, groups={"benchmark"}, dataProvider="senderCounts")
+    public void benchmarkBufferQueues(final int senders) throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(senders + 1);
+        try {
+            MicroBenchmark benchmark = new MicroBenchmark(5, 10);
+            benchmark.run("LinkedList with one lock, " + senders + " sender(s)", BUFFERS_PER_ROUND, new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    return exchange(new LockedQueue(CAPACITY), executor, senders);
+                }
+            });
+            benchmark.run("BoundedRingQueue, " + senders + " sender(s)", BUFFERS_PER_ROUND, new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    return exchange(new RingQueue(CAPACITY), executor, senders);
+                }
+            });
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test(enabled=false, groups={"benchmark"}, dataProvider="senderCounts")
+    public void benchmarkPublishingQueue(final int senders) throws Exception {
+        Map<String, Object> flowConfig = getTestFlowConfig(null);
+        flowConfig.put(FileFlow.MAX_BUFFER_SIZE_RECORDS_KEY, 50);
+        Map<String, Object> config = new HashMap<>();
+        config.put("flows", Collections.singletonList(new Configuration(flowConfig)));
+        final FileFlow<FirehoseRecord> flow = (FileFlow<FirehoseRecord>) getTestAgentContext(null, config).flows().get(0);
+        final FirehoseRecord[] records = new FirehoseRecord[RECORDS_PER_ROUND];
+        for (int i = 0; i < records.length; ++i)
+            records[i] = getTestRecord(flow);
+        final ExecutorService executor = Executors.newFixedThreadPool(senders + 2);
+        try {
+            new MicroBenchmark(3, 5).run("PublishingQueue, " + senders + " sender(s)", RECORDS_PER_ROUND, new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    return publish(new PublishingQueue<>(flow, CAPACITY), records, executor, senders);
+                }
+            });
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Queues {@link #BUFFERS_PER_ROUND} buffers from one thread while
+     * {@code senders} threads take them, sending one in ten back once.
+     *
+     * @return The number of buffers taken and not retried.
+     */
+    private static long exchange(final BufferQueue queue, ExecutorService executor, int senders) throws Exception {
+        final AtomicLong taken = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(senders);
+        Future<?> producer = executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                for (long i = 0; i < BUFFERS_PER_ROUND; ++i)
+                    queue.put(i);
+                return null;
+            }
+        });
+        for (int s = 0; s < senders; ++s) {
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    while (taken.get() < BUFFERS_PER_ROUND) {
+                        Long buffer = queue.take();
+                        if (buffer == null)
+                            continue;
+                        if (buffer >= 0 && buffer % 10 == 0) {
+                            // Retried buffers are negative, so they're retried only once
+                            queue.retry(-buffer - 1);
+                        } else {
+                            taken.incrementAndGet();
+                        }
+                    }
+                    done.countDown();
+                }
+            });
+        }
+        producer.get();
+        done.await();
+        assertEquals(taken.get(), BUFFERS_PER_ROUND);
+        return taken.get();
+    }
+
+    /**
+     * Offers {@code records} from one thread while {@code senders} threads
+     * take the buffers and a heartbeat checks the pending records.
+     *
+     * @return The number of records taken.
+     */
+    private long publish(final PublishingQueue<FirehoseRecord> queue, final FirehoseRecord[] records,
+            ExecutorService executor, int senders) throws Exception {
+        final AtomicLong taken = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(senders);
+        final AtomicBoolean producing = new AtomicBoolean(true);
+        Future<?> producer = executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                for (FirehoseRecord record : records) {
+                    while (!queue.offerRecord(record, true))
+                        ;
+                }
+                // A heartbeat may have queued the last records, and the senders closed the queue after taking them
+                while (queue.pendingRecords() > 0 && queue.flushPendingRecords() == null)
+                    ;
+                producing.set(false);
+                return null;
+            }
+        });
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                while (producing.get()) {
+                    queue.heartbeat(null);
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        });
+        for (int s = 0; s < senders; ++s) {
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    while (taken.get() < records.length) {
+                        RecordBuffer<FirehoseRecord> buffer = queue.take();
+                        // Wake up the senders waiting for more once all is taken
+                        if (buffer != null && taken.addAndGet(buffer.sizeRecords()) == records.length)
+                            queue.close();
+                    }
+                    done.countDown();
+                }
+            });
+        }
+        producer.get();
+        done.await();
+        assertEquals(taken.get(), records.length);
+        return taken.get();
+    }
+
+    private interface BufferQueue {
+        void put(long buffer) throws InterruptedException;
+        Long take();
+        void retry(long buffer);
+        int size();
+    }
+
+    /**
+     * How the publishing queue kept its buffers before: two lists behind one
+     * lock, with the retries taken first.
+     */
+    private static class LockedQueue implements BufferQueue {
+        private final int capacity;
+        private final LinkedList<Long> neverPubQueue = new LinkedList<>();
+        private final LinkedList<Long> retryQueue = new LinkedList<>();
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notEmpty = lock.newCondition();
+        private final Condition notFull = lock.newCondition();
+
+        LockedQueue(int capacity) {
+            this.capacity = capacity;
+        }
+
+        @Override
+        public void put(long buffer) throws InterruptedException {
+            lock.lock();
+            try {
+                while (neverPubQueue.size() == capacity)
+                    notFull.await();
+                neverPubQueue.add(buffer);
+                notEmpty.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public Long take() {
+            lock.lock();
+            try {
+                if (neverPubQueue.isEmpty() && retryQueue.isEmpty())
+                    notEmpty.await(1, TimeUnit.MILLISECONDS);
+                Long result = !retryQueue.isEmpty() ? retryQueue.poll() : neverPubQueue.poll();
+                if (result != null)
+                    notFull.signal();
+                return result;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void retry(long buffer) {
+            lock.lock();
+            try {
+                retryQueue.add(buffer);
+                notEmpty.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public synchronized int size() {
+            return neverPubQueue.size() + retryQueue.size();
+        }
+    }
+
+    /**
+     * The lanes of the publishing queue now, without the parking: the
+     * benchmark threads spin instead.
+     */
+    private static class RingQueue implements BufferQueue {
+        private final BoundedRingQueue<Long> neverPubQueue;
+        private final ConcurrentLinkedQueue<Long> retryQueue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger retryQueueSize = new AtomicInteger();
+
+        RingQueue(int capacity) {
+            this.neverPubQueue = new BoundedRingQueue<>(capacity);
+        }
+
+        @Override
+        public void put(long buffer) {
+            while (!neverPubQueue.offer(buffer))
+                Thread.yield();
+        }
+
+        @Override
+        public Long take() {
+            Long result = retryQueue.poll();
+            if (result != null) {
+                retryQueueSize.decrementAndGet();
+                return result;
+            }
+            result = neverPubQueue.poll();
+            if (result == null)
+                Thread.yield();
+            return result;
+        }
+
+        @Override
+        public void retry(long buffer) {
+            retryQueueSize.incrementAndGet();
+            retryQueue.add(buffer);
+        }
+
+        @Override
+        public int size() {
+            return neverPubQueue.size() + retryQueueSize.get();
+        }
+    }
+}
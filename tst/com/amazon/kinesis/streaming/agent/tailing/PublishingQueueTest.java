@@ -9,8 +9,14 @@ import static org.testng.Assert.assertTrue;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.mockito.Mockito;
 import org.testng.Assert;
@@ -738,6 +744,80 @@ public class PublishingQueueTest extends TailingTestBase {
         Assert.assertEquals(q.size(), q.capacity());
     }
 
+    @SuppressWarnings("unchecked")
+    @Test(timeOut=30000)
+    public void testConcurrentOffersTakesAndRetries() throws Exception {
+        // Not the spy, which would keep track of every call from every thread
+        FileFlow<FirehoseRecord> realFlow = (FileFlow<FirehoseRecord>) context.flows().get(0);
+        final PublishingQueue<FirehoseRecord> q = new PublishingQueue<>(realFlow, capacity);
+        final List<FirehoseRecord> records = new ArrayList<>();
+        for (int i = 0; i < 20000; ++i)
+            records.add(getTestRecord(realFlow));
+        final AtomicInteger takenRecords = new AtomicInteger();
+        final AtomicInteger retries = new AtomicInteger();
+        final AtomicBoolean producing = new AtomicBoolean(true);
+        ExecutorService executor = Executors.newFixedThreadPool(5);
+        try {
+            // One tailer...
+            Future<?> producer = executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (FirehoseRecord record : records) {
+                        while (!q.offerRecord(record, true))
+                            ;
+                    }
+                    // A heartbeat may have queued the last records, and the senders closed the queue after taking them
+                    while (q.pendingRecords() > 0 && q.flushPendingRecords() == null)
+                        ;
+                    producing.set(false);
+                    return null;
+                }
+            });
+            // ...a heartbeat...
+            executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    while (producing.get()) {
+                        q.heartbeat(context);
+                        Thread.sleep(1);
+                    }
+                    return null;
+                }
+            });
+            // ...and senders that fail about one in ten buffers, until 100 failed
+            List<Future<?>> consumers = new ArrayList<>();
+            for (int c = 0; c < 3; ++c) {
+                consumers.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        while (takenRecords.get() < records.size()) {
+                            RecordBuffer<FirehoseRecord> buffer = q.take();
+                            if (buffer == null)
+                                continue;
+                            if (retries.get() < 100 && ThreadLocalRandom.current().nextInt(10) == 0) {
+                                retries.incrementAndGet();
+                                assertTrue(q.queueBufferForRetry(buffer));
+                            } else if (takenRecords.addAndGet(buffer.sizeRecords()) == records.size()) {
+                                // Wake up the senders waiting for more
+                                q.close();
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            producer.get();
+            for (Future<?> consumer : consumers)
+                consumer.get();
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(takenRecords.get(), records.size());
+        assertEquals(q.size(), 0);
+        assertEquals(q.totalRecords(), 0);
+        assertEquals(q.totalBytes(), 0);
+    }
+
     @Test(enabled=false)
     public void testTakeReturnsImmediatelyWhenNewBufferAdded() {
         // TODO: wait on #take, then call #offer and see that #take
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2014-2017 Amazon.com, Inc. All Rights Reserved.
+ */
+package com.amazon.kinesis.streaming.agent.tailing;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.amazon.kinesis.streaming.agent.testing.TestUtils.TestBase;
+
+public class ReadAheadReaderTest extends TestBase {
+    private static final int CHUNK_SIZE = 1000;
+    private ExecutorService executor;
+
+    @BeforeMethod
+    public void setupExecutor() {
+        executor = Executors.newFixedThreadPool(2);
+    }
+
+    @AfterMethod
+    public void shutdownExecutor() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testReadsSameDataAsChannel() throws IOException {
+        byte[] content = randomBytes(10 * CHUNK_SIZE + 123);
+        Path file = testFiles.createTempFile();
+        Files.write(file, content);
+        ReadAheadReader reader = new ReadAheadReader(executor, CHUNK_SIZE, 3);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            // Destination buffers of odd sizes, so reads straddle chunks
+            assertEquals(readAll(reader, channel, 377), content);
+            assertEquals(channel.position(), content.length);
+        }
+        assertTrue(reader.getTotalBytesReadAhead().get() > 0);
+    }
+
+    @Test
+    public void testPicksUpDataAppendedAfterEndOfFile() throws IOException {
+        byte[] content = randomBytes(3 * CHUNK_SIZE + 10);
+        Path file = testFiles.createTempFile();
+        Files.write(file, Arrays.copyOf(content, 2 * CHUNK_SIZE + 500));
+        ReadAheadReader reader = new ReadAheadReader(executor, CHUNK_SIZE, 4);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteArrayOutputStream actual = new ByteArrayOutputStream();
+            actual.write(readAll(reader, channel, 700));
+            Files.write(file, Arrays.copyOfRange(content, 2 * CHUNK_SIZE + 500, content.length), StandardOpenOption.APPEND);
+            actual.write(readAll(reader, channel, 700));
+            assertEquals(actual.toByteArray(), content);
+        }
+    }
+
+    @Test
+    public void testRepositionedChannelDropsDataReadAhead() throws IOException {
+        byte[] content = randomBytes(6 * CHUNK_SIZE);
+        Path file = testFiles.createTempFile();
+        Files.write(file, content);
+        ReadAheadReader reader = new ReadAheadReader(executor, CHUNK_SIZE, 2);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+            reader.read(channel, buffer);
+            buffer.clear();
+            reader.read(channel, buffer);
+            // e.g. the parser skipped ahead
+            channel.position(4 * CHUNK_SIZE + 1);
+            byte[] rest = readAll(reader, channel, CHUNK_SIZE);
+            assertEquals(rest, Arrays.copyOfRange(content, 4 * CHUNK_SIZE + 1, content.length));
+        }
+    }
+
+    private static byte[] readAll(ReadAheadReader reader, FileChannel channel, int bufferSize) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
+        while (reader.read(channel, buffer) > 0) {
+            buffer.flip();
+            out.write(buffer.array(), 0, buffer.limit());
+            buffer.clear();
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -19,6 +19,7 @@ import com.amazon.kinesis.streaming.agent.tailing.FirehoseRecord;
 import com.amazon.kinesis.streaming.agent.tailing.RecordBuffer;
 import com.amazon.kinesis.streaming.agent.tailing.TrackedFile;
 import com.amazon.kinesis.streaming.agent.tailing.testing.TailingTestBase;
+import com.google.common.collect.Lists;
 
 public class RecordBufferTest extends TailingTestBase {
     private AgentContext context;
@@ -124,4 +125,28 @@ public class RecordBufferTest extends TailingTestBase {
         Assert.assertSame(it.next(), record2);
         Assert.assertFalse(it.hasNext());
     }
+
+    @Test
+    public void testLastRecordOfEachFile() throws Exception {
+        RecordBuffer<FirehoseRecord> buffer = getTestBuffer();
+        TrackedFile first = new TrackedFile(flow, testFiles.createTempFileWithName("worker-1.log"));
+        TrackedFile second = new TrackedFile(flow, testFiles.createTempFileWithName("worker-2.log"));
+        byte[] data = "line\n".getBytes();
+        FirehoseRecord record0 = new FirehoseRecord(first, 0, data, data.length);
+        FirehoseRecord record1 = new FirehoseRecord(second, 0, data, data.length);
+        FirehoseRecord record2 = new FirehoseRecord(first, 5, data, data.length);
+        FirehoseRecord record3 = new FirehoseRecord(second, 5, data, data.length);
+        FirehoseRecord record4 = new FirehoseRecord(second, 10, data, data.length);
+        buffer.add(record0);
+        Assert.assertEquals(buffer.lastRecordOfEachFile(), Lists.newArrayList(record0));
+        buffer.add(record1);
+        buffer.add(record2);
+        buffer.add(record3);
+        buffer.add(record4);
+        Assert.assertEquals(buffer.lastRecordOfEachFile(), Lists.newArrayList(record2, record4));
+
+        // Removed records still count, as with the checkpoint of the buffer
+        buffer = buffer.remove(2, 4);
+        Assert.assertEquals(buffer.lastRecordOfEachFile(), Lists.newArrayList(record2, record4));
+    }
 }
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2014-2017 Amazon.com, Inc. All Rights Reserved.
+ */
+package com.amazon.kinesis.streaming.agent.tailing;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import com.amazon.kinesis.streaming.agent.tailing.FileFlow.Compression;
+import com.google.common.io.ByteStreams;
+
+public class RecordCompressorTest {
+
+    @DataProvider
+    public Object[][] compressions() {
+        return new Object[][] { { Compression.GZIP }, { Compression.DEFLATE } };
+    }
+
+    @Test(dataProvider = "compressions")
+    public void testCompressedDataDecompressesToOriginal(Compression compression) throws IOException {
+        RecordCompressor compressor = new RecordCompressor(compression, FileFlow.DEFAULT_COMPRESSION_LEVEL);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 200; ++i) {
+            text.append("127.0.0.1 - - [07/Mar/2004:16:05:49 -0800] \"GET /twiki/bin/view/Main HTTP/1.1\" 200 ").append(i).append('\n');
+        }
+        byte[] raw = text.toString().getBytes(StandardCharsets.UTF_8);
+        // Compress a direct buffer with a non-zero position, twice to exercise reuse
+        ByteBuffer data = ByteBuffer.allocateDirect(raw.length + 5);
+        data.position(5);
+        data.put(raw).position(5);
+        for (int i = 0; i < 2; ++i) {
+            ByteBuffer compressed = compressor.compress(data);
+            assertEquals(data.position(), 5);
+            assertEquals(decompress(compression, compressed), raw);
+        }
+        assertEquals(compressor.getTotalRecordsCompressed().get(), 2);
+        assertEquals(compressor.getTotalBytesIn().get(), 2 * raw.length);
+        assertTrue(compressor.getCompressionRatio() > 10, "Ratio: " + compressor.getCompressionRatio());
+    }
+
+    @Test(dataProvider = "compressions")
+    public void testIncompressibleDataStaysWithinBound(Compression compression) throws IOException {
+        RecordCompressor compressor = new RecordCompressor(compression, 9);
+        byte[] raw = new byte[RecordCompressor.maxInputSize(KinesisConstants.MAX_RECORD_SIZE_BYTES)];
+        new Random(11).nextBytes(raw);
+        ByteBuffer compressed = compressor.compress(ByteBuffer.wrap(raw));
+        assertTrue(compressed.remaining() <= KinesisConstants.MAX_RECORD_SIZE_BYTES);
+        assertTrue(compressed.remaining() <= RecordCompressor.maxOutputSize(raw.length));
+        assertEquals(decompress(compression, compressed), raw);
+    }
+
+    @Test(dataProvider = "compressions")
+    public void testCompressingAgainAfterClose(Compression compression) throws IOException {
+        RecordCompressor compressor = new RecordCompressor(compression, FileFlow.DEFAULT_COMPRESSION_LEVEL);
+        byte[] raw = "some data\n".getBytes(StandardCharsets.UTF_8);
+        assertEquals(decompress(compression, compressor.compress(ByteBuffer.wrap(raw))), raw);
+        compressor.close();
+        compressor.close();
+        assertEquals(decompress(compression, compressor.compress(ByteBuffer.wrap(raw))), raw);
+        compressor.close();
+    }
+
+    @Test(dataProvider = "compressions")
+    public void testEmptyData(Compression compression) throws IOException {
+        RecordCompressor compressor = new RecordCompressor(compression, 1);
+        assertEquals(decompress(compression, compressor.compress(ByteBuffer.allocate(0))), new byte[0]);
+    }
+
+    static byte[] decompress(Compression compression, ByteBuffer compressed) throws IOException {
+        byte[] bytes = new byte[compressed.remaining()];
+        compressed.duplicate().get(bytes);
+        InputStream in = compression == Compression.GZIP ?
+                new GZIPInputStream(new ByteArrayInputStream(bytes)) :
+                new InflaterInputStream(new ByteArrayInputStream(bytes));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteStreams.copy(in, out);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2014-2017 Amazon.com, Inc. All Rights Reserved.
+ */
+package com.amazon.kinesis.streaming.agent.tailing;
+
+import static org.testng.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Callable;
+import java.util.regex.Pattern;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import com.amazon.kinesis.streaming.agent.testing.MicroBenchmark;
+
+/**
+ * Compares {@link RegexSplitter} with the original implementation, which
+ * decoded every line into a new String before matching it, on the
+ * multi-line test fixtures. Disabled by default; enable and run it on its
+ * own when changing the splitter.
+ */
+public class RegexSplitterBenchmark {
+
+    @DataProvider
+    public Object[][] fixtures() {
+        return new Object[][] {
+                {"test_service_log", "------------------------------------------------------------------------"},
+                {"pretty_printed_json", "    \\{"},
+        };
+    }
+
+    @Test(enabled=false, groups={"benchmark"}, dataProvider="fixtures")
+    public void benchmarkLocateNextRecord(String fixture, String pattern) throws Exception {
+        Path file = FileSystems.getDefault().getPath(getClass().getResource(fixture).getFile());
+        final ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+        final RegexSplitter splitter = new RegexSplitter(pattern);
+        final Pattern compiled = Pattern.compile(pattern);
+        // Both implementations must agree before comparing them
+        assertEquals(countRecords(buffer, splitter, compiled, true), countRecords(buffer, splitter, compiled, false));
+
+        MicroBenchmark benchmark = new MicroBenchmark(50, 20);
+        benchmark.run("String per line (" + fixture + ")", buffer.capacity(), new Callable<Long>() {
+            @Override
+            public Long call() {
+                return countRecords(buffer, splitter, compiled, false);
+            }
+        });
+        benchmark.run("byte prefix + reused decoder (" + fixture + ")", buffer.capacity(), new Callable<Long>() {
+            @Override
+            public Long call() {
+                return countRecords(buffer, splitter, compiled, true);
+            }
+        });
+    }
+
+    private static long countRecords(ByteBuffer buffer, RegexSplitter splitter, Pattern pattern, boolean current) {
+        buffer.rewind();
+        long records = 0;
+        while ((current ? splitter.locateNextRecord(buffer) : locateNextRecordWithStrings(buffer, pattern)) != -1) {
+            ++records;
+        }
+        return records;
+    }
+
+    /** The original implementation, kept for comparison. */
+    private static int locateNextRecordWithStrings(ByteBuffer buffer, Pattern startingPattern) {
+        int currentLookedPosition = buffer.position();
+        boolean firstLine = true;
+        while (buffer.hasRemaining()) {
+            if (buffer.get() == SingleLineSplitter.LINE_DELIMITER) {
+                if (!firstLine) {
+                    String line = new String(buffer.array(), currentLookedPosition, buffer.position() - currentLookedPosition, StandardCharsets.UTF_8);
+                    if (startingPattern.matcher(line).lookingAt()) {
+                        buffer.position(currentLookedPosition);
+                        return currentLookedPosition;
+                    }
+                }
+                firstLine = false;
+                currentLookedPosition = buffer.position();
+            }
+        }
+        return -1;
+    }
+}
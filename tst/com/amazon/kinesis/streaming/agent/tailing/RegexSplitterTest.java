@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2014-2017 Amazon.com, Inc. All Rights Reserved.
+ */
+package com.amazon.kinesis.streaming.agent.tailing;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import com.amazon.kinesis.streaming.agent.tailing.testing.RecordGenerator;
+
+public class RegexSplitterTest {
+
+    @DataProvider
+    public Object[][] patternsAndPrefixLengths() {
+        return new Object[][] {
+                {"^\\d{4}-", 5},
+                {"^\\[", 1},
+                {"    \\{", 5},
+                {"------------------------------------------------------------------------", 16},
+                {RecordGenerator.DEFAULT_TEST_RECORD_DATETIME_PATTERN, 1},
+                {"[A-Z][a-z]+ ", 2},
+                {"\\d+\\t", 1},
+                {"(?:ERROR|WARN) ", 1},
+                {".+\\t\\d+\\t", 0},
+                {"a|b", 0},
+                {"a?b", 0},
+                {"(?i)error", 0},
+                {"(a|)b", 0},
+                {"[^#]", 0},
+        };
+    }
+
+    @Test(dataProvider = "patternsAndPrefixLengths")
+    public void testAnalyzePrefix(String pattern, int expectedLength) {
+        assertEquals(new RegexSplitter(pattern).getPrefixLength(), expectedLength);
+    }
+
+    @Test
+    public void testAnalyzePrefixSets() {
+        BitSet[] prefix = RegexSplitter.analyzePrefix("^\\d{2}[-/x]");
+        assertEquals(prefix.length, 3);
+        assertEquals(prefix[0].cardinality(), 10);
+        assertTrue(prefix[1].get('7'));
+        assertEquals(prefix[2].cardinality(), 3);
+        assertTrue(prefix[2].get('/'));
+        assertFalse(prefix[2].get('.'));
+    }
+
+    @DataProvider
+    public Object[][] patterns() {
+        return new Object[][] {
+                {"^\\d{4}-"},
+                {"\\[\\w+\\]"},
+                {"(Jan|Feb|Mar) \\d"},
+                {"[ab-d]+x"},
+                {"  at "},
+                {".+\\t\\d+\\t"},
+        };
+    }
+
+    @Test(dataProvider = "patterns")
+    public void testLineStartsRecordAgreesWithPattern(String pattern) {
+        Pattern regex = Pattern.compile(pattern);
+        RegexSplitter splitter = new RegexSplitter(pattern);
+        Random random = new Random(7);
+        final String[] fragments = {"2017-", "201", "[main] ", "[x]", "Jan 1", "Feb", "abx", "dx",
+                "  at ", "  a", "\t12\t", "foo\t3\t", "é", "€", " ", "-", "\t"};
+        for (int i = 0; i < 2000; ++i) {
+            StringBuilder line = new StringBuilder();
+            int pieces = 1 + random.nextInt(3);
+            for (int j = 0; j < pieces; ++j) {
+                line.append(fragments[random.nextInt(fragments.length)]);
+            }
+            line.append('\n');
+            byte[] bytes = line.toString().getBytes(StandardCharsets.UTF_8);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length + 3);
+            buffer.position(3);
+            buffer.put(bytes);
+            assertEquals(splitter.lineStartsRecord(buffer, 3, 3 + bytes.length),
+                    regex.matcher(line).lookingAt(), "Line: " + line);
+        }
+    }
+
+    @Test
+    public void testLocateNextRecordOnDirectBuffer() {
+        RegexSplitter splitter = new RegexSplitter("^\\d{4}-");
+        byte[] data = "2017-01-01 first\n  more\n2017-01-02 second\n  more\n".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(data.length + 10);
+        buffer.put(data).flip();
+        assertEquals(splitter.locateNextRecord(buffer), 24);
+        assertEquals(buffer.position(), 24);
+        // The last record is complete since the buffer isn't full
+        assertEquals(splitter.locateNextRecord(buffer), data.length);
+    }
+
+    @Test
+    public void testLastRecordIsHeldUntilTheNextOneStarts() {
+        RegexSplitter splitter = new RegexSplitter("^\\d{4}-", true);
+        byte[] data = "2017-01-01 first\n  more\n2017-01-02 second\n  more\n".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(data.length + 10);
+        buffer.put(data).flip();
+        assertEquals(splitter.locateNextRecord(buffer), 24);
+        assertEquals(splitter.locateNextRecord(buffer), -1);
+        assertEquals(buffer.position(), data.length);
+    }
+}
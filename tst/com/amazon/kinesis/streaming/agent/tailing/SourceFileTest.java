@@ -9,14 +9,17 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import javax.annotation.Nullable;
 
+import org.mockito.Mockito;
 import org.testng.Assert;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
+import com.amazon.kinesis.streaming.agent.AgentContext;
 import com.amazon.kinesis.streaming.agent.tailing.SourceFile;
 import com.amazon.kinesis.streaming.agent.tailing.TrackedFile;
 import com.amazon.kinesis.streaming.agent.tailing.TrackedFileList;
@@ -24,6 +27,7 @@ import com.amazon.kinesis.streaming.agent.testing.TestUtils;
 import com.amazon.kinesis.streaming.agent.testing.TestUtils.TestBase;
 import com.google.common.base.Function;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 
 public class SourceFileTest extends TestBase {
     @DataProvider(name = "constructorFileNameParsing")
@@ -171,4 +175,178 @@ public class SourceFileTest extends TestBase {
         SourceFile src = new SourceFile(null, testFiles.getTmpDir().toString() + "/" + fileGlob);
         Assert.assertEquals(src.countFiles(), 0);
     }
+
+    @Test
+    public void testConstructorDirectoryPatternParsing() {
+        SourceFile src = new SourceFile(null, "/opt/*/logs/app.log*");
+        Assert.assertTrue(src.hasDirectoryPattern());
+        Assert.assertEquals(src.getDirectory(), Paths.get("/opt"));
+        Assert.assertEquals(src.getDirectoryPattern(), Paths.get("*/logs"));
+        Assert.assertEquals(src.getFilePattern(), Paths.get("app.log*"));
+        Assert.assertFalse(new SourceFile(null, "/opt/app/logs/app.log*").hasDirectoryPattern());
+    }
+
+    @Test
+    public void testListFilesInMatchingDirectories() throws IOException {
+        Path root = testFiles.getTmpDir();
+        Path first = Files.createDirectories(root.resolve("a/logs"));
+        Path second = Files.createDirectories(root.resolve("b/logs"));
+        Files.createDirectories(root.resolve("c/other"));
+        Files.createDirectories(root.resolve("d/e/logs"));
+        Files.write(first.resolve("app.log"), "a\n".getBytes());
+        Files.write(second.resolve("app.log"), "b\n".getBytes());
+        Files.write(second.resolve("app.log.1"), "b\n".getBytes());
+        Files.write(root.resolve("c/other/app.log"), "c\n".getBytes());
+        Files.write(root.resolve("d/e/logs/app.log"), "d\n".getBytes());
+
+        SourceFile src = new SourceFile(null, root.toString() + "/*/logs/app.log*");
+        Assert.assertEquals(src.listDirectories(), Lists.newArrayList(first, second));
+        Assert.assertEquals(src.listFiles().size(), 3);
+        Assert.assertEquals(src.countFiles(), 3);
+        Assert.assertEquals(src.forDirectory(second).listFiles().size(), 2);
+        Assert.assertFalse(src.forDirectory(second).hasDirectoryPattern());
+    }
+
+    @Test
+    public void testListFilesOfOneLiveFile() throws IOException {
+        Path dir = testFiles.getTmpDir();
+        Path live = testFiles.createTempFileWithName("worker-1.log");
+        Path rotated = testFiles.createTempFileWithName("worker-1.log.1");
+        testFiles.createTempFileWithName("worker-1.log.bak.log");
+        testFiles.createTempFileWithName("worker-10.log");
+        testFiles.createTempFileWithName("worker-2.log.1");
+
+        SourceFile src = new SourceFile(null, dir.toString() + "/worker-*.log");
+        Assert.assertEquals(src.listFiles().size(), 3);
+        // The live file and the files it's rotated to, but not the other live files
+        SourceFile file = src.forFile(live);
+        Assert.assertEquals(file.getDirectory(), dir);
+        Assert.assertFalse(file.hasDirectoryPattern());
+        Assert.assertEquals(Sets.newHashSet(toPathList(file.listFiles())), Sets.newHashSet(live, rotated));
+        Assert.assertFalse(file.matches(Paths.get("worker-1.logger")));
+        Assert.assertEquals(file.toString(), live.toString());
+    }
+
+    @Test
+    public void testListDirectoriesWithRecursiveGlob() throws IOException {
+        Path root = testFiles.getTmpDir();
+        Path shallow = Files.createDirectories(root.resolve("a/logs"));
+        Path deep = Files.createDirectories(root.resolve("b/c/d/logs"));
+        Files.createDirectories(root.resolve("b/c/other"));
+
+        SourceFile src = new SourceFile(null, root.toString() + "/**/logs/app.log");
+        Assert.assertEquals(src.listDirectories(), Lists.newArrayList(shallow, deep));
+        // The walk stops at the maximum depth
+        SourceFile bounded = new SourceFile(null, root.toString() + "/**/logs/app.log", 3);
+        Assert.assertEquals(bounded.listDirectories(), Collections.singletonList(shallow));
+    }
+
+    @Test
+    public void testListFilesWithinTrackingWindow() throws IOException {
+        Path dir = testFiles.getTmpDir();
+        long now = System.currentTimeMillis();
+        List<Path> files = new ArrayList<>();
+        for (int i = 0; i < 10; ++i) {
+            Path file = testFiles.createTempFileWithName("app.log." + i);
+            // app.log.0 is the newest, and each file is an hour older than the previous one
+            Files.setLastModifiedTime(file, FileTime.fromMillis(now - i * 3_600_000L));
+            files.add(file);
+        }
+        String glob = dir.toString() + "/app.log.*";
+
+        TrackedFileList newest = new SourceFile(null, glob, SourceFile.DEFAULT_MAX_DIRECTORY_DEPTH, 3, 0).listFiles();
+        Assert.assertEquals(toPathList(newest), files.subList(0, 3));
+        Assert.assertEquals(newest.getFilesOutsideWindow(), 7);
+
+        TrackedFileList recent = new SourceFile(null, glob, SourceFile.DEFAULT_MAX_DIRECTORY_DEPTH, 0, 5_400_000L).listFiles();
+        Assert.assertEquals(toPathList(recent), files.subList(0, 2));
+        Assert.assertEquals(recent.getFilesOutsideWindow(), 8);
+
+        TrackedFileList all = new SourceFile(null, glob).listFiles();
+        Assert.assertEquals(all.size(), 10);
+        Assert.assertEquals(all.getFilesOutsideWindow(), 0);
+    }
+
+    @Test
+    public void testListCompressedFiles() throws IOException {
+        Path dir = testFiles.getTmpDir();
+        Path rotated = testFiles.createTempFileWithName("app.log.1");
+        for (int i = 0; i < 100; ++i)
+            TestUtils.appendToFile("line " + i + "\n", rotated);
+        long uncompressedSize = Files.size(rotated);
+        TestUtils.gzipFile(rotated, dir.resolve("app.log.1.gz"));
+        Path latest = testFiles.createTempFileWithName("app.log");
+        String glob = dir.toString() + "/app.log*";
+
+        Assert.assertEquals(toPathList(new SourceFile(null, glob).listFiles()), Collections.singletonList(latest));
+        SourceFile src = new SourceFile(null, glob, SourceFile.DEFAULT_MAX_DIRECTORY_DEPTH, 0, 0, true);
+        TrackedFileList files = src.listFiles();
+        Assert.assertEquals(files.size(), 2);
+        Assert.assertEquals(files.get(1).getPath(), dir.resolve("app.log.1.gz"));
+        Assert.assertEquals(files.get(1).getSize(), uncompressedSize);
+        Assert.assertTrue(files.get(1).isCompressed());
+
+        // While a file is being compressed, only the uncompressed one is listed
+        testFiles.createTempFileWithName("app.log.2");
+        testFiles.createTempFileWithName("app.log.2.gz");
+        files = src.listFiles();
+        Assert.assertEquals(files.size(), 3);
+        Assert.assertEquals(files.indexOfPath(dir.resolve("app.log.2.gz")), -1);
+        Assert.assertEquals(files.getFilesOutsideWindow(), 1);
+        Assert.assertEquals(src.countFiles(), files.size() + files.getFilesOutsideWindow());
+    }
+
+    @Test
+    public void testTrackingWindowIsExtendedToCurrentFile() throws IOException {
+        Path dir = testFiles.getTmpDir();
+        long now = System.currentTimeMillis();
+        List<Path> files = new ArrayList<>();
+        for (int i = 0; i < 10; ++i) {
+            Path file = testFiles.createTempFileWithName("app.log." + i);
+            Files.setLastModifiedTime(file, FileTime.fromMillis(now - i * 3_600_000L));
+            files.add(file);
+        }
+        SourceFile src = new SourceFile(null, dir.toString() + "/app.log.*", SourceFile.DEFAULT_MAX_DIRECTORY_DEPTH, 3, 0);
+        TrackedFile current = new TrackedFile(null, files.get(5));
+
+        // The current file and all the files newer than it are kept, so none of their data is skipped
+        TrackedFileList result = src.listFiles(current);
+        Assert.assertEquals(toPathList(result), files.subList(0, 6));
+        Assert.assertEquals(result.getFilesOutsideWindow(), 4);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testOnlyFilesInsideTheTrackingWindowAreReadAgain() throws IOException {
+        Path dir = testFiles.getTmpDir();
+        long now = System.currentTimeMillis();
+        List<Path> files = new ArrayList<>();
+        for (int i = 0; i < 20; ++i) {
+            Path file = testFiles.createTempFileWithName("app.log." + i);
+            Files.setLastModifiedTime(file, FileTime.fromMillis(now - i * 3_600_000L));
+            files.add(file);
+        }
+        // Directories listed again and attributes read again on every call, unless cached
+        DirectoryIndex index = new DirectoryIndex(0, 0);
+        AgentContext context = Mockito.mock(AgentContext.class);
+        Mockito.when(context.getDirectoryIndex()).thenReturn(index);
+        FileFlow<FirehoseRecord> flow = Mockito.mock(FileFlow.class);
+        Mockito.when(flow.getAgentContext()).thenReturn(context);
+        SourceFile src = new SourceFile(flow, dir.toString() + "/app.log.*", SourceFile.DEFAULT_MAX_DIRECTORY_DEPTH, 3, 0);
+        Assert.assertEquals(toPathList(src.listFiles()), files.subList(0, 3));
+
+        long reads = index.getTotalAttributeReads().get();
+        TrackedFileList result = src.listFiles();
+        Assert.assertEquals(toPathList(result), files.subList(0, 3));
+        Assert.assertEquals(result.getFilesOutsideWindow(), 17);
+        Assert.assertEquals(index.getTotalAttributeReads().get() - reads, 3);
+
+        // The window moves on when files change
+        Files.delete(files.get(0));
+        Path latest = testFiles.createTempFileWithName("app.log.new");
+        Files.setLastModifiedTime(files.get(2), FileTime.fromMillis(now - 60 * 3_600_000L));
+        result = src.listFiles();
+        Assert.assertEquals(toPathList(result), Lists.newArrayList(latest, files.get(1), files.get(3)));
+        Assert.assertEquals(result.getFilesOutsideWindow(), 17);
+    }
 }
@@ -10,6 +10,7 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.util.Map;
 import java.util.concurrent.ThreadLocalRandom;
 
 import lombok.Cleanup;
@@ -195,6 +196,55 @@ public class SourceFileTrackerTest extends TailingTestBase {
         tracker.assertStillTrackingRememberedFileWithoutRotation();
     }
 
+    @DataProvider(name="rotatorsListingRotatedFiles")
+    public Object[][] rotatorsListingRotatedFilesProvider() {
+        // The copy rotator's flow only matches the latest file, whose ID is kept by rotations
+        return new Object[][] {
+                { new RenameFileRotatorFactory() },
+                { new CreateFileRotatorFactory() },
+                { new TruncateFileRotatorFactory() },
+        };
+    }
+
+    @Test(dataProvider="rotatorsListingRotatedFiles")
+    public void testRefreshSkipsRotationAnalysisWhenFilesDidNotChange(FileRotatorFactory rotatorFactory) throws IOException {
+        FileRotator rotator = rotatorFactory.create();
+        rotator.rotate(3);
+        TestableSourceFileTracker tracker = getTracker(rotator);
+        tracker.initialize();
+        tracker.rememberCurrentOpenFile();
+
+        // nothing changed, or data was only appended to the latest file: no analysis needed
+        tracker.refresh();
+        rotator.appendDataToLatestFile(1024);
+        tracker.refresh();
+        tracker.assertStillTrackingRememberedFileWithoutRotation();
+        Assert.assertEquals(tracker.getTotalRotationAnalysesSkipped().get(), 2);
+        Assert.assertEquals(tracker.getTotalRotationAnalyses().get(), 0);
+
+        // a rotation changes the snapshot, and is analyzed as before
+        rotator.rotate();
+        tracker.refresh();
+        tracker.assertStillTrackingRememberedFile();
+        Assert.assertEquals(tracker.getTotalRotationAnalyses().get(), 1);
+    }
+
+    @Test(dataProvider="rotatorsListingRotatedFiles")
+    public void testFilesOutsideTrackingWindowDoNotForceRefresh(FileRotatorFactory rotatorFactory) throws IOException {
+        FileRotator rotator = rotatorFactory.create();
+        rotator.rotate(5);
+        Map<String, Object> flowConfig = getTestFlowConfig(rotator.getInputFileGlob());
+        flowConfig.put(FileFlow.MAX_TRACKED_FILES_KEY, 2);
+        FileFlow<?> flow = new FileFlowFactory().getFileFlow(context, new Configuration(flowConfig));
+        SourceFileTracker tracker = new SourceFileTracker(context, flow);
+        tracker.initialize();
+        Assert.assertEquals(tracker.getCurrentOpenFile().getPath(), rotator.getLatestFile());
+        Assert.assertEquals(tracker.currentSnapshot.size(), 2);
+        Assert.assertEquals(tracker.getFilesOutsideWindow(), flow.getSourceFile().countFiles() - 2);
+        Assert.assertTrue(tracker.getFilesOutsideWindow() > 0);
+        Assert.assertFalse(tracker.mustRefresh());
+    }
+
     @Test(dataProvider="rotators")
     public void testRefreshWithNoFilesFound(FileRotatorFactory rotatorFactory) throws IOException {
         FileRotator rotator = rotatorFactory.create();
@@ -347,6 +397,98 @@ public class SourceFileTrackerTest extends TailingTestBase {
         tracker.assertRememberedFileWasClosed();
     }
 
+    private SourceFileTracker getCompressedFilesTracker(Path dir, boolean readCompressedFiles) throws IOException {
+        Map<String, Object> flowConfig = getTestFlowConfig(dir.toString() + "/app.log*");
+        flowConfig.put(FileFlow.READ_COMPRESSED_FILES_KEY, readCompressedFiles);
+        FileFlow<?> flow = new FileFlowFactory().getFileFlow(context, new Configuration(flowConfig));
+        return new SourceFileTracker(context, flow);
+    }
+
+    private Path rotateAndCompress(Path file) throws IOException {
+        // logrotate's default rotation, followed by its "compress" option
+        Path rotated = file.resolveSibling(file.getFileName() + ".1");
+        Files.move(file, rotated);
+        Files.write(file, "first line of the new file\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE_NEW);
+        TestUtils.ageFile(file, -10);
+        Path compressed = rotated.resolveSibling(rotated.getFileName() + ".gz");
+        TestUtils.gzipFile(rotated, compressed);
+        return compressed;
+    }
+
+    @Test
+    public void testRefreshFollowsCurrentFileIntoItsCompressedCounterpart() throws IOException {
+        Path file = testFiles.createTempFileWithName("app.log");
+        for (int i = 0; i < 100; ++i)
+            TestUtils.appendToFile("line " + i + "\n", file);
+        SourceFileTracker tracker = getCompressedFilesTracker(file.getParent(), true);
+        tracker.initialize();
+        Assert.assertEquals(tracker.getCurrentOpenFile().getPath(), file);
+        long offset = Files.size(file) / 2;
+        tracker.getCurrentOpenFile().getChannel().position(offset);
+
+        Path compressed = rotateAndCompress(file);
+        Assert.assertTrue(tracker.mustRefresh());
+        Assert.assertTrue(tracker.refresh());
+        Assert.assertEquals(tracker.getCurrentOpenFile().getPath(), compressed);
+        Assert.assertTrue(tracker.getCurrentOpenFile().isCompressed());
+        Assert.assertEquals(tracker.getCurrentOpenFile().getCurrentOffset(), offset);
+        Assert.assertTrue(tracker.newerFilesPending());
+
+        // Nothing changes after that, even though the compressed file is smaller than its data
+        Assert.assertFalse(tracker.mustRefresh());
+    }
+
+    @Test
+    public void testInitializeWithCheckpointOfFileCompressedSince() throws IOException {
+        Path file = testFiles.createTempFileWithName("app.log");
+        for (int i = 0; i < 100; ++i)
+            TestUtils.appendToFile("line " + i + "\n", file);
+        SourceFileTracker tracker = getCompressedFilesTracker(file.getParent(), true);
+        long offset = Files.size(file) / 2;
+        FileCheckpoint cp = new FileCheckpoint(new TrackedFile(tracker.flow, file), offset);
+
+        Path compressed = rotateAndCompress(file);
+        Assert.assertTrue(tracker.initialize(cp));
+        Assert.assertEquals(tracker.getCurrentOpenFile().getPath(), compressed);
+        Assert.assertEquals(tracker.getCurrentOpenFile().getCurrentOffset(), offset);
+        Assert.assertTrue(tracker.newerFilesPending());
+    }
+
+    @DataProvider(name = "trailerSizes")
+    public Object[][] getTrailerSizesData() {
+        long gib = 1L << 30;
+        return new Object[][] {
+                { 100L, 50L, true },
+                { 50L, 50L, true },
+                { 50L, 100L, false },
+                // The trailer has the size modulo 4 GiB
+                { gib, 5 * gib, true },
+                { gib + 1000, 5 * gib, true },
+                { gib - 1000, 5 * gib, false },
+                // The file went past 4 GiB after it was last looked at
+                { 100L, 4 * gib - 100, true },
+                { 2 * gib, 3 * gib, false },
+        };
+    }
+
+    @Test(dataProvider = "trailerSizes")
+    public void testCompressedCounterpartSizeIsComparedModulo4GiB(long trailerSize, long minSize, boolean expected) {
+        Assert.assertEquals(SourceFileTracker.mayBeUncompressedSizeAtLeast(trailerSize, minSize), expected);
+    }
+
+    @Test
+    public void testCompressedFilesAreIgnoredByDefault() throws IOException {
+        Path file = testFiles.createTempFileWithName("app.log");
+        TestUtils.appendToFile("line\n", file);
+        SourceFileTracker tracker = getCompressedFilesTracker(file.getParent(), false);
+        tracker.initialize();
+        rotateAndCompress(file);
+        // The current file can't be found, so tailing starts over with the latest file
+        Assert.assertFalse(tracker.refresh());
+        Assert.assertEquals(tracker.getCurrentOpenFile().getPath(), file);
+        Assert.assertEquals(tracker.currentSnapshot.size(), 1);
+    }
+
     @Test(description = "Test behavior of an open channel when more data is appeneded.")
     public void testFileChannelWithMoreDataAppended() throws IOException {
         Path tmp = testFiles.createTempFile();
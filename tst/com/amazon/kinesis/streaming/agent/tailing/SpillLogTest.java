@@ -0,0 +1,378 @@
+/*
+ * Copyright (c) 2014-2017 Amazon.com, Inc. All Rights Reserved.
+ */
+package com.amazon.kinesis.streaming.agent.tailing;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.annotations.Test;
+
+import com.amazon.kinesis.streaming.agent.AgentContext;
+import com.amazon.kinesis.streaming.agent.ByteBuffers;
+import com.amazon.kinesis.streaming.agent.config.Configuration;
+import com.amazon.kinesis.streaming.agent.tailing.checkpoints.FileCheckpoint;
+import com.amazon.kinesis.streaming.agent.tailing.checkpoints.FileCheckpointStore;
+import com.amazon.kinesis.streaming.agent.tailing.checkpoints.SQLiteFileCheckpointStore;
+import com.amazon.kinesis.streaming.agent.tailing.testing.FileSender;
+import com.amazon.kinesis.streaming.agent.tailing.testing.FileSender.FileSenderFactory;
+import com.amazon.kinesis.streaming.agent.tailing.testing.RecordGenerator;
+import com.amazon.kinesis.streaming.agent.tailing.testing.TailingTestBase;
+import com.amazon.kinesis.streaming.agent.testing.TestUtils;
+
+public class SpillLogTest extends TailingTestBase {
+    private static final int SEGMENT_SIZE = 64 * 1024;
+    // So that it's known how many buffers fit in a segment
+    private static final int RECORD_SIZE = 1000;
+    private static final RecordGenerator FIXED_SIZE_RECORDS = new RecordGenerator(RECORD_SIZE, 0.0);
+
+    @SuppressWarnings("unchecked")
+    private FileFlow<FirehoseRecord> getTestFlow(Map<String, Object> flowConfig) {
+        Map<String, Object> config = new HashMap<>();
+        config.put("flows", Collections.singletonList(new Configuration(flowConfig)));
+        AgentContext context = getTestAgentContext(null, config);
+        return (FileFlow<FirehoseRecord>) context.flows().get(0);
+    }
+
+    private Path getSpillDirectory() {
+        return testFiles.getTmpDir().resolve("spill" + TestUtils.uniqueCounter());
+    }
+
+    private static int countSegments(Path directory) throws IOException {
+        int segments = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "segment-*.log")) {
+            for (Iterator<Path> it = stream.iterator(); it.hasNext(); it.next())
+                ++segments;
+        }
+        return segments;
+    }
+
+    private static void assertBuffersEqual(RecordBuffer<? extends IRecord> actual, RecordBuffer<? extends IRecord> expected) {
+        assertEquals(actual.id(), expected.id());
+        assertEquals(actual.timestamp(), expected.timestamp());
+        assertEquals(actual.sizeRecords(), expected.sizeRecords());
+        assertEquals(actual.sizeBytesWithOverhead(), expected.sizeBytesWithOverhead());
+        Iterator<? extends IRecord> expectedRecords = expected.iterator();
+        for (IRecord record : actual) {
+            IRecord expectedRecord = expectedRecords.next();
+            assertSame(record.file(), expectedRecord.file());
+            assertEquals(record.startOffset(), expectedRecord.startOffset());
+            assertEquals(record.endOffset(), expectedRecord.endOffset());
+            assertEquals(ByteBuffers.toArray(record.data()), ByteBuffers.toArray(expectedRecord.data()));
+        }
+        assertEquals(actual.checkpointFile(), expected.checkpointFile());
+        assertEquals(actual.checkpointOffset(), expected.checkpointOffset());
+    }
+
+    @Test
+    public void testBuffersAreReadBackInOrder() throws IOException {
+        FileFlow<FirehoseRecord> flow = getTestFlow(getTestFlowConfig(null));
+        SpillLog<FirehoseRecord> log = new SpillLog<>(flow, getSpillDirectory(), 10 * SEGMENT_SIZE, SEGMENT_SIZE);
+        List<RecordBuffer<FirehoseRecord>> buffers = new ArrayList<>();
+        long records = 0;
+        for (int i = 0; i < 5; ++i) {
+            RecordBuffer<FirehoseRecord> buffer = getTestBuffer(flow, 10);
+            if (i == 3)
+                initTestRecord(flow);   // records of another file
+            buffer.add(getTestRecord(flow));
+            records += buffer.sizeRecords();
+            buffers.add(buffer);
+            assertTrue(log.append(buffer));
+        }
+        assertEquals(log.size(), 5);
+        assertEquals(log.unreadRecords(), records);
+        for (RecordBuffer<FirehoseRecord> expected : buffers) {
+            RecordBuffer<FirehoseRecord> actual = log.poll();
+            assertNotNull(actual);
+            assertBuffersEqual(actual, expected);
+            assertEquals(actual.lastRecordOfEachFile().size(), expected.lastRecordOfEachFile().size());
+        }
+        assertNull(log.poll());
+        assertEquals(log.size(), 0);
+        assertEquals(log.unreadRecords(), 0);
+        assertEquals(log.unreadBytes(), 0);
+        assertEquals(log.getTotalSpilledBuffers().get(), 5);
+        assertEquals(log.getTotalReplayedBuffers().get(), 5);
+    }
+
+    @Test
+    public void testSegmentsAreDeletedOnceTheirBuffersAreReleased() throws IOException {
+        FileFlow<FirehoseRecord> flow = getTestFlow(getTestFlowConfig(null));
+        Path directory = getSpillDirectory();
+        SpillLog<FirehoseRecord> log = new SpillLog<>(flow, directory, 10 * SEGMENT_SIZE, SEGMENT_SIZE);
+        // Each buffer takes more than a third of a segment, so each segment holds two
+        int recordsPerBuffer = SEGMENT_SIZE / 3 / RECORD_SIZE + 1;
+        for (int i = 0; i < 6; ++i)
+            assertTrue(log.append(getTestBuffer(flow, recordsPerBuffer, FIXED_SIZE_RECORDS)));
+        assertEquals(countSegments(directory), 3);
+        assertEquals(log.bytesOnDisk(), 3 * SEGMENT_SIZE);
+
+        List<RecordBuffer<FirehoseRecord>> polled = new ArrayList<>();
+        for (int i = 0; i < 6; ++i)
+            polled.add(log.poll());
+        // Released out of order: the first segment goes only once both its buffers are released
+        polled.get(1).release();
+        polled.get(2).release();
+        assertEquals(countSegments(directory), 3);
+        polled.get(0).release();
+        assertEquals(countSegments(directory), 2);
+        assertEquals(log.getTotalSegmentsDeleted().get(), 1);
+        polled.get(3).release();
+        assertEquals(countSegments(directory), 1);
+        assertEquals(log.getTotalSegmentsDeleted().get(), 2);
+        // The segment written to is kept until it's full
+        polled.get(4).release();
+        polled.get(5).release();
+        assertEquals(countSegments(directory), 1);
+        // The deleted segments no longer count, even while the records read back from them are reachable
+        assertEquals(log.bytesOnDisk(), SEGMENT_SIZE);
+    }
+
+    @Test
+    public void testAppendIsRefusedWhenFull() throws IOException {
+        FileFlow<FirehoseRecord> flow = getTestFlow(getTestFlowConfig(null));
+        SpillLog<FirehoseRecord> log = new SpillLog<>(flow, getSpillDirectory(), SEGMENT_SIZE, SEGMENT_SIZE);
+        int recordsPerBuffer = SEGMENT_SIZE / 3 / RECORD_SIZE + 1;
+        assertTrue(log.append(getTestBuffer(flow, recordsPerBuffer, FIXED_SIZE_RECORDS)));
+        assertTrue(log.append(getTestBuffer(flow, recordsPerBuffer, FIXED_SIZE_RECORDS)));
+        assertFalse(log.append(getTestBuffer(flow, recordsPerBuffer, FIXED_SIZE_RECORDS)));
+        assertEquals(log.getTotalRefusedBuffers().get(), 1);
+        // Once the full segment is read back and released, there's room again
+        log.poll().release();
+        log.poll().release();
+        assertEquals(log.bytesOnDisk(), 0);
+        assertTrue(log.append(getTestBuffer(flow, recordsPerBuffer, FIXED_SIZE_RECORDS)));
+    }
+
+    @Test
+    public void testBufferLargerThanSegmentGetsItsOwnSegment() throws IOException {
+        FileFlow<FirehoseRecord> flow = getTestFlow(getTestFlowConfig(null));
+        SpillLog<FirehoseRecord> log = new SpillLog<>(flow, getSpillDirectory(), 10 * SEGMENT_SIZE, SEGMENT_SIZE);
+        int recordsPerBuffer = 2 * SEGMENT_SIZE / RECORD_SIZE + 1;
+        RecordBuffer<FirehoseRecord> large = getTestBuffer(flow, recordsPerBuffer, FIXED_SIZE_RECORDS);
+        assertTrue(log.append(large));
+        assertTrue(log.bytesOnDisk() > SEGMENT_SIZE);
+        assertBuffersEqual(log.poll(), large);
+    }
+
+    @Test
+    public void testUnacknowledgedBuffersAreRestoredOnOpen() throws IOException {
+        FileFlow<FirehoseRecord> flow = getTestFlow(getTestFlowConfig(null));
+        Path directory = getSpillDirectory();
+        SpillLog<FirehoseRecord> log = new SpillLog<>(flow, directory, 10 * SEGMENT_SIZE, SEGMENT_SIZE);
+        List<RecordBuffer<FirehoseRecord>> buffers = new ArrayList<>();
+        for (int i = 0; i < 4; ++i) {
+            RecordBuffer<FirehoseRecord> buffer = getTestBuffer(flow, 10);
+            if (i == 2)
+                initTestRecord(flow);   // records of another file
+            buffer.add(getTestRecord(flow));
+            buffers.add(buffer);
+            assertTrue(log.append(buffer));
+        }
+        // The first one was sent, the second one may not have been
+        log.poll().release();
+        assertNotNull(log.poll());
+        Files.createFile(directory.resolve("unrelated.txt"));
+
+        SpillLog<FirehoseRecord> restored = new SpillLog<>(flow, directory, 10 * SEGMENT_SIZE, SEGMENT_SIZE);
+        assertEquals(restored.size(), 3);
+        assertEquals(restored.getTotalRestoredBuffers().get(), 3);
+        long lastId = buffers.get(buffers.size() - 1).id();
+        for (RecordBuffer<FirehoseRecord> expected : buffers.subList(1, buffers.size())) {
+            RecordBuffer<FirehoseRecord> actual = restored.poll();
+            // Ordered after the buffers created so far
+            assertTrue(actual.id() > lastId);
+            lastId = actual.id();
+            assertEquals(actual.timestamp(), expected.timestamp());
+            assertEquals(actual.sizeRecords(), expected.sizeRecords());
+            assertEquals(actual.sizeBytesWithOverhead(), expected.sizeBytesWithOverhead());
+            Iterator<FirehoseRecord> expectedRecords = expected.iterator();
+            for (FirehoseRecord record : actual) {
+                FirehoseRecord expectedRecord = expectedRecords.next();
+                assertEquals(record.file().getPath(), expectedRecord.file().getPath());
+                assertEquals(record.file().getId(), expectedRecord.file().getId());
+                assertEquals(record.startOffset(), expectedRecord.startOffset());
+                assertEquals(record.endOffset(), expectedRecord.endOffset());
+                assertEquals(ByteBuffers.toArray(record.data()), ByteBuffers.toArray(expectedRecord.data()));
+            }
+            assertEquals(actual.checkpointOffset(), expected.checkpointOffset());
+            actual.release();
+        }
+        assertNull(restored.poll());
+        assertTrue(Files.exists(directory.resolve("unrelated.txt")));
+
+        // All acknowledged: nothing is restored again, and the segment is deleted once it's sealed
+        restored = new SpillLog<>(flow, directory, 10 * SEGMENT_SIZE, SEGMENT_SIZE);
+        assertEquals(restored.size(), 0);
+        assertEquals(countSegments(directory), 0);
+        assertTrue(restored.append(getTestBuffer(flow, 10)));
+        assertEquals(countSegments(directory), 1);
+    }
+
+    @Test
+    public void testBufferCutShortIsNotRestored() throws IOException {
+        FileFlow<FirehoseRecord> flow = getTestFlow(getTestFlowConfig(null));
+        Path directory = getSpillDirectory();
+        SpillLog<FirehoseRecord> log = new SpillLog<>(flow, directory, 10 * SEGMENT_SIZE, SEGMENT_SIZE);
+        assertTrue(log.append(getTestBuffer(flow, 10)));
+        assertTrue(log.append(getTestBuffer(flow, 10)));
+        // As if the agent stopped before the length of the second buffer was written
+        Path segment = directory.resolve("segment-0.log");
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer length = ByteBuffer.allocate(4);
+            channel.read(length, 0);
+            length.flip();
+            channel.write(ByteBuffer.allocate(4), length.getInt());
+        }
+
+        SpillLog<FirehoseRecord> restored = new SpillLog<>(flow, directory, 10 * SEGMENT_SIZE, SEGMENT_SIZE);
+        assertEquals(restored.size(), 1);
+        assertEquals(restored.poll().sizeRecords(), 10);
+    }
+
+    @Test
+    public void testDiscardUnread() throws IOException {
+        FileFlow<FirehoseRecord> flow = getTestFlow(getTestFlowConfig(null));
+        SpillLog<FirehoseRecord> log = new SpillLog<>(flow, getSpillDirectory(), 10 * SEGMENT_SIZE, SEGMENT_SIZE);
+        assertTrue(log.append(getTestBuffer(flow, 10)));
+        assertTrue(log.append(getTestBuffer(flow, 5)));
+        assertEquals(log.discardUnread(), 15);
+        assertEquals(log.size(), 0);
+        assertNull(log.poll());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testPartitionKeysAreRestored() throws IOException {
+        Map<String, Object> flowConfig = new HashMap<>();
+        flowConfig.put("filePattern", "/var/log/message.log*");
+        flowConfig.put(KinesisConstants.DESTINATION_KEY, "stream");
+        Map<String, Object> config = new HashMap<>();
+        config.put("flows", Collections.singletonList(new Configuration(flowConfig)));
+        FileFlow<KinesisRecord> flow = (FileFlow<KinesisRecord>) getTestAgentContext(null, config).flows().get(0);
+        TrackedFile file = new TrackedFile(flow, testFiles.createTempFile());
+        RecordBuffer<KinesisRecord> buffer = new RecordBuffer<>(flow);
+        for (int i = 0; i < 10; ++i) {
+            byte[] data = ("record " + i + "\n").getBytes();
+            buffer.add(new KinesisRecord(file, i * 100, ByteBuffer.wrap(data), data.length));
+        }
+        SpillLog<KinesisRecord> log = new SpillLog<>(flow, getSpillDirectory(), 10 * SEGMENT_SIZE, SEGMENT_SIZE);
+        assertTrue(log.append(buffer));
+        RecordBuffer<KinesisRecord> restored = log.poll();
+        assertBuffersEqual(restored, buffer);
+        Iterator<KinesisRecord> expected = buffer.iterator();
+        for (KinesisRecord record : restored)
+            assertEquals(record.partitionKey(), expected.next().partitionKey());
+    }
+
+    @Test
+    public void testPublishingQueueSpillsBuffersThatDoNotFit() throws IOException {
+        Map<String, Object> flowConfig = getTestFlowConfig(null);
+        flowConfig.put(FileFlow.MAX_BUFFER_SIZE_RECORDS_KEY, 5);
+        flowConfig.put(FileFlow.MAX_SPILL_BYTES_KEY, 10 * SEGMENT_SIZE);
+        flowConfig.put(FileFlow.SPILL_SEGMENT_SIZE_BYTES_KEY, SEGMENT_SIZE);
+        FileFlow<FirehoseRecord> flow = getTestFlow(flowConfig);
+        PublishingQueue<FirehoseRecord> q = new PublishingQueue<>(flow, 2);
+        MemoryBudget.Account memory = flow.getAgentContext().getMemoryBudget().account(flow.getId());
+
+        // Without waiting, though the queue holds only 2 buffers
+        for (int i = 0; i < 30; ++i)
+            assertTrue(q.offerRecord(getTestRecord(flow), false));
+        assertNotNull(q.flushPendingRecords());
+        assertEquals(q.size(), 6);
+        assertEquals(q.totalRecords(), 30);
+        assertEquals(q.getMetrics().get("SpillLog.UnreadBuffers"), 4);
+        // Spilled buffers aren't held in memory
+        long bytesInMemory = memory.heldBytes();
+        assertTrue(q.totalBytes() > bytesInMemory);
+
+        // Once the queue has room, buffers are still spilled until the spilled ones are taken
+        RecordBuffer<FirehoseRecord> first = q.take();
+        for (int i = 0; i < 5; ++i)
+            assertTrue(q.offerRecord(getTestRecord(flow), false));
+        assertNotNull(q.flushPendingRecords());
+        assertEquals(q.getMetrics().get("SpillLog.UnreadBuffers"), 5);
+
+        long lastId = first.id();
+        long lastOffset = first.checkpointOffset();
+        first.release();
+        RecordBuffer<FirehoseRecord> buffer;
+        int taken = 1;
+        while ((buffer = q.take(false)) != null) {
+            assertTrue(buffer.id() > lastId);
+            assertTrue(buffer.checkpointOffset() > lastOffset);
+            lastId = buffer.id();
+            lastOffset = buffer.checkpointOffset();
+            buffer.release();
+            ++taken;
+        }
+        assertEquals(taken, 7);
+        assertEquals(q.size(), 0);
+        assertEquals(q.totalRecords(), 0);
+        assertEquals(memory.heldBytes(), 0);
+    }
+
+    @Test
+    public void testClosedPublisherLeavesItsBuffersToTheNextRun() throws IOException {
+        Map<String, Object> flowConfig = getTestFlowConfig(null);
+        flowConfig.put(FileFlow.MAX_BUFFER_SIZE_RECORDS_KEY, 5);
+        flowConfig.put(FileFlow.MAX_SPILL_BYTES_KEY, 10 * SEGMENT_SIZE);
+        flowConfig.put(FileFlow.SPILL_SEGMENT_SIZE_BYTES_KEY, SEGMENT_SIZE);
+        FileFlow<FirehoseRecord> flow = getTestFlow(flowConfig);
+        AgentContext context = flow.getAgentContext();
+        FileCheckpointStore checkpoints = new SQLiteFileCheckpointStore(context);
+        FileSenderFactory<FirehoseRecord> fsFactory = new FileSender.PerfectFileSenderFactory<>();
+        SimplePublisher<FirehoseRecord> publisher = new SimplePublisher<>(context, flow, checkpoints,
+                fsFactory.create(context, testFiles.createTempFile()));
+        List<FirehoseRecord> published = new ArrayList<>();
+        for (int i = 0; i < 32; ++i) {
+            FirehoseRecord record = getTestRecord(flow);
+            published.add(record);
+            assertTrue(publisher.publishRecord(record));
+        }
+        // One is sent, another one fails after the publisher is closed
+        RecordBuffer<FirehoseRecord> sent = publisher.pollNextBuffer(false);
+        RecordBuffer<FirehoseRecord> failed = publisher.pollNextBuffer(false);
+        publisher.onSendSuccess(sent);
+        publisher.close();
+        assertTrue(publisher.onSendError(failed, new RuntimeException("Throttled")));
+        assertEquals(publisher.queue.totalRecords(), 0);
+        assertTrue(publisher.checkpointSpilledRecords());
+        FileCheckpoint checkpoint = checkpoints.getCheckpointForFlow(flow);
+        assertEquals(checkpoint.getOffset(), published.get(published.size() - 1).endOffset());
+
+        // After the restart, all but the buffer that was sent are taken from the spill log
+        PublishingQueue<FirehoseRecord> q = new PublishingQueue<>(flow, 2);
+        assertEquals(q.totalRecords(), published.size() - sent.sizeRecords());
+        List<Long> offsets = new ArrayList<>();
+        RecordBuffer<FirehoseRecord> buffer;
+        while ((buffer = q.take(false)) != null) {
+            for (FirehoseRecord record : buffer)
+                offsets.add(record.startOffset());
+            buffer.release();
+        }
+        List<Long> expected = new ArrayList<>();
+        for (FirehoseRecord record : published.subList(sent.sizeRecords(), published.size()))
+            expected.add(record.startOffset());
+        // Those failed after the close were spilled last, but are read back in the order they were queued
+        assertEquals(offsets, expected);
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2014-2017 Amazon.com, Inc. All Rights Reserved.
+ */
+package com.amazon.kinesis.streaming.agent.tailing;
+
+import static org.mockito.Matchers.anyDouble;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.mockito.AdditionalMatchers;
+import org.testng.annotations.Test;
+
+import com.amazon.kinesis.streaming.agent.AgentContext;
+import com.amazon.kinesis.streaming.agent.metrics.IMetricsScope;
+import com.amazon.kinesis.streaming.agent.tailing.StageLatencies.Stage;
+import com.amazon.kinesis.streaming.agent.tailing.checkpoints.SQLiteFileCheckpointStore;
+import com.amazon.kinesis.streaming.agent.tailing.testing.FileSender;
+import com.amazon.kinesis.streaming.agent.tailing.testing.TailingTestBase;
+import com.amazonaws.services.cloudwatch.model.StandardUnit;
+
+public class StageLatenciesTest extends TailingTestBase {
+
+    @Test
+    public void testMetricsCoverAllRecords() {
+        StageLatencies latencies = new StageLatencies();
+        for (int i = 0; i < 1000; ++i)
+            latencies.record(Stage.SEND, TimeUnit.MILLISECONDS.toNanos(10));
+        latencies.record(Stage.SEND, TimeUnit.SECONDS.toNanos(5));
+        Map<String, Object> metrics = latencies.getMetrics();
+        assertEquals(metrics.get("Latency.Send.Count"), 1001L);
+        assertEquals((double) metrics.get("Latency.Send.P50Millis"), 10.0, 10.0 / 16);
+        assertEquals((double) metrics.get("Latency.Send.P99Millis"), 10.0, 10.0 / 16);
+        assertEquals((double) metrics.get("Latency.Send.P999Millis"), 10.0, 10.0 / 16);
+        assertEquals(metrics.get("Latency.Parse.Count"), 0L);
+        assertEquals(metrics.get("Latency.Parse.P99Millis"), 0.0);
+    }
+
+    @Test
+    public void testEmitCoversRecordsSinceLastEmit() {
+        StageLatencies latencies = new StageLatencies();
+        latencies.record(Stage.QUEUE_WAIT, TimeUnit.SECONDS.toNanos(60));
+        IMetricsScope scope = mock(IMetricsScope.class);
+        latencies.emit(scope);
+        verify(scope).addData(eq("QueueWaitLatencyP50"), AdditionalMatchers.eq(60000.0, 60000.0 / 16), eq(StandardUnit.Milliseconds));
+        verify(scope).addData(eq("QueueWaitLatencyP99"), AdditionalMatchers.eq(60000.0, 60000.0 / 16), eq(StandardUnit.Milliseconds));
+        verify(scope).addData(eq("QueueWaitLatencyP999"), AdditionalMatchers.eq(60000.0, 60000.0 / 16), eq(StandardUnit.Milliseconds));
+        verify(scope, never()).addData(eq("SendLatencyP50"), anyDouble(), eq(StandardUnit.Milliseconds));
+
+        latencies.record(Stage.QUEUE_WAIT, TimeUnit.MILLISECONDS.toNanos(2));
+        scope = mock(IMetricsScope.class);
+        latencies.emit(scope);
+        verify(scope).addData(eq("QueueWaitLatencyP999"), AdditionalMatchers.eq(2.0, 2.0 / 16), eq(StandardUnit.Milliseconds));
+
+        // Nothing new
+        scope = mock(IMetricsScope.class);
+        latencies.emit(scope);
+        verify(scope, never()).addData(anyString(), anyDouble(), eq(StandardUnit.Milliseconds));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testPublisherRecordsEachStage() throws Exception {
+        AgentContext context = getTestAgentContext();
+        FileFlow<FirehoseRecord> flow = (FileFlow<FirehoseRecord>) context.flows().get(0);
+        SimplePublisher<FirehoseRecord> publisher = new SimplePublisher<>(context, flow,
+                new SQLiteFileCheckpointStore(context),
+                new FileSender.PerfectFileSenderFactory<FirehoseRecord>().create(context, testFiles.createTempFile()));
+        StageLatencies latencies = flow.getLatencies();
+        for (int i = 0; i < 3; ++i)
+            assertTrue(publisher.publishRecord(getTestRecord(flow)));
+        Thread.sleep(20);
+        publisher.flush();
+        assertEquals(latencies.snapshot(Stage.BUFFER_LINGER).count(), 1);
+        assertTrue(latencies.snapshot(Stage.BUFFER_LINGER).percentile(1.0) >= TimeUnit.MILLISECONDS.toNanos(20));
+        Thread.sleep(20);
+        assertTrue(publisher.sendNextBufferSync(false));
+
+        assertEquals(latencies.snapshot(Stage.QUEUE_WAIT).count(), 1);
+        assertTrue(latencies.snapshot(Stage.QUEUE_WAIT).percentile(1.0) >= TimeUnit.MILLISECONDS.toNanos(20));
+        assertEquals(latencies.snapshot(Stage.SEND).count(), 1);
+        assertEquals(latencies.snapshot(Stage.CHECKPOINT).count(), 1);
+        assertEquals(latencies.snapshot(Stage.END_TO_END).count(), 1);
+        assertTrue(latencies.snapshot(Stage.END_TO_END).percentile(1.0) >= TimeUnit.MILLISECONDS.toNanos(40));
+
+        Map<String, Object> metrics = publisher.getMetrics();
+        assertNotNull(metrics.get("PublishingQueue.TotalTimeInQueueMillis"));
+        assertTrue((long) metrics.get("PublishingQueue.TotalTimeInQueueMillis") >= 20);
+        assertTrue((double) metrics.get("PublishingQueue.AverageTimeInQueueMillis") >= 20.0);
+    }
+}
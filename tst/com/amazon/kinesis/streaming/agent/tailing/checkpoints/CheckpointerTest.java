@@ -3,23 +3,31 @@
  */
 package com.amazon.kinesis.streaming.agent.tailing.checkpoints;
 
+import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertNotNull;
 import static org.testng.Assert.assertNull;
 import static org.testng.Assert.assertTrue;
 
 import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import com.amazon.kinesis.streaming.agent.AgentContext;
+import com.amazon.kinesis.streaming.agent.config.Configuration;
 import com.amazon.kinesis.streaming.agent.tailing.FileFlow;
 import com.amazon.kinesis.streaming.agent.tailing.FirehoseRecord;
 import com.amazon.kinesis.streaming.agent.tailing.RecordBuffer;
+import com.amazon.kinesis.streaming.agent.tailing.TrackedFile;
+import com.amazon.kinesis.streaming.agent.tailing.FileFlow.TailingMode;
 import com.amazon.kinesis.streaming.agent.tailing.checkpoints.Checkpointer;
 import com.amazon.kinesis.streaming.agent.tailing.checkpoints.FileCheckpointStore;
 import com.amazon.kinesis.streaming.agent.tailing.checkpoints.SQLiteFileCheckpointStore;
 import com.amazon.kinesis.streaming.agent.tailing.testing.TailingTestBase;
+import com.google.common.collect.Lists;
 
 public class CheckpointerTest extends TailingTestBase {
     private AgentContext context;
@@ -85,4 +93,34 @@ public class CheckpointerTest extends TailingTestBase {
         assertTrue(buffer2.id() > buffer1.id());
         assertNull(checkpointer.saveCheckpoint(buffer1));
     }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testCheckpointPerFileWhenTailingConcurrently() throws IOException {
+        Path dir = testFiles.getTmpDir();
+        Map<String, Object> flowConfig = getTestFlowConfig(dir.resolve("worker-*.log").toString());
+        flowConfig.put(FileFlow.TAILING_MODE_KEY, TailingMode.CONCURRENT.name());
+        Map<String, Object> config = new HashMap<>();
+        config.put("flows", Lists.newArrayList(new Configuration(flowConfig)));
+        FileFlow<FirehoseRecord> concurrentFlow = (FileFlow<FirehoseRecord>) getTestAgentContext(null, config).flows().get(0);
+        FileCheckpointStore store = new SQLiteFileCheckpointStore(context);
+        Checkpointer<FirehoseRecord> checkpointer = new Checkpointer<FirehoseRecord>(concurrentFlow, store);
+        TrackedFile first = new TrackedFile(concurrentFlow, testFiles.createTempFileWithName("worker-1.log"));
+        TrackedFile second = new TrackedFile(concurrentFlow, testFiles.createTempFileWithName("worker-2.log"));
+        byte[] data = "line\n".getBytes();
+
+        RecordBuffer<FirehoseRecord> buffer1 = new RecordBuffer<FirehoseRecord>(concurrentFlow);
+        buffer1.add(new FirehoseRecord(first, 0, data, data.length));
+        buffer1.add(new FirehoseRecord(second, 0, data, data.length));
+        RecordBuffer<FirehoseRecord> buffer2 = new RecordBuffer<FirehoseRecord>(concurrentFlow);
+        buffer2.add(new FirehoseRecord(second, 5, data, data.length));
+
+        // The later buffer is sent first: it only holds back the checkpoint of its own file
+        assertNotNull(checkpointer.saveCheckpoint(buffer2));
+        FileCheckpoint checkpoint = checkpointer.saveCheckpoint(buffer1);
+        assertNotNull(checkpoint);
+        assertEquals(checkpoint.getFile(), first);
+        assertEquals(store.getCheckpointForPath(concurrentFlow, first.getPath()).getOffset(), 5);
+        assertEquals(store.getCheckpointForPath(concurrentFlow, second.getPath()).getOffset(), 10);
+    }
 }
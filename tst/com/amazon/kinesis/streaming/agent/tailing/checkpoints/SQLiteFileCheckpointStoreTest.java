@@ -9,6 +9,7 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -25,6 +26,7 @@ import com.amazon.kinesis.streaming.agent.config.Configuration;
 import com.amazon.kinesis.streaming.agent.tailing.FileFlow;
 import com.amazon.kinesis.streaming.agent.tailing.FirehoseConstants;
 import com.amazon.kinesis.streaming.agent.tailing.FirehoseFileFlow;
+import com.amazon.kinesis.streaming.agent.tailing.SourceFile;
 import com.amazon.kinesis.streaming.agent.tailing.TrackedFile;
 import com.amazon.kinesis.streaming.agent.tailing.checkpoints.FileCheckpoint;
 import com.amazon.kinesis.streaming.agent.tailing.checkpoints.FileCheckpointStore;
@@ -107,6 +109,65 @@ public class SQLiteFileCheckpointStoreTest extends TailingTestBase {
         Assert.assertEquals(flowCp, cp2);
     }
 
+    @Test
+    public void testRetrieveLatestCheckpointForDirectory() throws Exception {
+        FileCheckpointStore store = getTestCheckpointStore();
+        Path root = testFiles.getTmpDir();
+        Path first = Files.createDirectories(root.resolve("a/logs"));
+        Path second = Files.createDirectories(root.resolve("b/logs"));
+        Path nested = Files.createDirectories(root.resolve("a/logs/old"));
+        final FileFlow<?> flow = getTestFlow("testflow", root.resolve("*/logs/app.log").toString());
+        FileCheckpoint cp1 = store.saveCheckpoint(new TrackedFile(flow, Files.createFile(first.resolve("app.log"))), 1000L);
+        Thread.sleep(100);
+        FileCheckpoint cp2 = store.saveCheckpoint(new TrackedFile(flow, Files.createFile(second.resolve("app.log"))), 2000L);
+        Thread.sleep(100);
+        store.saveCheckpoint(new TrackedFile(flow, Files.createFile(nested.resolve("app.log"))), 3000L);
+
+        // Only checkpoints of files directly in the directory count
+        Assert.assertEquals(store.getCheckpointForDirectory(flow, first), cp1);
+        Assert.assertEquals(store.getCheckpointForDirectory(flow, second), cp2);
+        Assert.assertNull(store.getCheckpointForDirectory(flow, root.resolve("c/logs")));
+    }
+
+    @Test
+    public void testRetrieveLatestCheckpointForSource() throws Exception {
+        FileCheckpointStore store = getTestCheckpointStore();
+        Path dir = testFiles.getTmpDir();
+        final FileFlow<?> flow = getTestFlow("testflow", dir.resolve("worker-*.log").toString());
+        Path first = Files.createFile(dir.resolve("worker-1.log"));
+        Path second = Files.createFile(dir.resolve("worker-2.log"));
+        store.saveCheckpoint(new TrackedFile(flow, first), 1000L);
+        Thread.sleep(100);
+        FileCheckpoint cp2 = store.saveCheckpoint(new TrackedFile(flow, second), 2000L);
+        Thread.sleep(100);
+        // The first file was rotated since, and is still being read under its new name
+        Path rotated = Files.move(first, dir.resolve("worker-1.log.1"));
+        FileCheckpoint cp1 = store.saveCheckpoint(new TrackedFile(flow, rotated), 3000L);
+
+        SourceFile source = new SourceFile(flow, dir.resolve("worker-*.log").toString());
+        Assert.assertEquals(store.getCheckpointForSource(flow, source.forFile(first)), cp1);
+        Assert.assertEquals(store.getCheckpointForSource(flow, source.forFile(second)), cp2);
+        Assert.assertNull(store.getCheckpointForSource(flow, source.forFile(dir.resolve("worker-3.log"))));
+    }
+
+    @Test
+    public void testRetrieveAllCheckpointsForFlow() throws Exception {
+        FileCheckpointStore store = getTestCheckpointStore();
+        Path dir = testFiles.getTmpDir();
+        final FileFlow<?> flow = getTestFlow("testflow", dir.resolve("app.log*").toString());
+        final FileFlow<?> otherFlow = getTestFlow("otherflow", dir.resolve("app.log*").toString());
+        Assert.assertTrue(store.getCheckpointsForFlow(flow).isEmpty());
+        Path first = Files.createFile(dir.resolve("app.log.2"));
+        Path second = Files.createFile(dir.resolve("app.log.1"));
+        FileCheckpoint cp2 = store.saveCheckpoint(new TrackedFile(flow, second), 2000L);
+        Thread.sleep(100);
+        FileCheckpoint cp1 = store.saveCheckpoint(new TrackedFile(flow, first), 1000L);
+        store.saveCheckpoint(new TrackedFile(otherFlow, first), 3000L);
+
+        // Latest first
+        Assert.assertEquals(store.getCheckpointsForFlow(flow), Arrays.asList(cp1, cp2));
+    }
+
     @Test
     public void testSamePathWithDifferentFlows() throws IOException {
         FileCheckpointStore store = getTestCheckpointStore();
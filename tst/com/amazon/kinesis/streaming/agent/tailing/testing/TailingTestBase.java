@@ -224,6 +224,9 @@ public abstract class TailingTestBase extends TestBase {
         if (!config.containsKey("checkpointFile"))
             config.put("checkpointFile", globalTestFiles.getTempFilePath());
 
+        if (!config.containsKey("spillDirectory"))
+            config.put("spillDirectory", globalTestFiles.getTmpDir().resolve("spill" + TestUtils.uniqueCounter()));
+
         if (!config.containsKey("cloudwatch.emitMetrics"))
             config.put("cloudwatch.emitMetrics", false);
 
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2014-2017 Amazon.com, Inc. All Rights Reserved.
+ */
+package com.amazon.kinesis.streaming.agent.testing;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Stopwatch;
+
+/**
+ * A minimal harness for comparing implementations in benchmark tests: runs
+ * a number of untimed warm-up rounds so the JIT settles, then reports the
+ * best of several timed rounds. Not a substitute for a proper harness like
+ * JMH, but good enough to compare two implementations side by side.
+ */
+public class MicroBenchmark {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MicroBenchmark.class);
+    /** Written to by benchmarks so the JIT can't drop their results. */
+    public static volatile long sink;
+
+    private final int warmupRounds;
+    private final int measuredRounds;
+
+    public MicroBenchmark(int warmupRounds, int measuredRounds) {
+        this.warmupRounds = warmupRounds;
+        this.measuredRounds = measuredRounds;
+    }
+
+    /**
+     * @param name Label used when logging the result.
+     * @param operationsPerRound Number of operations one call to
+     *        {@code round} performs, used to compute the time per operation.
+     * @param round The code to time; its result is consumed into {@link #sink}.
+     * @return The best observed time per operation, in nanoseconds.
+     */
+    public double run(String name, long operationsPerRound, Callable<Long> round) throws Exception {
+        for (int i = 0; i < warmupRounds; ++i) {
+            sink += round.call();
+        }
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < measuredRounds; ++i) {
+            Stopwatch timer = Stopwatch.createStarted();
+            sink += round.call();
+            best = Math.min(best, timer.elapsed(TimeUnit.NANOSECONDS));
+        }
+        double nanosPerOperation = (double) best / operationsPerRound;
+        LOGGER.info("{}: {} ns/op (best of {} rounds)", name, String.format("%.2f", nanosPerOperation), measuredRounds);
+        return nanosPerOperation;
+    }
+}
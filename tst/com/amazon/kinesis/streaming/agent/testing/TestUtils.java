@@ -5,6 +5,7 @@ package com.amazon.kinesis.streaming.agent.testing;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
@@ -29,6 +30,7 @@ import java.util.Map;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
 
 import lombok.Getter;
 
@@ -275,6 +277,22 @@ public final class TestUtils {
         FileChannel.open(path, StandardOpenOption.WRITE).truncate(0).close();
     }
 
+    /**
+     * Compresses the file with gzip into <code>target</code>, keeping its
+     * <code>lastModifiedTime</code>, then deletes it, like
+     * <code>logrotate</code>'s <code>compress</code> option does.
+     * @param path
+     * @param target
+     * @throws IOException
+     */
+    public static void gzipFile(Path path, Path target) throws IOException {
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(target))) {
+            Files.copy(path, out);
+        }
+        Files.setLastModifiedTime(target, Files.getLastModifiedTime(path));
+        Files.delete(path);
+    }
+
     /**
      * Age a file by the given number of <code>seconds</code>.
      * If <code>seconds</code> is negative, the file timestamp